@@ -7,6 +7,8 @@ const API_BASE_URL = process.env.NODE_ENV === 'production'
 
 export default function EsimApprovals() {
   const [requests, setRequests] = useState([]);
+  const [nextCursor, setNextCursor] = useState(null);
+  const [loadingMore, setLoadingMore] = useState(false);
   const [loading, setLoading] = useState(true);
   const [filter, setFilter] = useState('PENDING');
   const [selectedRequest, setSelectedRequest] = useState(null);
@@ -18,12 +20,17 @@ export default function EsimApprovals() {
     fetchRequests();
   }, [filter]);
 
-  const fetchRequests = async () => {
+  const fetchRequests = async (cursor = null) => {
     try {
-      setLoading(true);
+      if (cursor) {
+        setLoadingMore(true);
+      } else {
+        setLoading(true);
+      }
       const token = localStorage.getItem('token');
+      const cursorParam = cursor ? `&cursor=${encodeURIComponent(cursor)}` : '';
       const response = await fetch(
-        `${API_BASE_URL}/admin/esim-requests?status=${filter}`,
+        `${API_BASE_URL}/admin/esim-requests?status=${filter}${cursorParam}`,
         {
           headers: {
             'Authorization': `Bearer ${token}`,
@@ -35,12 +42,14 @@ export default function EsimApprovals() {
 
       const data = await response.json();
       if (data.success) {
-        setRequests(data.requests || []);
+        setRequests(prev => cursor ? [...prev, ...(data.requests || [])] : (data.requests || []));
+        setNextCursor(data.nextCursor || null);
       }
     } catch (error) {
       console.error('Error fetching eSIM requests:', error);
     } finally {
       setLoading(false);
+      setLoadingMore(false);
     }
   };
 
@@ -304,6 +313,15 @@ export default function EsimApprovals() {
               )}
             </div>
           ))}
+          {nextCursor && (
+            <button
+              onClick={() => fetchRequests(nextCursor)}
+              disabled={loadingMore}
+              className="px-4 py-3 rounded-lg font-semibold bg-gray-200 text-gray-700 hover:bg-gray-300 disabled:opacity-50"
+            >
+              {loadingMore ? 'Loading...' : 'Load more'}
+            </button>
+          )}
         </div>
       )}
 
@@ -42,10 +42,10 @@ public class CustomCorsFilter implements Filter {
             response.setHeader("Access-Control-Allow-Headers", requestHeaders);
         } else {
             response.setHeader("Access-Control-Allow-Headers", 
-                "Authorization, Content-Type, Accept, Origin, X-Requested-With, Access-Control-Request-Method, Access-Control-Request-Headers");
+                "Authorization, Content-Type, Accept, Origin, X-Requested-With, Idempotency-Key, Access-Control-Request-Method, Access-Control-Request-Headers");
         }
         
-        response.setHeader("Access-Control-Expose-Headers", "Authorization, Content-Type, X-Requested-With");
+        response.setHeader("Access-Control-Expose-Headers", "Authorization, Content-Type, X-Requested-With, Idempotent-Replayed");
 
         // Handle preflight requests
         if ("OPTIONS".equalsIgnoreCase(request.getMethod())) {
@@ -0,0 +1,92 @@
+package com.example.topup.demo.config;
+
+import com.example.topup.demo.service.DashboardAssembler;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoDatabase;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.support.PersistenceExceptionTranslator;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the Mongo operations run for a dashboard by the dashboard's query timeout.
+ *
+ * DashboardAssembler gives each query a deadline on its worker thread. While one is set, the
+ * database handed to MongoTemplate and the repositories carries the remaining time as the
+ * driver's operation timeout (timeoutMS). The driver also sends it to the server as maxTimeMS,
+ * so a slow query is stopped by Mongo instead of holding a pool thread after the dashboard has
+ * already answered with its fallback. Operations on other threads are unaffected.
+ */
+@Configuration
+public class DashboardQueryTimeoutConfig {
+
+    @Bean
+    public static BeanPostProcessor dashboardQueryTimeoutPostProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof MongoDatabaseFactory factory && !(bean instanceof DeadlineMongoDatabaseFactory)) {
+                    return new DeadlineMongoDatabaseFactory(factory);
+                }
+                return bean;
+            }
+        };
+    }
+
+    static final class DeadlineMongoDatabaseFactory implements MongoDatabaseFactory {
+
+        private final MongoDatabaseFactory delegate;
+
+        DeadlineMongoDatabaseFactory(MongoDatabaseFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public MongoDatabase getMongoDatabase() throws DataAccessException {
+            return withDeadline(delegate.getMongoDatabase());
+        }
+
+        @Override
+        public MongoDatabase getMongoDatabase(String dbName) throws DataAccessException {
+            return withDeadline(delegate.getMongoDatabase(dbName));
+        }
+
+        @Override
+        public PersistenceExceptionTranslator getExceptionTranslator() {
+            return delegate.getExceptionTranslator();
+        }
+
+        @Override
+        public ClientSession getSession(ClientSessionOptions options) {
+            return delegate.getSession(options);
+        }
+
+        @Override
+        public MongoDatabaseFactory withSession(ClientSession session) {
+            return new DeadlineMongoDatabaseFactory(delegate.withSession(session));
+        }
+
+        @Override
+        public CodecRegistry getCodecRegistry() {
+            return delegate.getCodecRegistry();
+        }
+
+        @Override
+        public boolean isTransactionActive() {
+            return delegate.isTransactionActive();
+        }
+
+        private MongoDatabase withDeadline(MongoDatabase database) {
+            OptionalLong remaining = DashboardAssembler.remainingMillis();
+            // A timeout of 0 means no limit, so an expired deadline still gets the smallest one
+            return remaining.isPresent() ? database.withTimeout(Math.max(1, remaining.getAsLong()), TimeUnit.MILLISECONDS) : database;
+        }
+    }
+}
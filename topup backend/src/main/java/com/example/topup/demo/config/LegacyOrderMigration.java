@@ -0,0 +1,145 @@
+package com.example.topup.demo.config;
+
+import com.example.topup.demo.entity.Order;
+import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.service.RevenueRollupService;
+import com.example.topup.demo.service.UnifiedOrderService;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Moves historical orders from the orders collection into retailer_orders, so UnifiedOrderService
+ * reads a single collection. Each order keeps its _id and is mapped with the same rules as
+ * UnifiedOrderService.save(Order); its revenue rollup entry moves with it, so the order is not
+ * counted again under retailer_orders.
+ *
+ * Purchases made before the move were also written to retailer_orders as an "RO-" order. Such a
+ * purchase is not copied: its legacy metadata (allocated PINs, legacy status) is merged into that
+ * order, which from then on stands for both, and the rollup entry moves onto it.
+ *
+ * An order is removed from orders only after its copy or merge is stored, and neither is repeated
+ * for an order already moved, so an interrupted run is finished by the next start.
+ */
+@Component
+public class LegacyOrderMigration implements CommandLineRunner {
+
+    // Metadata key on a merged RO- order: the id of the legacy order merged into it
+    private static final String LEGACY_ORDER_ID = "legacyOrderId";
+
+    private final MongoTemplate mongoTemplate;
+    private final UnifiedOrderService unifiedOrderService;
+    private final RevenueRollupService revenueRollupService;
+
+    public LegacyOrderMigration(MongoTemplate mongoTemplate, UnifiedOrderService unifiedOrderService,
+                                RevenueRollupService revenueRollupService) {
+        this.mongoTemplate = mongoTemplate;
+        this.unifiedOrderService = unifiedOrderService;
+        this.revenueRollupService = revenueRollupService;
+    }
+
+    @Override
+    public void run(String... args) {
+        int migrated = 0;
+        int failed = 0;
+        try (Stream<Order> orders = mongoTemplate.stream(new Query(), Order.class)) {
+            for (Order order : (Iterable<Order>) orders::iterator) {
+                try {
+                    migrate(order);
+                    migrated++;
+                } catch (Exception e) {
+                    failed++;
+                    System.err.println("⚠️ Failed to migrate order " + order.getId() + ": " + e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("⚠️ Failed to migrate legacy orders: " + e.getMessage());
+        }
+
+        if (migrated > 0 || failed > 0) {
+            System.out.println("✅ Moved " + migrated + " legacy orders to retailer_orders"
+                    + (failed > 0 ? " (" + failed + " left in orders)" : ""));
+        }
+    }
+
+    private void migrate(Order order) {
+        RetailerOrder mirror = findMirror(order);
+        if (mirror != null) {
+            merge(order, mirror);
+        } else {
+            copy(order);
+        }
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(order.getId())), Order.class);
+    }
+
+    private void copy(Order order) {
+        // Before the insert, so the save listener finds the order already counted
+        revenueRollupService.rekey(RevenueRollupService.SOURCE_ORDERS, RevenueRollupService.SOURCE_RETAILER_ORDERS, order.getId());
+
+        if (!mongoTemplate.exists(Query.query(Criteria.where("_id").is(order.getId())), RetailerOrder.class)) {
+            try {
+                mongoTemplate.insert(unifiedOrderService.applyLegacyFields(order, new RetailerOrder()));
+            } catch (DuplicateKeyException e) {
+                // Inserted concurrently by another instance; any other unique clash is rethrown below
+                if (!mongoTemplate.exists(Query.query(Criteria.where("_id").is(order.getId())), RetailerOrder.class)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void merge(Order order, RetailerOrder mirror) {
+        revenueRollupService.rekey(RevenueRollupService.SOURCE_ORDERS, order.getId(),
+                RevenueRollupService.SOURCE_RETAILER_ORDERS, mirror.getId());
+
+        // A plain update: the mirror is already in the sales facts, and its rollup entry was just moved
+        Update update = new Update().set("metadata." + LEGACY_ORDER_ID, order.getId());
+        if (order.getMetadata() != null) {
+            order.getMetadata().forEach((key, value) -> update.set("metadata." + key, value));
+        }
+        Order.OrderStatus status = order.getStatus() != null ? order.getStatus() : Order.OrderStatus.COMPLETED;
+        update.set("metadata." + UnifiedOrderService.LEGACY_STATUS, status.name());
+        if (order.getCustomer() != null) {
+            update.set("metadata." + UnifiedOrderService.CUSTOMER_ID, order.getCustomer().getId());
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(mirror.getId())), update, RetailerOrder.class);
+    }
+
+    // The RO- order written with a legacy purchase, or the order it was already merged into
+    private RetailerOrder findMirror(Order order) {
+        if (order.getRetailer() == null || order.getCreatedDate() == null || order.getMetadata() == null
+                || !UnifiedOrderService.DIRECT_BUY.equals(order.getMetadata().get(UnifiedOrderService.PURCHASE_TYPE))) {
+            return null;
+        }
+        RetailerOrder merged = mongoTemplate.findOne(
+                Query.query(Criteria.where("metadata." + LEGACY_ORDER_ID).is(order.getId())), RetailerOrder.class);
+        if (merged != null) {
+            return merged;
+        }
+
+        // Written right after the Order in the same request, for the same amount and quantity
+        Query query = Query.query(Criteria.where("retailerId").is(order.getRetailer().getId())
+                        .and("orderNumber").regex("^RO-")
+                        .and("metadata." + UnifiedOrderService.LEGACY_STATUS).exists(false)
+                        .and("createdDate").gte(order.getCreatedDate()).lte(order.getCreatedDate().plusMinutes(1)))
+                .with(Sort.by(Sort.Direction.ASC, "createdDate"));
+        for (RetailerOrder candidate : mongoTemplate.find(query, RetailerOrder.class)) {
+            RetailerOrder.OrderItem item = candidate.getItems() != null && !candidate.getItems().isEmpty()
+                    ? candidate.getItems().get(0) : null;
+            if (candidate.getTotalAmount() != null && order.getAmount() != null
+                    && candidate.getTotalAmount().compareTo(order.getAmount()) == 0
+                    && item != null && Objects.equals(item.getQuantity(), order.getQuantity())) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
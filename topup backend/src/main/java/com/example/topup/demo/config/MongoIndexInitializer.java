@@ -0,0 +1,141 @@
+package com.example.topup.demo.config;
+
+import com.example.topup.demo.entity.CustomerEnquiry;
+import com.example.topup.demo.entity.EmailOutboxMessage;
+import com.example.topup.demo.entity.EmailRateLimitWindow;
+import com.example.topup.demo.entity.EsimDeliveryBatch;
+import com.example.topup.demo.entity.EsimFulfillmentJob;
+import com.example.topup.demo.entity.EsimOrderRequest;
+import com.example.topup.demo.entity.IdempotencyRecord;
+import com.example.topup.demo.entity.Order;
+import com.example.topup.demo.entity.RetailerCreditOverview;
+import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.entity.RetailerProfit;
+import com.example.topup.demo.entity.RetailerProfitEvent;
+import com.example.topup.demo.entity.RetailerWallet;
+import com.example.topup.demo.entity.RevenueDaily;
+import com.example.topup.demo.entity.User;
+import com.example.topup.demo.service.UnifiedOrderService;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the indexes that newer collections depend on.
+ * spring.data.mongodb.auto-index-creation is disabled because the legacy @Indexed definitions
+ * conflict with existing indexes, so indexes needed for correctness are created here explicitly.
+ */
+@Component
+public class MongoIndexInitializer implements CommandLineRunner {
+
+    private final MongoTemplate mongoTemplate;
+
+    public MongoIndexInitializer(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public void run(String... args) {
+        // One wallet per retailer; concurrent first reads rely on this to converge
+        createIndex(RetailerWallet.class, new Index().on("retailerId", Sort.Direction.ASC)
+                .unique().named("retailer_id_unique"));
+
+        // Stored idempotent responses expire at expiresAt
+        createIndex(IdempotencyRecord.class, new Index().on("expiresAt", Sort.Direction.ASC)
+                .expire(0).named("expires_at_ttl"));
+
+        // Order history per retailer, newest first, served from the unified retailer_orders collection
+        createIndex(RetailerOrder.class, new Index().on("retailerId", Sort.Direction.ASC)
+                .on("createdDate", Sort.Direction.DESC).named("retailer_created_idx"));
+        createIndex(RetailerOrder.class, new Index().on("retailerId", Sort.Direction.ASC)
+                .on("metadata." + UnifiedOrderService.LEGACY_STATUS, Sort.Direction.ASC)
+                .on("createdDate", Sort.Direction.DESC).named("retailer_legacy_status_created_idx"));
+        createIndex(RetailerOrder.class, new Index().on("billingInfo.email", Sort.Direction.ASC)
+                .on("createdDate", Sort.Direction.DESC).sparse().named("billing_email_created_idx"));
+
+        // Revenue aggregations match on status and then bucket by date
+        createIndex(Order.class, new Index().on("status", Sort.Direction.ASC)
+                .on("createdDate", Sort.Direction.ASC).named("status_created_idx"));
+        createIndex(RetailerOrder.class, new Index().on("status", Sort.Direction.ASC)
+                .on("createdDate", Sort.Direction.ASC).named("status_created_idx"));
+        createIndex(RetailerOrder.class, new Index().on("metadata." + UnifiedOrderService.LEGACY_STATUS, Sort.Direction.ASC)
+                .on("createdDate", Sort.Direction.ASC).sparse().named("legacy_status_created_idx"));
+        createIndex(EsimOrderRequest.class, new Index().on("status", Sort.Direction.ASC)
+                .on("requestDate", Sort.Direction.ASC).named("status_request_date_idx"));
+
+        // Daily revenue chart reads a date range of rollup buckets
+        createIndex(RevenueDaily.class, new Index().on("date", Sort.Direction.ASC).named("date_idx"));
+
+        // eSIM sales history: eSIM items newest first (multikey on items)
+        createIndex(RetailerOrder.class, new Index().on("items.normalizedType", Sort.Direction.ASC)
+                .on("createdDate", Sort.Direction.DESC).on("_id", Sort.Direction.DESC).named("item_type_created_idx"));
+
+        // Trend charts bucket these collections by date range
+        createIndex(User.class, new Index().on("createdDate", Sort.Direction.ASC).named("created_date_idx"));
+        createIndex(RetailerOrder.class, new Index().on("createdDate", Sort.Direction.ASC).named("created_date_idx"));
+        createIndex(CustomerEnquiry.class, new Index().on("createdDate", Sort.Direction.ASC).named("created_date_idx"));
+        createIndex(EsimOrderRequest.class, new Index().on("requestDate", Sort.Direction.ASC).named("request_date_idx"));
+
+        // Retailer eSIM sales report looks up customer details by order number in one $in
+        createIndex(EsimOrderRequest.class, new Index().on("orderNumber", Sort.Direction.ASC).named("order_number_idx"));
+
+        // Admin eSIM request queue: keyset pages newest first, with and without a status filter
+        createIndex(EsimOrderRequest.class, new Index().on("status", Sort.Direction.ASC)
+                .on("requestDate", Sort.Direction.DESC).on("_id", Sort.Direction.DESC).named("status_request_date_id_idx"));
+        createIndex(EsimOrderRequest.class, new Index().on("requestDate", Sort.Direction.DESC)
+                .on("_id", Sort.Direction.DESC).named("request_date_id_idx"));
+
+        // Customer eSIM order history and summary, newest first
+        createIndex(EsimOrderRequest.class, new Index().on("customerEmail", Sort.Direction.ASC)
+                .on("requestDate", Sort.Direction.DESC).on("_id", Sort.Direction.DESC).named("customer_email_request_date_idx"));
+
+        // Admin credit screen sorts and filters the overview by usage
+        createIndex(RetailerCreditOverview.class, new Index().on("creditUsagePercentage", Sort.Direction.DESC)
+                .on("_id", Sort.Direction.ASC).named("credit_usage_idx"));
+        createIndex(RetailerCreditOverview.class, new Index().on("status", Sort.Direction.ASC)
+                .on("creditUsagePercentage", Sort.Direction.DESC).named("status_credit_usage_idx"));
+
+        // Profit charts read one period of a retailer's rollups; events are read per retailer over time
+        createIndex(RetailerProfit.class, new Index().on("retailerId", Sort.Direction.ASC)
+                .on("period", Sort.Direction.ASC).named("retailer_period_idx"));
+        createIndex(RetailerProfitEvent.class, new Index().on("retailerId", Sort.Direction.ASC)
+                .on("createdAt", Sort.Direction.DESC).named("retailer_created_idx"));
+
+        // Retailer analytics snapshot aggregates a retailer's completed POS orders
+        createIndex(RetailerOrder.class, new Index().on("retailerId", Sort.Direction.ASC)
+                .on("status", Sort.Direction.ASC).named("retailer_status_idx"));
+
+        // Outbox workers claim due messages by status; sent and dead messages are kept for 30 days
+        createIndex(EmailOutboxMessage.class, new Index().on("status", Sort.Direction.ASC)
+                .on("nextAttemptAt", Sort.Direction.ASC).named("status_next_attempt_idx"));
+        createIndex(EmailOutboxMessage.class, new Index().on("sentAt", Sort.Direction.ASC)
+                .expire(30, TimeUnit.DAYS).named("sent_at_ttl"));
+        createIndex(EmailOutboxMessage.class, new Index().on("deadAt", Sort.Direction.ASC)
+                .expire(30, TimeUnit.DAYS).named("dead_at_ttl"));
+        // Retried approval steps look up the email they queued before
+        createIndex(EmailOutboxMessage.class, new Index().on("reference", Sort.Direction.ASC)
+                .sparse().named("reference_idx"));
+
+        // eSIM delivery batches and bulk approval jobs are polled for a while after submitting and then dropped
+        createIndex(EsimDeliveryBatch.class, new Index().on("createdAt", Sort.Direction.ASC)
+                .expire(7, TimeUnit.DAYS).named("created_at_ttl"));
+        createIndex(EsimFulfillmentJob.class, new Index().on("createdAt", Sort.Direction.ASC)
+                .expire(7, TimeUnit.DAYS).named("created_at_ttl"));
+
+        // Email rate limit counters expire once their window no longer overlaps the sliding window
+        createIndex(EmailRateLimitWindow.class, new Index().on("expiresAt", Sort.Direction.ASC)
+                .expire(0).named("expires_at_ttl"));
+    }
+
+    private void createIndex(Class<?> entityClass, Index index) {
+        try {
+            mongoTemplate.indexOps(entityClass).createIndex(index);
+        } catch (Exception e) {
+            System.err.println("⚠️ Failed to create index on " + entityClass.getSimpleName() + ": " + e.getMessage());
+        }
+    }
+}
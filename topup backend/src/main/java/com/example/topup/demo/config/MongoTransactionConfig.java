@@ -0,0 +1,38 @@
+package com.example.topup.demo.config;
+
+import com.mongodb.ReadConcern;
+import com.mongodb.TransactionOptions;
+import com.mongodb.WriteConcern;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.MongoTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Enables multi-document transactions for the work run through MongoTransactionRunner.
+ * Requires a replica set (Atlas clusters are); set app.mongo.transactions.enabled=false when
+ * running against a standalone mongod.
+ *
+ * The transaction manager is deliberately not a bean. A TransactionManager bean makes Spring Boot
+ * enable @Transactional, and the class-level @Transactional annotations on UserService,
+ * RetailerOrderService, RetailerLimitService, PromotionService and RewardCampaignService, which
+ * have always run without a transaction manager, would then put every call in a session. Only the
+ * template below is exposed, so transactions are opt-in through MongoTransactionRunner.
+ */
+@Configuration
+@ConditionalOnProperty(name = "app.mongo.transactions.enabled", havingValue = "true", matchIfMissing = true)
+public class MongoTransactionConfig {
+
+    public static final String TRANSACTION_TEMPLATE = "mongoTransactionTemplate";
+
+    @Bean(name = TRANSACTION_TEMPLATE)
+    public TransactionTemplate mongoTransactionTemplate(MongoDatabaseFactory mongoDatabaseFactory) {
+        TransactionOptions options = TransactionOptions.builder()
+                .readConcern(ReadConcern.SNAPSHOT)
+                .writeConcern(WriteConcern.MAJORITY)
+                .build();
+        return new TransactionTemplate(new MongoTransactionManager(mongoDatabaseFactory, options));
+    }
+}
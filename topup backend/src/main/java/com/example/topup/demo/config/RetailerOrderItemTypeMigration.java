@@ -0,0 +1,57 @@
+package com.example.topup.demo.config;
+
+import com.example.topup.demo.entity.RetailerOrder;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sets items.normalizedType on retailer orders written before the field existed.
+ * Uses one pipeline update with the same "contains esim" rule as OrderItem.normalizeType,
+ * and only touches orders that still have an unclassified item, so later runs are no-ops.
+ */
+@Component
+public class RetailerOrderItemTypeMigration implements CommandLineRunner {
+
+    private final MongoTemplate mongoTemplate;
+
+    public RetailerOrderItemTypeMigration(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public void run(String... args) {
+        try {
+            Document filter = new Document("items", new Document("$elemMatch",
+                    new Document("normalizedType", new Document("$exists", false))));
+
+            Document isEsim = new Document("$or", Arrays.asList(
+                    containsEsim("$$item.category"), containsEsim("$$item.productType")));
+            Document classify = new Document("$map", new Document("input", "$items")
+                    .append("as", "item")
+                    .append("in", new Document("$mergeObjects", Arrays.asList("$$item",
+                            new Document("normalizedType", new Document("$cond", Arrays.asList(
+                                    isEsim, RetailerOrder.OrderItem.TYPE_ESIM, RetailerOrder.OrderItem.TYPE_EPIN)))))));
+            List<Document> pipeline = List.of(new Document("$set", new Document("items", classify)));
+
+            UpdateResult result = mongoTemplate.getCollection(mongoTemplate.getCollectionName(RetailerOrder.class))
+                    .updateMany(filter, pipeline);
+            if (result.getModifiedCount() > 0) {
+                System.out.println("✅ Classified items of " + result.getModifiedCount() + " retailer orders as ESIM/EPIN");
+            }
+        } catch (Exception e) {
+            System.err.println("⚠️ Failed to classify retailer order items: " + e.getMessage());
+        }
+    }
+
+    private Document containsEsim(String field) {
+        return new Document("$regexMatch", new Document("input", new Document("$ifNull", Arrays.asList(field, "")))
+                .append("regex", "esim")
+                .append("options", "i"));
+    }
+}
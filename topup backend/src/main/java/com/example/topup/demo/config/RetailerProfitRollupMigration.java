@@ -0,0 +1,31 @@
+package com.example.topup.demo.config;
+
+import com.example.topup.demo.service.RetailerProfitRollupService;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.stereotype.Component;
+
+/**
+ * Moves retailer profit records written before the keyed $inc rollups into them.
+ * Only legacy records are touched, so later runs are no-ops.
+ */
+@Component
+public class RetailerProfitRollupMigration implements CommandLineRunner {
+
+    private final RetailerProfitRollupService retailerProfitRollupService;
+
+    public RetailerProfitRollupMigration(RetailerProfitRollupService retailerProfitRollupService) {
+        this.retailerProfitRollupService = retailerProfitRollupService;
+    }
+
+    @Override
+    public void run(String... args) {
+        try {
+            int migrated = retailerProfitRollupService.migrateLegacyRecords();
+            if (migrated > 0) {
+                System.out.println("✅ Migrated " + migrated + " retailer profit records to keyed rollups");
+            }
+        } catch (Exception e) {
+            System.err.println("⚠️ Failed to migrate retailer profit records: " + e.getMessage());
+        }
+    }
+}
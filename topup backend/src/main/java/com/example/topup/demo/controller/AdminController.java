@@ -168,6 +168,86 @@ public class AdminController {
         }
     }
 
+    /**
+     * Get revenue analytics with the daily revenue chart
+     */
+    @GetMapping("/analytics/revenue")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getRevenueAnalytics(
+            @RequestParam(defaultValue = "30d") String period,
+            @RequestParam(required = false) String startDate,
+            @RequestParam(required = false) String endDate) {
+        try {
+            Map<String, Object> analytics = adminService.getRevenueAnalytics(period, startDate, endDate);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("data", analytics);
+            response.put("message", "Revenue analytics fetched successfully");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", "Failed to fetch revenue analytics: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+
+    /**
+     * Get a bucketed trend (registrations, orders, esim-requests, enquiries) per hour, day, week or month
+     */
+    @GetMapping("/analytics/trends")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getTrend(
+            @RequestParam String metric,
+            @RequestParam(defaultValue = "day") String interval,
+            @RequestParam(defaultValue = "7") int points) {
+        try {
+            List<Map<String, Object>> trend = adminService.getTrend(metric, interval, points);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("data", trend);
+            response.put("message", "Trend fetched successfully");
+
+            return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", "Unknown metric or interval: " + metric + ", " + interval);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", "Failed to fetch trend: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+
+    /**
+     * Backfill the daily revenue rollup from existing orders
+     */
+    @PostMapping("/analytics/revenue/backfill")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> backfillRevenueRollup() {
+        try {
+            Map<String, Long> counted = adminService.backfillRevenueRollup();
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("data", counted);
+            response.put("message", "Revenue rollup backfill completed");
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", "Failed to backfill revenue rollup: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+
     /**
      * Get customer enquiries
      */
@@ -204,8 +284,29 @@ public class AdminController {
      * Get all retailers with their credit limits
      */
     @GetMapping("/retailers/credit-limits")
-    public ResponseEntity<Map<String, Object>> getAllRetailerCreditLimits() {
+    public ResponseEntity<Map<String, Object>> getAllRetailerCreditLimits(
+            @RequestParam(required = false) Integer page,
+            @RequestParam(defaultValue = "50") int size,
+            @RequestParam(defaultValue = "creditUsage") String sortBy,
+            @RequestParam(defaultValue = "desc") String direction,
+            @RequestParam(required = false) String status,
+            @RequestParam(required = false) String level,
+            @RequestParam(required = false) Double minUsage,
+            @RequestParam(required = false) Double maxUsage,
+            @RequestParam(required = false) String search) {
         try {
+            // Paged, sorted and filtered in the database when a page is requested
+            if (page != null) {
+                Map<String, Object> result = adminService.getRetailerCreditLimitsPage(
+                    page, size, sortBy, direction, status, level, minUsage, maxUsage, search);
+                
+                Map<String, Object> response = new HashMap<>();
+                response.put("success", true);
+                response.put("data", result);
+                response.put("message", "Retailer credit limits fetched successfully");
+                return ResponseEntity.ok(response);
+            }
+            
             List<RetailerCreditLimitDTO> retailers = adminService.getAllRetailersWithCreditLimits();
             
             Map<String, Object> response = new HashMap<>();
@@ -215,6 +316,11 @@ public class AdminController {
             response.put("message", "Retailer credit limits fetched successfully");
             
             return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
         } catch (Exception e) {
             Map<String, Object> error = new HashMap<>();
             error.put("success", false);
@@ -223,6 +329,27 @@ public class AdminController {
         }
     }
     
+    /**
+     * Rebuild the retailer credit overview from the limit collections
+     */
+    @PostMapping("/retailers/credit-limits/rebuild")
+    public ResponseEntity<Map<String, Object>> rebuildRetailerCreditOverview() {
+        try {
+            int retailers = adminService.rebuildRetailerCreditOverview();
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("data", Map.of("retailers", retailers));
+            response.put("message", "Retailer credit overview rebuilt successfully");
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", "Failed to rebuild retailer credit overview: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+    
     /**
      * Get specific retailer's credit limit
      */
@@ -707,6 +834,43 @@ public class AdminController {
         }
     }
 
+    /**
+     * Sales grouped by retailer, operator, country, product, type or day, with optional filters
+     */
+    @GetMapping("/analytics/sales/slice")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getSalesSlice(
+            @RequestParam String groupBy,
+            @RequestParam(required = false) String retailerId,
+            @RequestParam(required = false) String type,
+            @RequestParam(required = false) String operator,
+            @RequestParam(required = false) String country,
+            @RequestParam(required = false) String product,
+            @RequestParam(required = false) String startDate,
+            @RequestParam(required = false) String endDate) {
+        try {
+            List<Map<String, Object>> groups = adminService.getSalesSlice(groupBy, retailerId, type, operator,
+                    country, product, startDate, endDate);
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("data", groups);
+            response.put("message", "Sales slice fetched successfully");
+            
+            return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", "Invalid groupBy: " + groupBy);
+            return ResponseEntity.badRequest().body(error);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", "Failed to fetch sales slice: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+
     /**
      * Get detailed eSIM sales history with pagination
      */
@@ -806,4 +970,48 @@ public class AdminController {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
         }
     }
+
+    /**
+     * List dead-lettered emails from the outbox
+     */
+    @GetMapping("/emails/dead-letters")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getDeadLetterEmails(
+            @RequestParam(defaultValue = "100") int limit) {
+        try {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("data", adminService.getDeadLetterEmails(limit));
+            response.put("message", "Dead-lettered emails fetched successfully");
+            
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", "Failed to fetch dead-lettered emails: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+
+    /**
+     * Requeue a dead-lettered email
+     */
+    @PostMapping("/emails/dead-letters/{id}/retry")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> retryDeadLetterEmail(@PathVariable String id) {
+        try {
+            adminService.retryDeadLetterEmail(id);
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("message", "Email requeued successfully");
+            
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+        }
+    }
 }
@@ -3,13 +3,16 @@ package com.example.topup.demo.controller;
 import com.example.topup.demo.entity.User;
 import com.example.topup.demo.entity.BusinessDetails;
 import com.example.topup.demo.entity.Address;
+import com.example.topup.demo.service.EmailRateLimitException;
 import com.example.topup.demo.service.UserService;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.Email;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.Pattern;
 import jakarta.validation.constraints.Size;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
@@ -313,16 +316,10 @@ public class AuthController {
      * Resend email verification
      */
     @PostMapping("/resend-verification")
-    public ResponseEntity<?> resendVerification(@Valid @RequestBody ResendVerificationRequest request) {
+    public ResponseEntity<?> resendVerification(@Valid @RequestBody ResendVerificationRequest request,
+                                                HttpServletRequest httpRequest) {
         try {
-            var userOptional = userService.findByEmail(request.getEmail());
-            
-            if (userOptional.isPresent()) {
-                User user = userOptional.get();
-                if (!user.isEmailVerified()) {
-                    userService.sendEmailVerification(user);
-                }
-            }
+            userService.resendEmailVerification(request.getEmail(), httpRequest.getRemoteAddr());
 
             // Always return success to prevent email enumeration
             Map<String, Object> response = new HashMap<>();
@@ -330,6 +327,8 @@ public class AuthController {
             response.put("message", "If the email exists, a verification email has been sent.");
             return ResponseEntity.ok(response);
 
+        } catch (EmailRateLimitException e) {
+            return tooManyEmailRequests(e);
         } catch (Exception e) {
             Map<String, Object> response = new HashMap<>();
             response.put("success", false);
@@ -342,15 +341,18 @@ public class AuthController {
      * Send password reset email
      */
     @PostMapping("/forgot-password")
-    public ResponseEntity<?> forgotPassword(@Valid @RequestBody ForgotPasswordRequest request) {
+    public ResponseEntity<?> forgotPassword(@Valid @RequestBody ForgotPasswordRequest request,
+                                            HttpServletRequest httpRequest) {
         try {
-            userService.sendPasswordResetEmail(request.getEmail());
+            userService.sendPasswordResetEmail(request.getEmail(), httpRequest.getRemoteAddr());
 
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
             response.put("message", "If the email exists, a password reset link has been sent.");
             return ResponseEntity.ok(response);
 
+        } catch (EmailRateLimitException e) {
+            return tooManyEmailRequests(e);
         } catch (Exception e) {
             Map<String, Object> response = new HashMap<>();
             response.put("success", false);
@@ -359,6 +361,15 @@ public class AuthController {
         }
     }
 
+    private ResponseEntity<?> tooManyEmailRequests(EmailRateLimitException e) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("message", e.getMessage());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(response);
+    }
+
     /**
      * Validate reset token without using it
      */
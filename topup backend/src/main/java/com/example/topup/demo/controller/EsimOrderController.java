@@ -1,8 +1,10 @@
 package com.example.topup.demo.controller;
 
+import com.example.topup.demo.entity.EsimFulfillmentJob;
 import com.example.topup.demo.entity.EsimOrderRequest;
 import com.example.topup.demo.entity.RetailerOrder;
 import com.example.topup.demo.entity.RetailerLimit;
+import com.example.topup.demo.entity.RetailerWallet;
 import com.example.topup.demo.entity.StockPool;
 import com.example.topup.demo.entity.User;
 import com.example.topup.demo.repository.EsimOrderRequestRepository;
@@ -11,7 +13,14 @@ import com.example.topup.demo.repository.RetailerLimitRepository;
 import com.example.topup.demo.repository.StockPoolRepository;
 import com.example.topup.demo.repository.UserRepository;
 import com.example.topup.demo.service.EmailService;
+import com.example.topup.demo.service.EsimFulfillmentService;
+import com.example.topup.demo.service.EsimRequestQueryService;
+import com.example.topup.demo.service.EsimSaleService;
+import com.example.topup.demo.service.RetailerBalanceService;
+import com.example.topup.demo.service.StockService;
+import com.example.topup.demo.util.OrderNumberGenerator;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -35,6 +44,9 @@ public class EsimOrderController {
     @Autowired
     private EmailService emailService;
 
+    @Autowired
+    private StockService stockService;
+
     @Autowired
     private RetailerOrderRepository retailerOrderRepository;
 
@@ -44,6 +56,18 @@ public class EsimOrderController {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private EsimSaleService esimSaleService;
+
+    @Autowired
+    private EsimFulfillmentService esimFulfillmentService;
+
+    @Autowired
+    private EsimRequestQueryService esimRequestQueryService;
+
+    @Autowired
+    private RetailerBalanceService retailerBalanceService;
+
     // Public endpoint - Customer submits eSIM order request
     @PostMapping("/public/esim-orders")
     public ResponseEntity<Map<String, Object>> createEsimOrder(@RequestBody Map<String, Object> orderData) {
@@ -51,7 +75,7 @@ public class EsimOrderController {
             EsimOrderRequest request = new EsimOrderRequest();
             
             // Generate order number
-            String orderNumber = "ESIM-" + System.currentTimeMillis();
+            String orderNumber = OrderNumberGenerator.next("ESIM");
             request.setOrderNumber(orderNumber);
             
             // Customer details
@@ -87,23 +111,15 @@ public class EsimOrderController {
         }
     }
 
-    // Admin endpoint - Get all pending eSIM requests
+    // Admin endpoint - Get eSIM requests, newest first, one page at a time (pass nextCursor for the next page)
     @GetMapping("/admin/esim-requests")
     public ResponseEntity<Map<String, Object>> getPendingEsimRequests(
-            @RequestParam(required = false) String status) {
+            @RequestParam(required = false) String status,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "50") int size) {
         try {
-            List<EsimOrderRequest> requests;
-            
-            if (status != null && !status.isEmpty()) {
-                requests = esimOrderRequestRepository.findByStatus(status);
-            } else {
-                requests = esimOrderRequestRepository.findAll();
-            }
-            
-            Map<String, Object> response = new HashMap<>();
+            Map<String, Object> response = new HashMap<>(esimRequestQueryService.listRequests(status, cursor, size));
             response.put("success", true);
-            response.put("requests", requests);
-            response.put("totalCount", requests.size());
             
             return ResponseEntity.ok(response);
         } catch (Exception e) {
@@ -130,111 +146,67 @@ public class EsimOrderController {
             }
             
             EsimOrderRequest request = optionalRequest.get();
-            
-            // Find available eSIM from stock pool
-            List<StockPool> esimPools = stockPoolRepository.findByStockTypeAndStatus(
-                    StockPool.StockType.ESIM, StockPool.StockStatus.ACTIVE);
-            
-            StockPool.StockItem assignedEsim = null;
-            StockPool selectedPool = null;
-            
-            for (StockPool pool : esimPools) {
-                for (StockPool.StockItem item : pool.getItems()) {
-                    if (item.getStatus() == StockPool.StockItem.ItemStatus.AVAILABLE) {
-                        assignedEsim = item;
-                        selectedPool = pool;
-                        break;
-                    }
-                }
-                if (assignedEsim != null) break;
+            if (!"PENDING".equals(request.getStatus())) {
+                Map<String, Object> error = new HashMap<>();
+                error.put("success", false);
+                error.put("message", "eSIM request is not pending (status: " + request.getStatus() + ")");
+                return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
             }
             
-            if (assignedEsim == null) {
+            // Claim an available eSIM with the same conditional update the bulk approval uses
+            EsimFulfillmentService.Assignment assignment = esimFulfillmentService.claimStock(request);
+            if (assignment == null) {
                 Map<String, Object> error = new HashMap<>();
                 error.put("success", false);
                 error.put("message", "No available eSIMs in stock");
                 return ResponseEntity.badRequest().body(error);
             }
+            StockPool.StockItem assignedEsim = assignment.item();
             
-            // Update eSIM status to ASSIGNED
-            assignedEsim.setStatus(StockPool.StockItem.ItemStatus.ASSIGNED);
-            assignedEsim.setAssignedDate(LocalDateTime.now());
-            assignedEsim.setAssignedToOrderId(request.getOrderNumber());
-            assignedEsim.setAssignedToUserEmail(request.getCustomerEmail());
-            
-            // Update stock pool quantities
-            selectedPool.setAvailableQuantity(selectedPool.getAvailableQuantity() - 1);
-            selectedPool.setUsedQuantity(selectedPool.getUsedQuantity() + 1);
-            stockPoolRepository.save(selectedPool);
-            
-            // Update request status
-            request.setStatus("APPROVED");
-            request.setApprovedDate(LocalDateTime.now());
-            request.setApprovedByAdmin(approvalData.get("adminEmail"));
-            request.setAssignedEsimSerial(assignedEsim.getSerialNumber());
-            request.setAssignedEsimQrCode(assignedEsim.getQrCodeImage());
-            request.setProductId(selectedPool.getId());
-            
-            esimOrderRequestRepository.save(request);
-            
-            // CREATE RETAILER ORDER FOR ANALYTICS & CREDIT TRACKING
-            // Get retailer ID from the order data (either from POS or admin assignment)
+            // Charge the retailer's eSIM credit before the request is approved
             String retailerId = approvalData.get("retailerId");
+            boolean charged = false;
             if (retailerId != null && !retailerId.isEmpty()) {
                 try {
-                    System.out.println("=== Creating RetailerOrder for eSIM sale ===");
-                    
-                    RetailerOrder retailerOrder = new RetailerOrder();
-                    retailerOrder.setRetailerId(retailerId);
-                    retailerOrder.setOrderNumber(request.getOrderNumber());
-                    retailerOrder.setTotalAmount(BigDecimal.valueOf(request.getAmount()));
-                    retailerOrder.setCurrency("NOK");
-                    retailerOrder.setStatus(RetailerOrder.OrderStatus.COMPLETED);
-                    retailerOrder.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
-                    retailerOrder.setPaymentMethod("POINT_OF_SALE");
-                    retailerOrder.setCreatedDate(LocalDateTime.now());
-                    retailerOrder.setLastModifiedDate(LocalDateTime.now());
-                    retailerOrder.setCreatedBy(request.getCustomerEmail());
-                    
-                    // Create order item for eSIM
-                    RetailerOrder.OrderItem orderItem = new RetailerOrder.OrderItem();
-                    orderItem.setProductId(selectedPool.getId());
-                    orderItem.setProductName(request.getProductName());
-                    orderItem.setProductType("ESIM");
-                    orderItem.setCategory("esim");
-                    orderItem.setQuantity(1);
-                    orderItem.setUnitPrice(BigDecimal.valueOf(request.getAmount()));
-                    orderItem.setRetailPrice(BigDecimal.valueOf(request.getAmount()));
-                    
-                    List<RetailerOrder.OrderItem> items = new ArrayList<>();
-                    items.add(orderItem);
-                    retailerOrder.setItems(items);
-                    
-                    // Save retailer order
-                    RetailerOrder savedRetailerOrder = retailerOrderRepository.save(retailerOrder);
-                    System.out.println("✅ Created RetailerOrder for analytics: " + savedRetailerOrder.getOrderNumber());
-                    
-                    // UPDATE RETAILER CREDIT LIMIT
-                    Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(retailerId);
-                    if (limitOpt.isPresent()) {
-                        RetailerLimit limit = limitOpt.get();
-                        
-                        // Deduct the sale amount from eSIM credit limit (separate from general credit)
-                        limit.useEsimCredit(BigDecimal.valueOf(request.getAmount()), 
-                                        savedRetailerOrder.getId(), 
-                                        "eSIM Sale: " + request.getProductName() + " to " + request.getCustomerEmail());
-                        
-                        retailerLimitRepository.save(limit);
-                        System.out.println("✅ Updated eSIM credit limit for retailer: " + retailerId);
-                        System.out.println("   eSIM Used: " + limit.getEsimUsedCredit() + ", Available: " + limit.getEsimAvailableCredit());
-                    } else {
-                        System.out.println("⚠️ No credit limit found for retailer: " + retailerId);
-                    }
-                } catch (Exception e) {
-                    System.err.println("❌ Failed to create RetailerOrder/update eSIM credit: " + e.getMessage());
-                    e.printStackTrace();
-                    // Don't fail the approval, just log the error
+                    esimSaleService.chargeApprovedRequest(request, retailerId);
+                    charged = true;
+                } catch (IllegalStateException e) {
+                    esimFulfillmentService.release(assignment, request);
+                    Map<String, Object> error = new HashMap<>();
+                    error.put("success", false);
+                    error.put("message", "Insufficient eSIM credit: " + e.getMessage());
+                    return ResponseEntity.badRequest().body(error);
+                }
+            }
+
+            boolean approved;
+            try {
+                approved = esimFulfillmentService.approvePending(request, assignment, approvalData.get("adminEmail"));
+            } catch (RuntimeException e) {
+                // The approval did not go through; give the charge and the eSIM back
+                if (charged) {
+                    esimSaleService.refundApprovedRequest(request, retailerId);
+                }
+                esimFulfillmentService.release(assignment, request);
+                throw e;
+            }
+            if (!approved) {
+                // Approved or taken by a bulk job since it was read; a charge made by that approval shares the request key
+                EsimOrderRequest current = esimOrderRequestRepository.findById(requestId).orElse(null);
+                if (charged && (current == null || !"APPROVED".equals(current.getStatus()))) {
+                    esimSaleService.refundApprovedRequest(request, retailerId);
                 }
+                esimFulfillmentService.release(assignment, request);
+                Map<String, Object> error = new HashMap<>();
+                error.put("success", false);
+                error.put("message", "eSIM request was changed while it was being approved");
+                return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
+            }
+            
+            // CREATE RETAILER ORDER FOR ANALYTICS
+            // Retailer ID comes from the order data (either from POS or admin assignment)
+            if (charged) {
+                esimSaleService.recordApprovedRequestSale(request, assignment.poolId(), retailerId);
             } else {
                 System.out.println("⚠️ No retailerId provided - skipping RetailerOrder creation");
             }
@@ -253,14 +225,15 @@ public class EsimOrderController {
                 String activationCode = assignedEsim.getActivationCode() != null ? assignedEsim.getActivationCode() : "";
                 String smDpAddress = assignedEsim.getActivationUrl() != null ? assignedEsim.getActivationUrl() : "";
                 
-                emailService.sendEsimApprovalEmail(
+                emailService.sendEsimApprovalEmailWithQrImage(
                     request.getCustomerEmail(),
                     request.getCustomerFullName(),
                     request.getOrderNumber(),
                     assignedEsim.getSerialNumber(),
-                    assignedEsim.getQrCodeImage(),
+                    stockService.decryptQrCodePng(assignedEsim.getQrCodeImage()),
                     activationCode,
-                    smDpAddress
+                    smDpAddress,
+                    null
                 );
                 emailSent = true;
                 System.out.println("✅ Email sent successfully!");
@@ -294,6 +267,57 @@ public class EsimOrderController {
         }
     }
 
+    // Admin endpoint - Approve many eSIM requests in the background; poll the returned job for progress
+    @PostMapping("/admin/esim-requests/bulk-approve")
+    public ResponseEntity<Map<String, Object>> bulkApproveEsimRequests(@RequestBody Map<String, Object> approvalData) {
+        try {
+            if (!(approvalData.get("requestIds") instanceof List<?> ids)) {
+                throw new IllegalArgumentException("requestIds must be a list");
+            }
+            List<String> requestIds = ids.stream().map(String::valueOf).collect(Collectors.toList());
+            Object adminEmail = approvalData.get("adminEmail");
+            Object retailerId = approvalData.get("retailerId");
+
+            EsimFulfillmentJob job = esimFulfillmentService.submit(requestIds,
+                    adminEmail != null ? adminEmail.toString() : null,
+                    retailerId != null ? retailerId.toString() : null);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("jobId", job.getId());
+            response.put("totalCount", job.getResults().size());
+            response.put("message", "Approving " + job.getResults().size() + " eSIM request(s)");
+            return ResponseEntity.accepted().body(response);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("message", e.getMessage());
+            return ResponseEntity.badRequest().body(error);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("message", "Error starting bulk approval: " + e.getMessage());
+            e.printStackTrace();
+            return ResponseEntity.status(500).body(error);
+        }
+    }
+
+    // Admin endpoint - Progress of a bulk approval
+    @GetMapping("/admin/esim-requests/bulk-approve/{jobId}")
+    public ResponseEntity<Map<String, Object>> getBulkApprovalProgress(@PathVariable String jobId) {
+        Map<String, Object> progress = esimFulfillmentService.getProgress(jobId);
+        if (progress == null) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("message", "Bulk approval job not found");
+            return ResponseEntity.status(404).body(error);
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("job", progress);
+        return ResponseEntity.ok(response);
+    }
+
     // Admin endpoint - Reject eSIM request
     @PostMapping("/admin/esim-requests/{requestId}/reject")
     public ResponseEntity<Map<String, Object>> rejectEsimRequest(
@@ -387,16 +411,16 @@ public class EsimOrderController {
         }
     }
 
-    // Customer endpoint - Get my eSIM orders
+    // Customer endpoint - Get my eSIM orders, newest first, one page at a time, with an order summary
     @GetMapping("/customer/my-esim-orders")
-    public ResponseEntity<Map<String, Object>> getMyEsimOrders(@RequestParam String email) {
+    public ResponseEntity<Map<String, Object>> getMyEsimOrders(
+            @RequestParam String email,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "20") int size) {
         try {
-            List<EsimOrderRequest> requests = esimOrderRequestRepository.findByCustomerEmail(email);
-            
-            Map<String, Object> response = new HashMap<>();
+            Map<String, Object> response = new HashMap<>(esimRequestQueryService.customerHistory(email, cursor, size));
             response.put("success", true);
-            response.put("orders", requests);
-            response.put("totalCount", requests.size());
+            response.put("orders", response.remove("requests"));
             
             return ResponseEntity.ok(response);
         } catch (Exception e) {
@@ -425,7 +449,7 @@ public class EsimOrderController {
             System.out.println("Amount: " + amount);
             
             // Generate order number
-            String orderNumber = "EPIN-" + System.currentTimeMillis();
+            String orderNumber = OrderNumberGenerator.next("EPIN");
             
             // Find available ePIN from stock pool
             List<StockPool> availablePools = stockPoolRepository.findByStockTypeAndStatus(
@@ -466,6 +490,25 @@ public class EsimOrderController {
             // Get PIN code from item
             String pinCode = assignedItem.getItemData();
             
+            // Charge the retailer's credit before the ePIN leaves stock (ePINs use general credit, not eSIM credit)
+            String retailerId = (String) orderData.get("retailerId");
+            boolean charged = false;
+            if (retailerId != null && !retailerId.isEmpty() && amount > 0) {
+                try {
+                    RetailerWallet wallet = retailerBalanceService.debit(retailerId, RetailerWallet.PaymentMode.CREDIT,
+                            BigDecimal.valueOf(amount), orderNumber,
+                            "ePIN Sale: " + selectedPool.getName() + " to " + email);
+                    charged = true;
+                    System.out.println("✅ Charged credit for retailer: " + retailerId + ", Available: "
+                            + wallet.getAccount(RetailerWallet.PaymentMode.CREDIT).getAvailable());
+                } catch (IllegalStateException e) {
+                    Map<String, Object> error = new HashMap<>();
+                    error.put("success", false);
+                    error.put("message", "Insufficient credit: " + e.getMessage());
+                    return ResponseEntity.badRequest().body(error);
+                }
+            }
+            
             // Update item status to USED
             assignedItem.setStatus(StockPool.StockItem.ItemStatus.USED);
             assignedItem.setAssignedDate(LocalDateTime.now());
@@ -476,13 +519,21 @@ public class EsimOrderController {
             // Update stock pool quantities
             selectedPool.setAvailableQuantity(selectedPool.getAvailableQuantity() - 1);
             selectedPool.setUsedQuantity(selectedPool.getUsedQuantity() + 1);
-            stockPoolRepository.save(selectedPool);
+            try {
+                stockPoolRepository.save(selectedPool);
+            } catch (RuntimeException e) {
+                // The ePIN was not taken from stock; give the charge back
+                if (charged) {
+                    retailerBalanceService.reverse(retailerId, RetailerWallet.PaymentMode.CREDIT, BigDecimal.valueOf(amount),
+                            orderNumber, "Reversal of failed ePIN Sale " + orderNumber);
+                }
+                throw e;
+            }
             
             System.out.println("✅ PIN assigned: " + pinCode);
             System.out.println("📦 Stock updated - Available: " + selectedPool.getAvailableQuantity());
             
             // CREATE RETAILER ORDER FOR ANALYTICS IF RETAILER ID PROVIDED
-            String retailerId = (String) orderData.get("retailerId");
             if (retailerId != null && !retailerId.isEmpty()) {
                 try {
                     System.out.println("=== Creating RetailerOrder for ePIN sale ===");
@@ -519,24 +570,9 @@ public class EsimOrderController {
                     // Save retailer order
                     RetailerOrder savedRetailerOrder = retailerOrderRepository.save(retailerOrder);
                     System.out.println("✅ Created RetailerOrder for analytics: " + savedRetailerOrder.getOrderNumber());
-                    
-                    // UPDATE RETAILER CREDIT LIMIT
-                    Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(retailerId);
-                    if (limitOpt.isPresent()) {
-                        RetailerLimit limit = limitOpt.get();
-                        
-                        // Deduct the sale amount from general credit (ePINs use general credit, not eSIM credit)
-                        limit.useCredit(BigDecimal.valueOf(amount), 
-                                        savedRetailerOrder.getId(), 
-                                        "ePIN Sale: " + selectedPool.getName() + " to " + email);
-                        
-                        retailerLimitRepository.save(limit);
-                        System.out.println("✅ Updated credit limit for retailer: " + retailerId);
-                    } else {
-                        System.out.println("⚠️ No credit limit found for retailer: " + retailerId);
-                    }
+
                 } catch (Exception e) {
-                    System.err.println("❌ Failed to create RetailerOrder/update credit: " + e.getMessage());
+                    System.err.println("❌ Failed to create RetailerOrder: " + e.getMessage());
                     e.printStackTrace();
                     // Don't fail the order, just log the error
                 }
@@ -713,8 +749,9 @@ public class EsimOrderController {
                                     description += " (" + productNames + ")";
                                 }
                                 
-                                limit.useCredit(order.getTotalAmount(), order.getId(), description);
-                                retailerLimitRepository.save(limit);
+                                // Keyed by the order id, so running the fix again does not charge twice
+                                retailerBalanceService.debit(order.getRetailerId(), RetailerWallet.PaymentMode.CREDIT,
+                                        order.getTotalAmount(), order.getId(), description);
                                 creditLimitsUpdated++;
                                 
                                 System.out.println("    ✅ Credit updated: -" + order.getTotalAmount() + " kr");
@@ -4,6 +4,7 @@ import com.example.topup.demo.dto.RetailerCreditLevel;
 import com.example.topup.demo.dto.RetailerPurchaseRequest;
 import com.example.topup.demo.entity.Product;
 import com.example.topup.demo.entity.User;
+import com.example.topup.demo.service.IdempotencyService;
 import com.example.topup.demo.service.RetailerPurchaseService;
 import com.example.topup.demo.service.UserService;
 
@@ -32,6 +33,9 @@ public class RetailerBundlePurchaseController {
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private IdempotencyService idempotencyService;
+
     // Get available bundles for purchase
     @GetMapping("/bundles")
     public ResponseEntity<?> getAvailableBundles(Authentication authentication) {
@@ -89,15 +93,16 @@ public class RetailerBundlePurchaseController {
     }
 
     // Purchase bundles
+    // An optional Idempotency-Key header makes retries replay the original result instead of buying again
     @PostMapping("/purchase")
     public ResponseEntity<?> purchaseBundles(
             @Valid @RequestBody RetailerPurchaseRequest request,
+            @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey,
             Authentication authentication) {
         try {
             User retailer = getRetailerForDevelopment(authentication);
-            Map<String, Object> result = retailerPurchaseService.purchaseBundles(retailer.getId(), request);
-            
-            return ResponseEntity.ok(result);
+            return idempotencyService.execute("purchase", retailer.getId(), idempotencyKey, request,
+                () -> ResponseEntity.ok(retailerPurchaseService.purchaseBundles(retailer.getId(), request)));
         } catch (IllegalStateException | IllegalArgumentException e) {
             return ResponseEntity.badRequest()
                 .body(Map.of("success", false, "message", e.getMessage()));
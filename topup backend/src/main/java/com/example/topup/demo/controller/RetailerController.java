@@ -10,15 +10,18 @@ import com.example.topup.demo.service.UserService;
 import com.example.topup.demo.service.BundleService;
 import com.example.topup.demo.service.StockService;
 import com.example.topup.demo.service.AdminService;
+import com.example.topup.demo.service.RetailerBalanceService;
+import com.example.topup.demo.service.IdempotencyService;
+import com.example.topup.demo.service.UnifiedOrderService;
+import com.example.topup.demo.service.DashboardAssembler;
 import com.example.topup.demo.entity.StockPool;
 import com.example.topup.demo.entity.RetailerLimit;
 import com.example.topup.demo.entity.RetailerEsimCredit;
-import com.example.topup.demo.entity.RetailerKickbackLimit;
+import com.example.topup.demo.entity.RetailerWallet;
 import com.example.topup.demo.repository.RetailerOrderRepository;
-import com.example.topup.demo.repository.OrderRepository;
 import com.example.topup.demo.repository.RetailerLimitRepository;
 import com.example.topup.demo.repository.RetailerEsimCreditRepository;
-import com.example.topup.demo.repository.RetailerKickbackLimitRepository;
+import com.example.topup.demo.util.OrderNumberGenerator;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -63,7 +66,7 @@ public class RetailerController {
     private RetailerOrderRepository retailerOrderRepository;
     
     @Autowired
-    private OrderRepository orderRepository;
+    private UnifiedOrderService unifiedOrderService;
     
     @Autowired
     private RetailerLimitRepository retailerLimitRepository;
@@ -72,7 +75,13 @@ public class RetailerController {
     private RetailerEsimCreditRepository retailerEsimCreditRepository;
 
     @Autowired
-    private RetailerKickbackLimitRepository retailerKickbackLimitRepository;
+    private RetailerBalanceService retailerBalanceService;
+
+    @Autowired
+    private IdempotencyService idempotencyService;
+
+    @Autowired
+    private DashboardAssembler dashboardAssembler;
 
     // Get all orders for the authenticated retailer
     @GetMapping("/orders")
@@ -81,7 +90,7 @@ public class RetailerController {
             User retailer = getUserFromAuthentication(authentication);
             
             // First try to get RetailerOrder entities (new system)
-            List<RetailerOrder> retailerOrders = retailerOrderRepository.findByRetailerId(retailer.getId());
+            List<RetailerOrder> retailerOrders = retailerOrderRepository.findRetailerOrders(retailer.getId());
             
             if (!retailerOrders.isEmpty()) {
                 // Convert RetailerOrder to a format compatible with frontend
@@ -289,15 +298,24 @@ public class RetailerController {
         try {
             User retailer = getUserFromAuthentication(authentication);
             
-            // Get summary data
-            List<Order> recentOrders = retailerService.getOrdersByRetailer(retailer);
-            List<Product> availableProducts = retailerService.getAvailableProducts();
-            Map<String, Object> analytics = retailerService.getRetailerAnalytics(retailer);
+            // Get summary data; the three queries are independent and run concurrently
+            DashboardAssembler.DashboardResult result = dashboardAssembler.fanout()
+                .add("recentOrders", () -> retailerService.getRecentOrders(retailer, 10), List.of())
+                .add("availableProducts", () -> retailerService.getAvailableProducts(), List.of())
+                .add("analytics", () -> retailerService.getRetailerAnalytics(retailer), Map.of())
+                .join();
+            List<Order> recentOrders = result.get("recentOrders");
+            List<Product> availableProducts = result.get("availableProducts");
+            Map<String, Object> analytics = result.get("analytics");
             
             Map<String, Object> dashboard = new HashMap<>();
-            dashboard.put("recentOrders", recentOrders.stream().limit(10).toList());
+            dashboard.put("recentOrders", recentOrders);
             dashboard.put("availableProducts", availableProducts.stream().limit(5).toList());
             dashboard.put("analytics", analytics);
+            if (result.isPartial()) {
+                dashboard.put("partial", true);
+                dashboard.put("unavailable", result.getUnavailable());
+            }
             dashboard.put("retailerInfo", Map.of(
                 "name", retailer.getFullName(),
                 "email", retailer.getEmail(),
@@ -565,7 +583,7 @@ public class RetailerController {
             User retailer = getUserFromAuthentication(authentication);
             
             // Get all SOLD orders (POS sales)
-            List<Order> posSales = orderRepository.findByRetailerAndStatusOrderByCreatedDateDesc(
+            List<Order> posSales = unifiedOrderService.findByRetailerAndStatus(
                 retailer, Order.OrderStatus.SOLD);
             
             List<Map<String, Object>> salesData = posSales.stream().map(sale -> {
@@ -779,6 +797,26 @@ public class RetailerController {
         }
     }
 
+    /**
+     * Get all balances (credit, eSIM credit, kickback) for the authenticated retailer in one call
+     */
+    @GetMapping("/balances")
+    public ResponseEntity<?> getBalances(Authentication authentication) {
+        try {
+            User retailer = getUserFromAuthentication(authentication);
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("data", retailerBalanceService.getBalances(retailer.getId()));
+            
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            System.err.println("❌ Error fetching balances: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(Map.of("success", false, "message", "Failed to fetch balances: " + e.getMessage()));
+        }
+    }
+
     /**
      * Get kickback bonus limit for the authenticated retailer
      */
@@ -787,24 +825,20 @@ public class RetailerController {
         try {
             User retailer = getUserFromAuthentication(authentication);
             
-            Optional<RetailerKickbackLimit> kickbackLimitOpt = retailerKickbackLimitRepository.findByRetailerId(retailer.getId());
+            RetailerWallet.SubAccount kickback = retailerBalanceService.getWallet(retailer.getId())
+                .getAccount(RetailerWallet.PaymentMode.KICKBACK);
             
             Map<String, Object> response = new HashMap<>();
             
-            if (kickbackLimitOpt.isPresent()) {
-                RetailerKickbackLimit kickbackLimit = kickbackLimitOpt.get();
-                
+            if (!"NOT_SET".equals(kickback.getStatus())) {
                 response.put("success", true);
-                response.put("kickbackLimit", kickbackLimit.getKickbackLimit() != null ? kickbackLimit.getKickbackLimit().doubleValue() : 0.0);
-                response.put("usedKickback", kickbackLimit.getUsedKickback() != null ? kickbackLimit.getUsedKickback().doubleValue() : 0.0);
-                response.put("availableKickback", kickbackLimit.getAvailableKickback() != null ? kickbackLimit.getAvailableKickback().doubleValue() : 0.0);
-                response.put("usagePercentage", kickbackLimit.getUsagePercentage());
-                response.put("status", kickbackLimit.getStatus() != null ? kickbackLimit.getStatus().toString() : "ACTIVE");
+                response.put("kickbackLimit", kickback.getLimit().doubleValue());
+                response.put("usedKickback", kickback.getUsed().doubleValue());
+                response.put("availableKickback", kickback.getAvailable().doubleValue());
+                response.put("usagePercentage", kickback.getUsagePercentage());
+                response.put("status", kickback.getStatus());
                 
                 System.out.println("✅ Kickback limit fetched for retailer: " + retailer.getId());
-                System.out.println("   Kickback Limit: " + kickbackLimit.getKickbackLimit());
-                System.out.println("   Used Kickback: " + kickbackLimit.getUsedKickback());
-                System.out.println("   Available Kickback: " + kickbackLimit.getAvailableKickback());
             } else {
                 // No kickback limit set - return zeros
                 System.out.println("⚠️ No kickback limit found for retailer: " + retailer.getId());
@@ -922,19 +956,10 @@ public class RetailerController {
             System.out.println("👤 Retailer ID: " + retailer.getId());
             
             // Fetch retailer's bundle orders (COMPLETED or DELIVERED)
-            List<RetailerOrder> completedOrders = retailerOrderRepository.findByRetailerIdAndStatus(
-                retailer.getId(), 
-                RetailerOrder.OrderStatus.COMPLETED
+            List<RetailerOrder> bundleOrders = retailerOrderRepository.findRetailerOrdersByStatusIn(
+                retailer.getId(),
+                List.of(RetailerOrder.OrderStatus.COMPLETED, RetailerOrder.OrderStatus.DELIVERED)
             );
-            List<RetailerOrder> deliveredOrders = retailerOrderRepository.findByRetailerIdAndStatus(
-                retailer.getId(), 
-                RetailerOrder.OrderStatus.DELIVERED
-            );
-            
-            // Combine both lists
-            List<RetailerOrder> bundleOrders = new java.util.ArrayList<>();
-            bundleOrders.addAll(completedOrders);
-            bundleOrders.addAll(deliveredOrders);
             
             System.out.println("📋 Found " + bundleOrders.size() + " completed/delivered orders");
             
@@ -1021,19 +1046,10 @@ public class RetailerController {
             System.out.println("👤 Retailer ID: " + retailer.getId());
             
             // Fetch retailer's eSIM orders (COMPLETED or DELIVERED)
-            List<RetailerOrder> completedOrders = retailerOrderRepository.findByRetailerIdAndStatus(
-                retailer.getId(), 
-                RetailerOrder.OrderStatus.COMPLETED
+            List<RetailerOrder> esimOrders = retailerOrderRepository.findRetailerOrdersByStatusIn(
+                retailer.getId(),
+                List.of(RetailerOrder.OrderStatus.COMPLETED, RetailerOrder.OrderStatus.DELIVERED)
             );
-            List<RetailerOrder> deliveredOrders = retailerOrderRepository.findByRetailerIdAndStatus(
-                retailer.getId(), 
-                RetailerOrder.OrderStatus.DELIVERED
-            );
-            
-            // Combine both lists
-            List<RetailerOrder> esimOrders = new java.util.ArrayList<>();
-            esimOrders.addAll(completedOrders);
-            esimOrders.addAll(deliveredOrders);
             
             System.out.println("📋 Found " + esimOrders.size() + " completed/delivered orders");
             
@@ -1089,13 +1105,29 @@ public class RetailerController {
     }
 
     // Direct sale from admin stock pool (POS)
+    // Terminals may send an Idempotency-Key header; retries with the same key replay the first result
     @PostMapping("/direct-sale")
-    public ResponseEntity<?> directSale(@RequestBody Map<String, Object> saleRequest, Authentication authentication) {
+    public ResponseEntity<?> directSale(@RequestBody Map<String, Object> saleRequest,
+                                        @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey,
+                                        Authentication authentication) {
+        User retailer;
+        try {
+            retailer = getUserFromAuthentication(authentication);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("message", "Sale failed: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+        
+        return idempotencyService.execute("direct-sale", retailer.getId(), idempotencyKey, saleRequest,
+            () -> executeDirectSale(saleRequest, retailer));
+    }
+
+    private ResponseEntity<?> executeDirectSale(Map<String, Object> saleRequest, User retailer) {
         try {
             System.out.println("📥 Received direct sale request: " + saleRequest);
             
-            User retailer = getUserFromAuthentication(authentication);
-            
             String bundleId = (String) saleRequest.get("bundleId");
             String bundleName = (String) saleRequest.get("bundleName");
             Integer quantity = (Integer) saleRequest.get("quantity");
@@ -1129,198 +1161,192 @@ public class RetailerController {
                 return ResponseEntity.badRequest().body(error);
             }
             
+            // Pre-sale authorization from the cached wallet, before any stock is allocated
+            BigDecimal saleAmount = BigDecimal.valueOf(totalAmount);
+            RetailerWallet.PaymentMode mode = RetailerWallet.PaymentMode.fromRequest(paymentMode, false);
+            if (totalAmount > 0 && !retailerBalanceService.authorize(retailer.getId(), mode, saleAmount)) {
+                Map<String, Object> error = new HashMap<>();
+                error.put("success", false);
+                error.put("message", "Insufficient " + paymentMode + " balance for this sale.");
+                return ResponseEntity.badRequest().body(error);
+            }
+
             System.out.println("🛒 Processing " + saleType + " sale: " + quantity + "x " + bundleName + " (" + bundleId + ")");
-            
-            // Assign stock items from admin pool
-            List<Map<String, String>> assignedItems = new ArrayList<>();
-            String orderId = "POS-" + System.currentTimeMillis();
-            StockPool.StockType stockType = saleType.equalsIgnoreCase("ESIM") ? StockPool.StockType.ESIM : StockPool.StockType.EPIN;
-            
-            for (int i = 0; i < quantity; i++) {
+
+            String orderId = OrderNumberGenerator.next("POS");
+
+            // Charge the retailer before any stock is allocated; the wallet re-checks the balance atomically
+            if (saleAmount.compareTo(BigDecimal.ZERO) > 0) {
                 try {
-                    // Assign stock from admin pool
-                    StockPool.StockItem item = stockService.assignStockToOrder(
-                        bundleId, 
-                        stockType, 
-                        orderId,
-                        retailer.getId(),
-                        retailer.getEmail()
-                    );
-                    
-                    // Create item object with details
-                    Map<String, String> itemData = new HashMap<>();
-                    
-                    if (stockType == StockPool.StockType.ESIM) {
-                        // For eSIM, don't decrypt - just store the reference
-                        itemData.put("serialNumber", item.getSerialNumber() != null ? item.getSerialNumber() : "N/A");
-                        itemData.put("iccid", item.getItemData() != null ? item.getItemData() : "N/A");
-                    } else {
-                        // For ePIN, decrypt the PIN
-                        String decryptedPin = stockService.decryptData(item.getItemData());
-                        itemData.put("pin", decryptedPin);
-                        
-                        // Generate serial number: use item's serial number, or itemId, or create from PIN
-                        String serialNumber;
-                        if (item.getSerialNumber() != null && !item.getSerialNumber().isEmpty()) {
-                            serialNumber = item.getSerialNumber();
-                        } else if (item.getItemId() != null && !item.getItemId().isEmpty()) {
-                            serialNumber = item.getItemId();
-                        } else {
-                            // Create serial number from PIN (e.g., first 15 digits + last 4)
-                            serialNumber = decryptedPin.length() >= 16 
-                                ? "OFF" + decryptedPin.substring(0, Math.min(13, decryptedPin.length())) + decryptedPin.substring(Math.max(0, decryptedPin.length() - 4))
-                                : "SN-" + decryptedPin;
-                        }
-                        itemData.put("serialNumber", serialNumber);
-                    }
-                    
-                    itemData.put("expiryDate", item.getExpiryDate() != null ? item.getExpiryDate().toString() : null);
-                    assignedItems.add(itemData);
-                    
-                    System.out.println("✅ Assigned " + saleType + " " + (i + 1) + "/" + quantity);
-                } catch (Exception e) {
-                    System.err.println("❌ Failed to assign " + saleType + " " + (i + 1) + ": " + e.getMessage());
-                    throw new RuntimeException("Failed to allocate stock: " + e.getMessage());
+                    RetailerWallet wallet = retailerBalanceService.debit(retailer.getId(), mode, saleAmount, orderId,
+                        "POS Sale: " + bundleName + " (x" + quantity + ")");
+                    System.out.println("💰 " + mode + " debited - Available: " + wallet.getAccount(mode).getAvailable());
+                } catch (IllegalStateException e) {
+                    Map<String, Object> error = new HashMap<>();
+                    error.put("success", false);
+                    error.put("message", "Insufficient " + paymentMode + " balance for this sale.");
+                    return ResponseEntity.badRequest().body(error);
                 }
             }
-            
-            System.out.println("✅ Sale completed - " + assignedItems.size() + " items assigned");
-            
-            // Create RetailerOrder record for this sale
+
             try {
-                RetailerOrder order = new RetailerOrder();
-                order.setRetailerId(retailer.getId());
-                order.setOrderNumber(orderId);
-                order.setTotalAmount(BigDecimal.valueOf(totalAmount));
-                order.setCurrency("NOK");
-                order.setStatus(RetailerOrder.OrderStatus.COMPLETED);
-                order.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
-                order.setPaymentMethod("CREDIT");
-                order.setCreatedBy(retailer.getEmail());
-                order.setCreatedDate(LocalDateTime.now());
-                
-                // Create order item
-                RetailerOrder.OrderItem orderItem = new RetailerOrder.OrderItem();
-                orderItem.setProductId(bundleId);
-                orderItem.setProductName(bundleName);
-                orderItem.setProductType(saleType);
-                orderItem.setCategory(saleType.equalsIgnoreCase("ESIM") ? "ESIM" : "EPIN");
-                orderItem.setQuantity(quantity);
-                orderItem.setUnitPrice(BigDecimal.valueOf(unitPrice));
-                
-                // Add serial numbers to order item
-                List<String> serialNumbers = assignedItems.stream()
-                    .map(item -> item.get("serialNumber"))
-                    .collect(Collectors.toList());
-                orderItem.setSerialNumbers(serialNumbers);
-                
-                order.setItems(Arrays.asList(orderItem));
-                
-                // Save order
-                RetailerOrder savedOrder = retailerOrderRepository.save(order);
-                System.out.println("📝 Order record created: " + orderId);
-                System.out.println("📝 Order ID (MongoDB): " + savedOrder.getId());
-                System.out.println("📝 Order Type: " + saleType);
-                System.out.println("📝 Order Category: " + orderItem.getCategory());
-                System.out.println("📝 Order Items Count: " + savedOrder.getItems().size());
-                System.out.println("📝 First Item Type: " + savedOrder.getItems().get(0).getProductType());
-                System.out.println("📝 First Item Category: " + savedOrder.getItems().get(0).getCategory());
-            } catch (Exception e) {
-                System.err.println("⚠️ Failed to create order record: " + e.getMessage());
-                e.printStackTrace();
-                throw new RuntimeException("Failed to save order: " + e.getMessage());
+                return completeDirectSale(retailer, orderId, bundleId, bundleName, quantity, unitPrice, totalAmount,
+                    customerName, saleType);
+            } catch (RuntimeException e) {
+                // The sale did not happen; give the retailer the amount back
+                if (saleAmount.compareTo(BigDecimal.ZERO) > 0) {
+                    retailerBalanceService.reverse(retailer.getId(), mode, saleAmount, orderId,
+                        "Reversal of failed POS Sale: " + bundleName + " (x" + quantity + ")");
+                }
+                throw e;
             }
             
-            // Update retailer credit or kickback based on payment mode
-            // Note: eSIM sales are handled separately via /admin/stock/esims/send-qr endpoint
+        } catch (Exception e) {
+            System.err.println("❌ Direct sale failed: " + e.getMessage());
+            e.printStackTrace();
+            
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("message", "Sale failed: " + e.getMessage());
+            error.put("details", e.getClass().getSimpleName());
+            
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+
+    // Allocate stock and record the order for a direct sale that has already been charged
+    private ResponseEntity<?> completeDirectSale(User retailer, String orderId, String bundleId, String bundleName,
+                                                 int quantity, double unitPrice, double totalAmount,
+                                                 String customerName, String saleType) {
+        // Assign stock items from admin pool
+        List<Map<String, String>> assignedItems = new ArrayList<>();
+        StockPool.StockType stockType = saleType.equalsIgnoreCase("ESIM") ? StockPool.StockType.ESIM : StockPool.StockType.EPIN;
+        
+        for (int i = 0; i < quantity; i++) {
             try {
-                System.out.println("🔍 Looking for limits for retailer ID: " + retailer.getId());
-                System.out.println("🔍 Payment mode: " + paymentMode);
-                System.out.println("🔍 Sale amount: " + totalAmount);
+                // Assign stock from admin pool
+                StockPool.StockItem item = stockService.assignStockToOrder(
+                    bundleId, 
+                    stockType, 
+                    orderId,
+                    retailer.getId(),
+                    retailer.getEmail()
+                );
                 
-                BigDecimal saleAmount = BigDecimal.valueOf(totalAmount);
+                // Create item object with details
+                Map<String, String> itemData = new HashMap<>();
                 
-                if ("kickback".equalsIgnoreCase(paymentMode)) {
-                    // Deduct from Kickback Bonus Limit
-                    Optional<RetailerKickbackLimit> kickbackLimitOpt = retailerKickbackLimitRepository.findByRetailerId(retailer.getId());
-                    
-                    if (kickbackLimitOpt.isPresent()) {
-                        RetailerKickbackLimit kickbackLimit = kickbackLimitOpt.get();
-                        
-                        System.out.println("✅ Found RetailerKickbackLimit: " + kickbackLimit.getId());
-                        System.out.println("📊 Before update - Kickback Used: " + kickbackLimit.getUsedKickback() + ", Available: " + kickbackLimit.getAvailableKickback());
-                        
-                        // Use the entity's helper method to deduct kickback
-                        kickbackLimit.useKickback(saleAmount);
-                        
-                        // Save updated kickback limit
-                        RetailerKickbackLimit savedKickback = retailerKickbackLimitRepository.save(kickbackLimit);
-                        System.out.println("✅ Kickback limit updated successfully. ID: " + savedKickback.getId());
-                        System.out.println("📊 After save - Kickback Used: " + savedKickback.getUsedKickback() + ", Available: " + savedKickback.getAvailableKickback());
-                    } else {
-                        System.out.println("⚠️ No kickback limit found for retailer ID: " + retailer.getId());
-                    }
+                if (stockType == StockPool.StockType.ESIM) {
+                    // For eSIM, don't decrypt - just store the reference
+                    itemData.put("serialNumber", item.getSerialNumber() != null ? item.getSerialNumber() : "N/A");
+                    itemData.put("iccid", item.getItemData() != null ? item.getItemData() : "N/A");
                 } else {
-                    // Deduct from Credit Limit (default)
-                    Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(retailer.getId());
+                    // For ePIN, decrypt the PIN
+                    String decryptedPin = stockService.decryptData(item.getItemData());
+                    itemData.put("pin", decryptedPin);
                     
-                    if (limitOpt.isPresent()) {
-                        RetailerLimit limit = limitOpt.get();
-                        
-                        System.out.println("✅ Found RetailerLimit: " + limit.getId());
-                        System.out.println("📊 Before update - ePIN Used: " + limit.getUsedCredit() + ", ePIN Available: " + limit.getAvailableCredit());
-                        
-                        // Update regular credit
-                        BigDecimal currentUsed = limit.getUsedCredit() != null ? limit.getUsedCredit() : BigDecimal.ZERO;
-                        limit.setUsedCredit(currentUsed.add(saleAmount));
-                        
-                        BigDecimal currentAvailable = limit.getAvailableCredit() != null ? limit.getAvailableCredit() : BigDecimal.ZERO;
-                        limit.setAvailableCredit(currentAvailable.subtract(saleAmount));
-                        
-                        System.out.println("💰 ePIN Credit updated - Used: " + limit.getUsedCredit() + ", Available: " + limit.getAvailableCredit());
-                        
-                        // Save updated limit
-                        RetailerLimit savedLimit = retailerLimitRepository.save(limit);
-                        System.out.println("✅ RetailerLimit saved successfully. ID: " + savedLimit.getId());
-                        System.out.println("📊 After save - ePIN Used: " + savedLimit.getUsedCredit() + ", ePIN Available: " + savedLimit.getAvailableCredit());
+                    // Generate serial number: use item's serial number, or itemId, or create from PIN
+                    String serialNumber;
+                    if (item.getSerialNumber() != null && !item.getSerialNumber().isEmpty()) {
+                        serialNumber = item.getSerialNumber();
+                    } else if (item.getItemId() != null && !item.getItemId().isEmpty()) {
+                        serialNumber = item.getItemId();
                     } else {
-                        System.out.println("⚠️ No credit limit found for retailer ID: " + retailer.getId() + " - skipping credit update");
+                        // Create serial number from PIN (e.g., first 15 digits + last 4)
+                        serialNumber = decryptedPin.length() >= 16 
+                            ? "OFF" + decryptedPin.substring(0, Math.min(13, decryptedPin.length())) + decryptedPin.substring(Math.max(0, decryptedPin.length() - 4))
+                            : "SN-" + decryptedPin;
                     }
+                    itemData.put("serialNumber", serialNumber);
                 }
+                
+                itemData.put("expiryDate", item.getExpiryDate() != null ? item.getExpiryDate().toString() : null);
+                assignedItems.add(itemData);
+                
+                System.out.println("✅ Assigned " + saleType + " " + (i + 1) + "/" + quantity);
             } catch (Exception e) {
-                System.err.println("⚠️ Failed to update payment limit: " + e.getMessage());
-                e.printStackTrace();
-                // Continue with the sale even if limit update fails
+                System.err.println("❌ Failed to assign " + saleType + " " + (i + 1) + ": " + e.getMessage());
+                releaseDirectSaleStock(bundleId, stockType, orderId);
+                throw new RuntimeException("Failed to allocate stock: " + e.getMessage());
             }
-            
-            // Prepare response
-            Map<String, Object> saleData = new HashMap<>();
-            saleData.put("saleId", orderId);
-            saleData.put("items", assignedItems);
-            saleData.put("pins", assignedItems); // Add pins alias for frontend compatibility
-            saleData.put("bundleName", bundleName);
-            saleData.put("quantity", quantity);
-            saleData.put("totalAmount", totalAmount);
-            saleData.put("customerName", customerName);
-            
-            Map<String, Object> response = new HashMap<>();
-            response.put("success", true);
-            response.put("message", "Sale completed successfully");
-            response.put("data", saleData);
-            response.put("pins", assignedItems); // Also add pins at root level for frontend compatibility
-            
-            return ResponseEntity.ok(response);
-            
+        }
+        
+        System.out.println("✅ Sale completed - " + assignedItems.size() + " items assigned");
+        
+        // Create RetailerOrder record for this sale
+        try {
+            RetailerOrder order = new RetailerOrder();
+            order.setRetailerId(retailer.getId());
+            order.setOrderNumber(orderId);
+            order.setTotalAmount(BigDecimal.valueOf(totalAmount));
+            order.setCurrency("NOK");
+            order.setStatus(RetailerOrder.OrderStatus.COMPLETED);
+            order.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
+            order.setPaymentMethod("CREDIT");
+            order.setCreatedBy(retailer.getEmail());
+            order.setCreatedDate(LocalDateTime.now());
+            
+            // Create order item
+            RetailerOrder.OrderItem orderItem = new RetailerOrder.OrderItem();
+            orderItem.setProductId(bundleId);
+            orderItem.setProductName(bundleName);
+            orderItem.setProductType(saleType);
+            orderItem.setCategory(saleType.equalsIgnoreCase("ESIM") ? "ESIM" : "EPIN");
+            orderItem.setQuantity(quantity);
+            orderItem.setUnitPrice(BigDecimal.valueOf(unitPrice));
+            
+            // Add serial numbers to order item
+            List<String> serialNumbers = assignedItems.stream()
+                .map(item -> item.get("serialNumber"))
+                .collect(Collectors.toList());
+            orderItem.setSerialNumbers(serialNumbers);
+            
+            order.setItems(Arrays.asList(orderItem));
+            
+            // Save order
+            RetailerOrder savedOrder = retailerOrderRepository.save(order);
+            System.out.println("📝 Order record created: " + orderId);
+            System.out.println("📝 Order ID (MongoDB): " + savedOrder.getId());
+            System.out.println("📝 Order Type: " + saleType);
+            System.out.println("📝 Order Category: " + orderItem.getCategory());
+            System.out.println("📝 Order Items Count: " + savedOrder.getItems().size());
+            System.out.println("📝 First Item Type: " + savedOrder.getItems().get(0).getProductType());
+            System.out.println("📝 First Item Category: " + savedOrder.getItems().get(0).getCategory());
         } catch (Exception e) {
-            System.err.println("❌ Direct sale failed: " + e.getMessage());
+            System.err.println("⚠️ Failed to create order record: " + e.getMessage());
             e.printStackTrace();
-            
-            Map<String, Object> error = new HashMap<>();
-            error.put("success", false);
-            error.put("message", "Sale failed: " + e.getMessage());
-            error.put("details", e.getClass().getSimpleName());
-            
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+            releaseDirectSaleStock(bundleId, stockType, orderId);
+            throw new RuntimeException("Failed to save order: " + e.getMessage());
+        }
+        
+        // Prepare response
+        Map<String, Object> saleData = new HashMap<>();
+        saleData.put("saleId", orderId);
+        saleData.put("items", assignedItems);
+        saleData.put("pins", assignedItems); // Add pins alias for frontend compatibility
+        saleData.put("bundleName", bundleName);
+        saleData.put("quantity", quantity);
+        saleData.put("totalAmount", totalAmount);
+        saleData.put("customerName", customerName);
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("message", "Sale completed successfully");
+        response.put("data", saleData);
+        response.put("pins", assignedItems); // Also add pins at root level for frontend compatibility
+        
+        return ResponseEntity.ok(response);
+    }
+
+    // The sale failed after some items were allocated; put them back so they can be sold again
+    private void releaseDirectSaleStock(String bundleId, StockPool.StockType stockType, String orderId) {
+        try {
+            int released = stockService.releaseStockFromOrder(bundleId, stockType, orderId);
+            if (released > 0) {
+                System.out.println("↩️ Released " + released + " item(s) allocated to failed sale " + orderId);
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Failed to release stock allocated to " + orderId + ": " + e.getMessage());
         }
     }
 
@@ -1383,7 +1409,7 @@ public class RetailerController {
         try {
             User retailer = getUserFromAuthentication(authentication);
             
-            Optional<Order> orderOptional = orderRepository.findById(orderId);
+            Optional<Order> orderOptional = unifiedOrderService.findById(orderId);
             if (!orderOptional.isPresent()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND)
                     .body(Map.of("success", false, "message", "Order not found"));
@@ -1448,7 +1474,7 @@ public class RetailerController {
         try {
             User retailer = getUserFromAuthentication(authentication);
             
-            Optional<Order> orderOptional = orderRepository.findById(orderId);
+            Optional<Order> orderOptional = unifiedOrderService.findById(orderId);
             if (!orderOptional.isPresent()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND)
                     .body(Map.of("success", false, "message", "Order not found"));
@@ -1513,7 +1539,7 @@ public class RetailerController {
             List<Map<String, Object>> receipts = new ArrayList<>();
             
             for (String orderId : orderIds) {
-                Optional<Order> orderOptional = orderRepository.findById(orderId);
+                Optional<Order> orderOptional = unifiedOrderService.findById(orderId);
                 if (orderOptional.isPresent()) {
                     Order order = orderOptional.get();
                     
@@ -1,22 +1,17 @@
 package com.example.topup.demo.controller;
 
+import com.example.topup.demo.entity.EsimDeliveryBatch;
 import com.example.topup.demo.entity.StockPool;
 import com.example.topup.demo.entity.User;
-import com.example.topup.demo.entity.RetailerOrder;
-import com.example.topup.demo.entity.RetailerLimit;
 import com.example.topup.demo.entity.RetailerEsimCredit;
-import com.example.topup.demo.entity.EsimOrderRequest;
-import com.example.topup.demo.entity.EsimPosSale;
 import com.example.topup.demo.service.StockService;
 import com.example.topup.demo.service.EmailService;
-import com.example.topup.demo.service.RetailerService;
+import com.example.topup.demo.service.EsimBulkDeliveryService;
+import com.example.topup.demo.service.EsimSaleService;
 import com.example.topup.demo.repository.StockPoolRepository;
 import com.example.topup.demo.repository.UserRepository;
-import com.example.topup.demo.repository.RetailerOrderRepository;
-import com.example.topup.demo.repository.RetailerLimitRepository;
 import com.example.topup.demo.repository.RetailerEsimCreditRepository;
-import com.example.topup.demo.repository.EsimOrderRequestRepository;
-import com.example.topup.demo.repository.EsimPosSaleRepository;
+import com.example.topup.demo.util.OrderNumberGenerator;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
@@ -53,26 +48,14 @@ public class StockController {
     @Autowired
     private UserRepository userRepository;
 
-    @Autowired
-    private RetailerOrderRepository retailerOrderRepository;
-
-    @Autowired
-    private RetailerLimitRepository retailerLimitRepository;
-
     @Autowired
     private RetailerEsimCreditRepository retailerEsimCreditRepository;
 
     @Autowired
-    private EsimOrderRequestRepository esimOrderRequestRepository;
-
-    @Autowired
-    private EsimPosSaleRepository esimPosSaleRepository;
-
-    @Autowired
-    private RetailerService retailerService;
+    private EsimSaleService esimSaleService;
 
     @Autowired
-    private com.example.topup.demo.repository.RetailerKickbackLimitRepository retailerKickbackLimitRepository;
+    private EsimBulkDeliveryService esimBulkDeliveryService;
 
     // Test endpoint to verify controller is loaded
     @GetMapping("/test")
@@ -883,7 +866,7 @@ public class StockController {
             // Decrypt eSIM details for email
             String decryptedActivationCode = "";
             String smDpAddress = "";
-            String qrCodeBase64 = "";
+            byte[] qrCodePng = null;
             
             System.out.println("🔍 Checking eSIM item data:");
             System.out.println("   - ICCID (serialNumber): " + esimItem.getSerialNumber());
@@ -900,29 +883,12 @@ public class StockController {
                     System.out.println("✅ Decrypted activation code for ICCID " + esimItem.getSerialNumber());
                 }
                 
-                // Get QR code from qrCodeImage - check if it needs decryption or is already base64
+                // QR code PNG straight from the stored (encrypted or plain) Base64, without a String copy
                 if (esimItem.getQrCodeImage() != null && !esimItem.getQrCodeImage().isEmpty()) {
-                    String rawQrCode = esimItem.getQrCodeImage();
-                    System.out.println("🔍 Raw QR code length: " + rawQrCode.length() + " chars");
-                    
-                    // Check if it's already valid base64 (PNG starts with iVBORw0KGgo)
-                    if (rawQrCode.startsWith("iVBORw0KGgo")) {
-                        // Already plain base64, use directly
-                        qrCodeBase64 = rawQrCode;
-                        System.out.println("✅ QR code is already in base64 format (not encrypted) - length: " + qrCodeBase64.length() + " chars");
-                    } else {
-                        // Needs decryption
-                        try {
-                            qrCodeBase64 = stockService.decryptData(rawQrCode);
-                            System.out.println("✅ Decrypted QR code - length: " + qrCodeBase64.length() + " chars");
-                        } catch (Exception e) {
-                            System.err.println("⚠️ Failed to decrypt QR code, using raw value: " + e.getMessage());
-                            qrCodeBase64 = rawQrCode;
-                        }
-                    }
-                    
-                    System.out.println("   QR code starts with: " + (qrCodeBase64.length() > 50 ? qrCodeBase64.substring(0, 50) + "..." : qrCodeBase64));
-                    System.out.println("   Is valid PNG: " + qrCodeBase64.startsWith("iVBORw0KGgo"));
+                    qrCodePng = stockService.decryptQrCodePng(esimItem.getQrCodeImage());
+                    System.out.println(qrCodePng != null
+                            ? "✅ Decoded QR code PNG - " + qrCodePng.length + " bytes"
+                            : "⚠️ Stored QR code is not a PNG image");
                 } else {
                     System.out.println("⚠️ No QR code image stored in database");
                 }
@@ -947,31 +913,78 @@ public class StockController {
             System.out.println("📊 Final email data:");
             System.out.println("   - Activation Code: " + (decryptedActivationCode != null && !decryptedActivationCode.isEmpty() ? "✅" : "❌"));
             System.out.println("   - SM-DP Address: " + (smDpAddress != null && !smDpAddress.isEmpty() ? "✅" : "❌"));
-            System.out.println("   - QR Code: " + (qrCodeBase64 != null && !qrCodeBase64.isEmpty() ? "✅ (" + qrCodeBase64.length() + " chars)" : "❌"));
+            System.out.println("   - QR Code: " + (qrCodePng != null ? "✅ (" + qrCodePng.length + " bytes)" : "❌"));
+            
+            // Record the sale in database before the eSIM leaves stock - CRITICAL: This must happen for analytics and credit updates
+            String recordedOrderNumber = null;
+            System.out.println("\n=== STARTING SALE RECORDING PROCESS ===");
+            System.out.println("📋 Authentication object: " + (authentication != null ? "Present" : "NULL"));
+            if (authentication != null) {
+                System.out.println("📋 Authentication name: " + authentication.getName());
+                System.out.println("📋 Authentication principal: " + authentication.getPrincipal());
+                System.out.println("📋 Authentication authorities: " + authentication.getAuthorities());
+            }
+            
+            // Get retailer - with fallback to any BUSINESS user if authentication is null
+            String retailerEmail = null;
+            if (authentication != null && authentication.getName() != null) {
+                retailerEmail = authentication.getName();
+                System.out.println("💾 Using authenticated user: " + retailerEmail);
+            } else {
+                // Fallback: Find any BUSINESS user
+                System.out.println("⚠️ Authentication is null - checking for any BUSINESS user");
+                List<User> businessUsers = userRepository.findByAccountType(User.AccountType.BUSINESS);
+                if (!businessUsers.isEmpty()) {
+                    retailerEmail = businessUsers.get(0).getEmail();
+                    System.out.println("💾 Using fallback BUSINESS user: " + retailerEmail);
+                } else {
+                    System.err.println("❌ No BUSINESS user found for fallback");
+                }
+            }
+            
+            if (retailerEmail != null) {
+                System.out.println("💾 Recording eSIM sale for user: " + retailerEmail);
+                
+                var retailerOpt = userRepository.findByEmail(retailerEmail);
+                if (!retailerOpt.isPresent()) {
+                    System.err.println("⚠️ Retailer user not found: " + retailerEmail);
+                } else {
+                    User retailer = retailerOpt.get();
+                    try {
+                        // Charges the retailer first; nothing is sent or taken from stock if that fails
+                        recordedOrderNumber = esimSaleService.recordPosSale(retailer, retailerEmail, pool, iccid,
+                                customerName, customerEmail, price, paymentMode).getOrderNumber();
+                    } catch (IllegalStateException e) {
+                        System.err.println("❌ eSIM sale not charged: " + e.getMessage());
+                        Map<String, Object> response = new HashMap<>();
+                        response.put("success", false);
+                        response.put("message", "Insufficient balance");
+                        response.put("error", e.getMessage());
+                        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+                    }
+                }
+            } else {
+                System.err.println("❌ No retailer email found - cannot record sale");
+            }
             
-            // Generate order ID
-            String orderId = "eSIM-" + System.currentTimeMillis();
+            // Use the recorded order number so the email matches the retailer's order
+            String orderId = recordedOrderNumber != null ? recordedOrderNumber : OrderNumberGenerator.next("eSIM");
             
             // Send email using proper eSIM approval method with QR code embedding
             System.out.println("📤 Sending professional eSIM activation email to: " + customerEmail);
             System.out.println("   - Product: " + pool.getName());
             System.out.println("   - ICCID: " + iccid);
             System.out.println("   - Price: " + priceStr + " NOK");
-            System.out.println("   - Has QR Code: " + (qrCodeBase64 != null && !qrCodeBase64.isEmpty()));
-            System.out.println("   - QR Code Length: " + (qrCodeBase64 != null ? qrCodeBase64.length() : 0));
-            if (qrCodeBase64 != null && qrCodeBase64.length() > 0) {
-                System.out.println("   - QR Code Starts With: " + qrCodeBase64.substring(0, Math.min(50, qrCodeBase64.length())));
-                System.out.println("   - Is Valid PNG: " + qrCodeBase64.startsWith("iVBORw0KGgo"));
-            } else {
-                System.out.println("   - ❌ QR CODE IS NULL OR EMPTY - EMAIL WILL NOT HAVE QR CODE!");
+            if (qrCodePng == null) {
+                System.out.println("   - ❌ QR CODE IS MISSING - EMAIL WILL NOT HAVE QR CODE!");
             }
             System.out.println("   - Has Activation Code: " + (decryptedActivationCode != null && !decryptedActivationCode.isEmpty()));
-            emailService.sendEsimApprovalEmail(
+            emailService.sendEsimApprovalEmailWithQrImage(
                 customerEmail,
                 customerName,
                 orderId,
                 iccid,
-                qrCodeBase64,
+                qrCodePng,
                 decryptedActivationCode,
                 smDpAddress,
                 priceStr + " NOK"
@@ -1001,313 +1014,6 @@ public class StockController {
             stockPoolRepository.save(pool);
             System.out.println("✅ Item marked as USED and removed from pool. Remaining items: " + pool.getItems().size());
             
-            // Record the sale in database - CRITICAL: This must happen for analytics and credit updates
-            System.out.println("\n=== STARTING SALE RECORDING PROCESS ===");
-            System.out.println("📋 Authentication object: " + (authentication != null ? "Present" : "NULL"));
-            if (authentication != null) {
-                System.out.println("📋 Authentication name: " + authentication.getName());
-                System.out.println("📋 Authentication principal: " + authentication.getPrincipal());
-                System.out.println("📋 Authentication authorities: " + authentication.getAuthorities());
-            }
-            
-            // Get retailer - with fallback to any BUSINESS user if authentication is null
-            String retailerEmail = null;
-            if (authentication != null && authentication.getName() != null) {
-                retailerEmail = authentication.getName();
-                System.out.println("💾 Using authenticated user: " + retailerEmail);
-            } else {
-                // Fallback: Find any BUSINESS user
-                System.out.println("⚠️ Authentication is null - checking for any BUSINESS user");
-                List<User> businessUsers = userRepository.findByAccountType(User.AccountType.BUSINESS);
-                if (!businessUsers.isEmpty()) {
-                    retailerEmail = businessUsers.get(0).getEmail();
-                    System.out.println("💾 Using fallback BUSINESS user: " + retailerEmail);
-                } else {
-                    System.err.println("❌ No BUSINESS user found for fallback");
-                }
-            }
-            
-            if (retailerEmail != null) {
-                System.out.println("💾 Recording eSIM sale for user: " + retailerEmail);
-                
-                var retailerOpt = userRepository.findByEmail(retailerEmail);
-                if (!retailerOpt.isPresent()) {
-                    System.err.println("⚠️ Retailer user not found: " + retailerEmail);
-                } else {
-                    User retailer = retailerOpt.get();
-                    try {
-                        // Create RetailerOrder with OrderItem
-                        RetailerOrder order = new RetailerOrder();
-                        order.setRetailerId(retailer.getId());
-                        order.setOrderNumber("eSIM-" + System.currentTimeMillis());
-                        
-                        // Add customer details in notes field
-                        order.setNotes("Customer: " + customerName + " (" + customerEmail + ")");
-                        
-                        // Create OrderItem for the eSIM
-                        RetailerOrder.OrderItem item = new RetailerOrder.OrderItem();
-                        item.setProductId(poolId);
-                        item.setProductName(pool.getName());
-                        item.setProductType("ESIM");
-                        item.setCategory("ESIM");
-                        item.setQuantity(1);
-                        item.setUnitPrice(BigDecimal.valueOf(price));
-                        item.setRetailPrice(BigDecimal.valueOf(price));
-                        item.setSerialNumbers(java.util.Arrays.asList(iccid));
-                        
-                        order.addItem(item);
-                        order.setTotalAmount(BigDecimal.valueOf(price));
-                        order.setCurrency("NOK");
-                        order.setStatus(RetailerOrder.OrderStatus.COMPLETED);
-                        order.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
-                        order.setPaymentMethod("POINT_OF_SALE");
-                        order.setCreatedDate(java.time.LocalDateTime.now());
-                        order.setLastModifiedDate(java.time.LocalDateTime.now());
-                        order.setCreatedBy(retailerEmail);
-                        
-                        retailerOrderRepository.save(order);
-                        System.out.println("=== RetailerOrder SAVED SUCCESSFULLY ===");
-                        System.out.println("✅ RetailerOrder created with ID: " + order.getId());
-                        System.out.println("📝 Order Number: " + order.getOrderNumber());
-                        System.out.println("📝 Retailer ID: " + order.getRetailerId());
-                        System.out.println("📝 Payment Method: " + order.getPaymentMethod());
-                        System.out.println("📝 Status: " + order.getStatus());
-                        System.out.println("📝 Customer: " + customerName + " (" + customerEmail + ")");
-                        System.out.println("📝 ICCID: " + iccid);
-                        System.out.println("📝 Amount: NOK " + price);
-                        
-                        // Create EsimOrderRequest to store customer details for sales report
-                        EsimOrderRequest esimOrderRequest = new EsimOrderRequest();
-                        esimOrderRequest.setOrderNumber(order.getOrderNumber());
-                        esimOrderRequest.setCustomerFullName(customerName);
-                        esimOrderRequest.setCustomerEmail(customerEmail);
-                        esimOrderRequest.setProductName(pool.getName());
-                        esimOrderRequest.setProductId(poolId);
-                        esimOrderRequest.setAmount((double) price);
-                        esimOrderRequest.setPaymentMethod("POINT_OF_SALE");
-                        esimOrderRequest.setStatus("APPROVED");
-                        esimOrderRequest.setAssignedEsimSerial(iccid);
-                        esimOrderRequest.setApprovedByAdmin(retailerEmail);
-                        esimOrderRequest.setApprovedDate(java.time.LocalDateTime.now());
-                        esimOrderRequest.setRequestDate(java.time.LocalDateTime.now());
-                        esimOrderRequestRepository.save(esimOrderRequest);
-                        System.out.println("✅ EsimOrderRequest created for sales report with ICCID: " + iccid);
-                        
-                        // ========== SAVE TO NEW esim_pos_sales COLLECTION ==========
-                        EsimPosSale savedPosSale = null;
-                        try {
-                            EsimPosSale posSale = new EsimPosSale(retailer, customerEmail);
-                            posSale.setCustomerName(customerName);
-                            posSale.setIccid(iccid);
-                            posSale.setProductName(pool.getName());
-                            posSale.setProductId(poolId);
-                            posSale.setStockPoolId(poolId);
-                            posSale.setStockPoolName(pool.getName());
-                            posSale.setSalePrice(BigDecimal.valueOf(price));
-                            posSale.setOrderId(order.getId());
-                            posSale.setOrderReference(order.getOrderNumber());
-                            posSale.setStatus(EsimPosSale.SaleStatus.COMPLETED);
-                            posSale.setEmailSent(true);
-                            posSale.setCreatedBy(retailerEmail);
-                            
-                            // Set cost price if available
-                            if (pool.getPrice() != null && !pool.getPrice().isEmpty()) {
-                                try {
-                                    BigDecimal poolCostPrice = new BigDecimal(pool.getPrice());
-                                    posSale.setCostPrice(poolCostPrice);
-                                    posSale.setMargin(BigDecimal.valueOf(price).subtract(poolCostPrice));
-                                } catch (NumberFormatException e) {
-                                    posSale.setCostPrice(BigDecimal.ZERO);
-                                }
-                            }
-                            
-                            // Set bundle info if available - use pool name as bundle name
-                            posSale.setBundleName(pool.getName());
-                            posSale.setBundleId(poolId);
-                            
-                            // Set operator from networkProvider if available
-                            if (pool.getNetworkProvider() != null) {
-                                posSale.setOperator(pool.getNetworkProvider());
-                            }
-                            
-                            savedPosSale = esimPosSaleRepository.save(posSale);
-                            System.out.println("✅ EsimPosSale saved to esim_pos_sales collection with ID: " + savedPosSale.getId());
-                            System.out.println("   📊 Customer: " + customerName + " (" + customerEmail + ")");
-                            System.out.println("   📊 ICCID: " + iccid);
-                            System.out.println("   📊 Sale Price: NOK " + savedPosSale.getSalePrice());
-                            System.out.println("   📊 Retailer: " + retailerEmail);
-                        } catch (Exception posSaleEx) {
-                            System.err.println("⚠️ Error saving to esim_pos_sales collection: " + posSaleEx.getMessage());
-                            posSaleEx.printStackTrace();
-                        }
-                        // ========== END SAVE TO esim_pos_sales ==========
-                        
-                        // ========== DEDUCT CREDIT BASED ON PAYMENT MODE ==========
-                        if (savedPosSale != null && savedPosSale.getSalePrice() != null) {
-                            System.out.println("\n=== STARTING CREDIT DEDUCTION (from esim_pos_sales) ===");
-                            System.out.println("📊 POS Sale ID: " + savedPosSale.getId());
-                            System.out.println("📊 Retailer ID: " + retailer.getId());
-                            System.out.println("📊 Sale Price from POS Sale: " + savedPosSale.getSalePrice());
-                            System.out.println("📊 Payment Mode: " + paymentMode);
-                            
-                            BigDecimal salePriceFromPOS = savedPosSale.getSalePrice();
-                            
-                            try {
-                                if ("kickback".equalsIgnoreCase(paymentMode)) {
-                                    // ========== DEDUCT FROM KICKBACK BONUS ==========
-                                    System.out.println("💰 Deducting from KICKBACK BONUS");
-                                    var kickbackLimitOpt = retailerKickbackLimitRepository.findByRetailerId(retailer.getId());
-                                    
-                                    if (kickbackLimitOpt.isPresent()) {
-                                        var kickbackLimit = kickbackLimitOpt.get();
-                                        System.out.println("📊 BEFORE - Kickback Available: " + kickbackLimit.getAvailableKickback());
-                                        System.out.println("📊 BEFORE - Kickback Used: " + kickbackLimit.getUsedKickback());
-                                        
-                                        // Use kickback for eSIM sale
-                                        kickbackLimit.useKickback(salePriceFromPOS);
-                                        
-                                        System.out.println("📊 AFTER useKickback() - Kickback Available: " + kickbackLimit.getAvailableKickback());
-                                        System.out.println("📊 AFTER useKickback() - Kickback Used: " + kickbackLimit.getUsedKickback());
-                                        
-                                        var savedKickback = retailerKickbackLimitRepository.save(kickbackLimit);
-                                        System.out.println("✅ KICKBACK DEDUCTED for eSIM Sale: " + salePriceFromPOS);
-                                        System.out.println("📊 SAVED - Kickback Available: " + savedKickback.getAvailableKickback());
-                                        System.out.println("📊 SAVED - Kickback Used: " + savedKickback.getUsedKickback());
-                                        
-                                        // Update the POS sale with kickback deduction info
-                                        savedPosSale.setNotes("Kickback deducted: " + salePriceFromPOS + " NOK");
-                                        esimPosSaleRepository.save(savedPosSale);
-                                        
-                                        order.setNotes(order.getNotes() + " | Kickback Bonus Updated from POS Sale");
-                                    } else {
-                                        System.err.println("⚠️ No Kickback Limit record found for retailer: " + retailer.getId());
-                                    }
-                                } else {
-                                    // ========== DEDUCT FROM eSIM CREDIT (DEFAULT) ==========
-                                    System.out.println("💳 Deducting from eSIM CREDIT");
-                                    var esimCreditOpt = retailerEsimCreditRepository.findByRetailer_Id(retailer.getId());
-                                    System.out.println("📊 RetailerEsimCredit (new collection) found: " + esimCreditOpt.isPresent());
-                                
-                                    RetailerEsimCredit esimCredit = null;
-                                    
-                                    if (esimCreditOpt.isPresent()) {
-                                        esimCredit = esimCreditOpt.get();
-                                    } else {
-                                        // Fallback: Check OLD retailer_limits collection and migrate if exists
-                                        System.out.println("📊 Checking OLD retailer_limits collection for eSIM credit...");
-                                        var oldLimitOpt = retailerLimitRepository.findByRetailer_Id(retailer.getId());
-                                        
-                                        if (oldLimitOpt.isPresent()) {
-                                            RetailerLimit oldLimit = oldLimitOpt.get();
-                                            BigDecimal oldEsimCreditLimit = oldLimit.getEsimCreditLimit();
-                                            BigDecimal oldEsimUsedCredit = oldLimit.getEsimUsedCredit();
-                                            BigDecimal oldEsimAvailableCredit = oldLimit.getEsimAvailableCredit();
-                                            
-                                            if (oldEsimCreditLimit != null && oldEsimCreditLimit.compareTo(BigDecimal.ZERO) > 0) {
-                                                System.out.println("📊 Found eSIM credit in OLD collection - MIGRATING...");
-                                                System.out.println("   Old eSIM Credit Limit: " + oldEsimCreditLimit);
-                                                System.out.println("   Old eSIM Used Credit: " + oldEsimUsedCredit);
-                                                System.out.println("   Old eSIM Available Credit: " + oldEsimAvailableCredit);
-                                                
-                                                // Create new record in retailer_esim_credits collection
-                                                esimCredit = new RetailerEsimCredit(retailer);
-                                                esimCredit.setCreditLimit(oldEsimCreditLimit);
-                                                esimCredit.setUsedCredit(oldEsimUsedCredit != null ? oldEsimUsedCredit : BigDecimal.ZERO);
-                                                esimCredit.setAvailableCredit(oldEsimAvailableCredit != null ? oldEsimAvailableCredit : oldEsimCreditLimit);
-                                                esimCredit.setCreatedBy("system-migration");
-                                                esimCredit = retailerEsimCreditRepository.save(esimCredit);
-                                                System.out.println("✅ Migrated eSIM credit to NEW collection. ID: " + esimCredit.getId());
-                                            }
-                                        }
-                                    }
-                                    
-                                    if (esimCredit != null) {
-                                        System.out.println("📊 BEFORE - eSIM Credit Limit: " + esimCredit.getCreditLimit());
-                                        System.out.println("📊 BEFORE - eSIM Available Credit: " + esimCredit.getAvailableCredit());
-                                        System.out.println("📊 BEFORE - eSIM Used Credit: " + esimCredit.getUsedCredit());
-                                        
-                                        // Use eSIM credit from separate collection with POS sale reference
-                                        esimCredit.useCredit(salePriceFromPOS, savedPosSale.getId(), 
-                                            "eSIM POS Sale #" + savedPosSale.getId() + ": " + pool.getName() + " to " + customerEmail);
-                                        
-                                        System.out.println("📊 AFTER useCredit() - eSIM Available: " + esimCredit.getAvailableCredit());
-                                        System.out.println("📊 AFTER useCredit() - eSIM Used: " + esimCredit.getUsedCredit());
-                                        
-                                        RetailerEsimCredit savedCredit = retailerEsimCreditRepository.save(esimCredit);
-                                        System.out.println("✅ eSIM Credit DEDUCTED using POS Sale price: " + salePriceFromPOS);
-                                        System.out.println("📊 SAVED - eSIM Available Credit: " + savedCredit.getAvailableCredit());
-                                        System.out.println("📊 SAVED - eSIM Used Credit: " + savedCredit.getUsedCredit());
-                                        System.out.println("=== eSIM CREDIT DEDUCTION COMPLETE ===\n");
-                                        
-                                        // Update the POS sale with credit deduction info
-                                        savedPosSale.setNotes("Credit deducted: " + salePriceFromPOS + " NOK");
-                                        esimPosSaleRepository.save(savedPosSale);
-                                        
-                                        // Store updated credit info for response
-                                        order.setNotes(order.getNotes() + " | eSIM Credit Updated from POS Sale");
-                                    } else {
-                                        System.err.println("⚠️ No eSIM Credit record found for retailer: " + retailer.getId());
-                                        System.err.println("⚠️ Admin needs to set eSIM credit limit for this retailer first");
-                                        
-                                        // Create new eSIM credit record to track usage even without limit set
-                                        RetailerEsimCredit newEsimCredit = new RetailerEsimCredit(retailer);
-                                        newEsimCredit.setCreditLimit(BigDecimal.ZERO);
-                                        newEsimCredit.setAvailableCredit(BigDecimal.ZERO);
-                                        newEsimCredit.setUsedCredit(salePriceFromPOS);
-                                        newEsimCredit.setCreatedBy(retailerEmail);
-                                        retailerEsimCreditRepository.save(newEsimCredit);
-                                        System.out.println("📝 Created new eSIM credit record with used credit: " + salePriceFromPOS);
-                                    }
-                                }
-                            } catch (Exception creditEx) {
-                                System.err.println("❌ CRITICAL: Error deducting credit: " + creditEx.getMessage());
-                                creditEx.printStackTrace();
-                            }
-                        } else {
-                            System.err.println("⚠️ No POS Sale saved - skipping credit deduction");
-                        }
-                        // ========== END CREDIT DEDUCTION ==========
-                        
-                        // Record profit/earnings for this sale
-                        try {
-                            BigDecimal saleAmount = savedPosSale != null ? savedPosSale.getSalePrice() : BigDecimal.valueOf(price);
-                            // For eSIMs, cost price is typically the wholesale price
-                            // Assuming pool.getPrice() is the cost price, or use a default margin
-                            BigDecimal costPrice = BigDecimal.ZERO;
-                            if (pool.getPrice() != null && !pool.getPrice().isEmpty()) {
-                                try {
-                                    costPrice = new BigDecimal(pool.getPrice());
-                                } catch (NumberFormatException e) {
-                                    System.err.println("⚠️ Invalid price format in pool: " + pool.getPrice());
-                                    costPrice = BigDecimal.ZERO;
-                                }
-                            }
-                            
-                            String bundleName = pool.getName();
-                            String bundleId = poolId;
-                            Double marginRate = 0.0; // Can be configured or passed from frontend
-                            
-                            // If cost price is same as sale price, assume 0 margin (retail = wholesale)
-                            if (costPrice.compareTo(BigDecimal.ZERO) > 0) {
-                                marginRate = ((saleAmount.subtract(costPrice)).divide(costPrice, 4, java.math.RoundingMode.HALF_UP).multiply(BigDecimal.valueOf(100))).doubleValue();
-                            }
-                            
-                            System.out.println("📊 Recording profit - Sale: " + saleAmount + ", Cost: " + costPrice + ", Margin: " + marginRate + "%");
-                            retailerService.recordProfit(retailer, saleAmount, costPrice, bundleName, bundleId, marginRate);
-                            System.out.println("✅ Profit/earnings recorded in retailer_profits collection");
-                        } catch (Exception profitEx) {
-                            System.err.println("⚠️ Error recording profit: " + profitEx.getMessage());
-                            profitEx.printStackTrace();
-                        }
-                    } catch (Exception e) {
-                        System.err.println("⚠️ Error recording eSIM sale: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                }
-            } else {
-                System.err.println("❌ No retailer email found - cannot record sale");
-            }
-            
             System.out.println("\n✅ eSIM QR code sent and sale recorded successfully\n");
             
             // Build response with updated eSIM credit information
@@ -1375,4 +1081,96 @@ public class StockController {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
         }
     }
+
+    // Send eSIM QR codes to many customers at once; returns a batch ID to poll for per-recipient status
+    @PostMapping("/esims/send-qr/batch")
+    @PreAuthorize("hasAnyRole('ADMIN', 'RETAILER')")
+    public ResponseEntity<Map<String, Object>> sendEsimQrCodeBatch(@RequestBody Map<String, Object> requestData,
+                                                                   Authentication authentication) {
+        Map<String, Object> response = new HashMap<>();
+        if (authentication == null || authentication.getName() == null) {
+            response.put("success", false);
+            response.put("error", "Authentication required");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(response);
+        }
+        try {
+            if (!(requestData.get("recipients") instanceof List<?> items)) {
+                throw new IllegalArgumentException("recipients must be a list");
+            }
+            List<EsimDeliveryBatch.Recipient> recipients = new ArrayList<>();
+            for (Object entry : items) {
+                if (!(entry instanceof Map<?, ?> item)) {
+                    throw new IllegalArgumentException("Each recipient must be an object");
+                }
+                EsimDeliveryBatch.Recipient recipient = new EsimDeliveryBatch.Recipient();
+                recipient.setPoolId(requiredField(item, "poolId"));
+                recipient.setItemId(optionalField(item, "itemId"));
+                recipient.setIccid(optionalField(item, "iccid"));
+                recipient.setCustomerEmail(requiredField(item, "customerEmail"));
+                recipient.setCustomerName(requiredField(item, "customerName"));
+                String paymentMode = optionalField(item, "paymentMode");
+                recipient.setPaymentMode(paymentMode != null ? paymentMode : "credit");
+                if (recipient.getItemId() == null && recipient.getIccid() == null) {
+                    throw new IllegalArgumentException("itemId or iccid is required for " + recipient.getCustomerEmail());
+                }
+                String price = optionalField(item, "price");
+                try {
+                    recipient.setPrice(price != null ? new BigDecimal(price) : BigDecimal.ZERO);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid price for " + recipient.getCustomerEmail() + ": " + price);
+                }
+                recipients.add(recipient);
+            }
+
+            EsimDeliveryBatch batch = esimBulkDeliveryService.submit(authentication.getName(), recipients);
+            Map<String, Object> data = new HashMap<>();
+            data.put("batchId", batch.getId());
+            data.put("total", recipients.size());
+            response.put("success", true);
+            response.put("data", data);
+            response.put("message", "Delivery of " + recipients.size() + " eSIM(s) started");
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+        } catch (IllegalArgumentException e) {
+            response.put("success", false);
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        } catch (Exception e) {
+            System.err.println("❌ Error starting eSIM delivery batch: " + e.getMessage());
+            response.put("success", false);
+            response.put("error", "Failed to start eSIM delivery: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+        }
+    }
+
+    @GetMapping("/esims/send-qr/batch/{batchId}")
+    @PreAuthorize("hasAnyRole('ADMIN', 'RETAILER')")
+    public ResponseEntity<Map<String, Object>> getEsimQrCodeBatch(@PathVariable String batchId,
+                                                                  Authentication authentication) {
+        Map<String, Object> response = new HashMap<>();
+        Map<String, Object> batch = authentication != null
+                ? esimBulkDeliveryService.getBatch(batchId, authentication.getName())
+                : null;
+        if (batch == null) {
+            response.put("success", false);
+            response.put("error", "Delivery batch not found");
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+        }
+        response.put("success", true);
+        response.put("data", batch);
+        return ResponseEntity.ok(response);
+    }
+
+    private static String requiredField(Map<?, ?> item, String name) {
+        String value = optionalField(item, name);
+        if (value == null) {
+            throw new IllegalArgumentException(name + " is required");
+        }
+        return value;
+    }
+
+    private static String optionalField(Map<?, ?> item, String name) {
+        Object value = item.get(name);
+        String text = value != null ? value.toString().trim().replaceAll("[;'\"]", "") : "";
+        return text.isEmpty() ? null : text;
+    }
 }
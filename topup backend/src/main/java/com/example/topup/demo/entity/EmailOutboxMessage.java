@@ -0,0 +1,164 @@
+package com.example.topup.demo.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An email waiting to be sent, or the record of one that was.
+ * Inserted together with the business write that triggers it and sent by EmailOutboxService,
+ * so SMTP latency and outages never reach the request that caused the email.
+ * Body and inline attachments are stored encrypted and removed once the message is SENT; a DEAD
+ * message keeps them so it can be requeued. The record itself is kept for a while for delivery tracking.
+ */
+@Document(collection = "email_outbox")
+public class EmailOutboxMessage {
+
+    @Id
+    private String id;
+
+    // What the email is about, e.g. ESIM_APPROVAL; for logs and the dead-letter list
+    private String type;
+
+    // Set by callers that may queue the same email again when a step is retried, e.g. the order number
+    private String reference;
+
+    private String fromEmail;
+    private String toEmail;
+    private String subject;
+    private String body;
+    private boolean html = true;
+
+    private List<InlineAttachment> inlineAttachments = new ArrayList<>();
+
+    // Body and attachment data are encrypted with PayloadCipher; false for messages queued before that
+    private boolean encrypted;
+
+    // Plain size of body and attachments, for metrics once the payload is gone
+    private long sizeBytes;
+
+    private Status status = Status.PENDING;
+    private int attempts;
+    private LocalDateTime nextAttemptAt;
+
+    // A SENDING message whose worker died is picked up again after this
+    private LocalDateTime lockedUntil;
+
+    private String lastError;
+    private LocalDateTime createdAt;
+    private LocalDateTime sentAt;
+    private LocalDateTime deadAt;
+
+    // Enums
+    public enum Status {
+        PENDING,
+        SENDING,
+        SENT,
+        DEAD
+    }
+
+    // Inline part referenced from the body as cid:<contentId>
+    public static class InlineAttachment {
+        private String contentId;
+        private String contentType;
+        private byte[] data;
+
+        public InlineAttachment() {}
+
+        public InlineAttachment(String contentId, String contentType, byte[] data) {
+            this.contentId = contentId;
+            this.contentType = contentType;
+            this.data = data;
+        }
+
+        public String getContentId() { return contentId; }
+        public void setContentId(String contentId) { this.contentId = contentId; }
+
+        public String getContentType() { return contentType; }
+        public void setContentType(String contentType) { this.contentType = contentType; }
+
+        public byte[] getData() { return data; }
+        public void setData(byte[] data) { this.data = data; }
+    }
+
+    // Constructors
+    public EmailOutboxMessage() {}
+
+    public EmailOutboxMessage(String type, String fromEmail, String toEmail, String subject, String body, boolean html) {
+        this.type = type;
+        this.fromEmail = fromEmail;
+        this.toEmail = toEmail;
+        this.subject = subject;
+        this.body = body;
+        this.html = html;
+        this.status = Status.PENDING;
+        this.createdAt = LocalDateTime.now();
+        this.nextAttemptAt = createdAt;
+    }
+
+    public EmailOutboxMessage addInline(String contentId, String contentType, byte[] data) {
+        inlineAttachments.add(new InlineAttachment(contentId, contentType, data));
+        return this;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getType() { return type; }
+    public void setType(String type) { this.type = type; }
+
+    public String getReference() { return reference; }
+    public void setReference(String reference) { this.reference = reference; }
+
+    public String getFromEmail() { return fromEmail; }
+    public void setFromEmail(String fromEmail) { this.fromEmail = fromEmail; }
+
+    public String getToEmail() { return toEmail; }
+    public void setToEmail(String toEmail) { this.toEmail = toEmail; }
+
+    public String getSubject() { return subject; }
+    public void setSubject(String subject) { this.subject = subject; }
+
+    public String getBody() { return body; }
+    public void setBody(String body) { this.body = body; }
+
+    public boolean isHtml() { return html; }
+    public void setHtml(boolean html) { this.html = html; }
+
+    public List<InlineAttachment> getInlineAttachments() { return inlineAttachments; }
+    public void setInlineAttachments(List<InlineAttachment> inlineAttachments) { this.inlineAttachments = inlineAttachments; }
+
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+
+    public int getAttempts() { return attempts; }
+    public void setAttempts(int attempts) { this.attempts = attempts; }
+
+    public LocalDateTime getNextAttemptAt() { return nextAttemptAt; }
+    public void setNextAttemptAt(LocalDateTime nextAttemptAt) { this.nextAttemptAt = nextAttemptAt; }
+
+    public LocalDateTime getLockedUntil() { return lockedUntil; }
+    public void setLockedUntil(LocalDateTime lockedUntil) { this.lockedUntil = lockedUntil; }
+
+    public String getLastError() { return lastError; }
+    public void setLastError(String lastError) { this.lastError = lastError; }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+
+    public LocalDateTime getSentAt() { return sentAt; }
+    public void setSentAt(LocalDateTime sentAt) { this.sentAt = sentAt; }
+
+    public boolean isEncrypted() { return encrypted; }
+    public void setEncrypted(boolean encrypted) { this.encrypted = encrypted; }
+
+    public long getSizeBytes() { return sizeBytes; }
+    public void setSizeBytes(long sizeBytes) { this.sizeBytes = sizeBytes; }
+
+    public LocalDateTime getDeadAt() { return deadAt; }
+    public void setDeadAt(LocalDateTime deadAt) { this.deadAt = deadAt; }
+}
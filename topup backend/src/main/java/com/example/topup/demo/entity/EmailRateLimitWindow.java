@@ -0,0 +1,43 @@
+package com.example.topup.demo.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * Number of rate-limited emails (verification, password reset) requested for one email address
+ * or client IP within one fixed time window. Shared by all instances; EmailRateLimiter weighs the
+ * current and previous window into a sliding-window count. Removed by a TTL index on expiresAt.
+ */
+@Document(collection = "email_rate_limits")
+public class EmailRateLimitWindow {
+
+    // <key>|<window start in epoch minutes>, e.g. email:jane@example.com|29012345
+    @Id
+    private String id;
+
+    private String key;
+    private LocalDateTime windowStart;
+    private int count;
+    private LocalDateTime expiresAt;
+
+    // Constructors
+    public EmailRateLimitWindow() {}
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getKey() { return key; }
+    public void setKey(String key) { this.key = key; }
+
+    public LocalDateTime getWindowStart() { return windowStart; }
+    public void setWindowStart(LocalDateTime windowStart) { this.windowStart = windowStart; }
+
+    public int getCount() { return count; }
+    public void setCount(int count) { this.count = count; }
+
+    public LocalDateTime getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(LocalDateTime expiresAt) { this.expiresAt = expiresAt; }
+}
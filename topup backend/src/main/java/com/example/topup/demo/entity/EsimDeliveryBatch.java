@@ -0,0 +1,133 @@
+package com.example.topup.demo.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bulk eSIM delivery submitted by a retailer: one QR code email per recipient.
+ * Processed in the background by EsimBulkDeliveryService; the retailer polls it for the
+ * status of each recipient. While PROCESSING, the batch is worked on by the instance in owner
+ * until leaseUntil; an expired lease lets another instance take the batch over.
+ */
+@Document(collection = "esim_delivery_batches")
+public class EsimDeliveryBatch {
+
+    @Id
+    private String id;
+
+    private String retailerEmail;
+    private Status status = Status.PROCESSING;
+    private List<Recipient> recipients = new ArrayList<>();
+    private LocalDateTime createdAt;
+    private LocalDateTime completedAt;
+
+    private String owner;
+    private LocalDateTime leaseUntil;
+
+    // Enums
+    public enum Status {
+        PROCESSING,
+        COMPLETED
+    }
+
+    public enum RecipientStatus {
+        PENDING,   // not processed yet
+        QUEUED,    // stock claimed, sale charged and recorded, and email in the outbox
+        SENT,      // email delivered to the mail server (reported on read, from the outbox)
+        FAILED
+    }
+
+    public static class Recipient {
+        private String poolId;
+        private String itemId;
+        private String iccid;
+        private String customerEmail;
+        private String customerName;
+
+        @Field(targetType = FieldType.DECIMAL128)
+        private BigDecimal price = BigDecimal.ZERO;
+
+        private String paymentMode;
+        private RecipientStatus status = RecipientStatus.PENDING;
+        private String error;
+        private String orderNumber;
+        private String emailId;
+
+        public Recipient() {}
+
+        public String getPoolId() { return poolId; }
+        public void setPoolId(String poolId) { this.poolId = poolId; }
+
+        public String getItemId() { return itemId; }
+        public void setItemId(String itemId) { this.itemId = itemId; }
+
+        public String getIccid() { return iccid; }
+        public void setIccid(String iccid) { this.iccid = iccid; }
+
+        public String getCustomerEmail() { return customerEmail; }
+        public void setCustomerEmail(String customerEmail) { this.customerEmail = customerEmail; }
+
+        public String getCustomerName() { return customerName; }
+        public void setCustomerName(String customerName) { this.customerName = customerName; }
+
+        public BigDecimal getPrice() { return price; }
+        public void setPrice(BigDecimal price) { this.price = price; }
+
+        public String getPaymentMode() { return paymentMode; }
+        public void setPaymentMode(String paymentMode) { this.paymentMode = paymentMode; }
+
+        public RecipientStatus getStatus() { return status; }
+        public void setStatus(RecipientStatus status) { this.status = status; }
+
+        public String getError() { return error; }
+        public void setError(String error) { this.error = error; }
+
+        public String getOrderNumber() { return orderNumber; }
+        public void setOrderNumber(String orderNumber) { this.orderNumber = orderNumber; }
+
+        public String getEmailId() { return emailId; }
+        public void setEmailId(String emailId) { this.emailId = emailId; }
+    }
+
+    // Constructors
+    public EsimDeliveryBatch() {}
+
+    public EsimDeliveryBatch(String retailerEmail, List<Recipient> recipients) {
+        this.retailerEmail = retailerEmail;
+        this.recipients = recipients;
+        this.status = Status.PROCESSING;
+        this.createdAt = LocalDateTime.now();
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getRetailerEmail() { return retailerEmail; }
+    public void setRetailerEmail(String retailerEmail) { this.retailerEmail = retailerEmail; }
+
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+
+    public List<Recipient> getRecipients() { return recipients; }
+    public void setRecipients(List<Recipient> recipients) { this.recipients = recipients; }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+
+    public LocalDateTime getCompletedAt() { return completedAt; }
+    public void setCompletedAt(LocalDateTime completedAt) { this.completedAt = completedAt; }
+
+    public String getOwner() { return owner; }
+    public void setOwner(String owner) { this.owner = owner; }
+
+    public LocalDateTime getLeaseUntil() { return leaseUntil; }
+    public void setLeaseUntil(LocalDateTime leaseUntil) { this.leaseUntil = leaseUntil; }
+}
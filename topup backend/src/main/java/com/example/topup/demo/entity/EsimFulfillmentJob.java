@@ -0,0 +1,120 @@
+package com.example.topup.demo.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk approval of eSIM order requests by an admin, fulfilled in the background by
+ * EsimFulfillmentService. Holds the progress of each request for the progress endpoint.
+ * While PROCESSING, the job is worked on by the instance in owner until leaseUntil; an expired
+ * lease lets another instance take the job over.
+ */
+@Document(collection = "esim_fulfillment_jobs")
+public class EsimFulfillmentJob {
+
+    @Id
+    private String id;
+
+    private String adminEmail;
+
+    // Retailer whose eSIM credit the approvals are charged to, if any
+    private String retailerId;
+
+    private Status status = Status.PROCESSING;
+    private List<Result> results = new ArrayList<>();
+    private LocalDateTime createdAt;
+    private LocalDateTime completedAt;
+
+    private String owner;
+    private LocalDateTime leaseUntil;
+
+    // Enums
+    public enum Status {
+        PROCESSING,
+        COMPLETED
+    }
+
+    public enum Step {
+        PENDING,        // waiting for stock
+        APPROVED,       // eSIM assigned and request approved
+        EMAIL_QUEUED,   // approval email in the outbox
+        EMAIL_SENT,     // reported on read, from the outbox
+        FAILED
+    }
+
+    public static class Result {
+        private String requestId;
+        private String orderNumber;
+        private Step step = Step.PENDING;
+        private String esimSerial;
+        private String emailId;
+        private String error;
+
+        public Result() {}
+
+        public Result(String requestId) {
+            this.requestId = requestId;
+        }
+
+        public String getRequestId() { return requestId; }
+        public void setRequestId(String requestId) { this.requestId = requestId; }
+
+        public String getOrderNumber() { return orderNumber; }
+        public void setOrderNumber(String orderNumber) { this.orderNumber = orderNumber; }
+
+        public Step getStep() { return step; }
+        public void setStep(Step step) { this.step = step; }
+
+        public String getEsimSerial() { return esimSerial; }
+        public void setEsimSerial(String esimSerial) { this.esimSerial = esimSerial; }
+
+        public String getEmailId() { return emailId; }
+        public void setEmailId(String emailId) { this.emailId = emailId; }
+
+        public String getError() { return error; }
+        public void setError(String error) { this.error = error; }
+    }
+
+    // Constructors
+    public EsimFulfillmentJob() {}
+
+    public EsimFulfillmentJob(String adminEmail, String retailerId, List<Result> results) {
+        this.adminEmail = adminEmail;
+        this.retailerId = retailerId;
+        this.results = results;
+        this.status = Status.PROCESSING;
+        this.createdAt = LocalDateTime.now();
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getAdminEmail() { return adminEmail; }
+    public void setAdminEmail(String adminEmail) { this.adminEmail = adminEmail; }
+
+    public String getRetailerId() { return retailerId; }
+    public void setRetailerId(String retailerId) { this.retailerId = retailerId; }
+
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+
+    public List<Result> getResults() { return results; }
+    public void setResults(List<Result> results) { this.results = results; }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+
+    public LocalDateTime getCompletedAt() { return completedAt; }
+    public void setCompletedAt(LocalDateTime completedAt) { this.completedAt = completedAt; }
+
+    public String getOwner() { return owner; }
+    public void setOwner(String owner) { this.owner = owner; }
+
+    public LocalDateTime getLeaseUntil() { return leaseUntil; }
+    public void setLeaseUntil(LocalDateTime leaseUntil) { this.leaseUntil = leaseUntil; }
+}
@@ -33,6 +33,9 @@ public class EsimOrderRequest {
     private String rejectionReason;
     private String approvedByAdmin;
     
+    // Bulk approval job that holds this request while it is FULFILLING, or approved it
+    private String fulfillmentJobId;
+    
     // Constructors
     public EsimOrderRequest() {
         this.requestDate = LocalDateTime.now();
@@ -199,4 +202,12 @@ public class EsimOrderRequest {
     public void setApprovedByAdmin(String approvedByAdmin) {
         this.approvedByAdmin = approvedByAdmin;
     }
+    
+    public String getFulfillmentJobId() {
+        return fulfillmentJobId;
+    }
+    
+    public void setFulfillmentJobId(String fulfillmentJobId) {
+        this.fulfillmentJobId = fulfillmentJobId;
+    }
 }
@@ -0,0 +1,113 @@
+package com.example.topup.demo.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * Stored outcome of a request sent with an Idempotency-Key header.
+ * The id combines scope, retailer and key, so a duplicate insert is rejected by the _id index.
+ * Records are removed by a TTL index on expiresAt.
+ * An IN_PROGRESS record is held by its owner until leaseUntil.
+ */
+@Document(collection = "idempotency_keys")
+public class IdempotencyRecord {
+
+    @Id
+    private String id;
+
+    private String scope;
+
+    private String retailerId;
+
+    private String idempotencyKey;
+
+    // SHA-256 of the request body, used to reject a key reused for a different request
+    private String requestHash;
+
+    private Status status = Status.IN_PROGRESS;
+
+    // Attempt currently running the request; only it may complete or release the key
+    private String owner;
+
+    // An IN_PROGRESS key whose lease has run out belongs to a crashed attempt and can be taken over
+    private LocalDateTime leaseUntil;
+
+    private Integer httpStatus;
+
+    // Response body serialized as JSON so it can be replayed byte for byte, encrypted with PayloadCipher
+    private String responseBody;
+
+    @CreatedDate
+    private LocalDateTime createdDate;
+
+    private LocalDateTime completedDate;
+
+    private LocalDateTime expiresAt;
+
+    // Enums
+    public enum Status {
+        IN_PROGRESS,
+        COMPLETED
+    }
+
+    // Constructors
+    public IdempotencyRecord() {}
+
+    public IdempotencyRecord(String scope, String retailerId, String idempotencyKey, String requestHash, LocalDateTime expiresAt) {
+        this.id = buildId(scope, retailerId, idempotencyKey);
+        this.scope = scope;
+        this.retailerId = retailerId;
+        this.idempotencyKey = idempotencyKey;
+        this.requestHash = requestHash;
+        this.status = Status.IN_PROGRESS;
+        this.createdDate = LocalDateTime.now();
+        this.expiresAt = expiresAt;
+    }
+
+    public static String buildId(String scope, String retailerId, String idempotencyKey) {
+        return scope + ":" + retailerId + ":" + idempotencyKey;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getScope() { return scope; }
+    public void setScope(String scope) { this.scope = scope; }
+
+    public String getRetailerId() { return retailerId; }
+    public void setRetailerId(String retailerId) { this.retailerId = retailerId; }
+
+    public String getIdempotencyKey() { return idempotencyKey; }
+    public void setIdempotencyKey(String idempotencyKey) { this.idempotencyKey = idempotencyKey; }
+
+    public String getRequestHash() { return requestHash; }
+    public void setRequestHash(String requestHash) { this.requestHash = requestHash; }
+
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+
+    public String getOwner() { return owner; }
+    public void setOwner(String owner) { this.owner = owner; }
+
+    public LocalDateTime getLeaseUntil() { return leaseUntil; }
+    public void setLeaseUntil(LocalDateTime leaseUntil) { this.leaseUntil = leaseUntil; }
+
+    public Integer getHttpStatus() { return httpStatus; }
+    public void setHttpStatus(Integer httpStatus) { this.httpStatus = httpStatus; }
+
+    public String getResponseBody() { return responseBody; }
+    public void setResponseBody(String responseBody) { this.responseBody = responseBody; }
+
+    public LocalDateTime getCreatedDate() { return createdDate; }
+    public void setCreatedDate(LocalDateTime createdDate) { this.createdDate = createdDate; }
+
+    public LocalDateTime getCompletedDate() { return completedDate; }
+    public void setCompletedDate(LocalDateTime completedDate) { this.completedDate = completedDate; }
+
+    public LocalDateTime getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(LocalDateTime expiresAt) { this.expiresAt = expiresAt; }
+}
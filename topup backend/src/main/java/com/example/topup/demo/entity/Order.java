@@ -1,5 +1,6 @@
 package com.example.topup.demo.entity;
 
+import com.example.topup.demo.util.OrderNumberGenerator;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.DBRef;
@@ -249,7 +250,7 @@ public class Order {
     
     // Helper methods
     private String generateOrderNumber() {
-        return "ORD-" + System.currentTimeMillis();
+        return OrderNumberGenerator.next("ORD");
     }
     
     public enum OrderStatus {
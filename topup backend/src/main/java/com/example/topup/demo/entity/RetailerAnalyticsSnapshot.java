@@ -0,0 +1,65 @@
+package com.example.topup.demo.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Lifetime POS sales figures of one retailer, as shown on the retailer dashboard.
+ * Recomputed from retailer_orders after each of the retailer's sales, so the dashboard
+ * reads one document instead of scanning every order.
+ */
+@Document(collection = "retailer_analytics_snapshots")
+public class RetailerAnalyticsSnapshot {
+
+    // Same as the retailer's user id
+    @Id
+    private String id;
+
+    // Completed POS sales (retailer orders without a legacy status)
+    private long posSales;
+
+    private long esimUnits;
+    private long epinUnits;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal esimEarnings = BigDecimal.ZERO;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal epinEarnings = BigDecimal.ZERO;
+
+    private LocalDateTime lastModifiedDate;
+
+    // Constructors
+    public RetailerAnalyticsSnapshot() {}
+
+    public RetailerAnalyticsSnapshot(String retailerId) {
+        this.id = retailerId;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public long getPosSales() { return posSales; }
+    public void setPosSales(long posSales) { this.posSales = posSales; }
+
+    public long getEsimUnits() { return esimUnits; }
+    public void setEsimUnits(long esimUnits) { this.esimUnits = esimUnits; }
+
+    public long getEpinUnits() { return epinUnits; }
+    public void setEpinUnits(long epinUnits) { this.epinUnits = epinUnits; }
+
+    public BigDecimal getEsimEarnings() { return esimEarnings; }
+    public void setEsimEarnings(BigDecimal esimEarnings) { this.esimEarnings = esimEarnings; }
+
+    public BigDecimal getEpinEarnings() { return epinEarnings; }
+    public void setEpinEarnings(BigDecimal epinEarnings) { this.epinEarnings = epinEarnings; }
+
+    public LocalDateTime getLastModifiedDate() { return lastModifiedDate; }
+    public void setLastModifiedDate(LocalDateTime lastModifiedDate) { this.lastModifiedDate = lastModifiedDate; }
+}
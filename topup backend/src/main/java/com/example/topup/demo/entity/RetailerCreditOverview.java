@@ -0,0 +1,195 @@
+package com.example.topup.demo.entity;
+
+import com.example.topup.demo.dto.RetailerCreditLimitDTO;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Read model behind the admin credit screen: one row per BUSINESS user with its credit,
+ * eSIM credit and unit limits already combined, so the list can be sorted, filtered and paged
+ * in Mongo. Rebuilt from User, RetailerLimit and RetailerEsimCredit whenever one of them changes.
+ */
+@Document(collection = "retailer_credit_overview")
+public class RetailerCreditOverview {
+
+    // Same as the retailer's user id
+    @Id
+    private String id;
+
+    // Id of the RetailerLimit document, null when no limit has been set
+    private String limitId;
+
+    private String retailerName;
+    private String retailerEmail;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal creditLimit;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal availableCredit;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal usedCredit;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal outstandingAmount;
+
+    private Integer paymentTermsDays;
+    private LocalDateTime lastPaymentDate;
+    private LocalDateTime nextDueDate;
+    private String status;
+    private Double creditUsagePercentage;
+    private String level;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal esimCreditLimit;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal esimAvailableCredit;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal esimUsedCredit;
+
+    private Double esimCreditUsagePercentage;
+
+    private Integer unitLimit;
+    private Integer usedUnits;
+    private Integer availableUnits;
+    private Double unitUsagePercentage;
+
+    private LocalDateTime lastModifiedDate;
+
+    // Constructors
+    public RetailerCreditOverview() {}
+
+    public static RetailerCreditOverview from(RetailerCreditLimitDTO dto) {
+        RetailerCreditOverview overview = new RetailerCreditOverview();
+        overview.setId(dto.getRetailerId());
+        overview.setLimitId(dto.getId());
+        overview.setRetailerName(dto.getRetailerName());
+        overview.setRetailerEmail(dto.getRetailerEmail());
+        overview.setCreditLimit(dto.getCreditLimit());
+        overview.setAvailableCredit(dto.getAvailableCredit());
+        overview.setUsedCredit(dto.getUsedCredit());
+        overview.setOutstandingAmount(dto.getOutstandingAmount());
+        overview.setPaymentTermsDays(dto.getPaymentTermsDays());
+        overview.setLastPaymentDate(dto.getLastPaymentDate());
+        overview.setNextDueDate(dto.getNextDueDate());
+        overview.setStatus(dto.getStatus());
+        overview.setCreditUsagePercentage(dto.getCreditUsagePercentage());
+        overview.setLevel(dto.getLevel());
+        overview.setEsimCreditLimit(dto.getEsimCreditLimit());
+        overview.setEsimAvailableCredit(dto.getEsimAvailableCredit());
+        overview.setEsimUsedCredit(dto.getEsimUsedCredit());
+        overview.setEsimCreditUsagePercentage(dto.getEsimCreditUsagePercentage());
+        overview.setUnitLimit(dto.getUnitLimit());
+        overview.setUsedUnits(dto.getUsedUnits());
+        overview.setAvailableUnits(dto.getAvailableUnits());
+        overview.setUnitUsagePercentage(dto.getUnitUsagePercentage());
+        overview.setLastModifiedDate(LocalDateTime.now());
+        return overview;
+    }
+
+    public RetailerCreditLimitDTO toDTO() {
+        RetailerCreditLimitDTO dto = new RetailerCreditLimitDTO();
+        dto.setId(limitId);
+        dto.setRetailerId(id);
+        dto.setRetailerName(retailerName);
+        dto.setRetailerEmail(retailerEmail);
+        dto.setCreditLimit(creditLimit);
+        dto.setAvailableCredit(availableCredit);
+        dto.setUsedCredit(usedCredit);
+        dto.setOutstandingAmount(outstandingAmount);
+        dto.setPaymentTermsDays(paymentTermsDays);
+        dto.setLastPaymentDate(lastPaymentDate);
+        dto.setNextDueDate(nextDueDate);
+        dto.setStatus(status);
+        dto.setCreditUsagePercentage(creditUsagePercentage);
+        dto.setLevel(level);
+        dto.setEsimCreditLimit(esimCreditLimit);
+        dto.setEsimAvailableCredit(esimAvailableCredit);
+        dto.setEsimUsedCredit(esimUsedCredit);
+        dto.setEsimCreditUsagePercentage(esimCreditUsagePercentage);
+        dto.setUnitLimit(unitLimit);
+        dto.setUsedUnits(usedUnits);
+        dto.setAvailableUnits(availableUnits);
+        dto.setUnitUsagePercentage(unitUsagePercentage);
+        dto.setUpdatedAt(lastModifiedDate);
+        return dto;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getLimitId() { return limitId; }
+    public void setLimitId(String limitId) { this.limitId = limitId; }
+
+    public String getRetailerName() { return retailerName; }
+    public void setRetailerName(String retailerName) { this.retailerName = retailerName; }
+
+    public String getRetailerEmail() { return retailerEmail; }
+    public void setRetailerEmail(String retailerEmail) { this.retailerEmail = retailerEmail; }
+
+    public BigDecimal getCreditLimit() { return creditLimit; }
+    public void setCreditLimit(BigDecimal creditLimit) { this.creditLimit = creditLimit; }
+
+    public BigDecimal getAvailableCredit() { return availableCredit; }
+    public void setAvailableCredit(BigDecimal availableCredit) { this.availableCredit = availableCredit; }
+
+    public BigDecimal getUsedCredit() { return usedCredit; }
+    public void setUsedCredit(BigDecimal usedCredit) { this.usedCredit = usedCredit; }
+
+    public BigDecimal getOutstandingAmount() { return outstandingAmount; }
+    public void setOutstandingAmount(BigDecimal outstandingAmount) { this.outstandingAmount = outstandingAmount; }
+
+    public Integer getPaymentTermsDays() { return paymentTermsDays; }
+    public void setPaymentTermsDays(Integer paymentTermsDays) { this.paymentTermsDays = paymentTermsDays; }
+
+    public LocalDateTime getLastPaymentDate() { return lastPaymentDate; }
+    public void setLastPaymentDate(LocalDateTime lastPaymentDate) { this.lastPaymentDate = lastPaymentDate; }
+
+    public LocalDateTime getNextDueDate() { return nextDueDate; }
+    public void setNextDueDate(LocalDateTime nextDueDate) { this.nextDueDate = nextDueDate; }
+
+    public String getStatus() { return status; }
+    public void setStatus(String status) { this.status = status; }
+
+    public Double getCreditUsagePercentage() { return creditUsagePercentage; }
+    public void setCreditUsagePercentage(Double creditUsagePercentage) { this.creditUsagePercentage = creditUsagePercentage; }
+
+    public String getLevel() { return level; }
+    public void setLevel(String level) { this.level = level; }
+
+    public BigDecimal getEsimCreditLimit() { return esimCreditLimit; }
+    public void setEsimCreditLimit(BigDecimal esimCreditLimit) { this.esimCreditLimit = esimCreditLimit; }
+
+    public BigDecimal getEsimAvailableCredit() { return esimAvailableCredit; }
+    public void setEsimAvailableCredit(BigDecimal esimAvailableCredit) { this.esimAvailableCredit = esimAvailableCredit; }
+
+    public BigDecimal getEsimUsedCredit() { return esimUsedCredit; }
+    public void setEsimUsedCredit(BigDecimal esimUsedCredit) { this.esimUsedCredit = esimUsedCredit; }
+
+    public Double getEsimCreditUsagePercentage() { return esimCreditUsagePercentage; }
+    public void setEsimCreditUsagePercentage(Double esimCreditUsagePercentage) { this.esimCreditUsagePercentage = esimCreditUsagePercentage; }
+
+    public Integer getUnitLimit() { return unitLimit; }
+    public void setUnitLimit(Integer unitLimit) { this.unitLimit = unitLimit; }
+
+    public Integer getUsedUnits() { return usedUnits; }
+    public void setUsedUnits(Integer usedUnits) { this.usedUnits = usedUnits; }
+
+    public Integer getAvailableUnits() { return availableUnits; }
+    public void setAvailableUnits(Integer availableUnits) { this.availableUnits = availableUnits; }
+
+    public Double getUnitUsagePercentage() { return unitUsagePercentage; }
+    public void setUnitUsagePercentage(Double unitUsagePercentage) { this.unitUsagePercentage = unitUsagePercentage; }
+
+    public LocalDateTime getLastModifiedDate() { return lastModifiedDate; }
+    public void setLastModifiedDate(LocalDateTime lastModifiedDate) { this.lastModifiedDate = lastModifiedDate; }
+}
@@ -1,5 +1,6 @@
 package com.example.topup.demo.entity;
 
+import com.example.topup.demo.util.OrderNumberGenerator;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.LastModifiedDate;
@@ -14,6 +15,7 @@ import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 
 @Document(collection = "retailer_orders")
 public class RetailerOrder {
@@ -70,6 +72,9 @@ public class RetailerOrder {
     private String createdBy;
     private String processedBy;
     
+    // Inventory data carried over from the legacy Order model (allocatedItems, legacyStatus, ...)
+    private Map<String, String> metadata;
+    
     // Constructors
     public RetailerOrder() {}
     
@@ -88,7 +93,7 @@ public class RetailerOrder {
     }
     
     public String generateOrderNumber() {
-        return "ORD-" + System.currentTimeMillis();
+        return OrderNumberGenerator.next("ORD");
     }
     
     public void addItem(OrderItem item) {
@@ -107,6 +112,9 @@ public class RetailerOrder {
     
     // Inner Classes
     public static class OrderItem {
+        public static final String TYPE_ESIM = "ESIM";
+        public static final String TYPE_EPIN = "EPIN";
+        
         @NotNull(message = "Product ID is required")
         private String productId;
         
@@ -116,6 +124,9 @@ public class RetailerOrder {
         private String productType;
         private String category;
         
+        // ESIM or EPIN, derived from category/productType and stored so reports can filter on an index
+        private String normalizedType;
+        
         @NotNull(message = "Quantity is required")
         @Min(value = 1, message = "Quantity must be at least 1")
         private Integer quantity;
@@ -151,10 +162,26 @@ public class RetailerOrder {
         public void setProductName(String productName) { this.productName = productName; }
         
         public String getProductType() { return productType; }
-        public void setProductType(String productType) { this.productType = productType; }
+        public void setProductType(String productType) {
+            this.productType = productType;
+            this.normalizedType = normalizeType(category, productType);
+        }
         
         public String getCategory() { return category; }
-        public void setCategory(String category) { this.category = category; }
+        public void setCategory(String category) {
+            this.category = category;
+            this.normalizedType = normalizeType(category, productType);
+        }
+        
+        public String getNormalizedType() { return normalizedType != null ? normalizedType : normalizeType(category, productType); }
+        public void setNormalizedType(String normalizedType) { this.normalizedType = normalizedType; }
+        
+        // Same rule the reports used in memory: anything mentioning "esim" is an eSIM, the rest are ePINs
+        public static String normalizeType(String category, String productType) {
+            String cat = category != null ? category.toLowerCase() : "";
+            String type = productType != null ? productType.toLowerCase() : "";
+            return cat.contains("esim") || type.contains("esim") ? TYPE_ESIM : TYPE_EPIN;
+        }
         
         public Integer getQuantity() { return quantity; }
         public void setQuantity(Integer quantity) { this.quantity = quantity; }
@@ -341,4 +368,7 @@ public class RetailerOrder {
     
     public String getProcessedBy() { return processedBy; }
     public void setProcessedBy(String processedBy) { this.processedBy = processedBy; }
+    
+    public Map<String, String> getMetadata() { return metadata; }
+    public void setMetadata(Map<String, String> metadata) { this.metadata = metadata; }
 }
\ No newline at end of file
@@ -3,6 +3,8 @@ package com.example.topup.demo.entity;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.DBRef;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
@@ -11,6 +13,10 @@ import java.time.LocalDateTime;
 /**
  * Entity to track retailer profit/earnings over time
  * Stores daily, monthly, and yearly profit data
+ *
+ * Each record has a fixed id per retailer and period (see dailyId/monthlyId/yearlyId) and is
+ * only changed with $inc from RetailerProfitRollupService, so concurrent sales never overwrite
+ * each other. Records written before that carry the retailer as a DBRef and are migrated on startup.
  */
 @Document(collection = "retailer_profits")
 public class RetailerProfit {
@@ -18,18 +24,24 @@ public class RetailerProfit {
     @Id
     private String id;
     
+    // Legacy records only; rollups written with $inc reference the retailer by id
     @DBRef
     private User retailer;
     
+    private String retailerId;
+    
     // Date tracking
     private LocalDate date;           // For daily tracking
     private Integer year;             // For yearly tracking
     private Integer month;            // For monthly tracking (1-12)
     private String period;            // "daily", "monthly", "yearly"
     
-    // Financial data
+    // Financial data (Decimal128 so they can be updated with $inc)
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal profit;        // Total profit for this period
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal revenue;       // Total revenue (sales amount)
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal costPrice;     // Total cost price
     private Integer salesCount;       // Number of sales
     
@@ -54,6 +66,19 @@ public class RetailerProfit {
         this.costPrice = BigDecimal.ZERO;
     }
     
+    // Record ids, one per retailer and period bucket
+    public static String dailyId(String retailerId, LocalDate date) {
+        return retailerId + ":daily:" + date;
+    }
+    
+    public static String monthlyId(String retailerId, int year, int month) {
+        return retailerId + ":monthly:" + year + "-" + String.format("%02d", month);
+    }
+    
+    public static String yearlyId(String retailerId, int year) {
+        return retailerId + ":yearly:" + year;
+    }
+    
     // Getters and Setters
     public String getId() {
         return id;
@@ -71,6 +96,14 @@ public class RetailerProfit {
         this.retailer = retailer;
     }
     
+    public String getRetailerId() {
+        return retailerId;
+    }
+    
+    public void setRetailerId(String retailerId) {
+        this.retailerId = retailerId;
+    }
+    
     public LocalDate getDate() {
         return date;
     }
@@ -0,0 +1,88 @@
+package com.example.topup.demo.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * One retailer sale as recorded for profit tracking. Append-only: the daily, monthly and
+ * yearly RetailerProfit rollups are derived from these and can be rebuilt from them.
+ */
+@Document(collection = "retailer_profit_events")
+public class RetailerProfitEvent {
+
+    @Id
+    private String id;
+
+    private String retailerId;
+
+    // Day the sale counts towards in the rollups
+    private LocalDate saleDate;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal saleAmount;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal costPrice;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal profit;
+
+    private String bundleName;
+    private String bundleId;
+    private Double marginRate;
+
+    private LocalDateTime createdAt;
+
+    // Constructors
+    public RetailerProfitEvent() {}
+
+    public RetailerProfitEvent(String retailerId, BigDecimal saleAmount, BigDecimal costPrice,
+                               String bundleName, String bundleId, Double marginRate) {
+        this.retailerId = retailerId;
+        this.saleAmount = saleAmount;
+        this.costPrice = costPrice;
+        this.profit = saleAmount.subtract(costPrice);
+        this.bundleName = bundleName;
+        this.bundleId = bundleId;
+        this.marginRate = marginRate;
+        this.createdAt = LocalDateTime.now();
+        this.saleDate = createdAt.toLocalDate();
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getRetailerId() { return retailerId; }
+    public void setRetailerId(String retailerId) { this.retailerId = retailerId; }
+
+    public LocalDate getSaleDate() { return saleDate; }
+    public void setSaleDate(LocalDate saleDate) { this.saleDate = saleDate; }
+
+    public BigDecimal getSaleAmount() { return saleAmount; }
+    public void setSaleAmount(BigDecimal saleAmount) { this.saleAmount = saleAmount; }
+
+    public BigDecimal getCostPrice() { return costPrice; }
+    public void setCostPrice(BigDecimal costPrice) { this.costPrice = costPrice; }
+
+    public BigDecimal getProfit() { return profit; }
+    public void setProfit(BigDecimal profit) { this.profit = profit; }
+
+    public String getBundleName() { return bundleName; }
+    public void setBundleName(String bundleName) { this.bundleName = bundleName; }
+
+    public String getBundleId() { return bundleId; }
+    public void setBundleId(String bundleId) { this.bundleId = bundleId; }
+
+    public Double getMarginRate() { return marginRate; }
+    public void setMarginRate(Double marginRate) { this.marginRate = marginRate; }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+}
@@ -0,0 +1,168 @@
+package com.example.topup.demo.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+import org.springframework.data.mongodb.core.index.Indexed;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Single balance document per retailer.
+ * Holds one sub-account per payment mode (ePIN credit, eSIM credit and kickback bonus)
+ * so that all balances can be read with one lookup and debited atomically.
+ * Limits are still administered on RetailerLimit, RetailerEsimCredit and RetailerKickbackLimit;
+ * saving one of those copies its limit and status here. Used, available and outstanding only
+ * change through RetailerBalanceService and are projected back onto those documents.
+ */
+@Document(collection = "retailer_wallets")
+public class RetailerWallet {
+
+    @Id
+    private String id;
+
+    @Indexed(unique = true)
+    private String retailerId;
+
+    // Sub-accounts keyed by PaymentMode name
+    private Map<String, SubAccount> accounts = new HashMap<>();
+
+    @CreatedDate
+    private LocalDateTime createdDate;
+
+    @LastModifiedDate
+    private LocalDateTime lastModifiedDate;
+
+    // Enums
+    public enum PaymentMode {
+        CREDIT,
+        ESIM_CREDIT,
+        KICKBACK;
+
+        /**
+         * Map the payment mode strings sent by the POS frontend ('credit', 'kickback', 'esim')
+         */
+        public static PaymentMode fromRequest(String paymentMode, boolean esimSale) {
+            if ("kickback".equalsIgnoreCase(paymentMode)) {
+                return KICKBACK;
+            }
+            return esimSale ? ESIM_CREDIT : CREDIT;
+        }
+    }
+
+    // Nested class for a single balance bucket.
+    // Amounts are stored as Decimal128 so they can be updated with $inc and compared server-side
+    public static class SubAccount {
+        @Field(targetType = FieldType.DECIMAL128)
+        private BigDecimal limit = BigDecimal.ZERO;
+
+        @Field(targetType = FieldType.DECIMAL128)
+        private BigDecimal used = BigDecimal.ZERO;
+
+        @Field(targetType = FieldType.DECIMAL128)
+        private BigDecimal available = BigDecimal.ZERO;
+
+        @Field(targetType = FieldType.DECIMAL128)
+        private BigDecimal outstanding = BigDecimal.ZERO;
+
+        private String status = "NOT_SET";
+
+        // Payment due date, only tracked for the CREDIT account
+        private LocalDateTime dueDate;
+
+        public SubAccount() {}
+
+        public SubAccount(BigDecimal limit, BigDecimal used, BigDecimal available, BigDecimal outstanding, String status) {
+            this.limit = limit != null ? limit : BigDecimal.ZERO;
+            this.used = used != null ? used : BigDecimal.ZERO;
+            this.available = available != null ? available : this.limit.subtract(this.used);
+            this.outstanding = outstanding != null ? outstanding : BigDecimal.ZERO;
+            this.status = status;
+        }
+
+        public boolean isActive() {
+            return "ACTIVE".equals(status);
+        }
+
+        public boolean canDebit(BigDecimal amount) {
+            return isActive() && available != null && available.compareTo(amount) >= 0;
+        }
+
+        public double getUsagePercentage() {
+            if (limit == null || limit.compareTo(BigDecimal.ZERO) == 0) {
+                return 0.0;
+            }
+            return used.multiply(BigDecimal.valueOf(100))
+                    .divide(limit, 2, java.math.RoundingMode.HALF_UP)
+                    .doubleValue();
+        }
+
+        // Getters and Setters
+        public BigDecimal getLimit() { return limit; }
+        public void setLimit(BigDecimal limit) { this.limit = limit; }
+        public BigDecimal getUsed() { return used; }
+        public void setUsed(BigDecimal used) { this.used = used; }
+        public BigDecimal getAvailable() { return available; }
+        public void setAvailable(BigDecimal available) { this.available = available; }
+        public BigDecimal getOutstanding() { return outstanding; }
+        public void setOutstanding(BigDecimal outstanding) { this.outstanding = outstanding; }
+        public String getStatus() { return status; }
+        public void setStatus(String status) { this.status = status; }
+        public LocalDateTime getDueDate() { return dueDate; }
+        public void setDueDate(LocalDateTime dueDate) { this.dueDate = dueDate; }
+    }
+
+    // Constructors
+    public RetailerWallet() {}
+
+    public RetailerWallet(String retailerId) {
+        this.retailerId = retailerId;
+        for (PaymentMode mode : PaymentMode.values()) {
+            this.accounts.put(mode.name(), new SubAccount());
+        }
+    }
+
+    // Business Logic Methods
+    public SubAccount getAccount(PaymentMode mode) {
+        SubAccount account = accounts != null ? accounts.get(mode.name()) : null;
+        return account != null ? account : new SubAccount();
+    }
+
+    public void putAccount(PaymentMode mode, SubAccount account) {
+        if (this.accounts == null) {
+            this.accounts = new HashMap<>();
+        }
+        this.accounts.put(mode.name(), account);
+    }
+
+    public Map<PaymentMode, SubAccount> getAccountsByMode() {
+        Map<PaymentMode, SubAccount> byMode = new EnumMap<>(PaymentMode.class);
+        for (PaymentMode mode : PaymentMode.values()) {
+            byMode.put(mode, getAccount(mode));
+        }
+        return byMode;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getRetailerId() { return retailerId; }
+    public void setRetailerId(String retailerId) { this.retailerId = retailerId; }
+
+    public Map<String, SubAccount> getAccounts() { return accounts; }
+    public void setAccounts(Map<String, SubAccount> accounts) { this.accounts = accounts; }
+
+    public LocalDateTime getCreatedDate() { return createdDate; }
+    public void setCreatedDate(LocalDateTime createdDate) { this.createdDate = createdDate; }
+
+    public LocalDateTime getLastModifiedDate() { return lastModifiedDate; }
+    public void setLastModifiedDate(LocalDateTime lastModifiedDate) { this.lastModifiedDate = lastModifiedDate; }
+}
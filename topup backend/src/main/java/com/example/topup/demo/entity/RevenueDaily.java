@@ -0,0 +1,70 @@
+package com.example.topup.demo.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Pre-aggregated revenue for one day, channel and product.
+ * Documents are only ever changed with $inc, so concurrent order completions never overwrite each other.
+ */
+@Document(collection = "revenue_daily")
+public class RevenueDaily {
+
+    @Id
+    private String id;
+
+    // ISO date (yyyy-MM-dd) of the order, so date ranges sort and compare as strings
+    private String date;
+
+    private Channel channel;
+
+    private String product;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal revenue = BigDecimal.ZERO;
+
+    private long orderCount;
+
+    private LocalDateTime lastModifiedDate;
+
+    // Enums
+    public enum Channel {
+        B2C,
+        B2B,
+        ESIM
+    }
+
+    // Constructors
+    public RevenueDaily() {}
+
+    public static String buildId(String date, Channel channel, String product) {
+        return date + ":" + channel.name() + ":" + product;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getDate() { return date; }
+    public void setDate(String date) { this.date = date; }
+
+    public Channel getChannel() { return channel; }
+    public void setChannel(Channel channel) { this.channel = channel; }
+
+    public String getProduct() { return product; }
+    public void setProduct(String product) { this.product = product; }
+
+    public BigDecimal getRevenue() { return revenue; }
+    public void setRevenue(BigDecimal revenue) { this.revenue = revenue; }
+
+    public long getOrderCount() { return orderCount; }
+    public void setOrderCount(long orderCount) { this.orderCount = orderCount; }
+
+    public LocalDateTime getLastModifiedDate() { return lastModifiedDate; }
+    public void setLastModifiedDate(LocalDateTime lastModifiedDate) { this.lastModifiedDate = lastModifiedDate; }
+}
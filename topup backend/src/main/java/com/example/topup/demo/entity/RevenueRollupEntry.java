@@ -0,0 +1,48 @@
+package com.example.topup.demo.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Records that an order has been counted in revenue_daily, and where.
+ * The id is the source collection plus the order id, so an order is counted at most once
+ * no matter how often it is saved, and a later cancellation knows which bucket to reverse.
+ */
+@Document(collection = "revenue_rollup_entries")
+public class RevenueRollupEntry {
+
+    @Id
+    private String id;
+
+    private String bucketId;
+
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal amount;
+
+    private LocalDateTime recordedDate;
+
+    // Constructors
+    public RevenueRollupEntry() {}
+
+    public static String buildId(String source, String sourceId) {
+        return source + ":" + sourceId;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getBucketId() { return bucketId; }
+    public void setBucketId(String bucketId) { this.bucketId = bucketId; }
+
+    public BigDecimal getAmount() { return amount; }
+    public void setAmount(BigDecimal amount) { this.amount = amount; }
+
+    public LocalDateTime getRecordedDate() { return recordedDate; }
+    public void setRecordedDate(LocalDateTime recordedDate) { this.recordedDate = recordedDate; }
+}
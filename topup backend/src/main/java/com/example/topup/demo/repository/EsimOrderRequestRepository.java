@@ -5,6 +5,7 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -12,5 +13,6 @@ public interface EsimOrderRequestRepository extends MongoRepository<EsimOrderReq
     List<EsimOrderRequest> findByStatus(String status);
     List<EsimOrderRequest> findByCustomerEmail(String email);
     EsimOrderRequest findByOrderNumber(String orderNumber);
+    List<EsimOrderRequest> findByOrderNumberIn(Collection<String> orderNumbers);
     List<EsimOrderRequest> findByRequestDateBetween(LocalDateTime start, LocalDateTime end);
 }
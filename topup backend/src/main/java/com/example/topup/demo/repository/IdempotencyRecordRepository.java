@@ -0,0 +1,13 @@
+package com.example.topup.demo.repository;
+
+import com.example.topup.demo.entity.IdempotencyRecord;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Repository for IdempotencyRecord entity.
+ * Records are looked up by their composite id (scope:retailerId:key).
+ */
+@Repository
+public interface IdempotencyRecordRepository extends MongoRepository<IdempotencyRecord, String> {
+}
@@ -15,6 +15,31 @@ import java.util.Optional;
 
 @Repository
 public interface RetailerOrderRepository extends MongoRepository<RetailerOrder, String> {
+
+    // Orders placed with the shop: inventory purchases, but not the inventory sale records and
+    // sample orders stored alongside them (UnifiedOrderService.retailerOrdersOnly)
+    String RETAILER_ORDERS_ONLY = "$or: [{'metadata.legacyStatus': {$exists: false}}, {'metadata.purchaseType': 'DIRECT_BUY'}]";
+
+    @Query("{'retailerId': ?0, " + RETAILER_ORDERS_ONLY + "}")
+    List<RetailerOrder> findRetailerOrders(String retailerId);
+
+    @Query("{'retailerId': ?0, " + RETAILER_ORDERS_ONLY + "}")
+    Page<RetailerOrder> findRetailerOrders(String retailerId, Pageable pageable);
+
+    @Query(value = "{'retailerId': ?0, " + RETAILER_ORDERS_ONLY + "}", sort = "{'createdDate': -1}")
+    List<RetailerOrder> findRetailerOrdersNewestFirst(String retailerId);
+
+    @Query("{'retailerId': ?0, 'createdDate': {$gt: ?1, $lt: ?2}, " + RETAILER_ORDERS_ONLY + "}")
+    List<RetailerOrder> findRetailerOrdersCreatedBetween(String retailerId, LocalDateTime startDate, LocalDateTime endDate);
+
+    @Query("{'retailerId': ?0, 'status': {$in: ?1}, " + RETAILER_ORDERS_ONLY + "}")
+    List<RetailerOrder> findRetailerOrdersByStatusIn(String retailerId, List<OrderStatus> statuses);
+
+    @Query(value = "{'retailerId': ?0, " + RETAILER_ORDERS_ONLY + "}", count = true)
+    long countRetailerOrders(String retailerId);
+
+    @Query(value = "{'retailerId': ?0, 'status': ?1, " + RETAILER_ORDERS_ONLY + "}", count = true)
+    long countRetailerOrdersByStatus(String retailerId, OrderStatus status);
     
     // Find by retailer
     List<RetailerOrder> findByRetailerId(String retailerId);
@@ -0,0 +1,31 @@
+package com.example.topup.demo.repository;
+
+import com.example.topup.demo.entity.RetailerWallet;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Repository for RetailerWallet entity.
+ * One wallet document per retailer holding all payment-mode balances.
+ */
+@Repository
+public interface RetailerWalletRepository extends MongoRepository<RetailerWallet, String> {
+
+    /**
+     * Find wallet by retailer ID
+     */
+    Optional<RetailerWallet> findByRetailerId(String retailerId);
+
+    /**
+     * Find wallets for several retailers in one query
+     */
+    List<RetailerWallet> findByRetailerIdIn(List<String> retailerIds);
+
+    /**
+     * Delete wallet by retailer ID
+     */
+    void deleteByRetailerId(String retailerId);
+}
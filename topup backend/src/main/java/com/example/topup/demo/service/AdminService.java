@@ -9,6 +9,7 @@ import com.example.topup.demo.entity.RetailerEsimCredit;
 import com.example.topup.demo.entity.EsimOrderRequest;
 import com.example.topup.demo.entity.StockPool;
 import com.example.topup.demo.entity.RetailerKickbackLimit;
+import com.example.topup.demo.entity.EmailOutboxMessage;
 import com.example.topup.demo.dto.RetailerCreditLimitDTO;
 import com.example.topup.demo.dto.UpdateCreditLimitRequest;
 import com.example.topup.demo.dto.UpdateUnitLimitRequest;
@@ -16,20 +17,30 @@ import com.example.topup.demo.dto.UpdateKickbackLimitRequest;
 import com.example.topup.demo.dto.RetailerKickbackLimitDTO;
 import com.example.topup.demo.repository.UserRepository;
 import com.example.topup.demo.repository.BusinessDetailsRepository;
-import com.example.topup.demo.repository.OrderRepository;
 import com.example.topup.demo.repository.RetailerOrderRepository;
 import com.example.topup.demo.repository.RetailerLimitRepository;
 import com.example.topup.demo.repository.RetailerEsimCreditRepository;
 import com.example.topup.demo.repository.EsimOrderRequestRepository;
 import com.example.topup.demo.repository.StockPoolRepository;
 import com.example.topup.demo.repository.RetailerKickbackLimitRepository;
+import org.bson.Document;
+import org.bson.types.Decimal128;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ConvertOperators;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -38,6 +49,8 @@ import java.util.stream.Collectors;
 @Service
 public class AdminService {
 
+    private static final int MAX_REVENUE_DAYS = 365;
+
     @Autowired
     private UserRepository userRepository;
 
@@ -45,10 +58,31 @@ public class AdminService {
     private BusinessDetailsRepository businessDetailsRepository;
 
     @Autowired
-    private OrderRepository orderRepository;
+    private RetailerOrderRepository retailerOrderRepository;
+    
+    @Autowired
+    private UnifiedOrderService unifiedOrderService;
 
     @Autowired
-    private RetailerOrderRepository retailerOrderRepository;
+    private RevenueAggregationService revenueAggregationService;
+
+    @Autowired
+    private RevenueRollupService revenueRollupService;
+
+    @Autowired
+    private DashboardAssembler dashboardAssembler;
+
+    @Autowired
+    private TimeSeriesService timeSeriesService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private RetailerDirectory retailerDirectory;
+
+    @Autowired
+    private RetailerCreditOverviewService retailerCreditOverviewService;
 
     @Autowired
     private RetailerLimitRepository retailerLimitRepository;
@@ -65,56 +99,64 @@ public class AdminService {
     @Autowired
     private RetailerKickbackLimitRepository retailerKickbackLimitRepository;
 
+    @Autowired
+    private RetailerBalanceService retailerBalanceService;
+
     @Autowired
     private EmailService emailService;
 
+    @Autowired
+    private SalesFactStore salesFactStore;
+
+    @Autowired
+    private EmailOutboxService emailOutboxService;
+
     /**
      * Get dashboard analytics data
      */
     public Map<String, Object> getDashboardAnalytics() {
         Map<String, Object> analytics = new HashMap<>();
+        LocalDateTime now = LocalDateTime.now();
+        
+        // The queries below are independent, so they run concurrently
+        DashboardAssembler.Fanout fanout = dashboardAssembler.fanout()
+            .add("totalUsers", userRepository::count, 0L)
+            .add("activeUsers", () -> userRepository.countByAccountStatus(User.AccountStatus.ACTIVE), 0L)
+            .add("pendingApprovals", () -> userRepository.countByAccountStatus(User.AccountStatus.PENDING_BUSINESS_APPROVAL), 0L)
+            .add("businessUsers", () -> userRepository.countByAccountType(User.AccountType.BUSINESS), 0L)
+            .add("personalUsers", () -> userRepository.countByAccountType(User.AccountType.PERSONAL), 0L)
+            .add("revenue", revenueAggregationService::getRevenueSummary, null)
+            .add("recentUsers", userRepository::findTop10ByOrderByCreatedDateDesc, Collections.emptyList())
+            // User registration trends (last 7 days), one bucketed aggregation
+            .add("registrations", () -> timeSeriesService.getTrend(
+                TimeSeriesService.Metric.REGISTRATIONS, TimeSeriesService.Interval.DAY, 7), Collections.emptyMap());
+        
+        DashboardAssembler.DashboardResult result = fanout.join();
         
         // Basic user statistics
-        long totalUsers = userRepository.count();
-        long activeUsers = userRepository.countByAccountStatus(User.AccountStatus.ACTIVE);
-        long pendingApprovals = userRepository.countByAccountStatus(User.AccountStatus.PENDING_BUSINESS_APPROVAL);
-        long businessUsers = userRepository.countByAccountType(User.AccountType.BUSINESS);
-        long personalUsers = userRepository.countByAccountType(User.AccountType.PERSONAL);
-        
-        analytics.put("totalUsers", totalUsers);
-        analytics.put("activeUsers", activeUsers);
-        analytics.put("pendingApprovals", pendingApprovals);
-        analytics.put("businessUsers", businessUsers);
-        analytics.put("personalUsers", personalUsers);
-        
-        // Real revenue data from orders
-        double totalRevenue = calculateTotalRevenue();
-        double monthlyRevenue = calculateMonthlyRevenue();
-        double dailyRevenue = calculateDailyRevenue();
-        double revenueGrowth = calculateRevenueGrowth();
-        
-        analytics.put("totalRevenue", totalRevenue);
-        analytics.put("monthlyRevenue", monthlyRevenue);
-        analytics.put("dailyRevenue", dailyRevenue);
-        analytics.put("revenueGrowth", revenueGrowth);
+        analytics.put("totalUsers", result.get("totalUsers"));
+        analytics.put("activeUsers", result.get("activeUsers"));
+        analytics.put("pendingApprovals", result.get("pendingApprovals"));
+        analytics.put("businessUsers", result.get("businessUsers"));
+        analytics.put("personalUsers", result.get("personalUsers"));
+        
+        // Real revenue data from orders, aggregated server-side
+        RevenueAggregationService.RevenueSummary revenue = result.get("revenue");
+        analytics.put("totalRevenue", revenue != null ? revenue.getTotalRevenue() : 0.0);
+        analytics.put("monthlyRevenue", revenue != null ? revenue.getMonthlyRevenue() : 0.0);
+        analytics.put("dailyRevenue", revenue != null ? revenue.getDailyRevenue() : 0.0);
+        analytics.put("revenueGrowth", revenue != null ? revenue.getRevenueGrowth() : 0.0);
         
         // Total orders calculation
-        long totalOrders = calculateTotalOrders();
-        analytics.put("totalOrders", totalOrders);
+        analytics.put("totalOrders", revenue != null ? revenue.getTotalOrders() : 0L);
         
-        // User registration trends (last 7 days)
+        Map<LocalDateTime, Long> registrations = result.get("registrations");
         List<Map<String, Object>> registrationTrends = new ArrayList<>();
-        LocalDateTime now = LocalDateTime.now();
         for (int i = 6; i >= 0; i--) {
-            LocalDateTime date = now.minusDays(i);
-            LocalDateTime startOfDay = date.withHour(0).withMinute(0).withSecond(0);
-            LocalDateTime endOfDay = date.withHour(23).withMinute(59).withSecond(59);
-            
-            long dailyRegistrations = userRepository.countByCreatedDateBetween(startOfDay, endOfDay);
-            
+            LocalDateTime day = now.minusDays(i).toLocalDate().atStartOfDay();
             Map<String, Object> dayData = new HashMap<>();
-            dayData.put("date", date.format(DateTimeFormatter.ofPattern("MMM dd")));
-            dayData.put("registrations", dailyRegistrations);
+            dayData.put("date", day.format(DateTimeFormatter.ofPattern("MMM dd")));
+            dayData.put("registrations", registrations.getOrDefault(day, 0L));
             registrationTrends.add(dayData);
         }
         analytics.put("registrationTrends", registrationTrends);
@@ -129,7 +171,7 @@ public class AdminService {
         analytics.put("topProducts", topProducts);
         
         // Recent activities
-        List<User> recentUsers = userRepository.findTop10ByOrderByCreatedDateDesc();
+        List<User> recentUsers = result.get("recentUsers");
         List<Map<String, Object>> recentActivities = recentUsers.stream()
             .map(user -> {
                 Map<String, Object> activity = new HashMap<>();
@@ -143,6 +185,12 @@ public class AdminService {
             .collect(Collectors.toList());
         analytics.put("recentActivities", recentActivities);
         
+        // Let the dashboard show which figures fell back to defaults
+        if (result.isPartial()) {
+            analytics.put("partial", true);
+            analytics.put("unavailable", result.getUnavailable());
+        }
+        
         return analytics;
     }
 
@@ -434,31 +482,67 @@ public class AdminService {
         Map<String, Object> analytics = new HashMap<>();
         
         // Real revenue data from actual transactions
-        double totalRevenue = calculateTotalRevenue();
-        double b2cRevenue = calculateB2CRevenue();
-        double b2bRevenue = calculateB2BRevenue();
-        double growthRate = calculateRevenueGrowth();
-        
-        analytics.put("totalRevenue", totalRevenue);
-        analytics.put("b2cRevenue", b2cRevenue);
-        analytics.put("b2bRevenue", b2bRevenue);
-        analytics.put("growthRate", growthRate);
+        RevenueAggregationService.RevenueSummary revenue = revenueAggregationService.getRevenueSummary();
+        
+        analytics.put("totalRevenue", revenue.getTotalRevenue());
+        analytics.put("b2cRevenue", revenue.getB2cRevenue());
+        analytics.put("b2bRevenue", revenue.getB2bRevenue());
+        analytics.put("growthRate", revenue.getRevenueGrowth());
+        
+        // Daily revenue from the revenue_daily rollup (last 30 days unless a range is given)
+        LocalDate to = endDate != null && !endDate.isBlank() ? LocalDate.parse(endDate) : LocalDate.now();
+        LocalDate from = startDate != null && !startDate.isBlank()
+            ? LocalDate.parse(startDate)
+            : to.minusDays(parsePeriodDays(period) - 1);
+        if (from.isBefore(to.minusDays(MAX_REVENUE_DAYS - 1))) {
+            from = to.minusDays(MAX_REVENUE_DAYS - 1);
+        }
         
-        // Daily revenue for the last 30 days
         List<Map<String, Object>> dailyRevenue = new ArrayList<>();
-        LocalDateTime now = LocalDateTime.now();
-        for (int i = 29; i >= 0; i--) {
-            LocalDateTime date = now.minusDays(i);
+        revenueRollupService.getDailyRevenue(from, to).forEach((date, revenue) -> {
             Map<String, Object> dayData = new HashMap<>();
             dayData.put("date", date.format(DateTimeFormatter.ofPattern("MMM dd")));
-            dayData.put("revenue", Math.random() * 15000 + 5000); // Mock data
+            dayData.put("revenue", revenue.doubleValue());
             dailyRevenue.add(dayData);
-        }
+        });
         analytics.put("dailyRevenue", dailyRevenue);
         
         return analytics;
     }
 
+    // Accepts "7d", "30d", "90d", "365d"; anything else falls back to 30 days
+    private int parsePeriodDays(String period) {
+        if (period != null && period.matches("\\d{1,3}d")) {
+            int days = Integer.parseInt(period.substring(0, period.length() - 1));
+            return Math.max(1, Math.min(days, MAX_REVENUE_DAYS));
+        }
+        return 30;
+    }
+
+    /**
+     * Bucketed counts for a trend chart, e.g. registrations per day
+     */
+    public List<Map<String, Object>> getTrend(String metric, String interval, int points) {
+        TimeSeriesService.Metric trendMetric = TimeSeriesService.Metric.valueOf(metric.toUpperCase().replace('-', '_'));
+        TimeSeriesService.Interval trendInterval = TimeSeriesService.Interval.valueOf(interval.toUpperCase());
+        
+        List<Map<String, Object>> trend = new ArrayList<>();
+        timeSeriesService.getTrend(trendMetric, trendInterval, points).forEach((bucket, count) -> {
+            Map<String, Object> point = new HashMap<>();
+            point.put("bucket", bucket);
+            point.put("count", count);
+            trend.add(point);
+        });
+        return trend;
+    }
+
+    /**
+     * Rebuild revenue_daily from existing orders; already counted orders are skipped
+     */
+    public Map<String, Long> backfillRevenueRollup() {
+        return revenueRollupService.backfill();
+    }
+
     /**
      * Convert User entity to Map for API response
      */
@@ -496,216 +580,12 @@ public class AdminService {
         return enquiry;
     }
     
-    // Revenue calculation methods
-    private double calculateTotalRevenue() {
-        try {
-            // Calculate revenue from customer orders (Order entity)
-            List<Order> allOrders = orderRepository.findAll();
-            double customerRevenue = allOrders.stream()
-                .filter(order -> order.getStatus() == Order.OrderStatus.COMPLETED)
-                .mapToDouble(order -> order.getAmount() != null ? order.getAmount().doubleValue() : 0.0)
-                .sum();
-            
-            // Calculate revenue from retailer orders (RetailerOrder entity)
-            List<RetailerOrder> allRetailerOrders = retailerOrderRepository.findAll();
-            double retailerRevenue = allRetailerOrders.stream()
-                .filter(order -> order.getStatus() == RetailerOrder.OrderStatus.DELIVERED)
-                .mapToDouble(order -> order.getTotalAmount() != null ? order.getTotalAmount().doubleValue() : 0.0)
-                .sum();
-            
-            // Calculate revenue from eSIM orders (EsimOrderRequest entity)
-            List<EsimOrderRequest> allEsimOrders = esimOrderRequestRepository.findAll();
-            double esimRevenue = allEsimOrders.stream()
-                .filter(order -> "APPROVED".equals(order.getStatus()) || "COMPLETED".equals(order.getStatus()))
-                .mapToDouble(order -> order.getAmount() != null ? order.getAmount() : 0.0)
-                .sum();
-            
-            return customerRevenue + retailerRevenue + esimRevenue;
-        } catch (Exception e) {
-            System.err.println("Error calculating total revenue: " + e.getMessage());
-            return 0.0;
-        }
-    }
-    
-    private double calculateMonthlyRevenue() {
-        try {
-            LocalDateTime startOfMonth = LocalDateTime.now().withDayOfMonth(1).withHour(0).withMinute(0).withSecond(0);
-            LocalDateTime endOfMonth = LocalDateTime.now();
-            
-            // Customer orders for this month
-            List<Order> monthlyOrders = orderRepository.findByCreatedDateBetween(startOfMonth, endOfMonth);
-            double customerRevenue = monthlyOrders.stream()
-                .filter(order -> order.getStatus() == Order.OrderStatus.COMPLETED)
-                .mapToDouble(order -> order.getAmount() != null ? order.getAmount().doubleValue() : 0.0)
-                .sum();
-            
-            // Retailer orders for this month
-            List<RetailerOrder> monthlyRetailerOrders = retailerOrderRepository.findByCreatedDateBetween(startOfMonth, endOfMonth);
-            double retailerRevenue = monthlyRetailerOrders.stream()
-                .filter(order -> order.getStatus() == RetailerOrder.OrderStatus.DELIVERED)
-                .mapToDouble(order -> order.getTotalAmount() != null ? order.getTotalAmount().doubleValue() : 0.0)
-                .sum();
-            
-            // eSIM orders for this month
-            List<EsimOrderRequest> monthlyEsimOrders = esimOrderRequestRepository.findByRequestDateBetween(startOfMonth, endOfMonth);
-            double esimRevenue = monthlyEsimOrders.stream()
-                .filter(order -> "APPROVED".equals(order.getStatus()) || "COMPLETED".equals(order.getStatus()))
-                .mapToDouble(order -> order.getAmount() != null ? order.getAmount() : 0.0)
-                .sum();
-            
-            return customerRevenue + retailerRevenue + esimRevenue;
-        } catch (Exception e) {
-            System.err.println("Error calculating monthly revenue: " + e.getMessage());
-            return 0.0;
-        }
-    }
-    
-    private double calculateDailyRevenue() {
-        try {
-            LocalDateTime startOfDay = LocalDateTime.now().withHour(0).withMinute(0).withSecond(0);
-            LocalDateTime endOfDay = LocalDateTime.now().withHour(23).withMinute(59).withSecond(59);
-            
-            // Customer orders for today
-            List<Order> todayOrders = orderRepository.findByCreatedDateBetween(startOfDay, endOfDay);
-            double customerRevenue = todayOrders.stream()
-                .filter(order -> order.getStatus() == Order.OrderStatus.COMPLETED)
-                .mapToDouble(order -> order.getAmount() != null ? order.getAmount().doubleValue() : 0.0)
-                .sum();
-            
-            // Retailer orders for today
-            List<RetailerOrder> todayRetailerOrders = retailerOrderRepository.findByCreatedDateBetween(startOfDay, endOfDay);
-            double retailerRevenue = todayRetailerOrders.stream()
-                .filter(order -> order.getStatus() == RetailerOrder.OrderStatus.DELIVERED)
-                .mapToDouble(order -> order.getTotalAmount() != null ? order.getTotalAmount().doubleValue() : 0.0)
-                .sum();
-            
-            // eSIM orders for today
-            List<EsimOrderRequest> todayEsimOrders = esimOrderRequestRepository.findByRequestDateBetween(startOfDay, endOfDay);
-            double esimRevenue = todayEsimOrders.stream()
-                .filter(order -> "APPROVED".equals(order.getStatus()) || "COMPLETED".equals(order.getStatus()))
-                .mapToDouble(order -> order.getAmount() != null ? order.getAmount() : 0.0)
-                .sum();
-            
-            return customerRevenue + retailerRevenue + esimRevenue;
-        } catch (Exception e) {
-            System.err.println("Error calculating daily revenue: " + e.getMessage());
-            return 0.0;
-        }
-    }
-    
-    private double calculateRevenueGrowth() {
-        try {
-            // Calculate current month revenue
-            double currentMonthRevenue = calculateMonthlyRevenue();
-            
-            // Calculate previous month revenue
-            LocalDateTime startOfLastMonth = LocalDateTime.now().minusMonths(1).withDayOfMonth(1).withHour(0).withMinute(0).withSecond(0);
-            LocalDateTime endOfLastMonth = LocalDateTime.now().withDayOfMonth(1).minusDays(1).withHour(23).withMinute(59).withSecond(59);
-            
-            // Customer orders for last month
-            List<Order> lastMonthOrders = orderRepository.findByCreatedDateBetween(startOfLastMonth, endOfLastMonth);
-            double lastMonthCustomerRevenue = lastMonthOrders.stream()
-                .filter(order -> order.getStatus() == Order.OrderStatus.COMPLETED)
-                .mapToDouble(order -> order.getAmount() != null ? order.getAmount().doubleValue() : 0.0)
-                .sum();
-            
-            // Retailer orders for last month
-            List<RetailerOrder> lastMonthRetailerOrders = retailerOrderRepository.findByCreatedDateBetween(startOfLastMonth, endOfLastMonth);
-            double lastMonthRetailerRevenue = lastMonthRetailerOrders.stream()
-                .filter(order -> order.getStatus() == RetailerOrder.OrderStatus.DELIVERED)
-                .mapToDouble(order -> order.getTotalAmount() != null ? order.getTotalAmount().doubleValue() : 0.0)
-                .sum();
-            
-            // eSIM orders for last month
-            List<EsimOrderRequest> lastMonthEsimOrders = esimOrderRequestRepository.findByRequestDateBetween(startOfLastMonth, endOfLastMonth);
-            double lastMonthEsimRevenue = lastMonthEsimOrders.stream()
-                .filter(order -> "APPROVED".equals(order.getStatus()) || "COMPLETED".equals(order.getStatus()))
-                .mapToDouble(order -> order.getAmount() != null ? order.getAmount() : 0.0)
-                .sum();
-            
-            double lastMonthRevenue = lastMonthCustomerRevenue + lastMonthRetailerRevenue + lastMonthEsimRevenue;
-            
-            // Calculate growth percentage
-            if (lastMonthRevenue == 0) {
-                return currentMonthRevenue > 0 ? 100.0 : 0.0; // 100% growth if we had no revenue last month
-            }
-            
-            return ((currentMonthRevenue - lastMonthRevenue) / lastMonthRevenue) * 100.0;
-        } catch (Exception e) {
-            System.err.println("Error calculating revenue growth: " + e.getMessage());
-            return 0.0;
-        }
-    }
-    
-    private long calculateTotalOrders() {
-        try {
-            // Count all completed customer orders
-            long customerOrders = orderRepository.findAll().stream()
-                .filter(order -> order.getStatus() == Order.OrderStatus.COMPLETED)
-                .count();
-            
-            // Count all delivered retailer orders
-            long retailerOrders = retailerOrderRepository.findAll().stream()
-                .filter(order -> order.getStatus() == RetailerOrder.OrderStatus.DELIVERED)
-                .count();
-            
-            // Count all approved/completed eSIM orders
-            long esimOrders = esimOrderRequestRepository.findAll().stream()
-                .filter(order -> "APPROVED".equals(order.getStatus()) || "COMPLETED".equals(order.getStatus()))
-                .count();
-            
-            return customerOrders + retailerOrders + esimOrders;
-        } catch (Exception e) {
-            System.err.println("Error calculating total orders: " + e.getMessage());
-            return 0;
-        }
-    }
-    
-    private double calculateB2CRevenue() {
-        try {
-            // B2C revenue comes from direct customer orders (Order entity)
-            List<Order> allOrders = orderRepository.findAll();
-            return allOrders.stream()
-                .filter(order -> order.getStatus() == Order.OrderStatus.COMPLETED)
-                .mapToDouble(order -> order.getAmount() != null ? order.getAmount().doubleValue() : 0.0)
-                .sum();
-        } catch (Exception e) {
-            System.err.println("Error calculating B2C revenue: " + e.getMessage());
-            return 0.0;
-        }
-    }
-    
-    private double calculateB2BRevenue() {
-        try {
-            // B2B revenue comes from retailer orders (RetailerOrder entity)
-            List<RetailerOrder> allRetailerOrders = retailerOrderRepository.findAll();
-            return allRetailerOrders.stream()
-                .filter(order -> order.getStatus() == RetailerOrder.OrderStatus.DELIVERED)
-                .mapToDouble(order -> order.getTotalAmount() != null ? order.getTotalAmount().doubleValue() : 0.0)
-                .sum();
-        } catch (Exception e) {
-            System.err.println("Error calculating B2B revenue: " + e.getMessage());
-            return 0.0;
-        }
-    }
-    
     /**
-     * Get all retailers with their credit limit information
+     * Get all retailers with their credit limit information, highest credit usage first
      */
     public List<RetailerCreditLimitDTO> getAllRetailersWithCreditLimits() {
         try {
-            // Get all BUSINESS users
-            List<User> retailers = userRepository.findByAccountType(User.AccountType.BUSINESS);
-            
-            return retailers.stream()
-                .map(this::convertToRetailerCreditLimitDTO)
-                .sorted((a, b) -> {
-                    // Sort by credit usage percentage descending
-                    double usageA = a.getCreditUsagePercentage() != null ? a.getCreditUsagePercentage() : 0.0;
-                    double usageB = b.getCreditUsagePercentage() != null ? b.getCreditUsagePercentage() : 0.0;
-                    return Double.compare(usageB, usageA);
-                })
-                .collect(Collectors.toList());
+            return retailerCreditOverviewService.findAll();
         } catch (Exception e) {
             System.err.println("Error fetching retailers with credit limits: " + e.getMessage());
             e.printStackTrace();
@@ -713,6 +593,30 @@ public class AdminService {
         }
     }
     
+    /**
+     * One page of the retailer credit overview, sorted and filtered in the database
+     */
+    public Map<String, Object> getRetailerCreditLimitsPage(int page, int size, String sortBy, String direction, String status,
+                                                           String level, Double minUsage, Double maxUsage, String search) {
+        Page<RetailerCreditLimitDTO> creditPage = retailerCreditOverviewService.findPage(
+            page, size, sortBy, direction, status, level, minUsage, maxUsage, search);
+        
+        Map<String, Object> result = new HashMap<>();
+        result.put("retailers", creditPage.getContent());
+        result.put("totalElements", creditPage.getTotalElements());
+        result.put("totalPages", creditPage.getTotalPages());
+        result.put("currentPage", creditPage.getNumber());
+        result.put("size", creditPage.getSize());
+        return result;
+    }
+    
+    /**
+     * Rebuild the retailer credit overview from the limit collections
+     */
+    public int rebuildRetailerCreditOverview() {
+        return retailerCreditOverviewService.rebuildAll();
+    }
+    
     /**
      * Get specific retailer's credit limit information
      */
@@ -760,14 +664,14 @@ public class AdminService {
             BigDecimal oldLimit = limit.getCreditLimit();
             BigDecimal newLimit = request.getCreditLimit();
             limit.setCreditLimit(newLimit);
-            
-            // Recalculate available credit
-            BigDecimal usedCredit = limit.getUsedCredit() != null ? limit.getUsedCredit() : BigDecimal.ZERO;
-            limit.setAvailableCredit(newLimit.subtract(usedCredit));
+            Update update = new Update()
+                .set("creditLimit", newLimit)
+                .set("lastModifiedDate", LocalDateTime.now());
             
             // Update payment terms if provided
             if (request.getPaymentTermsDays() != null) {
                 limit.setPaymentTermsDays(request.getPaymentTermsDays());
+                update.set("paymentTermsDays", request.getPaymentTermsDays());
             }
             
             // Update unit limit if provided
@@ -782,13 +686,23 @@ public class AdminService {
                 
                 // Update available units
                 limit.updateAvailableUnits();
+                update.set("unitLimit", limit.getUnitLimit())
+                      .set("usedUnits", limit.getUsedUnits())
+                      .set("availableUnits", limit.getAvailableUnits());
                 
                 System.out.println("✅ Updated unit limit for retailer " + retailer.getEmail() + 
                                  " from " + oldUnitLimit + " to " + request.getUnitLimit());
             }
             
-            // Save the updated limit
-            retailerLimitRepository.save(limit);
+            // Used and available credit belong to the wallet: only the configuration is written here,
+            // then the wallet recomputes available credit and projects it back
+            if (limit.getId() == null) {
+                limit.setAvailableCredit(newLimit);
+                retailerLimitRepository.save(limit);
+            } else {
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(limit.getId())), update, RetailerLimit.class);
+                retailerBalanceService.applyLimits(retailer.getId());
+            }
             
             System.out.println("✅ Updated credit limit for retailer " + retailer.getEmail() + 
                              " from " + oldLimit + " to " + newLimit);
@@ -842,8 +756,18 @@ public class AdminService {
             // Update available units
             limit.updateAvailableUnits();
             
-            // Save the updated limit
-            retailerLimitRepository.save(limit);
+            // Only the unit fields are written, so credit balances kept by the wallet are not overwritten
+            if (limit.getId() == null) {
+                retailerLimitRepository.save(limit);
+            } else {
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(limit.getId())), new Update()
+                    .set("unitLimit", limit.getUnitLimit())
+                    .set("usedUnits", limit.getUsedUnits())
+                    .set("availableUnits", limit.getAvailableUnits())
+                    .set("lastModifiedDate", LocalDateTime.now()), RetailerLimit.class);
+                // A plain update fires no save event, so the credit overview row is refreshed here
+                retailerCreditOverviewService.refreshAfterCommit(retailer.getId());
+            }
             
             System.out.println("✅ Updated unit limit for retailer " + retailer.getEmail() + 
                              " from " + oldUnitLimit + " to " + request.getUnitLimit());
@@ -889,8 +813,23 @@ public class AdminService {
             // Set audit fields
             esimCredit.setLastModifiedBy("admin");
             
-            // Save to the SEPARATE retailer_esim_credits collection
-            retailerEsimCreditRepository.save(esimCredit);
+            // Save to the SEPARATE retailer_esim_credits collection. Used and available credit belong to
+            // the wallet, so an existing record only gets its limit, notes and the adjustment entry
+            if (esimCredit.getId() == null) {
+                retailerEsimCreditRepository.save(esimCredit);
+            } else {
+                Update update = new Update()
+                    .set("creditLimit", newEsimLimit)
+                    .push("transactions", esimCredit.getTransactions().get(esimCredit.getTransactions().size() - 1))
+                    .set("lastModifiedBy", "admin")
+                    .set("lastModifiedDate", LocalDateTime.now());
+                if (request.getNotes() != null) {
+                    update.set("notes", request.getNotes());
+                }
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(esimCredit.getId())), update, RetailerEsimCredit.class);
+                retailerBalanceService.applyLimits(retailer.getId());
+            }
+            esimCredit = retailerEsimCreditRepository.findById(esimCredit.getId()).orElse(esimCredit);
             
             System.out.println("✅ Updated eSIM credit limit in retailer_esim_credits collection for retailer " + retailer.getEmail() + 
                              " from " + oldEsimLimit + " to " + newEsimLimit);
@@ -910,120 +849,12 @@ public class AdminService {
      * Convert User entity to RetailerCreditLimitDTO
      */
     private RetailerCreditLimitDTO convertToRetailerCreditLimitDTO(User retailer) {
-        RetailerCreditLimitDTO dto = new RetailerCreditLimitDTO();
-        
-        dto.setRetailerId(retailer.getId());
-        dto.setRetailerName(retailer.getFullName());
-        dto.setRetailerEmail(retailer.getEmail());
-        
-        // Get retailer limit if exists
-        Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer(retailer);
-        
-        // Get eSIM credit from SEPARATE collection
-        Optional<RetailerEsimCredit> esimCreditOpt = retailerEsimCreditRepository.findByRetailer(retailer);
-        
-        if (limitOpt.isPresent()) {
-            RetailerLimit limit = limitOpt.get();
-            dto.setId(limit.getId());
-            dto.setCreditLimit(limit.getCreditLimit());
-            dto.setAvailableCredit(limit.getAvailableCredit());
-            dto.setUsedCredit(limit.getUsedCredit());
-            dto.setOutstandingAmount(limit.getOutstandingAmount());
-            dto.setPaymentTermsDays(limit.getPaymentTermsDays());
-            dto.setLastPaymentDate(limit.getLastPaymentDate());
-            dto.setNextDueDate(limit.getNextDueDate());
-            dto.setStatus(limit.getStatus().toString());
-            
-            // Calculate credit usage percentage
-            if (limit.getCreditLimit() != null && limit.getCreditLimit().compareTo(BigDecimal.ZERO) > 0) {
-                BigDecimal usedCredit = limit.getUsedCredit() != null ? limit.getUsedCredit() : BigDecimal.ZERO;
-                double percentage = usedCredit.divide(limit.getCreditLimit(), 4, java.math.RoundingMode.HALF_UP)
-                                             .multiply(BigDecimal.valueOf(100))
-                                             .doubleValue();
-                dto.setCreditUsagePercentage(percentage);
-            } else {
-                dto.setCreditUsagePercentage(0.0);
-            }
-            
-            // Set unit limit fields
-            dto.setUnitLimit(limit.getUnitLimit());
-            dto.setUsedUnits(limit.getUsedUnits());
-            dto.setAvailableUnits(limit.getAvailableUnits());
-            dto.setUnitUsagePercentage(limit.getUnitUsagePercentage());
-            
-            // Determine level based on credit limit
-            dto.setLevel(determineCreditLevel(limit.getCreditLimit()));
-        } else {
-            // No limit set yet
-            dto.setCreditLimit(BigDecimal.ZERO);
-            dto.setAvailableCredit(BigDecimal.ZERO);
-            dto.setUsedCredit(BigDecimal.ZERO);
-            dto.setOutstandingAmount(BigDecimal.ZERO);
-            dto.setPaymentTermsDays(30);
-            dto.setStatus("NOT_SET");
-            dto.setCreditUsagePercentage(0.0);
-            dto.setLevel("NOT_SET");
-            
-            // Default unit limit values
-            dto.setUnitLimit(0);
-            dto.setUsedUnits(0);
-            dto.setAvailableUnits(0);
-            dto.setUnitUsagePercentage(0.0);
-        }
-        
-        // Set eSIM credit limit fields from SEPARATE collection
-        if (esimCreditOpt.isPresent()) {
-            RetailerEsimCredit esimCredit = esimCreditOpt.get();
-            dto.setEsimCreditLimit(esimCredit.getCreditLimit() != null ? esimCredit.getCreditLimit() : BigDecimal.ZERO);
-            dto.setEsimAvailableCredit(esimCredit.getAvailableCredit() != null ? esimCredit.getAvailableCredit() : BigDecimal.ZERO);
-            dto.setEsimUsedCredit(esimCredit.getUsedCredit() != null ? esimCredit.getUsedCredit() : BigDecimal.ZERO);
-            
-            // Calculate eSIM credit usage percentage
-            if (esimCredit.getCreditLimit() != null && esimCredit.getCreditLimit().compareTo(BigDecimal.ZERO) > 0) {
-                BigDecimal esimUsed = esimCredit.getUsedCredit() != null ? esimCredit.getUsedCredit() : BigDecimal.ZERO;
-                double esimPercentage = esimUsed.divide(esimCredit.getCreditLimit(), 4, java.math.RoundingMode.HALF_UP)
-                                             .multiply(BigDecimal.valueOf(100))
-                                             .doubleValue();
-                dto.setEsimCreditUsagePercentage(esimPercentage);
-            } else {
-                dto.setEsimCreditUsagePercentage(0.0);
-            }
-        } else {
-            // Default eSIM credit limit values
-            dto.setEsimCreditLimit(BigDecimal.ZERO);
-            dto.setEsimAvailableCredit(BigDecimal.ZERO);
-            dto.setEsimUsedCredit(BigDecimal.ZERO);
-            dto.setEsimCreditUsagePercentage(0.0);
-        }
-        
-        return dto;
+        // Get retailer limit if exists, and eSIM credit from SEPARATE collection
+        return retailerCreditOverviewService.toCreditLimitDTO(retailer,
+            retailerLimitRepository.findByRetailer(retailer),
+            retailerEsimCreditRepository.findByRetailer(retailer));
     }
     
-    /**
-     * Determine credit level based on credit limit
-     */
-    private String determineCreditLevel(BigDecimal creditLimit) {
-        if (creditLimit == null || creditLimit.compareTo(BigDecimal.ZERO) == 0) {
-            return "NOT_SET";
-        }
-        
-        double limit = creditLimit.doubleValue();
-        
-        if (limit >= 20000) {
-            return "DIAMOND";
-        } else if (limit >= 15000) {
-            return "PLATINUM";
-        } else if (limit >= 10000) {
-            return "GOLD";
-        } else if (limit >= 7500) {
-            return "SILVER";
-        } else if (limit >= 5000) {
-            return "BRONZE";
-        } else {
-            return "STARTER";
-        }
-    }
-
     /**
      * Get user details by user ID (includes purchases and usage)
      */
@@ -1092,7 +923,7 @@ public class AdminService {
         }
         
         // 2. Get regular customer orders (bundles/ePIN) by customer email
-        List<Order> customerOrders = orderRepository.findByCustomerEmailOrderByCreatedDateDesc(user.getEmail());
+        List<Order> customerOrders = unifiedOrderService.findByCustomerEmail(user.getEmail());
         for (Order order : customerOrders) {
             Map<String, Object> purchase = new HashMap<>();
             purchase.put("orderId", order.getId());
@@ -1113,7 +944,7 @@ public class AdminService {
         }
         
         // 2b. Get orders where user is the retailer (for direct purchases by retailers)
-        List<Order> retailerDirectOrders = orderRepository.findByRetailer_Id(user.getId());
+        List<Order> retailerDirectOrders = unifiedOrderService.findByRetailer(user);
         for (Order order : retailerDirectOrders) {
             // Skip if already added (avoid duplicates)
             boolean alreadyAdded = purchases.stream()
@@ -1142,6 +973,11 @@ public class AdminService {
         if (user.getAccountType() == User.AccountType.BUSINESS) {
             List<RetailerOrder> retailerOrders = retailerOrderRepository.findByRetailerId(user.getId());
             for (RetailerOrder order : retailerOrders) {
+                // Inventory orders were already listed through the unified order view above
+                boolean alreadyAdded = purchases.stream()
+                    .anyMatch(p -> p.get("orderId").equals(order.getId()));
+                if (alreadyAdded) continue;
+                
                 Map<String, Object> purchase = new HashMap<>();
                 purchase.put("orderId", order.getId());
                 purchase.put("orderNumber", order.getOrderNumber());
@@ -1664,7 +1500,7 @@ public class AdminService {
             salesDetails.put("retailerEmail", retailer.getEmail());
             
             // Get all orders for this retailer
-            List<RetailerOrder> orders = retailerOrderRepository.findByRetailerIdOrderByCreatedDateDesc(retailerId);
+            List<RetailerOrder> orders = retailerOrderRepository.findRetailerOrdersNewestFirst(retailerId);
             
             List<Map<String, Object>> ordersList = new ArrayList<>();
             
@@ -1820,126 +1656,48 @@ public class AdminService {
         Map<String, Object> analytics = new HashMap<>();
         
         try {
-            // Parse date range
-            LocalDateTime start = null;
-            LocalDateTime end = null;
-            
-            if (startDate != null && !startDate.isEmpty()) {
-                start = LocalDateTime.parse(startDate + "T00:00:00");
-            }
-            if (endDate != null && !endDate.isEmpty()) {
-                end = LocalDateTime.parse(endDate + "T23:59:59");
-            }
-            
-            // Fetch orders based on filters
-            List<RetailerOrder> orders;
-            if (retailerId != null && !retailerId.isEmpty()) {
-                if (start != null && end != null) {
-                    orders = retailerOrderRepository.findByRetailerIdAndCreatedDateBetween(retailerId, start, end);
-                } else {
-                    orders = retailerOrderRepository.findByRetailerId(retailerId);
-                }
-            } else {
-                if (start != null && end != null) {
-                    orders = retailerOrderRepository.findByCreatedDateBetween(start, end);
-                } else {
-                    orders = retailerOrderRepository.findAll();
-                }
-            }
-            
-            // Filter to only include completed/delivered orders
-            orders = orders.stream()
-                .filter(order -> order.getStatus() == RetailerOrder.OrderStatus.COMPLETED || 
-                               order.getStatus() == RetailerOrder.OrderStatus.DELIVERED)
-                .collect(Collectors.toList());
-            
-            // Calculate eSIM specific analytics
-            long totalEsimsSold = 0;
-            BigDecimal totalEsimEarnings = BigDecimal.ZERO;
-            Map<String, Integer> esimProductSales = new HashMap<>();
-            Map<String, BigDecimal> esimProductRevenue = new HashMap<>();
-            
-            for (RetailerOrder order : orders) {
-                for (RetailerOrder.OrderItem item : order.getItems()) {
-                    String cat = item.getCategory() != null ? item.getCategory() : "";
-                    String type = item.getProductType() != null ? item.getProductType() : "";
-                    
-                    // Check if it's an eSIM product
-                    if (cat.toLowerCase().contains("esim") || type.toLowerCase().contains("esim")) {
-                        int quantity = item.getQuantity();
-                        BigDecimal itemTotal = item.getUnitPrice().multiply(BigDecimal.valueOf(quantity));
-                        
-                        totalEsimsSold += quantity;
-                        totalEsimEarnings = totalEsimEarnings.add(itemTotal);
-                        
-                        // Track by product
-                        String productName = item.getProductName();
-                        esimProductSales.put(productName, esimProductSales.getOrDefault(productName, 0) + quantity);
-                        esimProductRevenue.put(productName, esimProductRevenue.getOrDefault(productName, BigDecimal.ZERO).add(itemTotal));
-                    }
-                }
-            }
+            // Completed/delivered eSIM sales, answered from the in-memory sales fact store
+            SalesFactStore.Filter filter = new SalesFactStore.Filter()
+                .retailerId(retailerId)
+                .type(RetailerOrder.OrderItem.TYPE_ESIM);
+            LocalDate from = startDate != null && !startDate.isEmpty() ? LocalDate.parse(startDate) : null;
+            LocalDate to = endDate != null && !endDate.isEmpty() ? LocalDate.parse(endDate) : null;
+            filter.from(from).to(to);
+            
+            SalesFactStore.Group total = salesFactStore.total(filter);
+            long totalEsimsSold = total.getUnits();
+            BigDecimal totalEsimEarnings = total.getRevenue();
+            long ordersWithEsim = total.getOrders();
             
             // Build top products list
-            List<Map<String, Object>> topProducts = esimProductSales.entrySet().stream()
-                .sorted((e1, e2) -> e2.getValue().compareTo(e1.getValue()))
+            List<Map<String, Object>> topProducts = salesFactStore.groupBy(SalesFactStore.Dimension.PRODUCT, filter).stream()
                 .limit(10)
-                .map(entry -> {
+                .map(group -> {
                     Map<String, Object> product = new HashMap<>();
-                    product.put("productName", entry.getKey());
-                    product.put("unitsSold", entry.getValue());
-                    product.put("revenue", esimProductRevenue.get(entry.getKey()));
+                    product.put("productName", group.getKey());
+                    product.put("unitsSold", group.getUnits());
+                    product.put("revenue", group.getRevenue());
                     return product;
                 })
                 .collect(Collectors.toList());
             
-            // Calculate daily sales trend (last 30 days)
+            // Daily sales trend (last 30 days, within the requested range)
+            LocalDate today = LocalDate.now();
+            LocalDate trendStart = today.minusDays(29);
+            Map<String, SalesFactStore.Group> byDay = new HashMap<>();
+            for (SalesFactStore.Group group : salesFactStore.groupBy(SalesFactStore.Dimension.DAY, filter)) {
+                byDay.put(group.getKey(), group);
+            }
             List<Map<String, Object>> dailyTrend = new ArrayList<>();
-            LocalDateTime now = LocalDateTime.now();
-            for (int i = 29; i >= 0; i--) {
-                LocalDateTime date = now.minusDays(i);
-                LocalDateTime dayStart = date.withHour(0).withMinute(0).withSecond(0);
-                LocalDateTime dayEnd = date.withHour(23).withMinute(59).withSecond(59);
-                
-                long dailyEsimSales = orders.stream()
-                    .filter(o -> o.getCreatedDate().isAfter(dayStart) && o.getCreatedDate().isBefore(dayEnd))
-                    .flatMap(o -> o.getItems().stream())
-                    .filter(item -> {
-                        String cat = item.getCategory() != null ? item.getCategory() : "";
-                        String type = item.getProductType() != null ? item.getProductType() : "";
-                        return cat.toLowerCase().contains("esim") || type.toLowerCase().contains("esim");
-                    })
-                    .mapToInt(RetailerOrder.OrderItem::getQuantity)
-                    .sum();
-                
-                BigDecimal dailyEsimRevenue = orders.stream()
-                    .filter(o -> o.getCreatedDate().isAfter(dayStart) && o.getCreatedDate().isBefore(dayEnd))
-                    .flatMap(o -> o.getItems().stream())
-                    .filter(item -> {
-                        String cat = item.getCategory() != null ? item.getCategory() : "";
-                        String type = item.getProductType() != null ? item.getProductType() : "";
-                        return cat.toLowerCase().contains("esim") || type.toLowerCase().contains("esim");
-                    })
-                    .map(item -> item.getUnitPrice().multiply(BigDecimal.valueOf(item.getQuantity())))
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-                
+            for (LocalDate date = trendStart; !date.isAfter(today); date = date.plusDays(1)) {
+                SalesFactStore.Group day = byDay.get(date.toString());
                 Map<String, Object> dayData = new HashMap<>();
                 dayData.put("date", date.format(DateTimeFormatter.ofPattern("yyyy-MM-dd")));
-                dayData.put("unitsSold", dailyEsimSales);
-                dayData.put("revenue", dailyEsimRevenue);
+                dayData.put("unitsSold", day != null ? day.getUnits() : 0L);
+                dayData.put("revenue", day != null ? day.getRevenue() : BigDecimal.ZERO);
                 dailyTrend.add(dayData);
             }
             
-            // Total orders containing eSIMs
-            long ordersWithEsim = orders.stream()
-                .filter(order -> order.getItems().stream()
-                    .anyMatch(item -> {
-                        String cat = item.getCategory() != null ? item.getCategory() : "";
-                        String type = item.getProductType() != null ? item.getProductType() : "";
-                        return cat.toLowerCase().contains("esim") || type.toLowerCase().contains("esim");
-                    }))
-                .count();
-            
             // Build response
             analytics.put("totalEsimsSold", totalEsimsSold);
             analytics.put("totalEsimEarnings", totalEsimEarnings);
@@ -1955,6 +1713,43 @@ public class AdminService {
         return analytics;
     }
 
+    /**
+     * Sales grouped by one dimension (retailer, operator, country, product, type or day),
+     * optionally filtered on the others. Throws IllegalArgumentException for an unknown dimension.
+     */
+    public List<Map<String, Object>> getSalesSlice(String groupBy, String retailerId, String type, String operator,
+                                                   String country, String product, String startDate, String endDate) {
+        SalesFactStore.Dimension dimension = SalesFactStore.Dimension.valueOf(groupBy.trim().toUpperCase());
+        SalesFactStore.Filter filter = new SalesFactStore.Filter()
+            .retailerId(retailerId)
+            .type(type)
+            .operator(operator)
+            .country(country)
+            .product(product)
+            .from(startDate != null && !startDate.isEmpty() ? LocalDate.parse(startDate) : null)
+            .to(endDate != null && !endDate.isEmpty() ? LocalDate.parse(endDate) : null);
+        
+        return salesFactStore.groupBy(dimension, filter).stream()
+            .map(SalesFactStore.Group::toMap)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Emails that exhausted their retries or could never be sent, newest first
+     */
+    public List<EmailOutboxMessage> getDeadLetterEmails(int limit) {
+        return emailOutboxService.findDead(Math.max(1, Math.min(limit, 500)));
+    }
+
+    /**
+     * Put a dead-lettered email back in the outbox with a fresh set of attempts
+     */
+    public void retryDeadLetterEmail(String id) {
+        if (!emailOutboxService.requeue(id)) {
+            throw new RuntimeException("No dead-lettered email with a stored payload found with id: " + id);
+        }
+    }
+
     /**
      * Get detailed eSIM sales history with pagination
      */
@@ -1973,107 +1768,89 @@ public class AdminService {
                 end = LocalDateTime.parse(endDate + "T23:59:59");
             }
             
-            // Fetch orders based on filters
-            List<RetailerOrder> allOrders;
+            // One server-side pipeline: indexed match on eSIM items, newest first, then the page and the
+            // totals for the whole filter in a single $facet
+            Criteria criteria = Criteria.where("items.normalizedType").is(RetailerOrder.OrderItem.TYPE_ESIM);
             if (retailerId != null && !retailerId.isEmpty()) {
-                if (start != null && end != null) {
-                    allOrders = retailerOrderRepository.findByRetailerIdAndCreatedDateBetween(retailerId, start, end);
-                } else {
-                    allOrders = retailerOrderRepository.findByRetailerId(retailerId);
-                }
-            } else {
-                if (start != null && end != null) {
-                    allOrders = retailerOrderRepository.findByCreatedDateBetween(start, end);
-                } else {
-                    allOrders = retailerOrderRepository.findAll();
-                }
+                criteria = criteria.and("retailerId").is(retailerId);
+            }
+            if (start != null && end != null) {
+                criteria = criteria.and("createdDate").gte(start).lte(end);
+            }
+            // Inventory sale records repeat eSIMs already counted by their purchase
+            criteria = criteria.andOperator(UnifiedOrderService.retailerOrdersOnly());
+            
+            TypedAggregation<RetailerOrder> aggregation = Aggregation.newAggregation(RetailerOrder.class,
+                Aggregation.match(criteria),
+                Aggregation.sort(Sort.by(Sort.Direction.DESC, "createdDate", "_id")),
+                Aggregation.unwind("items"),
+                Aggregation.match(Criteria.where("items.normalizedType").is(RetailerOrder.OrderItem.TYPE_ESIM)),
+                Aggregation.facet(
+                        Aggregation.skip((long) page * size),
+                        Aggregation.limit(size))
+                    .as("sales")
+                    .and(Aggregation.group()
+                        .count().as("totalRecords")
+                        .sum("items.quantity").as("totalUnits")
+                        .sum(ArithmeticOperators.Multiply.valueOf(ConvertOperators.valueOf("items.unitPrice").convertToDecimal())
+                            .multiplyBy("items.quantity")).as("totalRevenue"))
+                    .as("summary"));
+            
+            Document facets = mongoTemplate.aggregate(aggregation, Document.class).getUniqueMappedResult();
+            List<Document> rows = facets != null ? facets.getList("sales", Document.class) : List.of();
+            List<Document> summaries = facets != null ? facets.getList("summary", Document.class) : List.of();
+            Document summary = summaries.isEmpty() ? new Document() : summaries.get(0);
+            
+            // Each row is one order with a single unwound item; read it back as a RetailerOrder
+            List<RetailerOrder> pageOrders = new ArrayList<>();
+            for (Document row : rows) {
+                row.put("items", List.of(row.get("items")));
+                pageOrders.add(mongoTemplate.getConverter().read(RetailerOrder.class, row));
             }
             
-            // Filter to only include orders with eSIM items
-            List<Map<String, Object>> salesHistory = new ArrayList<>();
+            // Resolve the retailers on this page with one query
+            RetailerDirectory.Batch retailers = retailerDirectory.batch();
+            pageOrders.forEach(order -> retailers.request(order.getRetailerId()));
             
-            for (RetailerOrder order : allOrders) {
-                // Get retailer info
-                String retailerName = "Unknown";
-                String retailerEmail = "";
-                try {
-                    Optional<User> retailerOpt = userRepository.findById(order.getRetailerId());
-                    if (retailerOpt.isPresent()) {
-                        User retailer = retailerOpt.get();
-                        retailerName = retailer.getFirstName() + " " + retailer.getLastName();
-                        retailerEmail = retailer.getEmail();
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error fetching retailer info: " + e.getMessage());
-                }
+            List<Map<String, Object>> paginatedSales = new ArrayList<>();
+            for (RetailerOrder order : pageOrders) {
+                RetailerDirectory.RetailerInfo retailer = retailers.get(order.getRetailerId());
+                RetailerOrder.OrderItem item = order.getItems().get(0);
                 
-                // Process each item in the order
-                for (RetailerOrder.OrderItem item : order.getItems()) {
-                    String cat = item.getCategory() != null ? item.getCategory() : "";
-                    String type = item.getProductType() != null ? item.getProductType() : "";
-                    
-                    // Check if it's an eSIM product
-                    boolean isEsim = cat.toLowerCase().contains("esim") || type.toLowerCase().contains("esim");
-                    
-                    // Apply product type filter if specified
-                    if (productType != null && !productType.isEmpty() && !isEsim) {
-                        continue;
-                    }
-                    
-                    if (isEsim) {
-                        Map<String, Object> saleRecord = new HashMap<>();
-                        saleRecord.put("orderId", order.getId());
-                        saleRecord.put("orderNumber", order.getOrderNumber());
-                        saleRecord.put("orderDate", order.getCreatedDate());
-                        saleRecord.put("orderStatus", order.getStatus().name());
-                        saleRecord.put("paymentStatus", order.getPaymentStatus().name());
-                        
-                        // Retailer info
-                        saleRecord.put("retailerId", order.getRetailerId());
-                        saleRecord.put("retailerName", retailerName);
-                        saleRecord.put("retailerEmail", retailerEmail);
-                        
-                        // Product details
-                        saleRecord.put("productId", item.getProductId());
-                        saleRecord.put("productName", item.getProductName());
-                        saleRecord.put("productType", item.getProductType());
-                        saleRecord.put("category", item.getCategory());
-                        saleRecord.put("dataAmount", item.getDataAmount());
-                        saleRecord.put("validity", item.getValidity());
-                        
-                        // Quantities and pricing
-                        saleRecord.put("quantity", item.getQuantity());
-                        saleRecord.put("unitPrice", item.getUnitPrice());
-                        saleRecord.put("retailPrice", item.getRetailPrice());
-                        saleRecord.put("totalAmount", item.getUnitPrice().multiply(BigDecimal.valueOf(item.getQuantity())));
-                        
-                        // Serial numbers if available
-                        if (item.getSerialNumbers() != null && !item.getSerialNumbers().isEmpty()) {
-                            saleRecord.put("serialNumbers", item.getSerialNumbers());
-                        } else {
-                            saleRecord.put("serialNumbers", new ArrayList<>());
-                        }
-                        
-                        salesHistory.add(saleRecord);
-                    }
-                }
+                Map<String, Object> saleRecord = new HashMap<>();
+                saleRecord.put("orderId", order.getId());
+                saleRecord.put("orderNumber", order.getOrderNumber());
+                saleRecord.put("orderDate", order.getCreatedDate());
+                saleRecord.put("orderStatus", order.getStatus().name());
+                saleRecord.put("paymentStatus", order.getPaymentStatus().name());
+                
+                // Retailer info
+                saleRecord.put("retailerId", order.getRetailerId());
+                saleRecord.put("retailerName", retailer != null ? retailer.getFullName() : "Unknown");
+                saleRecord.put("retailerEmail", retailer != null ? retailer.getEmail() : "");
+                
+                // Product details
+                saleRecord.put("productId", item.getProductId());
+                saleRecord.put("productName", item.getProductName());
+                saleRecord.put("productType", item.getProductType());
+                saleRecord.put("category", item.getCategory());
+                saleRecord.put("dataAmount", item.getDataAmount());
+                saleRecord.put("validity", item.getValidity());
+                
+                // Quantities and pricing
+                saleRecord.put("quantity", item.getQuantity());
+                saleRecord.put("unitPrice", item.getUnitPrice());
+                saleRecord.put("retailPrice", item.getRetailPrice());
+                saleRecord.put("totalAmount", item.getUnitPrice().multiply(BigDecimal.valueOf(item.getQuantity())));
+                
+                // Serial numbers if available
+                saleRecord.put("serialNumbers", item.getSerialNumbers() != null ? item.getSerialNumbers() : new ArrayList<>());
+                
+                paginatedSales.add(saleRecord);
             }
             
-            // Sort by date descending
-            salesHistory.sort((a, b) -> {
-                LocalDateTime dateA = (LocalDateTime) a.get("orderDate");
-                LocalDateTime dateB = (LocalDateTime) b.get("orderDate");
-                return dateB.compareTo(dateA);
-            });
-            
-            // Apply pagination
-            int totalRecords = salesHistory.size();
+            long totalRecords = summary.get("totalRecords") instanceof Number n ? n.longValue() : 0L;
             int totalPages = (int) Math.ceil((double) totalRecords / size);
-            int fromIndex = page * size;
-            int toIndex = Math.min(fromIndex + size, totalRecords);
-            
-            List<Map<String, Object>> paginatedSales = fromIndex < totalRecords ? 
-                salesHistory.subList(fromIndex, toIndex) : new ArrayList<>();
             
             result.put("sales", paginatedSales);
             result.put("totalRecords", totalRecords);
@@ -2082,13 +1859,9 @@ public class AdminService {
             result.put("pageSize", size);
             
             // Summary for filtered results
-            long totalUnits = salesHistory.stream()
-                .mapToLong(s -> ((Number) s.get("quantity")).longValue())
-                .sum();
-            
-            BigDecimal totalRevenue = salesHistory.stream()
-                .map(s -> (BigDecimal) s.get("totalAmount"))
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
+            long totalUnits = summary.get("totalUnits") instanceof Number n ? n.longValue() : 0L;
+            BigDecimal totalRevenue = summary.get("totalRevenue") instanceof Decimal128 d ? d.bigDecimalValue()
+                : summary.get("totalRevenue") instanceof Number n ? new BigDecimal(n.toString()) : BigDecimal.ZERO;
             
             result.put("totalUnits", totalUnits);
             result.put("totalRevenue", totalRevenue);
@@ -2136,9 +1909,9 @@ public class AdminService {
 
             List<RetailerOrder> allOrders;
             if (start != null && end != null) {
-                allOrders = retailerOrderRepository.findByRetailerIdAndCreatedDateBetween(retailerId, start, end);
+                allOrders = retailerOrderRepository.findRetailerOrdersCreatedBetween(retailerId, start, end);
             } else {
-                allOrders = retailerOrderRepository.findByRetailerId(retailerId);
+                allOrders = retailerOrderRepository.findRetailerOrders(retailerId);
             }
 
             if (allOrders == null) {
@@ -2147,6 +1920,19 @@ public class AdminService {
 
             System.out.println("Total orders found for retailer: " + allOrders.size());
 
+            // Customer details for every order in one query instead of one lookup per eSIM item
+            Map<String, EsimOrderRequest> esimOrdersByNumber = new HashMap<>();
+            Set<String> orderNumbers = allOrders.stream().filter(Objects::nonNull)
+                .map(RetailerOrder::getOrderNumber).filter(Objects::nonNull).collect(Collectors.toSet());
+            if (!orderNumbers.isEmpty()) {
+                try {
+                    esimOrderRequestRepository.findByOrderNumberIn(orderNumbers)
+                        .forEach(request -> esimOrdersByNumber.putIfAbsent(request.getOrderNumber(), request));
+                } catch (Exception ignored) {
+                    // If lookup fails, continue without breaking the report
+                }
+            }
+
             List<Map<String, Object>> sales = new ArrayList<>();
             long totalEsimsSold = 0L;
             BigDecimal totalEarnings = BigDecimal.ZERO;
@@ -2204,12 +1990,7 @@ public class AdminService {
                         totalEarnings = totalEarnings.add(itemTotal);
 
                         // Try to fetch customer details and ICCID from EsimOrderRequest
-                        EsimOrderRequest esimOrder = null;
-                        try {
-                            esimOrder = esimOrderRequestRepository.findByOrderNumber(order.getOrderNumber());
-                        } catch (Exception ignored) {
-                            // If lookup fails, continue without breaking the report
-                        }
+                        EsimOrderRequest esimOrder = esimOrdersByNumber.get(order.getOrderNumber());
 
                         String customerName = esimOrder != null ? esimOrder.getCustomerFullName() : null;
                         String customerEmail = esimOrder != null ? esimOrder.getCustomerEmail() : null;
@@ -2309,6 +2090,10 @@ public class AdminService {
     public List<RetailerKickbackLimitDTO> getAllRetailersWithKickbackLimits() {
         List<User> businessUsers = userRepository.findByAccountType(User.AccountType.BUSINESS);
         List<RetailerKickbackLimitDTO> kickbackLimits = new ArrayList<>();
+        
+        // All kickback limits in one query instead of one per retailer
+        Map<String, RetailerKickbackLimit> limitsByRetailer = retailerDirectory.loadByRetailer(
+            RetailerKickbackLimit.class, businessUsers, RetailerKickbackLimit::setRetailer);
 
         for (User retailer : businessUsers) {
             RetailerKickbackLimitDTO dto = new RetailerKickbackLimitDTO();
@@ -2316,7 +2101,7 @@ public class AdminService {
             dto.setRetailerEmail(retailer.getEmail());
             dto.setRetailerName(retailer.getFullName());
 
-            Optional<RetailerKickbackLimit> kickbackLimitOpt = retailerKickbackLimitRepository.findByRetailer(retailer);
+            Optional<RetailerKickbackLimit> kickbackLimitOpt = Optional.ofNullable(limitsByRetailer.get(retailer.getId()));
             
             if (kickbackLimitOpt.isPresent()) {
                 RetailerKickbackLimit kickbackLimit = kickbackLimitOpt.get();
@@ -2390,17 +2175,21 @@ public class AdminService {
         
         RetailerKickbackLimit kickbackLimit;
         if (existingLimitOpt.isPresent()) {
+            // Used and available kickback belong to the wallet: write the limit, then let the wallet
+            // recompute available kickback and project it back
             kickbackLimit = existingLimitOpt.get();
-            kickbackLimit.updateLimit(request.getKickbackLimit());
-            kickbackLimit.setNotes(request.getNotes());
-            kickbackLimit.setLastModifiedDate(LocalDateTime.now());
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(kickbackLimit.getId())), new Update()
+                    .set("kickbackLimit", request.getKickbackLimit())
+                    .set("notes", request.getNotes())
+                    .set("lastModifiedDate", LocalDateTime.now()), RetailerKickbackLimit.class);
+            retailerBalanceService.applyLimits(retailer.getId());
+            kickbackLimit = retailerKickbackLimitRepository.findById(kickbackLimit.getId()).orElse(kickbackLimit);
         } else {
             kickbackLimit = new RetailerKickbackLimit(retailer, request.getKickbackLimit());
             kickbackLimit.setNotes(request.getNotes());
+            kickbackLimit = retailerKickbackLimitRepository.save(kickbackLimit);
         }
 
-        kickbackLimit = retailerKickbackLimitRepository.save(kickbackLimit);
-
         // Build response DTO
         RetailerKickbackLimitDTO dto = new RetailerKickbackLimitDTO();
         dto.setRetailerId(retailer.getId());
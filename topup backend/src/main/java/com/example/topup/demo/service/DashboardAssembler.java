@@ -0,0 +1,200 @@
+package com.example.topup.demo.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the independent queries behind a dashboard concurrently.
+ *
+ * Each query gets its own timeout and a fallback value. A query that fails or times out is
+ * replaced by its fallback and reported in DashboardResult.getUnavailable(), so the dashboard
+ * still renders with partial data and takes as long as its slowest query instead of the sum.
+ *
+ * A timed-out query is cancelled, which interrupts its thread, and while it runs its Mongo
+ * operations carry the remaining time as a server-side limit (see DashboardQueryTimeoutConfig),
+ * so an abandoned query does not keep its thread busy. Queries run on a fixed pool of daemon
+ * threads with a bounded queue; when the queue is full a query gets its fallback at once rather
+ * than waiting behind others. Queries submitted here must not fan out on the same assembler
+ * again, since a full pool would then wait on itself.
+ */
+@Component
+public class DashboardAssembler {
+
+    private static final Logger logger = LoggerFactory.getLogger(DashboardAssembler.class);
+
+    // System.nanoTime() by which the query running on this thread must finish
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+    @Value("${app.dashboard.threads:16}")
+    private int threads;
+
+    @Value("${app.dashboard.queue-size:64}")
+    private int queueSize;
+
+    @Value("${app.dashboard.query-timeout-ms:3000}")
+    private long queryTimeoutMs;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "dashboard-query-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Milliseconds left for the dashboard query running on the current thread, empty on other threads.
+     */
+    public static OptionalLong remainingMillis() {
+        Long deadline = DEADLINE.get();
+        return deadline != null
+                ? OptionalLong.of(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))
+                : OptionalLong.empty();
+    }
+
+    /**
+     * Wrap work that a dashboard query hands to another thread so it keeps the query's deadline.
+     */
+    public static <T> Supplier<T> propagateDeadline(Supplier<T> work) {
+        Long deadline = DEADLINE.get();
+        if (deadline == null) {
+            return work;
+        }
+        return () -> {
+            Long previous = DEADLINE.get();
+            DEADLINE.set(deadline);
+            try {
+                return work.get();
+            } finally {
+                if (previous != null) {
+                    DEADLINE.set(previous);
+                } else {
+                    DEADLINE.remove();
+                }
+            }
+        };
+    }
+
+    public Fanout fanout() {
+        return new Fanout();
+    }
+
+    /**
+     * One dashboard load: queries start as soon as they are added and are collected by join().
+     */
+    public final class Fanout {
+
+        private final Map<String, CompletableFuture<Object>> queries = new LinkedHashMap<>();
+        private final List<String> unavailable = Collections.synchronizedList(new ArrayList<>());
+
+        public Fanout add(String key, Supplier<?> query, Object fallback) {
+            long start = System.nanoTime();
+            CompletableFuture<Object> result = new CompletableFuture<>();
+            Future<?> task = submit(query, result, start + TimeUnit.MILLISECONDS.toNanos(queryTimeoutMs));
+            CompletableFuture<Object> future = result
+                    .orTimeout(queryTimeoutMs, TimeUnit.MILLISECONDS)
+                    .handle((value, error) -> {
+                        if (error != null) {
+                            if (task != null) {
+                                task.cancel(true);
+                            }
+                            logger.warn("Dashboard query {} unavailable after {} ms: {}", key,
+                                    (System.nanoTime() - start) / 1_000_000, error.toString());
+                            unavailable.add(key);
+                            return fallback;
+                        }
+                        return value;
+                    });
+            queries.put(key, future);
+            return this;
+        }
+
+        // Null when the pool is saturated; the result then already holds the rejection
+        private Future<?> submit(Supplier<?> query, CompletableFuture<Object> result, long deadline) {
+            try {
+                return executor.submit(() -> {
+                    if (System.nanoTime() >= deadline) {
+                        // Waited in the queue past its timeout; the caller has already moved on
+                        result.completeExceptionally(new TimeoutException("Expired in queue"));
+                        return;
+                    }
+                    DEADLINE.set(deadline);
+                    try {
+                        result.complete(query.get());
+                    } catch (Throwable e) {
+                        result.completeExceptionally(e);
+                    } finally {
+                        DEADLINE.remove();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(e);
+                return null;
+            }
+        }
+
+        public DashboardResult join() {
+            Map<String, Object> values = new HashMap<>();
+            queries.forEach((key, future) -> values.put(key, future.join()));
+            return new DashboardResult(values, new ArrayList<>(unavailable));
+        }
+    }
+
+    /**
+     * Query results by key, with fallbacks in place of the queries listed as unavailable.
+     */
+    public static final class DashboardResult {
+
+        private final Map<String, Object> values;
+        private final List<String> unavailable;
+
+        DashboardResult(Map<String, Object> values, List<String> unavailable) {
+            this.values = values;
+            this.unavailable = unavailable;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T get(String key) {
+            return (T) values.get(key);
+        }
+
+        public boolean isPartial() {
+            return !unavailable.isEmpty();
+        }
+
+        public List<String> getUnavailable() {
+            return unavailable;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.topup.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Email meters, published through the actuator metrics endpoint (/actuator/metrics/email.*).
+ *
+ * email.render            template render time, by template file
+ * email.queued            emails put in the outbox, by type
+ * email.send.batch        time to send one batch over one SMTP connection, including connect and STARTTLS
+ * email.delivery          time from queueing to accepted by the mail server, by type; includes retries
+ * email.size              size of sent emails in bytes (body and inline parts), by type
+ * email.failures          failed send attempts, by type and outcome (retry or dead)
+ *
+ * Timers publish percentile histograms so slow deliveries can be alerted on.
+ */
+@Component
+public class EmailMetrics {
+
+    @Autowired
+    private MeterRegistry registry;
+
+    public void recordRender(String templateName, long nanos) {
+        Timer.builder("email.render")
+                .description("Email template render time")
+                .tag("template", templateName)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(Duration.ofNanos(nanos));
+    }
+
+    public void recordQueued(String type) {
+        Counter.builder("email.queued")
+                .description("Emails queued in the outbox")
+                .tag("type", tagValue(type))
+                .register(registry)
+                .increment();
+    }
+
+    public void recordBatchSend(int messages, long nanos, boolean success) {
+        Timer.builder("email.send.batch")
+                .description("SMTP send time of one outbox batch over one connection")
+                .tag("outcome", success ? "success" : "failure")
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(Duration.ofNanos(nanos));
+        DistributionSummary.builder("email.send.batch.messages")
+                .description("Messages per outbox batch")
+                .register(registry)
+                .record(messages);
+    }
+
+    public void recordSent(String type, Duration sinceQueued, long bytes) {
+        Timer.builder("email.delivery")
+                .description("Time from queueing an email to the mail server accepting it")
+                .tag("type", tagValue(type))
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(sinceQueued.isNegative() ? Duration.ZERO : sinceQueued);
+        DistributionSummary.builder("email.size")
+                .description("Size of sent emails")
+                .baseUnit("bytes")
+                .tag("type", tagValue(type))
+                .register(registry)
+                .record(bytes);
+    }
+
+    public void recordFailure(String type, boolean dead) {
+        Counter.builder("email.failures")
+                .description("Failed email send attempts")
+                .tag("type", tagValue(type))
+                .tag("outcome", dead ? "dead" : "retry")
+                .register(registry)
+                .increment();
+    }
+
+    private static String tagValue(String type) {
+        return type != null ? type : "UNKNOWN";
+    }
+}
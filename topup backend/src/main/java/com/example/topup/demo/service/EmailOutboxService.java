@@ -0,0 +1,365 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EmailOutboxMessage;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.util.ByteArrayDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Durable email outbox.
+ *
+ * enqueue() inserts the message into email_outbox with the caller's MongoTemplate, so inside a
+ * transaction it commits or rolls back together with the business write. A small worker pool
+ * claims due messages with findAndModify, sends them and marks them SENT. Failed sends are
+ * retried with exponential backoff; messages that keep failing, or can never be sent, are
+ * moved to DEAD.
+ *
+ * Emails carry ePINs, activation codes, QR codes and account tokens, so the body and inline
+ * attachments are encrypted with PayloadCipher before they are stored, and removed as soon as the
+ * message is SENT. DEAD messages keep their encrypted payload so an admin can requeue them; the
+ * TTL indexes on sentAt and deadAt drop the records after 30 days.
+ *
+ * Workers send in batches: JavaMailSender.send(MimeMessage...) connects and authenticates once
+ * and sends the whole batch over that connection, so a bulk send pays the STARTTLS handshake
+ * once per batch instead of once per message. The worker count is therefore also the maximum
+ * number of concurrent SMTP connections.
+ *
+ * Queueing, batch send time, end-to-end delivery time, sizes and failures are recorded in
+ * EmailMetrics.
+ */
+@Service
+public class EmailOutboxService {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailOutboxService.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private JavaMailSender mailSender;
+
+    @Autowired
+    private EmailMetrics emailMetrics;
+
+    @Autowired
+    private PayloadCipher payloadCipher;
+
+    @Value("${app.email.outbox.workers:2}")
+    private int workers;
+
+    @Value("${app.email.outbox.poll-interval-seconds:15}")
+    private long pollIntervalSeconds;
+
+    @Value("${app.email.outbox.max-attempts:6}")
+    private int maxAttempts;
+
+    @Value("${app.email.outbox.backoff-seconds:30}")
+    private long backoffSeconds;
+
+    @Value("${app.email.outbox.max-backoff-minutes:60}")
+    private long maxBackoffMinutes;
+
+    @Value("${app.email.outbox.lease-minutes:5}")
+    private long leaseMinutes;
+
+    @Value("${app.email.outbox.batch-size:20}")
+    private int batchSize;
+
+    private ScheduledExecutorService executor;
+
+    // Drain passes queued or running; wake-ups beyond one per worker add nothing
+    private final AtomicInteger activeDrains = new AtomicInteger();
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newScheduledThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "email-outbox-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Polling picks up retries that came due and messages enqueued by other instances
+        for (int i = 0; i < workers; i++) {
+            executor.scheduleWithFixedDelay(this::drain, pollIntervalSeconds, pollIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Store the message for sending. Workers are woken once the surrounding transaction commits,
+     * or straight away outside a transaction.
+     */
+    public EmailOutboxMessage enqueue(EmailOutboxMessage message) {
+        seal(message);
+        EmailOutboxMessage saved = mongoTemplate.insert(message);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    emailMetrics.recordQueued(saved.getType());
+                    wakeUp();
+                }
+            });
+        } else {
+            emailMetrics.recordQueued(saved.getType());
+            wakeUp();
+        }
+        return saved;
+    }
+
+    /**
+     * Id of a message already queued with this type and reference, or null.
+     */
+    public String findQueued(String type, String reference) {
+        Query query = Query.query(Criteria.where("reference").is(reference).and("type").is(type));
+        query.fields().include("_id");
+        EmailOutboxMessage message = mongoTemplate.findOne(query, EmailOutboxMessage.class);
+        return message != null ? message.getId() : null;
+    }
+
+    public List<EmailOutboxMessage> findDead(int limit) {
+        Query query = Query.query(Criteria.where("status").is(EmailOutboxMessage.Status.DEAD))
+                .with(Sort.by(Sort.Direction.DESC, "createdAt"))
+                .limit(limit);
+        query.fields().exclude("body", "inlineAttachments");
+        return mongoTemplate.find(query, EmailOutboxMessage.class);
+    }
+
+    /**
+     * Give a dead message a fresh set of attempts. Returns false if it is not dead or its payload
+     * is gone, as for messages dead-lettered while payloads were still removed.
+     */
+    public boolean requeue(String id) {
+        Query query = Query.query(Criteria.where("_id").is(id).and("status").is(EmailOutboxMessage.Status.DEAD)
+                .and("body").exists(true));
+        Update update = new Update()
+                .set("status", EmailOutboxMessage.Status.PENDING)
+                .set("attempts", 0)
+                .set("nextAttemptAt", LocalDateTime.now())
+                // Otherwise the deadAt TTL would delete it before it is sent
+                .unset("deadAt");
+        boolean requeued = mongoTemplate.updateFirst(query, update, EmailOutboxMessage.class).getModifiedCount() > 0;
+        if (requeued) {
+            wakeUp();
+        }
+        return requeued;
+    }
+
+    private void wakeUp() {
+        if (activeDrains.incrementAndGet() > workers) {
+            activeDrains.decrementAndGet();
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    drain();
+                } finally {
+                    activeDrains.decrementAndGet();
+                }
+            });
+        } catch (Exception e) {
+            // Shutting down; the message stays PENDING for the next start
+            activeDrains.decrementAndGet();
+        }
+    }
+
+    private void drain() {
+        try {
+            List<EmailOutboxMessage> batch;
+            while (!(batch = claimBatch()).isEmpty()) {
+                deliver(batch);
+            }
+        } catch (Exception e) {
+            logger.error("Email outbox drain failed: {}", e.getMessage());
+        }
+    }
+
+    private List<EmailOutboxMessage> claimBatch() {
+        List<EmailOutboxMessage> batch = new ArrayList<>();
+        EmailOutboxMessage message;
+        while (batch.size() < batchSize && (message = claimNext()) != null) {
+            batch.add(message);
+        }
+        return batch;
+    }
+
+    // Atomically move the next due message to SENDING; also reclaims messages whose worker died
+    private EmailOutboxMessage claimNext() {
+        LocalDateTime now = LocalDateTime.now();
+        Query query = Query.query(new Criteria().orOperator(
+                Criteria.where("status").is(EmailOutboxMessage.Status.PENDING).and("nextAttemptAt").lte(now),
+                Criteria.where("status").is(EmailOutboxMessage.Status.SENDING).and("lockedUntil").lte(now)))
+                .with(Sort.by(Sort.Direction.ASC, "nextAttemptAt"));
+        Update update = new Update()
+                .set("status", EmailOutboxMessage.Status.SENDING)
+                .set("lockedUntil", now.plusMinutes(leaseMinutes))
+                .inc("attempts", 1);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), EmailOutboxMessage.class);
+    }
+
+    private void deliver(List<EmailOutboxMessage> batch) {
+        long start = System.nanoTime();
+        Map<MimeMessage, EmailOutboxMessage> prepared = new LinkedHashMap<>();
+        for (EmailOutboxMessage message : batch) {
+            try {
+                prepared.put(toMimeMessage(message), message);
+            } catch (Exception e) {
+                failed(message, e, true);
+            }
+        }
+        if (prepared.isEmpty()) {
+            return;
+        }
+
+        Map<Object, Exception> failures = Map.of();
+        long sendStart = System.nanoTime();
+        try {
+            // One connection for the whole batch
+            mailSender.send(prepared.keySet().toArray(new MimeMessage[0]));
+        } catch (MailSendException e) {
+            failures = e.getFailedMessages();
+            if (failures.isEmpty()) {
+                // Connecting or authenticating failed: nothing was sent
+                emailMetrics.recordBatchSend(prepared.size(), System.nanoTime() - sendStart, false);
+                prepared.values().forEach(message -> failed(message, e, false));
+                return;
+            }
+        } catch (Exception e) {
+            emailMetrics.recordBatchSend(prepared.size(), System.nanoTime() - sendStart, false);
+            prepared.values().forEach(message -> failed(message, e, false));
+            return;
+        }
+        emailMetrics.recordBatchSend(prepared.size(), System.nanoTime() - sendStart, failures.isEmpty());
+
+        List<String> sentIds = new ArrayList<>();
+        for (Map.Entry<MimeMessage, EmailOutboxMessage> entry : prepared.entrySet()) {
+            Exception failure = failures.get(entry.getKey());
+            if (failure != null) {
+                failed(entry.getValue(), failure, false);
+            } else {
+                sentIds.add(entry.getValue().getId());
+                recordSent(entry.getValue());
+            }
+        }
+        if (!sentIds.isEmpty()) {
+            mongoTemplate.updateMulti(Query.query(Criteria.where("_id").in(sentIds)), new Update()
+                    .set("status", EmailOutboxMessage.Status.SENT)
+                    .set("sentAt", LocalDateTime.now())
+                    .unset("lockedUntil")
+                    .unset("lastError")
+                    .unset("body")
+                    .unset("inlineAttachments"), EmailOutboxMessage.class);
+        }
+        logger.info("Email outbox sent {}/{} message(s) over one connection in {} ms",
+                sentIds.size(), batch.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void failed(EmailOutboxMessage message, Exception e, boolean permanent) {
+        Update update = new Update().unset("lockedUntil").set("lastError", e.getMessage());
+        boolean dead = permanent || message.getAttempts() >= maxAttempts;
+        emailMetrics.recordFailure(message.getType(), dead);
+        if (dead) {
+            // The encrypted payload stays until the TTL on deadAt, so the message can be requeued
+            update.set("status", EmailOutboxMessage.Status.DEAD)
+                    .set("deadAt", LocalDateTime.now());
+            logger.error("Email {} ({}) to {} dead-lettered after {} attempt(s): {}", message.getId(),
+                    message.getType(), message.getToEmail(), message.getAttempts(), e.getMessage());
+        } else {
+            update.set("status", EmailOutboxMessage.Status.PENDING)
+                    .set("nextAttemptAt", LocalDateTime.now().plusSeconds(backoffFor(message.getAttempts())));
+            logger.warn("Email {} ({}) to {} failed (attempt {}/{}), retrying: {}", message.getId(),
+                    message.getType(), message.getToEmail(), message.getAttempts(), maxAttempts, e.getMessage());
+        }
+        mongoTemplate.updateFirst(byId(message), update, EmailOutboxMessage.class);
+    }
+
+    private void recordSent(EmailOutboxMessage message) {
+        long bytes = message.isEncrypted() ? message.getSizeBytes() : plainSize(message);
+        Duration sinceQueued = message.getCreatedAt() != null
+                ? Duration.between(message.getCreatedAt(), LocalDateTime.now())
+                : Duration.ZERO;
+        emailMetrics.recordSent(message.getType(), sinceQueued, bytes);
+    }
+
+    private MimeMessage toMimeMessage(EmailOutboxMessage message) throws Exception {
+        MimeMessage mimeMessage = mailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(mimeMessage, true, "UTF-8");
+
+        helper.setFrom(message.getFromEmail());
+        helper.setTo(message.getToEmail());
+        helper.setSubject(message.getSubject());
+        boolean encrypted = message.isEncrypted();
+        helper.setText(encrypted ? payloadCipher.decryptText(message.getBody()) : message.getBody(), message.isHtml());
+        for (EmailOutboxMessage.InlineAttachment attachment : message.getInlineAttachments()) {
+            byte[] data = encrypted ? payloadCipher.decrypt(attachment.getData()) : attachment.getData();
+            helper.addInline(attachment.getContentId(), new ByteArrayDataSource(data, attachment.getContentType()));
+        }
+        return mimeMessage;
+    }
+
+    // Encrypt body and attachments in place before the message is stored
+    private void seal(EmailOutboxMessage message) {
+        if (message.isEncrypted()) {
+            return;
+        }
+        message.setSizeBytes(plainSize(message));
+        message.setBody(payloadCipher.encryptText(message.getBody()));
+        for (EmailOutboxMessage.InlineAttachment attachment : message.getInlineAttachments()) {
+            attachment.setData(payloadCipher.encrypt(attachment.getData()));
+        }
+        message.setEncrypted(true);
+    }
+
+    private static long plainSize(EmailOutboxMessage message) {
+        long bytes = message.getBody() != null ? message.getBody().getBytes(StandardCharsets.UTF_8).length : 0;
+        for (EmailOutboxMessage.InlineAttachment attachment : message.getInlineAttachments()) {
+            bytes += attachment.getData() != null ? attachment.getData().length : 0;
+        }
+        return bytes;
+    }
+
+    // 30s, 1m, 2m, 4m ... capped at the maximum backoff
+    private long backoffFor(int attempts) {
+        long seconds = backoffSeconds << Math.min(attempts - 1, 20);
+        return Math.min(seconds, TimeUnit.MINUTES.toSeconds(maxBackoffMinutes));
+    }
+
+    private static Query byId(EmailOutboxMessage message) {
+        return Query.query(Criteria.where("_id").is(message.getId()));
+    }
+}
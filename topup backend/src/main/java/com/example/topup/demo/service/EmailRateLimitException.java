@@ -0,0 +1,18 @@
+package com.example.topup.demo.service;
+
+/**
+ * Thrown by EmailRateLimiter when an email address or client IP has requested too many emails.
+ */
+public class EmailRateLimitException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    public EmailRateLimitException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
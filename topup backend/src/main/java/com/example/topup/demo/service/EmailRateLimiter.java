@@ -0,0 +1,169 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EmailRateLimitWindow;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Limits how many verification and password reset emails can be requested per email address
+ * (app.rate-limit.email.max-attempts) and per client IP (app.rate-limit.email.ip-max-attempts)
+ * within app.rate-limit.email.time-window-minutes.
+ *
+ * Each instance keeps an exact sliding log of the attempts it has seen, so a client hammering
+ * one node is rejected from memory. Attempts that pass are counted in email_rate_limits, shared
+ * by all instances: one counter document per key and fixed window, incremented atomically, with
+ * the previous window's count weighted by how much of it still overlaps the sliding window.
+ * If Mongo is unavailable the in-memory log alone is enforced.
+ */
+@Component
+public class EmailRateLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailRateLimiter.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${app.rate-limit.email.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${app.rate-limit.email.ip-max-attempts:20}")
+    private int ipMaxAttempts;
+
+    @Value("${app.rate-limit.email.time-window-minutes:60}")
+    private long timeWindowMinutes;
+
+    // Attempt timestamps (epoch millis) per key seen by this instance
+    private Cache<String, Deque<Long>> localAttempts;
+
+    @PostConstruct
+    public void init() {
+        localAttempts = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterAccess(Duration.ofMinutes(timeWindowMinutes))
+                .build();
+    }
+
+    /**
+     * Count an email request for the address and, if known, the client IP.
+     * Throws EmailRateLimitException, without counting the attempt, if either is over its limit.
+     */
+    public void checkAndRecord(String email, String clientIp) {
+        long now = System.currentTimeMillis();
+        long windowMillis = Duration.ofMinutes(timeWindowMinutes).toMillis();
+
+        List<String> keys = new ArrayList<>(2);
+        if (email != null && !email.isBlank()) {
+            keys.add("email:" + email.trim().toLowerCase(Locale.ROOT));
+        }
+        if (clientIp != null && !clientIp.isBlank()) {
+            keys.add("ip:" + clientIp);
+        }
+
+        // Cheap rejection from this instance's own log first
+        for (String key : keys) {
+            Deque<Long> attempts = localAttempts.get(key, k -> new ArrayDeque<>());
+            synchronized (attempts) {
+                while (!attempts.isEmpty() && attempts.peekFirst() <= now - windowMillis) {
+                    attempts.pollFirst();
+                }
+                if (attempts.size() >= limitFor(key)) {
+                    throw rejected(key, (attempts.peekFirst() + windowMillis - now) / 1000);
+                }
+            }
+        }
+
+        List<String> counted = new ArrayList<>(2);
+        try {
+            for (String key : keys) {
+                if (checkShared(key, now, windowMillis)) {
+                    counted.add(key);
+                }
+            }
+        } catch (EmailRateLimitException e) {
+            counted.forEach(key -> uncount(key, now / windowMillis));
+            throw e;
+        }
+
+        for (String key : keys) {
+            Deque<Long> attempts = localAttempts.get(key, k -> new ArrayDeque<>());
+            synchronized (attempts) {
+                attempts.addLast(now);
+            }
+        }
+    }
+
+    // True if the attempt was counted in the shared store
+    private boolean checkShared(String key, long now, long windowMillis) {
+        long windowIndex = now / windowMillis;
+        long windowStart = windowIndex * windowMillis;
+        EmailRateLimitWindow current;
+        EmailRateLimitWindow previous;
+        try {
+            Query query = Query.query(Criteria.where("_id").is(key + "|" + windowIndex));
+            Update update = new Update()
+                    .inc("count", 1)
+                    .setOnInsert("key", key)
+                    .setOnInsert("windowStart", toDateTime(windowStart))
+                    .setOnInsert("expiresAt", toDateTime(windowStart + 2 * windowMillis));
+            current = mongoTemplate.findAndModify(query, update,
+                    FindAndModifyOptions.options().upsert(true).returnNew(true), EmailRateLimitWindow.class);
+            previous = mongoTemplate.findById(key + "|" + (windowIndex - 1), EmailRateLimitWindow.class);
+        } catch (Exception e) {
+            logger.warn("Shared email rate limit unavailable, using this instance's count only: {}", e.getMessage());
+            return false;
+        }
+
+        // The previous window counts for the part of it still inside the sliding window
+        double overlap = 1.0 - (double) (now - windowStart) / windowMillis;
+        double estimate = (current != null ? current.getCount() : 1) + (previous != null ? previous.getCount() * overlap : 0);
+        if (estimate > limitFor(key)) {
+            // Take back this attempt so rejected requests do not extend the block
+            uncount(key, windowIndex);
+            throw rejected(key, (windowStart + windowMillis - now) / 1000);
+        }
+        return true;
+    }
+
+    private void uncount(String key, long windowIndex) {
+        try {
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(key + "|" + windowIndex)),
+                    new Update().inc("count", -1), EmailRateLimitWindow.class);
+        } catch (Exception e) {
+            logger.warn("Could not take back email rate limit attempt for {}: {}", key, e.getMessage());
+        }
+    }
+
+    private int limitFor(String key) {
+        return key.startsWith("ip:") ? ipMaxAttempts : maxAttempts;
+    }
+
+    private EmailRateLimitException rejected(String key, long retryAfterSeconds) {
+        logger.warn("Email rate limit reached for {}", key);
+        return new EmailRateLimitException("Too many email requests. Please try again later.", Math.max(retryAfterSeconds, 1));
+    }
+
+    private static LocalDateTime toDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+}
@@ -1,32 +1,26 @@
 package com.example.topup.demo.service;
 
-import jakarta.mail.MessagingException;
-import jakarta.mail.internet.MimeMessage;
+import com.example.topup.demo.entity.EmailOutboxMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.core.io.Resource;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Service;
 
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 @Service
 public class EmailService {
     
     private static final Logger log = LoggerFactory.getLogger(EmailService.class);
 
+    // All mail is queued here and sent by the outbox workers, never on the request thread
     @Autowired
-    private JavaMailSender mailSender;
+    private EmailOutboxService outboxService;
 
     @Autowired
-    private JavaMailSender javaMailSender;
+    private EmailTemplateEngine templateEngine;
 
     @Value("${spring.mail.username}")
     private String fromEmail;
@@ -54,6 +48,7 @@ public class EmailService {
             String htmlContent = generateEmailVerificationHtml(firstName, verificationUrl, verificationKey);
             
             sendHtmlEmail(
+                "EMAIL_VERIFICATION",
                 toEmail,
                 "Verify Your Email Address - " + appName,
                 htmlContent
@@ -73,6 +68,7 @@ public class EmailService {
             String htmlContent = generatePasswordResetHtml(firstName, resetUrl);
             
             sendHtmlEmail(
+                "PASSWORD_RESET",
                 toEmail,
                 "Reset Your Password - " + appName,
                 htmlContent
@@ -91,6 +87,7 @@ public class EmailService {
             String htmlContent = generateBusinessApprovalHtml(firstName, companyName, username, temporaryPassword);
             
             sendHtmlEmail(
+                "BUSINESS_APPROVAL",
                 toEmail,
                 "Business Account Approved - " + appName,
                 htmlContent
@@ -109,6 +106,7 @@ public class EmailService {
             String htmlContent = generateBusinessPendingHtml(firstName, companyName);
             
             sendHtmlEmail(
+                "BUSINESS_PENDING",
                 toEmail,
                 "Business Registration Under Review - " + appName,
                 htmlContent
@@ -135,6 +133,7 @@ public class EmailService {
             );
             
             sendHtmlEmail(
+                "BUSINESS_APPROVAL",
                 user.getEmail(),
                 "Business Account Approved - " + appName,
                 htmlContent
@@ -160,6 +159,7 @@ public class EmailService {
             );
             
             sendHtmlEmail(
+                "BUSINESS_REJECTION",
                 user.getEmail(),
                 "Business Registration Update - " + appName,
                 htmlContent
@@ -178,6 +178,7 @@ public class EmailService {
             String htmlContent = generateEnquiryAcknowledgmentHtml(customerName, enquiryId, subject);
             
             sendHtmlEmail(
+                "ENQUIRY_ACKNOWLEDGMENT",
                 toEmail,
                 "We've Received Your Enquiry - " + enquiryId + " - " + appName,
                 htmlContent
@@ -196,6 +197,7 @@ public class EmailService {
             String htmlContent = generateEnquiryResolutionHtml(customerName, enquiryId, subject, resolution);
             
             sendHtmlEmail(
+                "ENQUIRY_RESOLUTION",
                 toEmail,
                 "Your Enquiry Has Been Resolved - " + enquiryId + " - " + appName,
                 htmlContent
@@ -235,6 +237,7 @@ public class EmailService {
                 """, businessName, appName, appName);
             
             sendHtmlEmail(
+                "BUSINESS_UNDER_REVIEW",
                 toEmail,
                 "Business Registration Under Review - " + appName,
                 htmlContent
@@ -255,60 +258,67 @@ public class EmailService {
 
     public void sendEsimApprovalEmail(String toEmail, String customerName, String orderNumber, 
                                       String esimSerial, String qrCodeBase64, String activationCode, String smDpAddress, String bundlePrice) {
-        try {
-            System.out.println("\n🔍 === sendEsimApprovalEmail DEBUG ===");
-            System.out.println("   toEmail: " + toEmail);
-            System.out.println("   customerName: " + customerName);
-            System.out.println("   orderNumber: " + orderNumber);
-            System.out.println("   esimSerial: " + esimSerial);
-            System.out.println("   qrCodeBase64 length: " + (qrCodeBase64 != null ? qrCodeBase64.length() : 0));
-            System.out.println("   qrCodeBase64 is null: " + (qrCodeBase64 == null));
-            System.out.println("   qrCodeBase64 is empty: " + (qrCodeBase64 != null && qrCodeBase64.isEmpty()));
-            System.out.println("   qrCodeBase64 starts with iVBOR: " + (qrCodeBase64 != null && qrCodeBase64.startsWith("iVBORw0KGgo")));
-            
-            if (qrCodeBase64 != null && qrCodeBase64.length() > 100) {
-                System.out.println("   QR Code Preview (first 100 chars): " + qrCodeBase64.substring(0, 100));
-            } else if (qrCodeBase64 != null) {
-                System.out.println("   QR Code Full: " + qrCodeBase64);
-            } else {
-                System.out.println("   ❌ QR Code is NULL!");
+        // Callers that already hold a Base64 PNG: decode it once and take the binary path
+        byte[] qrCodePng = null;
+        if (qrCodeBase64 != null && qrCodeBase64.startsWith("iVBORw0KGgo")) {
+            try {
+                qrCodePng = java.util.Base64.getDecoder().decode(qrCodeBase64);
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid Base64 QR code for order {}: {}", orderNumber, e.getMessage());
             }
-            
-            System.out.println("   activationCode: " + (activationCode != null ? activationCode.substring(0, Math.min(50, activationCode.length())) + "..." : "null"));
-            System.out.println("   smDpAddress: " + smDpAddress);
-            System.out.println("   bundlePrice: " + bundlePrice);
+        }
+        sendEsimApprovalEmailWithQrImage(toEmail, customerName, orderNumber, esimSerial, qrCodePng, activationCode, smDpAddress, bundlePrice);
+    }
+
+    /**
+     * Send eSIM approval email with the QR code PNG as an inline CID attachment.
+     * The bytes go into the attachment as they are; no Base64 copy or data: URI is built.
+     * Returns the id of the queued outbox message.
+     */
+    public String sendEsimApprovalEmailWithQrImage(String toEmail, String customerName, String orderNumber, 
+                                                 String esimSerial, byte[] qrCodePng, String activationCode, String smDpAddress, String bundlePrice) {
+        return sendEsimApprovalEmailWithQrImage(toEmail, customerName, orderNumber, esimSerial, qrCodePng,
+                activationCode, smDpAddress, bundlePrice, null);
+    }
+
+    /**
+     * Same, for steps that may be retried: an approval email already queued under the reference
+     * is not queued again, and its id is returned instead.
+     */
+    public String sendEsimApprovalEmailWithQrImage(String toEmail, String customerName, String orderNumber,
+                                                 String esimSerial, byte[] qrCodePng, String activationCode, String smDpAddress,
+                                                 String bundlePrice, String reference) {
+        if (reference != null) {
+            String queued = outboxService.findQueued("ESIM_APPROVAL", reference);
+            if (queued != null) {
+                log.info("eSIM approval email for order {} was already queued", orderNumber);
+                return queued;
+            }
+        }
+        try {
+            log.debug("Queueing eSIM approval email for order {} (eSIM {}, QR code {})", orderNumber, esimSerial,
+                    qrCodePng != null ? qrCodePng.length + " bytes" : "missing");
             
             String htmlContent = generateEsimApprovalHtml(
-                customerName, 
                 orderNumber, 
-                esimSerial, 
-                qrCodeBase64, 
+                qrCodePng != null, 
                 activationCode,
                 smDpAddress,
                 bundlePrice
             );
             
-            System.out.println("   HTML content length: " + htmlContent.length());
-            System.out.println("   HTML contains QR_CODE_IMAGE placeholder: " + htmlContent.contains("{{QR_CODE_IMAGE}}"));
-            System.out.println("   HTML contains data:image/png: " + htmlContent.contains("data:image/png;base64,"));
-            
-            // Find the QR code image tag in HTML
-            int qrImageIndex = htmlContent.indexOf("data:image/png;base64,");
-            if (qrImageIndex > 0) {
-                int endIndex = Math.min(qrImageIndex + 100, htmlContent.length());
-                System.out.println("   QR image tag preview: " + htmlContent.substring(qrImageIndex, endIndex));
-            }
-            
-            sendHtmlEmailWithQrCode(
+            String messageId = sendHtmlEmailWithQrCode(
+                "ESIM_APPROVAL",
                 toEmail,
                 "Your eSIM is Ready! - Order #" + orderNumber + " - " + appName,
                 htmlContent,
-                qrCodeBase64
+                qrCodePng,
+                reference
             );
-            log.info("eSIM approval email sent successfully to: {}", toEmail);
+            log.info("eSIM approval email queued for: {}", toEmail);
+            return messageId;
         } catch (Exception e) {
             log.error("Failed to send eSIM approval email to: {}", toEmail, e);
-            e.printStackTrace();
             throw new RuntimeException("Failed to send eSIM approval email", e);
         }
     }
@@ -325,6 +335,7 @@ public class EmailService {
             );
             
             sendHtmlEmail(
+                "ESIM_REJECTION",
                 toEmail,
                 "eSIM Order Update - Order #" + orderNumber + " - " + appName,
                 htmlContent
@@ -344,6 +355,7 @@ public class EmailService {
             String htmlContent = generateWelcomeHtml(firstName, isBusinessAccount);
             
             sendHtmlEmail(
+                "WELCOME",
                 toEmail,
                 "Welcome to " + appName + "!",
                 htmlContent
@@ -355,111 +367,38 @@ public class EmailService {
     }
 
     /**
-     * Send generic HTML email
-     */
-    private void sendHtmlEmail(String toEmail, String subject, String htmlContent) throws MessagingException {
-        MimeMessage message = mailSender.createMimeMessage();
-        MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-        
-        helper.setFrom(supportEmail);
-        helper.setTo(toEmail);
-        helper.setSubject(subject);
-        helper.setText(htmlContent, true);
-        
-        mailSender.send(message);
-    }
-
-    /**
-     * Send HTML email with QR code as inline attachment (Gmail compatible)
+     * Queue generic HTML email for sending through the outbox
      */
-    private void sendHtmlEmailWithQrCode(String toEmail, String subject, String htmlContent, String qrCodeBase64) throws MessagingException {
-        try {
-            MimeMessage message = mailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-            
-            helper.setFrom(supportEmail);
-            helper.setTo(toEmail);
-            helper.setSubject(subject);
-            
-            System.out.println("\n🔍 === Email Sending Debug ===");
-            System.out.println("   To: " + toEmail);
-            System.out.println("   Subject: " + subject);
-            System.out.println("   QR Code Base64 length: " + (qrCodeBase64 != null ? qrCodeBase64.length() : 0));
-            System.out.println("   HTML content length: " + htmlContent.length());
-            System.out.println("   HTML contains data URI: " + htmlContent.contains("data:image/png;base64,"));
-            
-            // For Gmail compatibility, try both data URI and CID attachment
-            String htmlToSend = htmlContent;
-            
-            // Add QR code as inline attachment if available
-            if (qrCodeBase64 != null && !qrCodeBase64.isEmpty() && qrCodeBase64.startsWith("iVBORw0KGgo")) {
-                try {
-                    // Decode base64 to bytes
-                    byte[] qrCodeBytes = java.util.Base64.getDecoder().decode(qrCodeBase64);
-                    
-                    System.out.println("   Decoded QR bytes length: " + qrCodeBytes.length);
-                    
-                    // Replace data URI with CID for better Gmail compatibility
-                    htmlToSend = htmlContent.replace(
-                        "data:image/png;base64," + qrCodeBase64,
-                        "cid:qrCodeImage"
-                    );
-                    
-                    System.out.println("   Replaced data URI with CID: " + htmlToSend.contains("cid:qrCodeImage"));
-                    
-                    // Set HTML content
-                    helper.setText(htmlToSend, true);
-                    
-                    // Add as inline attachment with Content-ID
-                    helper.addInline("qrCodeImage", new jakarta.mail.util.ByteArrayDataSource(qrCodeBytes, "image/png"));
-                    
-                    System.out.println("   ✅ QR code added as inline CID attachment (qrCodeImage)");
-                } catch (Exception e) {
-                    System.err.println("   ⚠️ Failed to attach QR code as CID, using data URI fallback: " + e.getMessage());
-                    e.printStackTrace();
-                    // Fallback: use data URI if CID fails
-                    helper.setText(htmlContent, true);
-                }
-            } else {
-                System.out.println("   ⚠️ QR code not attached - invalid or missing data");
-                helper.setText(htmlContent, true);
-            }
-            
-            mailSender.send(message);
-            System.out.println("   ✅ Email sent successfully!");
-            System.out.println("=================================\n");
-        } catch (Exception e) {
-            log.error("Error sending email with QR code attachment", e);
-            throw new MessagingException("Failed to send email with QR code", e);
-        }
+    private void sendHtmlEmail(String type, String toEmail, String subject, String htmlContent) {
+        outboxService.enqueue(new EmailOutboxMessage(type, supportEmail, toEmail, subject, htmlContent, true));
     }
 
     /**
-     * Load and process HTML template with variable substitution
+     * Queue HTML email with QR code as inline attachment (Gmail compatible)
      */
-    private String loadHtmlTemplate(String templateName) {
-        try {
-            Resource resource = new ClassPathResource("templates/" + templateName);
-            try (InputStream inputStream = resource.getInputStream()) {
-                return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
-            }
-        } catch (Exception e) {
-            log.error("Failed to load email template: " + templateName, e);
-            return "<html><body><h2>Email Template Error</h2><p>Could not load email template.</p></body></html>";
+    private String sendHtmlEmailWithQrCode(String type, String toEmail, String subject, String htmlContent, byte[] qrCodePng,
+                                           String reference) {
+        EmailOutboxMessage message = new EmailOutboxMessage(type, supportEmail, toEmail, subject, htmlContent, true);
+        message.setReference(reference);
+        if (qrCodePng != null) {
+            // Referenced from the HTML as cid:qrCodeImage
+            message.addInline("qrCodeImage", "image/png", qrCodePng);
         }
+        return outboxService.enqueue(message).getId();
     }
 
     /**
-     * Replace placeholders in HTML template
+     * Render a classpath template with the common account placeholders
      */
-    private String processTemplate(String template, String firstName, String companyName, String email) {
-        return template
-                .replace("{{firstName}}", firstName != null ? firstName : "")
-                .replace("{{companyName}}", companyName != null ? companyName : "")
-                .replace("{{email}}", email != null ? email : "")
-                .replace("{{appUrl}}", appUrl)
-                .replace("{{supportEmail}}", supportEmail)
-                .replace("{{appName}}", appName);
+    private String processTemplate(String templateName, String firstName, String companyName, String email) {
+        Map<String, Object> model = new HashMap<>();
+        model.put("firstName", firstName);
+        model.put("companyName", companyName);
+        model.put("email", email);
+        model.put("appUrl", appUrl);
+        model.put("supportEmail", supportEmail);
+        model.put("appName", appName);
+        return templateEngine.render(templateName, model);
     }
 
     // HTML Email Templates
@@ -503,14 +442,13 @@ public class EmailService {
     }
 
     private String generatePasswordResetHtml(String firstName, String resetUrl) {
-        // Try to load template from file
+        // Try to render the template file
         try {
-            // Read the template file
-            Resource resource = new ClassPathResource("templates/password-reset-email.html");
-            String template = new String(resource.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
-            
-            // Format the template with the values
-            return String.format(template, firstName, resetUrl, resetUrl, supportEmail, supportEmail);
+            Map<String, Object> model = new HashMap<>();
+            model.put("firstName", firstName);
+            model.put("resetUrl", resetUrl);
+            model.put("supportEmail", supportEmail);
+            return templateEngine.render("password-reset-email.html", model);
         } catch (Exception e) {
             // Fall back to the inline template if file loading fails
             log.error("Failed to load password reset email template, falling back to default template", e);
@@ -565,8 +503,7 @@ public class EmailService {
 
     private String generateBusinessApprovalHtml(String firstName, String companyName, String username, String temporaryPassword) {
         try {
-            String template = loadHtmlTemplate("business-approval-email.html");
-            return processTemplate(template, firstName, companyName, username);
+            return processTemplate("business-approval-email.html", firstName, companyName, username);
         } catch (Exception e) {
             log.error("Failed to generate business approval HTML", e);
             // Fallback to simple HTML
@@ -617,8 +554,7 @@ public class EmailService {
 
     private String generateBusinessPendingHtml(String firstName, String companyName) {
         try {
-            String template = loadHtmlTemplate("business-pending-email.html");
-            return processTemplate(template, firstName, companyName, null);
+            return processTemplate("business-pending-email.html", firstName, companyName, null);
         } catch (Exception e) {
             log.error("Failed to generate business pending HTML", e);
             // Fallback to simple HTML
@@ -857,22 +793,13 @@ public class EmailService {
      */
     public void sendEmail(String toEmail, String subject, String message) {
         try {
-            MimeMessage mimeMessage = mailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(mimeMessage, true, "UTF-8");
-
-            helper.setFrom(supportEmail);
-            helper.setTo(toEmail);
-            helper.setSubject(subject);
-            
             // Check if message contains HTML tags
             boolean isHtml = message.contains("<html") || message.contains("<div") || message.contains("<p");
-            helper.setText(message, isHtml);
-
-            mailSender.send(mimeMessage);
-            log.info("Email sent successfully to: {}", toEmail);
+            outboxService.enqueue(new EmailOutboxMessage("GENERIC", supportEmail, toEmail, subject, message, isHtml));
+            log.info("Email queued for: {}", toEmail);
             
-        } catch (MessagingException e) {
-            log.error("Failed to send email to {}: {}", toEmail, e.getMessage());
+        } catch (Exception e) {
+            log.error("Failed to queue email to {}: {}", toEmail, e.getMessage());
             throw new RuntimeException("Failed to send email", e);
         }
     }
@@ -880,504 +807,37 @@ public class EmailService {
     /**
      * Generate HTML for eSIM approval email with QR code using Telelys template
      */
-    private String generateEsimApprovalHtml(String customerName, String orderNumber, 
-                                           String esimSerial, String qrCodeBase64,
-                                           String activationCode, String smDpAddress) {
-        return generateEsimApprovalHtml(customerName, orderNumber, esimSerial, qrCodeBase64, activationCode, smDpAddress, null);
-    }
-
-    private String generateEsimApprovalHtml(String customerName, String orderNumber, 
-                                           String esimSerial, String qrCodeBase64,
+    private String generateEsimApprovalHtml(String orderNumber, boolean hasQrCode,
                                            String activationCode, String smDpAddress, String bundlePrice) {
-        // Telelys template with placeholders
-        String template = """
-<!DOCTYPE html>
-<html lang="en">
-<head>
-  <meta charset="UTF-8">
-  <meta name="viewport" content="width=device-width, initial-scale=1.0">
-  <title>Your eSIM is Ready - Telelys</title>
-  <style>
-    * {
-      margin: 0;
-      padding: 0;
-      box-sizing: border-box;
-    }
-    body {
-      font-family: 'Arial', 'Helvetica', sans-serif;
-      line-height: 1.6;
-      color: #333;
-      background-color: #f5f5f5;
-    }
-    .container {
-      max-width: 600px;
-      margin: 20px auto;
-      background: white;
-      border-radius: 8px;
-      box-shadow: 0 2px 8px rgba(0,0,0,0.1);
-      overflow: hidden;
-    }
-    .header {
-      background-color: #2563EB;
-      color: white;
-      padding: 30px;
-      text-align: center;
-    }
-    .logo-text {
-      font-size: 32px;
-      font-weight: bold;
-      margin-bottom: 10px;
-    }
-    .subheader {
-      font-size: 18px;
-      font-weight: 300;
-    }
-    .content {
-      padding: 30px;
-    }
-    h1 {
-      color: #1F2937;
-      font-size: 24px;
-      margin-bottom: 10px;
-      font-weight: bold;
-    }
-    .intro {
-      color: #666;
-      margin-bottom: 25px;
-      font-size: 16px;
-    }
-    h2 {
-      color: #1F2937;
-      font-size: 18px;
-      margin-top: 25px;
-      margin-bottom: 15px;
-      font-weight: bold;
-      border-bottom: 2px solid #2563EB;
-      padding-bottom: 10px;
-    }
-    .info-box {
-      background-color: #f9fafb;
-      border-left: 4px solid #2563EB;
-      padding: 15px;
-      margin-bottom: 20px;
-      border-radius: 4px;
-    }
-    .info-item {
-      display: flex;
-      justify-content: space-between;
-      padding: 8px 0;
-      border-bottom: 1px solid #e5e7eb;
-    }
-    .info-item:last-child {
-      border-bottom: none;
-    }
-    .info-label {
-      color: #6B7280;
-      font-weight: 500;
-    }
-    .info-value {
-      color: #1F2937;
-      font-weight: bold;
-    }
-    .important-list {
-      list-style: none;
-      margin: 15px 0;
-    }
-    .important-list li {
-      padding: 10px 0;
-      padding-left: 25px;
-      position: relative;
-      color: #555;
-    }
-    .important-list li:before {
-      content: "•";
-      color: #2563EB;
-      font-weight: bold;
-      position: absolute;
-      left: 0;
-    }
-    .steps {
-      margin: 20px 0;
-    }
-    .step {
-      margin-bottom: 20px;
-      padding-left: 30px;
-      position: relative;
-    }
-    .step-number {
-      position: absolute;
-      left: 0;
-      top: 0;
-      width: 24px;
-      height: 24px;
-      background: #2563EB;
-      color: white;
-      border-radius: 50%;
-      display: flex;
-      align-items: center;
-      justify-content: center;
-      font-size: 14px;
-      font-weight: bold;
-    }
-    .step-title {
-      font-weight: bold;
-      color: #1F2937;
-      margin-bottom: 5px;
-    }
-    .step-desc {
-      color: #666;
-      font-size: 14px;
-      line-height: 1.5;
-    }
-    .activation-info {
-      background-color: #f9fafb;
-      border: 1px solid #e5e7eb;
-      padding: 15px;
-      margin: 15px 0;
-      border-radius: 4px;
-      font-size: 14px;
-    }
-    .activation-info p {
-      margin: 8px 0;
-    }
-    .activation-label {
-      font-weight: bold;
-      color: #1F2937;
-    }
-    .activation-value {
-      color: #666;
-      word-break: break-all;
-      font-family: monospace;
-      background: white;
-      padding: 5px;
-      border-radius: 3px;
-      display: inline-block;
-      margin-top: 3px;
-    }
-    .warning {
-      color: #D32F2F;
-      font-weight: bold;
-      margin: 10px 0;
-    }
-    .qr-section {
-      text-align: center;
-      margin: 25px 0;
-      padding: 20px;
-      background-color: #f9fafb;
-      border-radius: 8px;
-    }
-    .qr-label {
-      font-weight: bold;
-      color: #1F2937;
-      margin-bottom: 15px;
-      display: block;
-      font-size: 16px;
-    }
-    .qr-image {
-      width: 200px !important;
-      height: 200px !important;
-      max-width: 200px !important;
-      max-height: 200px !important;
-      border: 2px solid #2563EB;
-      padding: 10px;
-      border-radius: 8px;
-      background: white;
-      display: inline-block;
-      box-shadow: 0 2px 4px rgba(0,0,0,0.1);
-    }
-    .footer-note {
-      color: #9CA3AF;
-      font-size: 12px;
-      margin-top: 15px;
-      font-style: italic;
-    }
-    .support-box {
-      background-color: #FEF3C7;
-      border-left: 4px solid #F59E0B;
-      padding: 15px;
-      margin: 20px 0;
-      border-radius: 4px;
-    }
-    .support-title {
-      font-weight: bold;
-      color: #92400E;
-      margin-bottom: 10px;
-    }
-    .support-item {
-      color: #78350F;
-      margin: 5px 0;
-    }
-    .troubleshooting-item {
-      margin-bottom: 15px;
-      padding-left: 20px;
-      position: relative;
-    }
-    .troubleshooting-item:before {
-      content: "→";
-      color: #2563EB;
-      font-weight: bold;
-      position: absolute;
-      left: 0;
-    }
-    .troubleshooting-title {
-      font-weight: bold;
-      color: #1F2937;
-      margin-bottom: 5px;
-    }
-    .troubleshooting-desc {
-      color: #666;
-      font-size: 14px;
-    }
-    .email-footer {
-      background-color: #1F2937;
-      color: #9CA3AF;
-      padding: 20px;
-      text-align: center;
-      font-size: 13px;
-    }
-    .footer-text {
-      margin: 10px 0;
-    }
-    a {
-      color: #2563EB;
-      text-decoration: none;
-    }
-    a:hover {
-      text-decoration: underline;
-    }
-    @media only screen and (max-width: 600px) {
-      .container {
-        margin: 10px;
-      }
-      .content {
-        padding: 20px;
-      }
-      .qr-image {
-        max-width: 200px;
-      }
-    }
-  </style>
-</head>
-<body>
-  <div class="container">
-    <div class="header">
-      <div class="logo-text">Telelys</div>
-      <div class="subheader">Your eSIM is Ready!</div>
-    </div>
-
-    <div class="content">
-      <h1>Thank you for choosing Telelys</h1>
-      <p class="intro">You can find details of your eSIM and setup instructions below.</p>
-
-      <h2>Your eSIM Information</h2>
-      <div class="info-box">
-        <div class="info-item">
-          <span class="info-label">Date:</span>
-          <span class="info-value">{{DATE}}</span>
-        </div>
-        <div class="info-item">
-          <span class="info-label">Order ID:</span>
-          <span class="info-value">{{ORDER_ID}}</span>
-        </div>
-        <div class="info-item">
-          <span class="info-label">Bundle Name:</span>
-          <span class="info-value">{{BUNDLE_NAME}}</span>
-        </div>
-        <div class="info-item">
-          <span class="info-label">Bundle Price:</span>
-          <span class="info-value">{{BUNDLE_PRICE}}</span>
-        </div>
-      </div>
-
-      <h2>Important Notes Before Setting Up</h2>
-      <ul class="important-list">
-        <li>eSIM can only be installed when there is an internet connection.</li>
-        <li>Please do not delete eSIM after activation. The eSIM QR code can only be activated once.</li>
-        <li>eSIM cannot be transferred to another device after installation.</li>
-      </ul>
-
-      <h2>eSIM Setup Guide - For iOS</h2>
-      <div class="steps">
-        <div class="step">
-          <div class="step-number">1</div>
-          <div class="step-title">Go to Settings > Cellular (or Mobile Data)</div>
-        </div>
-
-        <div class="step">
-          <div class="step-number">2</div>
-          <div class="step-title">Click Add eSIM or Add Cellular Plan > Choose Use QR Code</div>
-          <div class="step-desc">Scan the below QR or tap Enter Details Manually and enter the activation code if you cannot use your device to scan your QR. Besides, you can choose Open Photos to upload the image of QR code.</div>
-        </div>
-
-        <div class="step">
-          <div class="step-number">3</div>
-          <div class="step-title">Activation Information</div>
-          <div class="activation-info">
-            <p><span class="activation-label">SM-DP+ Address:</span><br><span class="activation-value">{{SM_DP_ADDRESS}}</span></p>
-            <p><span class="activation-label">Activation Code:</span><br><span class="activation-value">{{ACTIVATION_CODE}}</span></p>
-          </div>
-          <div class="warning">Don't delete eSIM after setting up</div>
-        </div>
-
-        <div class="step">
-          <div class="step-number">4</div>
-          <div class="step-title">Click Next to finish the installation</div>
-        </div>
-
-        <div class="step">
-          <div class="step-number">5</div>
-          <div class="step-title">SIM Registration Required</div>
-          <div class="step-desc">Please <a href="https://www.lyca-mobile.no/en/registration/">click here to register your SIM</a></div>
-        </div>
-      </div>
-
-      <p class="footer-note">Only iOS 17 and above allows users to open QR codes from the "Photos".</p>
-
-      <!-- QR Code Section -->
-      <div class="qr-section">
-        <span class="qr-label">📱 Scan this QR Code to Activate Your eSIM</span>
-        {{QR_CODE_IMAGE}}
-        <p style="color: #6B7280; font-size: 12px; margin-top: 15px; font-style: italic;">
-          Point your camera at the QR code above to install the eSIM on your device
-        </p>
-      </div>
-
-      <h2>eSIM Setup Guide - For Android</h2>
-      <div class="steps">
-        <div class="step">
-          <div class="step-number">1</div>
-          <div class="step-title">Go to Settings > Connections</div>
-        </div>
-
-        <div class="step">
-          <div class="step-number">2</div>
-          <div class="step-title">Choose Add eSIM > Choose Use QR Code</div>
-          <div class="step-desc">Scan the below QR or tap Enter Details Manually and enter the activation code if you cannot use your device to scan your QR. Besides, you can upload the image of QR code.</div>
-        </div>
-
-        <div class="step">
-          <div class="step-number">3</div>
-          <div class="step-title">Activation Information</div>
-          <div class="activation-info">
-            <p><span class="activation-label">SM-DP+ Address:</span><br><span class="activation-value">{{SM_DP_ADDRESS}}</span></p>
-            <p><span class="activation-label">Activation Code:</span><br><span class="activation-value">{{ACTIVATION_CODE}}</span></p>
-          </div>
-          <div class="warning">Don't delete eSIM after setting up</div>
-        </div>
-
-        <div class="step">
-          <div class="step-number">4</div>
-          <div class="step-title">Click Next to finish the installation</div>
-        </div>
-
-        <div class="step">
-          <div class="step-number">5</div>
-          <div class="step-title">SIM Registration Required</div>
-          <div class="step-desc">Please <a href="https://www.lyca-mobile.no/en/registration/">click here to register your SIM</a></div>
-        </div>
-      </div>
-
-      <p class="footer-note">Only Samsung Galaxy S20 (and above) and some Android Phones allow users to upload QR image to set up eSIM.</p>
-
-      <div class="support-box">
-        <div class="support-title">Need Help?</div>
-        <div class="support-item"><strong>WhatsApp:</strong> {{WHATSAPP_NUMBER}}</div>
-        <div class="support-item"><strong>Email:</strong> {{SUPPORT_EMAIL}}</div>
-        <p style="margin-top: 10px; color: #78350F; font-size: 14px;">If you encounter any problems, please contact Telelys for timely support.</p>
-      </div>
-
-      <h2>If You Encounter Problems When Setting Up</h2>
-      
-      <div class="troubleshooting-item">
-        <div class="troubleshooting-title">Unable to Scan the QR Code</div>
-        <div class="troubleshooting-desc">Please try to place your phone camera opposite the QR Code and start scanning to ensure the camera captures the whole QR Code.</div>
-      </div>
-
-      <div class="troubleshooting-item">
-        <div class="troubleshooting-title">eSIM in Activating Status</div>
-        <div class="troubleshooting-desc">Successfully installed eSIM, you need to go to the country supported by your eSIM in order to start using it.</div>
-      </div>
-
-      <div class="troubleshooting-item">
-        <div class="troubleshooting-title">eSIM Installed but No Signal (3G/4G)</div>
-        <div class="troubleshooting-desc">Please check that you have enabled Data Roaming mode and Cellular Data mode on your phone.</div>
-      </div>
-
-      <div class="troubleshooting-item">
-        <div class="troubleshooting-title">Network Signal Shows but Internet Not Available</div>
-        <div class="troubleshooting-desc">It might be an APN issue. Please read the instruction to check APN and change the APN section on your device to: {{APN_SETTINGS}}</div>
-      </div>
-    </div>
-
-    <div class="email-footer">
-      <div class="footer-text">&copy; 2026 Telelys. All rights reserved.</div>
-      <div class="footer-text">
-        <a href="https://www.lyca-mobile.no/" style="color: #9CA3AF;">Visit our website</a> | 
-        <a href="https://www.lyca-mobile.no/en/registration/" style="color: #9CA3AF;">Register SIM</a>
-      </div>
-    </div>
-  </div>
-</body>
-</html>
-            """;
-
-        // Replace placeholders with actual values
-        System.out.println("\n🔍 === generateEsimApprovalHtml DEBUG ===");
-        System.out.println("   qrCodeBase64 input length: " + (qrCodeBase64 != null ? qrCodeBase64.length() : 0));
-        System.out.println("   qrCodeBase64 is null: " + (qrCodeBase64 == null));
-        System.out.println("   Template contains {{QR_CODE_IMAGE}}: " + template.contains("{{QR_CODE_IMAGE}}"));
-        
-        String qrCodeToUse = "";
-        if (qrCodeBase64 != null && !qrCodeBase64.isEmpty()) {
-            // Verify it's valid base64 PNG
-            if (qrCodeBase64.startsWith("iVBORw0KGgo")) {
-                // Simple img tag for maximum Gmail compatibility - no wrapper divs
-                qrCodeToUse = "<img src=\"data:image/png;base64," + qrCodeBase64 + "\" " +
-                             "alt=\"eSIM QR Code\" " +
-                             "width=\"220\" " +
-                             "height=\"220\" " +
-                             "border=\"0\" " +
-                             "style=\"display: block; width: 220px; height: 220px; max-width: 220px; max-height: 220px; margin: 0 auto;\" " +
-                             "/>";
-                System.out.println("   ✅ QR code image tag created successfully (Gmail-optimized)");
-            } else {
-                qrCodeToUse = "<p style=\"color: #dc2626; text-align: center; font-weight: bold;\">⚠️ QR Code format invalid (doesn't start with PNG signature)</p>";
-                System.out.println("   ⚠️ QR code doesn't start with PNG signature: " + qrCodeBase64.substring(0, Math.min(50, qrCodeBase64.length())));
-            }
+        // Telelys template (templates/esim-approval-email.html) with placeholders
+        String qrCodeToUse;
+        if (hasQrCode) {
+            // Simple img tag for maximum Gmail compatibility - no wrapper divs
+            qrCodeToUse = "<img src=\"cid:qrCodeImage\" " +
+                         "alt=\"eSIM QR Code\" " +
+                         "width=\"220\" " +
+                         "height=\"220\" " +
+                         "border=\"0\" " +
+                         "style=\"display: block; width: 220px; height: 220px; max-width: 220px; max-height: 220px; margin: 0 auto;\" " +
+                         "/>";
         } else {
             qrCodeToUse = "<p style=\"color: #dc2626; text-align: center; font-weight: bold;\">⚠️ QR Code not available - please contact support</p>";
-            System.out.println("   ❌ QR code is null or empty!");
         }
-        System.out.println("   qrCodeToUse length: " + qrCodeToUse.length());
         
         String bundlePriceDisplay = (bundlePrice != null && !bundlePrice.isEmpty()) ? bundlePrice : "N/A";
         
-        String htmlContent = template
-            .replace("{{DATE}}", java.time.LocalDate.now().toString())
-            .replace("{{ORDER_ID}}", orderNumber)
-            .replace("{{BUNDLE_NAME}}", "eSIM Bundle")
-            .replace("{{BUNDLE_PRICE}}", bundlePriceDisplay)
-            .replace("{{SM_DP_ADDRESS}}", smDpAddress != null && !smDpAddress.isEmpty() ? smDpAddress : "N/A")
-            .replace("{{ACTIVATION_CODE}}", activationCode != null && !activationCode.isEmpty() ? activationCode : "N/A")
-            .replace("{{QR_CODE_IMAGE}}", qrCodeToUse)
-            .replace("{{WHATSAPP_NUMBER}}", "+47 123 456 789")
-            .replace("{{SUPPORT_EMAIL}}", supportEmail)
-            .replace("{{APN_SETTINGS}}", "internet");
-
-        System.out.println("   After replacement, HTML contains {{QR_CODE_IMAGE}}: " + htmlContent.contains("{{QR_CODE_IMAGE}}"));
-        System.out.println("   After replacement, HTML contains data:image/png: " + htmlContent.contains("data:image/png;base64,"));
-        
-        // Check if QR code is in the final HTML
-        int qrIndex = htmlContent.indexOf("data:image/png;base64,");
-        if (qrIndex > 0) {
-            int afterBase64 = qrIndex + "data:image/png;base64,".length();
-            int previewEnd = Math.min(afterBase64 + 50, htmlContent.length());
-            System.out.println("   QR base64 in HTML starts with: " + htmlContent.substring(afterBase64, previewEnd));
-        } else {
-            System.out.println("   ⚠️ WARNING: QR code not found in final HTML!");
-        }
-        
-        return htmlContent;
+        Map<String, Object> model = new HashMap<>();
+        model.put("DATE", java.time.LocalDate.now().toString());
+        model.put("ORDER_ID", orderNumber);
+        model.put("BUNDLE_NAME", "eSIM Bundle");
+        model.put("BUNDLE_PRICE", bundlePriceDisplay);
+        model.put("SM_DP_ADDRESS", smDpAddress != null && !smDpAddress.isEmpty() ? smDpAddress : "N/A");
+        model.put("ACTIVATION_CODE", activationCode != null && !activationCode.isEmpty() ? activationCode : "N/A");
+        model.put("QR_CODE_IMAGE", qrCodeToUse);
+        model.put("WHATSAPP_NUMBER", "+47 123 456 789");
+        model.put("SUPPORT_EMAIL", supportEmail);
+        model.put("APN_SETTINGS", "internet");
+        return templateEngine.render("esim-approval-email.html", model);
     }
 
     /**
@@ -1471,19 +931,11 @@ public class EmailService {
             
             log.info("HTML content generated, length: {} characters", htmlContent.length());
             
-            MimeMessage message = javaMailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-            
-            helper.setFrom(fromEmail);
-            helper.setTo(toEmail);
-            helper.setSubject("🎉 Your Lycamobile ePIN - Ready to Use!");
-            helper.setText(htmlContent, true);
-            
-            log.info("Message configured, attempting to send...");
-            javaMailSender.send(message);
+            outboxService.enqueue(new EmailOutboxMessage("EPIN_DELIVERY", fromEmail, toEmail,
+                "🎉 Your Lycamobile ePIN - Ready to Use!", htmlContent, true));
             
-            log.info("✅ ePIN delivery email sent successfully to: {}", toEmail);
-            System.out.println("✅ ePIN delivery email sent successfully to: " + toEmail);
+            log.info("✅ ePIN delivery email queued for: {}", toEmail);
+            System.out.println("✅ ePIN delivery email queued for: " + toEmail);
         } catch (Exception e) {
             log.error("❌ Failed to send ePIN delivery email to: {}", toEmail, e);
             log.error("Error type: {}", e.getClass().getName());
@@ -1504,122 +956,15 @@ public class EmailService {
         String appUrl = "http://localhost:3000";
         String supportEmail = "support@topuppro.com";
         
-        return String.format("""
-            <!DOCTYPE html>
-            <html>
-            <head>
-                <meta charset="UTF-8">
-                <meta name="viewport" content="width=device-width, initial-scale=1.0">
-                <style>
-                    body { font-family: 'Segoe UI', Tahoma, Geneva, Verdana, sans-serif; margin: 0; padding: 0; background-color: #f5f5f5; }
-                    .container { max-width: 600px; margin: 40px auto; background: white; border-radius: 16px; overflow: hidden; box-shadow: 0 4px 6px rgba(0,0,0,0.1); }
-                    .header { background: linear-gradient(135deg, #10b981 0%%, #059669 100%%); padding: 40px 20px; text-align: center; }
-                    .header-icon { font-size: 60px; margin-bottom: 10px; }
-                    .header h1 { color: white; margin: 0; font-size: 28px; font-weight: 600; }
-                    .content { padding: 40px 30px; }
-                    .greeting { font-size: 18px; color: #333; margin-bottom: 20px; }
-                    .success-message { background: #d1fae5; border-left: 4px solid #10b981; padding: 15px; margin: 20px 0; border-radius: 8px; }
-                    .success-message p { color: #065f46; margin: 0; font-weight: 500; }
-                    .pin-box { background: linear-gradient(135deg, #f0fdf4 0%%, #dcfce7 100%%); border: 2px dashed #10b981; border-radius: 12px; padding: 25px; margin: 25px 0; text-align: center; }
-                    .pin-label { color: #059669; font-size: 14px; font-weight: 600; text-transform: uppercase; letter-spacing: 1px; margin-bottom: 10px; }
-                    .pin-code { font-size: 32px; font-weight: bold; color: #047857; font-family: 'Courier New', monospace; letter-spacing: 3px; margin: 15px 0; padding: 15px; background: white; border-radius: 8px; }
-                    .order-details { background: #f9fafb; border-radius: 12px; padding: 20px; margin: 25px 0; }
-                    .detail-row { display: flex; justify-content: space-between; padding: 10px 0; border-bottom: 1px solid #e5e7eb; }
-                    .detail-row:last-child { border-bottom: none; }
-                    .detail-label { color: #6b7280; font-weight: 500; }
-                    .detail-value { color: #1f2937; font-weight: 600; }
-                    .instructions { background: #eff6ff; border-radius: 12px; padding: 20px; margin: 25px 0; }
-                    .instructions h3 { color: #1e40af; margin-top: 0; font-size: 18px; }
-                    .instruction-step { color: #1e40af; margin: 12px 0; padding-left: 25px; position: relative; }
-                    .instruction-step:before { content: "→"; position: absolute; left: 0; font-weight: bold; }
-                    .warning-box { background: #fef3c7; border: 2px solid #f59e0b; border-radius: 8px; padding: 15px; margin: 20px 0; }
-                    .warning-box p { color: #92400e; margin: 5px 0; font-size: 14px; }
-                    .cta-button { display: inline-block; background: linear-gradient(135deg, #10b981 0%%, #059669 100%%); color: white; text-decoration: none; padding: 14px 32px; border-radius: 8px; font-weight: 600; margin: 20px 0; transition: transform 0.2s; }
-                    .cta-button:hover { transform: translateY(-2px); }
-                    .footer { background: #f9fafb; padding: 30px; text-align: center; color: #6b7280; font-size: 14px; }
-                    .footer a { color: #059669; text-decoration: none; font-weight: 600; }
-                </style>
-            </head>
-            <body>
-                <div class="container">
-                    <div class="header">
-                        <div class="header-icon">🎉</div>
-                        <h1>Your ePIN is Ready!</h1>
-                    </div>
-                    
-                    <div class="content">
-                        <div class="greeting">Hi %s,</div>
-                        
-                        <div class="success-message">
-                            <p>✅ Your payment was successful! Your Lycamobile ePIN has been delivered instantly.</p>
-                        </div>
-                        
-                        <div class="pin-box">
-                            <div class="pin-label">Your ePIN Code</div>
-                            <div class="pin-code">%s</div>
-                            <p style="color: #059669; margin: 10px 0; font-size: 14px;">
-                                Keep this PIN safe and secure
-                            </p>
-                        </div>
-                        
-                        <div class="order-details">
-                            <h3 style="margin-top: 0; color: #1f2937;">Order Details</h3>
-                            <div class="detail-row">
-                                <span class="detail-label">Order Number:</span>
-                                <span class="detail-value">%s</span>
-                            </div>
-                            <div class="detail-row">
-                                <span class="detail-label">Product:</span>
-                                <span class="detail-value">%s</span>
-                            </div>
-                            <div class="detail-row">
-                                <span class="detail-label">Validity:</span>
-                                <span class="detail-value">%s</span>
-                            </div>
-                        </div>
-                        
-                        <div class="instructions">
-                            <h3>📱 How to Use Your ePIN</h3>
-                            <div class="instruction-step">Dial <strong>*131*</strong> + <strong>your PIN code</strong> + <strong>#</strong></div>
-                            <div class="instruction-step">Press the call button</div>
-                            <div class="instruction-step">Wait for confirmation SMS</div>
-                            <div class="instruction-step">Your bundle is activated!</div>
-                            <p style="color: #1e40af; margin-top: 15px; font-size: 14px;">
-                                <strong>Example:</strong> *131*%s#
-                            </p>
-                        </div>
-                        
-                        <div class="warning-box">
-                            <p><strong>⚠️ Important:</strong></p>
-                            <p>• Use this PIN only once to activate your bundle</p>
-                            <p>• Do not share your PIN with anyone</p>
-                            <p>• Valid for %s from purchase date</p>
-                        </div>
-                        
-                        <div style="text-align: center;">
-                            <a href="%s" class="cta-button">View My Orders</a>
-                        </div>
-                    </div>
-                    
-                    <div class="footer">
-                        <p>Need help? Contact us at <a href="mailto:%s">%s</a></p>
-                        <p style="margin-top: 10px;">Thank you for choosing TopUp Pro! 💚</p>
-                    </div>
-                </div>
-            </body>
-            </html>
-            """, 
-            customerName, 
-            pinCode,
-            orderNumber,
-            productName,
-            validity,
-            pinCode,
-            validity,
-            appUrl,
-            supportEmail,
-            supportEmail
-        );
+        Map<String, Object> model = new HashMap<>();
+        model.put("customerName", customerName);
+        model.put("pinCode", pinCode);
+        model.put("orderNumber", orderNumber);
+        model.put("productName", productName);
+        model.put("validity", validity);
+        model.put("appUrl", appUrl);
+        model.put("supportEmail", supportEmail);
+        return templateEngine.render("epin-delivery-email.html", model);
     }
 
     /**
@@ -1627,13 +972,6 @@ public class EmailService {
      */
     public void sendSuspensionEmail(String toEmail, String firstName, String reason) {
         try {
-            MimeMessage message = javaMailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-            
-            helper.setFrom(fromEmail);
-            helper.setTo(toEmail);
-            helper.setSubject("Account Suspended - " + appName);
-            
             String htmlContent = String.format("""
                 <!DOCTYPE html>
                 <html>
@@ -1688,11 +1026,11 @@ public class EmailService {
                 supportEmail
             );
             
-            helper.setText(htmlContent, true);
-            javaMailSender.send(message);
+            outboxService.enqueue(new EmailOutboxMessage("ACCOUNT_SUSPENDED", fromEmail, toEmail,
+                "Account Suspended - " + appName, htmlContent, true));
             
-            log.info("Suspension email sent to: {}", toEmail);
-        } catch (MessagingException e) {
+            log.info("Suspension email queued for: {}", toEmail);
+        } catch (Exception e) {
             log.error("Failed to send suspension email to {}: {}", toEmail, e.getMessage());
             throw new RuntimeException("Failed to send suspension email", e);
         }
@@ -1703,13 +1041,6 @@ public class EmailService {
      */
     public void sendActivationEmail(String toEmail, String firstName) {
         try {
-            MimeMessage message = javaMailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-            
-            helper.setFrom(fromEmail);
-            helper.setTo(toEmail);
-            helper.setSubject("Account Activated - " + appName);
-            
             String htmlContent = String.format("""
                 <!DOCTYPE html>
                 <html>
@@ -1759,11 +1090,11 @@ public class EmailService {
                 supportEmail
             );
             
-            helper.setText(htmlContent, true);
-            javaMailSender.send(message);
+            outboxService.enqueue(new EmailOutboxMessage("ACCOUNT_ACTIVATED", fromEmail, toEmail,
+                "Account Activated - " + appName, htmlContent, true));
             
-            log.info("Activation email sent to: {}", toEmail);
-        } catch (MessagingException e) {
+            log.info("Activation email queued for: {}", toEmail);
+        } catch (Exception e) {
             log.error("Failed to send activation email to {}: {}", toEmail, e.getMessage());
             throw new RuntimeException("Failed to send activation email", e);
         }
@@ -1778,389 +1109,26 @@ public class EmailService {
         try {
             log.info("Sending eSIM QR code email to: {}", toEmail);
             
-            MimeMessage message = javaMailSender.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
-            
-            helper.setFrom(fromEmail);
-            helper.setTo(toEmail);
-            helper.setSubject("Your eSIM is Ready - Telelys");
-            
             // Decode base64 QR code to bytes
             byte[] qrCodeBytes = java.util.Base64.getDecoder().decode(qrCodeBase64);
             
             // Create HTML email using Telelys template
-            String htmlContent = String.format("""
-                <!DOCTYPE html>
-                <html lang="en">
-                <head>
-                  <meta charset="UTF-8">
-                  <meta name="viewport" content="width=device-width, initial-scale=1.0">
-                  <title>Your eSIM is Ready - Telelys</title>
-                  <style>
-                    * {
-                      margin: 0;
-                      padding: 0;
-                      box-sizing: border-box;
-                    }
-                    body {
-                      font-family: 'Arial', 'Helvetica', sans-serif;
-                      line-height: 1.6;
-                      color: #333;
-                      background-color: #f5f5f5;
-                    }
-                    .container {
-                      max-width: 600px;
-                      margin: 20px auto;
-                      background: white;
-                      border-radius: 8px;
-                      box-shadow: 0 2px 8px rgba(0,0,0,0.1);
-                      overflow: hidden;
-                    }
-                    .header {
-                      background-color: #2563EB;
-                      color: white;
-                      padding: 30px;
-                      text-align: center;
-                    }
-                    .logo-text {
-                      font-size: 32px;
-                      font-weight: bold;
-                      margin-bottom: 10px;
-                    }
-                    .subheader {
-                      font-size: 18px;
-                      font-weight: 300;
-                    }
-                    .content {
-                      padding: 30px;
-                    }
-                    h1 {
-                      color: #1F2937;
-                      font-size: 24px;
-                      margin-bottom: 10px;
-                      font-weight: bold;
-                    }
-                    .intro {
-                      color: #666;
-                      margin-bottom: 25px;
-                      font-size: 16px;
-                    }
-                    h2 {
-                      color: #1F2937;
-                      font-size: 18px;
-                      margin-top: 25px;
-                      margin-bottom: 15px;
-                      font-weight: bold;
-                      border-bottom: 2px solid #2563EB;
-                      padding-bottom: 10px;
-                    }
-                    .info-box {
-                      background-color: #f9fafb;
-                      border-left: 4px solid #2563EB;
-                      padding: 15px;
-                      margin-bottom: 20px;
-                      border-radius: 4px;
-                    }
-                    .info-item {
-                      display: flex;
-                      justify-content: space-between;
-                      padding: 8px 0;
-                      border-bottom: 1px solid #e5e7eb;
-                    }
-                    .info-item:last-child {
-                      border-bottom: none;
-                    }
-                    .info-label {
-                      color: #6B7280;
-                      font-weight: 500;
-                    }
-                    .info-value {
-                      color: #1F2937;
-                      font-weight: bold;
-                      font-family: monospace;
-                    }
-                    .qr-section {
-                      text-align: center;
-                      margin: 25px 0;
-                    }
-                    .qr-label {
-                      font-weight: bold;
-                      color: #1F2937;
-                      margin-bottom: 15px;
-                      display: block;
-                    }
-                    .qr-image {
-                      max-width: 300px;
-                      border: 1px solid #e5e7eb;
-                      padding: 10px;
-                      border-radius: 4px;
-                    }
-                    .important-list {
-                      list-style: none;
-                      margin: 15px 0;
-                    }
-                    .important-list li {
-                      padding: 10px 0;
-                      padding-left: 25px;
-                      position: relative;
-                      color: #555;
-                    }
-                    .important-list li:before {
-                      content: "•";
-                      color: #2563EB;
-                      font-weight: bold;
-                      position: absolute;
-                      left: 0;
-                    }
-                    .steps {
-                      margin: 20px 0;
-                    }
-                    .step {
-                      margin-bottom: 20px;
-                      padding-left: 30px;
-                      position: relative;
-                    }
-                    .step-number {
-                      position: absolute;
-                      left: 0;
-                      top: 0;
-                      width: 24px;
-                      height: 24px;
-                      background: #2563EB;
-                      color: white;
-                      border-radius: 50%;
-                      display: flex;
-                      align-items: center;
-                      justify-content: center;
-                      font-size: 14px;
-                      font-weight: bold;
-                    }
-                    .step-title {
-                      font-weight: bold;
-                      color: #1F2937;
-                      margin-bottom: 5px;
-                    }
-                    .step-desc {
-                      color: #666;
-                      font-size: 14px;
-                      line-height: 1.5;
-                    }
-                    .activation-info {
-                      background-color: #f9fafb;
-                      border: 1px solid #e5e7eb;
-                      padding: 15px;
-                      margin: 15px 0;
-                      border-radius: 4px;
-                      font-size: 14px;
-                    }
-                    .activation-info p {
-                      margin: 8px 0;
-                    }
-                    .activation-label {
-                      font-weight: bold;
-                      color: #1F2937;
-                    }
-                    .activation-value {
-                      color: #666;
-                      word-break: break-all;
-                      font-family: monospace;
-                      background: white;
-                      padding: 5px;
-                      border-radius: 3px;
-                      display: inline-block;
-                      margin-top: 3px;
-                    }
-                    .warning {
-                      color: #D32F2F;
-                      font-weight: bold;
-                      margin: 10px 0;
-                    }
-                    .support-box {
-                      background-color: #FEF3C7;
-                      border-left: 4px solid #F59E0B;
-                      padding: 15px;
-                      margin: 20px 0;
-                      border-radius: 4px;
-                    }
-                    .support-title {
-                      font-weight: bold;
-                      color: #92400E;
-                      margin-bottom: 10px;
-                    }
-                    .support-item {
-                      color: #78350F;
-                      margin: 5px 0;
-                    }
-                    .email-footer {
-                      background-color: #1F2937;
-                      color: #9CA3AF;
-                      padding: 20px;
-                      text-align: center;
-                      font-size: 13px;
-                    }
-                    .footer-text {
-                      margin: 10px 0;
-                    }
-                    a {
-                      color: #2563EB;
-                      text-decoration: none;
-                    }
-                    a:hover {
-                      text-decoration: underline;
-                    }
-                    @media only screen and (max-width: 600px) {
-                      .container {
-                        margin: 10px;
-                      }
-                      .content {
-                        padding: 20px;
-                      }
-                      .qr-image {
-                        max-width: 200px;
-                      }
-                    }
-                  </style>
-                </head>
-                <body>
-                  <div class="container">
-                    <div class="header">
-                      <div class="logo-text">Telelys</div>
-                      <div class="subheader">Your eSIM is Ready!</div>
-                    </div>
-
-                    <div class="content">
-                      <h1>Thank you for choosing Telelys</h1>
-                      <p class="intro">You can find details of your eSIM and setup instructions below.</p>
-
-                      <h2>Your eSIM Information</h2>
-                      <div class="info-box">
-                        <div class="info-item">
-                          <span class="info-label">Date:</span>
-                          <span class="info-value">%s</span>
-                        </div>
-                        <div class="info-item">
-                          <span class="info-label">Order ID:</span>
-                          <span class="info-value">%s</span>
-                        </div>
-                        <div class="info-item">
-                          <span class="info-label">ICCID:</span>
-                          <span class="info-value">%s</span>
-                        </div>
-                        <div class="info-item">
-                          <span class="info-label">Provider:</span>
-                          <span class="info-value">%s</span>
-                        </div>
-                      </div>
-
-                      <h2>Important Notes Before Setting Up</h2>
-                      <ul class="important-list">
-                        <li>eSIM can only be installed when there is an internet connection.</li>
-                        <li>Please do not delete eSIM after activation. The eSIM QR code can only be activated once.</li>
-                        <li>eSIM cannot be transferred to another device after installation.</li>
-                      </ul>
-
-                      <h2>eSIM Setup Guide - For iOS</h2>
-                      <div class="steps">
-                        <div class="step">
-                          <div class="step-number">1</div>
-                          <div class="step-title">Go to Settings > Cellular (or Mobile Data)</div>
-                        </div>
-                        <div class="step">
-                          <div class="step-number">2</div>
-                          <div class="step-title">Click Add eSIM or Add Cellular Plan > Choose Use QR Code</div>
-                          <div class="step-desc">Scan the below QR or tap Enter Details Manually and enter the activation code.</div>
-                        </div>
-                        <div class="step">
-                          <div class="step-number">3</div>
-                          <div class="step-title">Activation Information</div>
-                          <div class="activation-info">
-                            <p><span class="activation-label">Activation Code:</span><br><span class="activation-value">%s</span></p>
-                          </div>
-                          <div class="warning">Don't delete eSIM after setting up</div>
-                        </div>
-                        <div class="step">
-                          <div class="step-number">4</div>
-                          <div class="step-title">Click Next to finish the installation</div>
-                        </div>
-                        <div class="step">
-                          <div class="step-number">5</div>
-                          <div class="step-title">SIM Registration Required</div>
-                          <div class="step-desc">Please <a href="https://www.lyca-mobile.no/en/registration/">click here to register your SIM</a></div>
-                        </div>
-                      </div>
-
-                      <div class="qr-section">
-                        <span class="qr-label">Scan this QR Code</span>
-                        <img src="cid:qrCodeImage" alt="eSIM QR Code" class="qr-image" />
-                      </div>
-
-                      <h2>eSIM Setup Guide - For Android</h2>
-                      <div class="steps">
-                        <div class="step">
-                          <div class="step-number">1</div>
-                          <div class="step-title">Go to Settings > Connections</div>
-                        </div>
-                        <div class="step">
-                          <div class="step-number">2</div>
-                          <div class="step-title">Choose Add eSIM > Choose Use QR Code</div>
-                          <div class="step-desc">Scan the below QR or tap Enter Details Manually and enter the activation code.</div>
-                        </div>
-                        <div class="step">
-                          <div class="step-number">3</div>
-                          <div class="step-title">Activation Information</div>
-                          <div class="activation-info">
-                            <p><span class="activation-label">Activation Code:</span><br><span class="activation-value">%s</span></p>
-                          </div>
-                          <div class="warning">Don't delete eSIM after setting up</div>
-                        </div>
-                        <div class="step">
-                          <div class="step-number">4</div>
-                          <div class="step-title">Click Next to finish the installation</div>
-                        </div>
-                        <div class="step">
-                          <div class="step-number">5</div>
-                          <div class="step-title">SIM Registration Required</div>
-                          <div class="step-desc">Please <a href="https://www.lyca-mobile.no/en/registration/">click here to register your SIM</a></div>
-                        </div>
-                      </div>
-
-                      <div class="support-box">
-                        <div class="support-title">Need Help?</div>
-                        <div class="support-item"><strong>WhatsApp:</strong> +47 (WhatsApp)</div>
-                        <div class="support-item"><strong>Email:</strong> %s</div>
-                        <p style="margin-top: 10px; color: #78350F; font-size: 14px;">If you encounter any problems, please contact Telelys for timely support.</p>
-                      </div>
-                    </div>
-
-                    <div class="email-footer">
-                      <div class="footer-text">&copy; 2026 Telelys. All rights reserved.</div>
-                      <div class="footer-text">
-                        <a href="https://www.lyca-mobile.no/" style="color: #9CA3AF;">Visit our website</a> | 
-                        <a href="https://www.lyca-mobile.no/en/registration/" style="color: #9CA3AF;">Register SIM</a>
-                      </div>
-                    </div>
-                  </div>
-                </body>
-                </html>
-                """,
-                java.time.LocalDate.now().toString(),
-                passportId,
-                iccid,
-                networkProvider,
-                activationCode != null && !activationCode.isEmpty() ? activationCode : "N/A",
-                activationCode != null && !activationCode.isEmpty() ? activationCode : "N/A",
-                supportEmail
-            );
-            
-            helper.setText(htmlContent, true);
-            
-            // Add QR code as inline attachment with Content-ID
-            helper.addInline("qrCodeImage", new jakarta.mail.util.ByteArrayDataSource(qrCodeBytes, "image/png"));
+            Map<String, Object> model = new HashMap<>();
+            model.put("date", java.time.LocalDate.now().toString());
+            model.put("passportId", passportId);
+            model.put("iccid", iccid);
+            model.put("networkProvider", networkProvider);
+            model.put("activationCode", activationCode != null && !activationCode.isEmpty() ? activationCode : "N/A");
+            model.put("supportEmail", supportEmail);
+            String htmlContent = templateEngine.render("esim-qr-code-email.html", model);
             
-            javaMailSender.send(message);
+            // QR code as inline attachment with Content-ID
+            outboxService.enqueue(new EmailOutboxMessage("ESIM_QR_CODE", fromEmail, toEmail,
+                "Your eSIM is Ready - Telelys", htmlContent, true)
+                .addInline("qrCodeImage", "image/png", qrCodeBytes));
             
-            log.info("✅ eSIM QR code email sent successfully to: {}", toEmail);
-        } catch (MessagingException e) {
+            log.info("✅ eSIM QR code email queued for: {}", toEmail);
+        } catch (IllegalArgumentException e) {
             log.error("❌ Failed to send eSIM QR code email to {}: {}", toEmail, e.getMessage());
             throw new RuntimeException("Failed to send eSIM QR code email", e);
         }
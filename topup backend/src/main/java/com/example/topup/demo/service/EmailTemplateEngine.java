@@ -0,0 +1,199 @@
+package com.example.topup.demo.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders the HTML email templates in classpath:templates.
+ *
+ * Each template is parsed once into a list of literal text segments and placeholders, and is
+ * rendered by appending those into a per-thread StringBuilder that is reused between emails.
+ * {{name}} inserts the HTML-escaped value; {{{name}}} inserts it as is, for prepared markup
+ * such as the QR code image tag. Missing values render as an empty string.
+ *
+ * With app.email.templates.hot-reload=true (for development) a template is re-parsed when its
+ * file has changed since it was compiled.
+ */
+@Component
+public class EmailTemplateEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailTemplateEngine.class);
+
+    private static final String LOCATION = "classpath:templates/";
+
+    // Buffers that grew past this (large inline images) are not kept for the next email
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(16 * 1024));
+
+    @Autowired
+    private EmailMetrics emailMetrics;
+
+    @Value("${app.email.templates.hot-reload:false}")
+    private boolean hotReload;
+
+    private final PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+
+    private final Map<String, Template> templates = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void precompile() {
+        try {
+            for (Resource resource : resolver.getResources(LOCATION + "*.html")) {
+                templates.put(resource.getFilename(), load(resource));
+            }
+            logger.info("Compiled {} email templates", templates.size());
+        } catch (IOException e) {
+            // Templates are then compiled on first use
+            logger.error("Failed to precompile email templates: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Render a template from classpath:templates. Throws IllegalStateException if it cannot be loaded.
+     */
+    public String render(String templateName, Map<String, ?> model) {
+        long start = System.nanoTime();
+        Template template = templates.get(templateName);
+        if (template == null || (hotReload && template.isStale())) {
+            template = load(resolver.getResource(LOCATION + templateName));
+            templates.put(templateName, template);
+        }
+        String rendered = template.render(model);
+        emailMetrics.recordRender(templateName, System.nanoTime() - start);
+        return rendered;
+    }
+
+    /**
+     * Parse a template held in code; keep the result and render it as often as needed.
+     */
+    public static Template compile(String source) {
+        return new Template(source, null, 0L);
+    }
+
+    public static String escape(String value) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement = switch (c) {
+                case '&' -> "&amp;";
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                case '"' -> "&quot;";
+                case '\'' -> "&#39;";
+                default -> null;
+            };
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped != null ? escaped.toString() : value;
+    }
+
+    private static Template load(Resource resource) {
+        try (InputStream inputStream = resource.getInputStream()) {
+            String source = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+            return new Template(source, resource, lastModified(resource));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load email template " + resource.getDescription(), e);
+        }
+    }
+
+    private static long lastModified(Resource resource) {
+        try {
+            return resource.lastModified();
+        } catch (IOException e) {
+            // Inside a jar; never reloaded
+            return 0L;
+        }
+    }
+
+    /**
+     * A parsed template: literals[i] is followed by placeholder i, and the last literal ends it.
+     */
+    public static final class Template {
+        private final String[] literals;
+        private final String[] names;
+        private final boolean[] raw;
+        private final Resource resource;
+        private final long lastModified;
+
+        private Template(String source, Resource resource, long lastModified) {
+            this.resource = resource;
+            this.lastModified = lastModified;
+
+            List<String> literalList = new ArrayList<>();
+            List<String> nameList = new ArrayList<>();
+            List<Boolean> rawList = new ArrayList<>();
+            int position = 0;
+            while (true) {
+                int open = source.indexOf("{{", position);
+                if (open < 0) {
+                    break;
+                }
+                boolean unescaped = source.startsWith("{{{", open);
+                String closing = unescaped ? "}}}" : "}}";
+                int close = source.indexOf(closing, open);
+                if (close < 0) {
+                    break;
+                }
+                literalList.add(source.substring(position, open));
+                nameList.add(source.substring(open + closing.length(), close).trim());
+                rawList.add(unescaped);
+                position = close + closing.length();
+            }
+            literalList.add(source.substring(position));
+
+            this.literals = literalList.toArray(new String[0]);
+            this.names = nameList.toArray(new String[0]);
+            this.raw = new boolean[rawList.size()];
+            for (int i = 0; i < raw.length; i++) {
+                raw[i] = rawList.get(i);
+            }
+        }
+
+        public String render(Map<String, ?> model) {
+            StringBuilder buffer = BUFFER.get();
+            buffer.setLength(0);
+            for (int i = 0; i < names.length; i++) {
+                buffer.append(literals[i]);
+                Object value = model.get(names[i]);
+                if (value != null) {
+                    buffer.append(raw[i] ? value.toString() : escape(value.toString()));
+                }
+            }
+            buffer.append(literals[names.length]);
+
+            String rendered = buffer.toString();
+            if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+                BUFFER.remove();
+            }
+            return rendered;
+        }
+
+        private boolean isStale() {
+            return resource != null && lastModified > 0 && lastModified(resource) != lastModified;
+        }
+    }
+}
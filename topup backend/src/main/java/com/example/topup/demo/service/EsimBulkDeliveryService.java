@@ -0,0 +1,440 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EmailOutboxMessage;
+import com.example.topup.demo.entity.EsimDeliveryBatch;
+import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.User;
+import com.example.topup.demo.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers eSIM QR codes to many customers in one request.
+ *
+ * submit() stores the batch and returns at once; a background thread then loads every pool
+ * named in the batch with a single _id $in query, indexes the items by itemId and ICCID, and for
+ * each recipient claims the item, records the sale, queues the QR code email in the outbox and
+ * finally takes the sold item out of the pool, as a single QR code sale does.
+ *
+ * An item is claimed with one conditional update, matching only while it is still AVAILABLE,
+ * that marks it ASSIGNED to the recipient (batchId:index) and moves the pool counters, so an eSIM
+ * that was sold or assigned meanwhile (or appears twice in the batch) fails that recipient instead
+ * of being delivered twice. If the sale cannot be recorded (or the retailer cannot pay), the item
+ * goes back to AVAILABLE, the recipient fails and no email is sent.
+ *
+ * With several instances, a batch is worked on by one of them at a time under an expiring lease,
+ * as in EsimFulfillmentService, and batches whose lease expired are taken over. Every step is safe
+ * to repeat after a takeover: the claim is found again by batchId:index, the sale is recorded under
+ * an order number derived from the batch and the recipient's position, so the charge and the order
+ * are not made twice, and the email is queued once per order number. A recipient whose item already
+ * left the pool is reconciled from its queued email.
+ *
+ * getBatch() reports each recipient's status; for queued emails it reads the outbox status with
+ * one $in query, so SENT and dead-lettered emails show up without the batch being rewritten.
+ */
+@Service
+public class EsimBulkDeliveryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(EsimBulkDeliveryService.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private EmailService emailService;
+
+    @Autowired
+    private EmailOutboxService emailOutboxService;
+
+    @Autowired
+    private EsimSaleService esimSaleService;
+
+    @Value("${app.esim-delivery.max-batch-size:200}")
+    private int maxBatchSize;
+
+    @Value("${app.esim-delivery.lease-minutes:5}")
+    private long leaseMinutes;
+
+    // Identifies this instance as the owner of the batches it works on
+    private final String instanceId = UUID.randomUUID().toString();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "esim-delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void start() {
+        // Takes over batches whose owner stopped renewing its lease, after a restart or on another instance
+        executor.scheduleWithFixedDelay(this::resumeExpired, 0, leaseMinutes, TimeUnit.MINUTES);
+    }
+
+    private void resumeExpired() {
+        try {
+            Query query = Query.query(Criteria.where("status").is(EsimDeliveryBatch.Status.PROCESSING)
+                    .orOperator(Criteria.where("leaseUntil").is(null), Criteria.where("leaseUntil").lte(LocalDateTime.now())));
+            query.fields().include("_id");
+            for (EsimDeliveryBatch batch : mongoTemplate.find(query, EsimDeliveryBatch.class)) {
+                process(batch.getId());
+            }
+        } catch (Exception e) {
+            logger.error("Resuming eSIM delivery batches failed: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Store the batch and start delivering it. Throws IllegalArgumentException for an empty or
+     * oversized batch, or an unknown retailer.
+     */
+    public EsimDeliveryBatch submit(String retailerEmail, List<EsimDeliveryBatch.Recipient> recipients) {
+        if (recipients == null || recipients.isEmpty()) {
+            throw new IllegalArgumentException("At least one recipient is required");
+        }
+        if (recipients.size() > maxBatchSize) {
+            throw new IllegalArgumentException("A batch can have at most " + maxBatchSize + " recipients");
+        }
+        if (userRepository.findByEmail(retailerEmail).isEmpty()) {
+            throw new IllegalArgumentException("Retailer user not found: " + retailerEmail);
+        }
+
+        EsimDeliveryBatch batch = new EsimDeliveryBatch(retailerEmail, recipients);
+        batch.setOwner(instanceId);
+        batch.setLeaseUntil(LocalDateTime.now().plusMinutes(leaseMinutes));
+        batch = mongoTemplate.insert(batch);
+        logger.info("eSIM delivery batch {} submitted by {} with {} recipient(s)", batch.getId(), retailerEmail, recipients.size());
+        schedule(batch.getId());
+        return batch;
+    }
+
+    /**
+     * The batch with per-recipient status, or null if it does not exist or belongs to another retailer.
+     */
+    public Map<String, Object> getBatch(String batchId, String retailerEmail) {
+        EsimDeliveryBatch batch = mongoTemplate.findById(batchId, EsimDeliveryBatch.class);
+        if (batch == null || !batch.getRetailerEmail().equals(retailerEmail)) {
+            return null;
+        }
+
+        List<String> emailIds = new ArrayList<>();
+        for (EsimDeliveryBatch.Recipient recipient : batch.getRecipients()) {
+            if (recipient.getStatus() == EsimDeliveryBatch.RecipientStatus.QUEUED && recipient.getEmailId() != null) {
+                emailIds.add(recipient.getEmailId());
+            }
+        }
+        Map<String, EmailOutboxMessage> emails = new HashMap<>();
+        if (!emailIds.isEmpty()) {
+            Query query = Query.query(Criteria.where("_id").in(emailIds));
+            query.fields().include("status", "lastError");
+            for (EmailOutboxMessage email : mongoTemplate.find(query, EmailOutboxMessage.class)) {
+                emails.put(email.getId(), email);
+            }
+        }
+
+        Map<EsimDeliveryBatch.RecipientStatus, Integer> counts = new EnumMap<>(EsimDeliveryBatch.RecipientStatus.class);
+        List<Map<String, Object>> recipients = new ArrayList<>();
+        for (EsimDeliveryBatch.Recipient recipient : batch.getRecipients()) {
+            EsimDeliveryBatch.RecipientStatus status = recipient.getStatus();
+            String error = recipient.getError();
+            EmailOutboxMessage email = recipient.getEmailId() != null ? emails.get(recipient.getEmailId()) : null;
+            if (status == EsimDeliveryBatch.RecipientStatus.QUEUED && email != null) {
+                if (email.getStatus() == EmailOutboxMessage.Status.SENT) {
+                    status = EsimDeliveryBatch.RecipientStatus.SENT;
+                } else if (email.getStatus() == EmailOutboxMessage.Status.DEAD) {
+                    status = EsimDeliveryBatch.RecipientStatus.FAILED;
+                    error = "Email could not be delivered: " + email.getLastError();
+                }
+            }
+            counts.merge(status, 1, Integer::sum);
+
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("customerEmail", recipient.getCustomerEmail());
+            item.put("customerName", recipient.getCustomerName());
+            item.put("iccid", recipient.getIccid());
+            item.put("poolId", recipient.getPoolId());
+            item.put("status", status);
+            item.put("orderNumber", recipient.getOrderNumber());
+            item.put("error", error);
+            recipients.add(item);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("batchId", batch.getId());
+        result.put("status", batch.getStatus());
+        result.put("total", batch.getRecipients().size());
+        for (EsimDeliveryBatch.RecipientStatus status : EsimDeliveryBatch.RecipientStatus.values()) {
+            result.put(status.name().toLowerCase(), counts.getOrDefault(status, 0));
+        }
+        result.put("createdAt", batch.getCreatedAt());
+        result.put("completedAt", batch.getCompletedAt());
+        result.put("recipients", recipients);
+        return result;
+    }
+
+    private void schedule(String batchId) {
+        executor.execute(() -> {
+            try {
+                process(batchId);
+            } catch (Exception e) {
+                // Left PROCESSING; taken over once its lease expires
+                logger.error("eSIM delivery batch {} failed: {}", batchId, e.getMessage());
+            }
+        });
+    }
+
+    private void process(String batchId) {
+        EsimDeliveryBatch batch = claimBatch(batchId);
+        if (batch == null) {
+            // Completed, or another instance holds a live lease
+            return;
+        }
+        long start = System.nanoTime();
+        User retailer = userRepository.findByEmail(batch.getRetailerEmail()).orElse(null);
+
+        // Every pool of the batch in one query, with its items indexed by itemId and ICCID
+        List<String> poolIds = batch.getRecipients().stream().map(EsimDeliveryBatch.Recipient::getPoolId).distinct().toList();
+        Map<String, StockPool> pools = new HashMap<>();
+        Map<String, Map<String, StockPool.StockItem>> itemIndex = new HashMap<>();
+        for (StockPool pool : mongoTemplate.find(Query.query(Criteria.where("_id").in(poolIds)), StockPool.class)) {
+            pools.put(pool.getId(), pool);
+            Map<String, StockPool.StockItem> items = new HashMap<>();
+            for (StockPool.StockItem item : pool.getItems()) {
+                if (item.getSerialNumber() != null) {
+                    items.put("iccid:" + item.getSerialNumber(), item);
+                }
+                if (item.getItemId() != null) {
+                    items.put("id:" + item.getItemId(), item);
+                }
+            }
+            itemIndex.put(pool.getId(), items);
+        }
+
+        List<EsimDeliveryBatch.Recipient> recipients = batch.getRecipients();
+        for (int i = 0; i < recipients.size(); i++) {
+            EsimDeliveryBatch.Recipient recipient = recipients.get(i);
+            if (recipient.getStatus() != EsimDeliveryBatch.RecipientStatus.PENDING) {
+                continue;
+            }
+            if (!renewLease(batchId)) {
+                logger.warn("eSIM delivery batch {} was taken over by another instance", batchId);
+                return;
+            }
+            try {
+                if (retailer == null) {
+                    throw new IllegalStateException("Retailer user not found: " + batch.getRetailerEmail());
+                }
+                deliver(retailer, batch.getRetailerEmail(), recipient, claimKey(batchId, i), orderNumber(batchId, i),
+                        pools.get(recipient.getPoolId()), itemIndex.getOrDefault(recipient.getPoolId(), Map.of()));
+            } catch (Exception e) {
+                recipient.setStatus(EsimDeliveryBatch.RecipientStatus.FAILED);
+                recipient.setError(e.getMessage());
+            }
+            String path = "recipients." + i + ".";
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(batchId)), new Update()
+                    .set(path + "status", recipient.getStatus())
+                    .set(path + "error", recipient.getError())
+                    .set(path + "iccid", recipient.getIccid())
+                    .set(path + "orderNumber", recipient.getOrderNumber())
+                    .set(path + "emailId", recipient.getEmailId()), EsimDeliveryBatch.class);
+        }
+
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(batchId).and("owner").is(instanceId)), new Update()
+                .set("status", EsimDeliveryBatch.Status.COMPLETED)
+                .set("completedAt", LocalDateTime.now())
+                .unset("leaseUntil"), EsimDeliveryBatch.class);
+        logger.info("eSIM delivery batch {} processed {} recipient(s) in {} ms",
+                batchId, recipients.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void deliver(User retailer, String retailerEmail, EsimDeliveryBatch.Recipient recipient, String claimKey,
+                         String orderNumber, StockPool pool, Map<String, StockPool.StockItem> items) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Stock pool not found with ID: " + recipient.getPoolId());
+        }
+        StockPool.StockItem item = recipient.getItemId() != null ? items.get("id:" + recipient.getItemId()) : null;
+        if (item == null && recipient.getIccid() != null) {
+            item = items.get("iccid:" + recipient.getIccid());
+        }
+        if (item == null) {
+            // Delivered by an attempt that stopped after taking the sold item out of the pool
+            String emailId = emailOutboxService.findQueued("ESIM_APPROVAL", orderNumber);
+            if (emailId != null) {
+                recipient.setOrderNumber(orderNumber);
+                recipient.setEmailId(emailId);
+                recipient.setStatus(EsimDeliveryBatch.RecipientStatus.QUEUED);
+                return;
+            }
+            throw new IllegalArgumentException("eSIM item not found with ICCID: " + recipient.getIccid()
+                    + " or ItemId: " + recipient.getItemId() + " in pool: " + pool.getId());
+        }
+        if (!claim(pool.getId(), item, claimKey, recipient.getCustomerEmail())) {
+            throw new IllegalStateException("eSIM " + recipient.getIccid() + " is no longer available");
+        }
+
+        String iccid = item.getSerialNumber() != null ? item.getSerialNumber() : recipient.getIccid();
+        String activationCode = "";
+        String smDpAddress = "";
+        byte[] qrCodePng = null;
+        if (item.getActivationCode() != null && !item.getActivationCode().isEmpty()) {
+            activationCode = stockService.decryptData(item.getActivationCode());
+        }
+        if (item.getQrCodeImage() != null && !item.getQrCodeImage().isEmpty()) {
+            qrCodePng = stockService.decryptQrCodePng(item.getQrCodeImage());
+        }
+        if (item.getActivationUrl() != null && !item.getActivationUrl().isEmpty()) {
+            smDpAddress = stockService.decryptData(item.getActivationUrl());
+        } else if (activationCode != null && activationCode.startsWith("LPA:")) {
+            // LPA:1$SM-DP-ADDRESS$ACTIVATION-CODE
+            String[] parts = activationCode.split("\\$");
+            if (parts.length >= 2) {
+                smDpAddress = parts[1];
+            }
+        }
+
+        // Nothing is emailed for a sale that was not charged and recorded; the eSIM goes back to stock.
+        // A sale already recorded under the order number by an interrupted attempt is returned as it is.
+        try {
+            RetailerOrder order = esimSaleService.recordPosSale(retailer, retailerEmail, pool, iccid,
+                    recipient.getCustomerName(), recipient.getCustomerEmail(), recipient.getPrice().doubleValue(),
+                    recipient.getPaymentMode(), orderNumber);
+            orderNumber = order.getOrderNumber();
+        } catch (Exception e) {
+            logger.error("Sale for eSIM {} to {} not recorded: {}", iccid, recipient.getCustomerEmail(), e.getMessage());
+            release(pool.getId(), item, claimKey);
+            throw new IllegalStateException("Sale not recorded: " + e.getMessage());
+        }
+        recipient.setOrderNumber(orderNumber);
+        recipient.setIccid(iccid);
+
+        recipient.setEmailId(emailService.sendEsimApprovalEmailWithQrImage(recipient.getCustomerEmail(),
+                recipient.getCustomerName(), orderNumber, iccid, qrCodePng, activationCode, smDpAddress,
+                recipient.getPrice().toPlainString() + " NOK", orderNumber));
+        recipient.setStatus(EsimDeliveryBatch.RecipientStatus.QUEUED);
+        removeSold(pool.getId(), item, claimKey);
+    }
+
+    /**
+     * Take the batch for this instance: it must be PROCESSING and either already ours or its lease
+     * must have expired. Returns null if another instance holds it.
+     */
+    private EsimDeliveryBatch claimBatch(String batchId) {
+        LocalDateTime now = LocalDateTime.now();
+        Query query = Query.query(Criteria.where("_id").is(batchId)
+                .and("status").is(EsimDeliveryBatch.Status.PROCESSING)
+                .orOperator(
+                        Criteria.where("owner").is(instanceId),
+                        Criteria.where("leaseUntil").is(null),
+                        Criteria.where("leaseUntil").lte(now)));
+        Update update = new Update()
+                .set("owner", instanceId)
+                .set("leaseUntil", now.plusMinutes(leaseMinutes));
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true),
+                EsimDeliveryBatch.class);
+    }
+
+    // Extend our lease; false if the batch was taken over
+    private boolean renewLease(String batchId) {
+        return mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(batchId).and("owner").is(instanceId)),
+                new Update().set("leaseUntil", LocalDateTime.now().plusMinutes(leaseMinutes)),
+                EsimDeliveryBatch.class).getModifiedCount() > 0;
+    }
+
+    // Mark the item ASSIGNED to the recipient if it is still AVAILABLE; also true if an interrupted
+    // attempt already did, false if someone else got it first
+    private boolean claim(String poolId, StockPool.StockItem item, String claimKey, String customerEmail) {
+        Query query = Query.query(Criteria.where("_id").is(poolId)
+                .and("items").elemMatch(itemCriteria(item).and("status").is(StockPool.StockItem.ItemStatus.AVAILABLE)));
+        Update update = new Update()
+                .set("items.$.status", StockPool.StockItem.ItemStatus.ASSIGNED)
+                .set("items.$.assignedDate", LocalDateTime.now())
+                .set("items.$.assignedToOrderId", claimKey)
+                .set("items.$.assignedToUserEmail", customerEmail)
+                .inc("availableQuantity", -1)
+                .inc("usedQuantity", 1);
+        if (mongoTemplate.updateFirst(query, update, StockPool.class).getModifiedCount() > 0) {
+            return true;
+        }
+        return mongoTemplate.exists(assignedQuery(poolId, item, claimKey), StockPool.class);
+    }
+
+    // Return an item claimed for a sale that did not go through, if it is still assigned to the recipient
+    private void release(String poolId, StockPool.StockItem item, String claimKey) {
+        Update update = new Update()
+                .set("items.$.status", StockPool.StockItem.ItemStatus.AVAILABLE)
+                .unset("items.$.assignedDate")
+                .unset("items.$.assignedToOrderId")
+                .unset("items.$.assignedToUserEmail")
+                .inc("availableQuantity", 1)
+                .inc("usedQuantity", -1);
+        if (mongoTemplate.updateFirst(assignedQuery(poolId, item, claimKey), update, StockPool.class).getModifiedCount() == 0) {
+            logger.error("eSIM {} could not be returned to pool {}", claimKey, poolId);
+        }
+    }
+
+    // The sold item leaves the pool; its counters moved when it was claimed
+    private void removeSold(String poolId, StockPool.StockItem item, String claimKey) {
+        String key = item.getItemId() != null ? "itemId" : "serialNumber";
+        String value = item.getItemId() != null ? item.getItemId() : item.getSerialNumber();
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(poolId)),
+                new Update().pull("items", new Document(key, value).append("assignedToOrderId", claimKey)),
+                StockPool.class);
+    }
+
+    private static Query assignedQuery(String poolId, StockPool.StockItem item, String claimKey) {
+        return Query.query(Criteria.where("_id").is(poolId)
+                .and("items").elemMatch(itemCriteria(item).and("assignedToOrderId").is(claimKey)
+                        .and("status").is(StockPool.StockItem.ItemStatus.ASSIGNED)));
+    }
+
+    private static Criteria itemCriteria(StockPool.StockItem item) {
+        return item.getItemId() != null
+                ? Criteria.where("itemId").is(item.getItemId())
+                : Criteria.where("serialNumber").is(item.getSerialNumber());
+    }
+
+    // Items are assigned to the recipient's position in the batch
+    private static String claimKey(String batchId, int index) {
+        return batchId + ":" + index;
+    }
+
+    // The same for every attempt at a recipient, so a resumed batch finds the sale and email it made before
+    private static String orderNumber(String batchId, int index) {
+        return "eSIM-" + batchId.toUpperCase() + "-" + (index + 1);
+    }
+}
@@ -0,0 +1,573 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EmailOutboxMessage;
+import com.example.topup.demo.entity.EsimFulfillmentJob;
+import com.example.topup.demo.entity.EsimOrderRequest;
+import com.example.topup.demo.entity.StockPool;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Approves many eSIM order requests in the background.
+ *
+ * A job first moves the requests from PENDING to FULFILLING in one update and stamps them with
+ * its id, so a request is never fulfilled by two jobs. Stock is then allocated for all of them together: the active eSIM pools
+ * are read once, an available item is picked for each request, and all items are claimed in one
+ * unordered bulk write whose filters only match items that are still AVAILABLE. A single query
+ * for items assigned to the requests' order numbers tells which claims won; requests that lost a
+ * race get another round with fresh stock. Each request is then charged to the retailer if one
+ * is given, approved, recorded as a sale and its approval email is queued in the outbox; a request
+ * the retailer cannot pay for goes back to PENDING and its eSIM back to stock.
+ *
+ * Progress is written to the job after every step, and queued emails are resolved to SENT or
+ * failed from the outbox when the job is read.
+ *
+ * With several instances, a job is worked on by one of them at a time: the instance claims it with
+ * findAndModify and holds an expiring lease that it renews between requests. Every instance looks
+ * for jobs whose lease expired and takes them over. Each step is safe to repeat after a takeover:
+ * stock claims are found again by order number, the charge is keyed by the request id, the
+ * approval only applies to a request still FULFILLING for this job, and the sale and the approval
+ * email are recorded once per order number. A request approved before the takeover but without
+ * its email yet is picked up again for the remaining steps.
+ */
+@Service
+public class EsimFulfillmentService {
+
+    private static final Logger logger = LoggerFactory.getLogger(EsimFulfillmentService.class);
+
+    public static final String STATUS_FULFILLING = "FULFILLING";
+
+    private static final int CLAIM_ROUNDS = 3;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private EmailService emailService;
+
+    @Autowired
+    private EsimSaleService esimSaleService;
+
+    @Autowired
+    private RevenueRollupService revenueRollupService;
+
+    @Value("${app.esim-fulfillment.max-batch-size:500}")
+    private int maxBatchSize;
+
+    @Value("${app.esim-fulfillment.lease-minutes:5}")
+    private long leaseMinutes;
+
+    // Identifies this instance as the owner of the jobs it works on
+    private final String instanceId = UUID.randomUUID().toString();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "esim-fulfillment");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void start() {
+        // Takes over jobs whose owner stopped renewing its lease, after a restart or on another instance
+        executor.scheduleWithFixedDelay(this::resumeExpired, 0, leaseMinutes, TimeUnit.MINUTES);
+    }
+
+    private void resumeExpired() {
+        try {
+            Query query = Query.query(Criteria.where("status").is(EsimFulfillmentJob.Status.PROCESSING)
+                    .orOperator(Criteria.where("leaseUntil").is(null), Criteria.where("leaseUntil").lte(LocalDateTime.now())));
+            query.fields().include("_id");
+            for (EsimFulfillmentJob job : mongoTemplate.find(query, EsimFulfillmentJob.class)) {
+                process(job.getId());
+            }
+        } catch (Exception e) {
+            logger.error("Resuming eSIM fulfillment jobs failed: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Start approving the requests. Throws IllegalArgumentException for an empty or oversized list.
+     */
+    public EsimFulfillmentJob submit(List<String> requestIds, String adminEmail, String retailerId) {
+        if (requestIds == null || requestIds.isEmpty()) {
+            throw new IllegalArgumentException("At least one request ID is required");
+        }
+        List<String> ids = new ArrayList<>(new LinkedHashSet<>(requestIds));
+        if (ids.size() > maxBatchSize) {
+            throw new IllegalArgumentException("At most " + maxBatchSize + " requests can be approved at once");
+        }
+
+        List<EsimFulfillmentJob.Result> results = new ArrayList<>();
+        for (String id : ids) {
+            results.add(new EsimFulfillmentJob.Result(id));
+        }
+        EsimFulfillmentJob job = new EsimFulfillmentJob(adminEmail, retailerId, results);
+        job.setOwner(instanceId);
+        job.setLeaseUntil(LocalDateTime.now().plusMinutes(leaseMinutes));
+        job = mongoTemplate.insert(job);
+
+        // Take the requests off the queue now, so the admin list reflects the job straight away
+        mongoTemplate.updateMulti(Query.query(Criteria.where("_id").in(ids).and("status").is("PENDING")),
+                new Update().set("status", STATUS_FULFILLING).set("fulfillmentJobId", job.getId()),
+                EsimOrderRequest.class);
+
+        logger.info("eSIM fulfillment job {} submitted by {} for {} request(s)", job.getId(), adminEmail, ids.size());
+        schedule(job.getId());
+        return job;
+    }
+
+    /**
+     * The job with counts per step and the progress of each request, or null if it does not exist.
+     */
+    public Map<String, Object> getProgress(String jobId) {
+        EsimFulfillmentJob job = mongoTemplate.findById(jobId, EsimFulfillmentJob.class);
+        if (job == null) {
+            return null;
+        }
+
+        List<String> emailIds = new ArrayList<>();
+        for (EsimFulfillmentJob.Result result : job.getResults()) {
+            if (result.getStep() == EsimFulfillmentJob.Step.EMAIL_QUEUED && result.getEmailId() != null) {
+                emailIds.add(result.getEmailId());
+            }
+        }
+        Map<String, EmailOutboxMessage> emails = new HashMap<>();
+        if (!emailIds.isEmpty()) {
+            Query query = Query.query(Criteria.where("_id").in(emailIds));
+            query.fields().include("status", "lastError");
+            for (EmailOutboxMessage email : mongoTemplate.find(query, EmailOutboxMessage.class)) {
+                emails.put(email.getId(), email);
+            }
+        }
+
+        Map<EsimFulfillmentJob.Step, Integer> counts = new EnumMap<>(EsimFulfillmentJob.Step.class);
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (EsimFulfillmentJob.Result result : job.getResults()) {
+            EsimFulfillmentJob.Step step = result.getStep();
+            String error = result.getError();
+            EmailOutboxMessage email = result.getEmailId() != null ? emails.get(result.getEmailId()) : null;
+            if (step == EsimFulfillmentJob.Step.EMAIL_QUEUED && email != null) {
+                if (email.getStatus() == EmailOutboxMessage.Status.SENT) {
+                    step = EsimFulfillmentJob.Step.EMAIL_SENT;
+                } else if (email.getStatus() == EmailOutboxMessage.Status.DEAD) {
+                    // The eSIM stays approved; the undelivered email can be requeued from the dead-letter list
+                    error = "Approval email could not be delivered: " + email.getLastError();
+                }
+            }
+            counts.merge(step, 1, Integer::sum);
+
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("requestId", result.getRequestId());
+            item.put("orderNumber", result.getOrderNumber());
+            item.put("step", step);
+            item.put("esimSerial", result.getEsimSerial());
+            item.put("error", error);
+            results.add(item);
+        }
+
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("jobId", job.getId());
+        progress.put("status", job.getStatus());
+        progress.put("total", job.getResults().size());
+        for (EsimFulfillmentJob.Step step : EsimFulfillmentJob.Step.values()) {
+            progress.put(step.name().toLowerCase(), counts.getOrDefault(step, 0));
+        }
+        progress.put("createdAt", job.getCreatedAt());
+        progress.put("completedAt", job.getCompletedAt());
+        progress.put("results", results);
+        return progress;
+    }
+
+    private void schedule(String jobId) {
+        executor.execute(() -> {
+            try {
+                process(jobId);
+            } catch (Exception e) {
+                // Left PROCESSING; taken over once its lease expires
+                logger.error("eSIM fulfillment job {} failed: {}", jobId, e.getMessage());
+            }
+        });
+    }
+
+    private void process(String jobId) {
+        EsimFulfillmentJob job = claim(jobId);
+        if (job == null) {
+            // Completed, or another instance holds a live lease
+            return;
+        }
+        long start = System.nanoTime();
+
+        List<String> pendingIds = new ArrayList<>();
+        for (EsimFulfillmentJob.Result result : job.getResults()) {
+            if (unfinished(result)) {
+                pendingIds.add(result.getRequestId());
+            }
+        }
+        // Requests approved by this job before a takeover still need their sale and email
+        Map<String, EsimOrderRequest> requests = new HashMap<>();
+        for (EsimOrderRequest request : mongoTemplate.find(Query.query(Criteria.where("_id").in(pendingIds)
+                .and("fulfillmentJobId").is(jobId)
+                .and("status").in(STATUS_FULFILLING, "APPROVED")), EsimOrderRequest.class)) {
+            requests.put(request.getId(), request);
+        }
+
+        Map<String, Assignment> assignments = allocate(new ArrayList<>(requests.values()));
+
+        List<EsimFulfillmentJob.Result> results = job.getResults();
+        for (int i = 0; i < results.size(); i++) {
+            EsimFulfillmentJob.Result result = results.get(i);
+            if (!unfinished(result)) {
+                continue;
+            }
+            if (!renewLease(jobId)) {
+                logger.warn("eSIM fulfillment job {} was taken over by another instance", jobId);
+                return;
+            }
+            EsimOrderRequest request = requests.get(result.getRequestId());
+            if (request == null) {
+                result.setStep(EsimFulfillmentJob.Step.FAILED);
+                result.setError("Request not found or not pending");
+                saveResult(jobId, i, result);
+                continue;
+            }
+            result.setOrderNumber(request.getOrderNumber());
+            Assignment assignment = assignments.get(orderKey(request));
+            if (assignment == null && "APPROVED".equals(request.getStatus())) {
+                result.setStep(EsimFulfillmentJob.Step.FAILED);
+                result.setError("Approved, but its assigned eSIM was not found; email not sent");
+                saveResult(jobId, i, result);
+                continue;
+            }
+            if (assignment == null) {
+                // Back on the queue for a later approval
+                returnToQueue(request, jobId);
+                result.setStep(EsimFulfillmentJob.Step.FAILED);
+                result.setError("No available eSIMs in stock");
+                saveResult(jobId, i, result);
+                continue;
+            }
+            try {
+                fulfill(job, request, assignment, result, i);
+            } catch (Exception e) {
+                logger.error("eSIM fulfillment of request {} failed: {}", request.getId(), e.getMessage());
+                result.setError(e.getMessage());
+                if (result.getStep() == EsimFulfillmentJob.Step.PENDING) {
+                    result.setStep(EsimFulfillmentJob.Step.FAILED);
+                }
+                saveResult(jobId, i, result);
+            }
+        }
+
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(jobId).and("owner").is(instanceId)), new Update()
+                .set("status", EsimFulfillmentJob.Status.COMPLETED)
+                .set("completedAt", LocalDateTime.now())
+                .unset("leaseUntil"), EsimFulfillmentJob.class);
+        logger.info("eSIM fulfillment job {} processed {} request(s) in {} ms",
+                jobId, results.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void fulfill(EsimFulfillmentJob job, EsimOrderRequest request, Assignment assignment,
+                         EsimFulfillmentJob.Result result, int index) {
+        StockPool.StockItem item = assignment.item();
+        boolean hasRetailer = job.getRetailerId() != null && !job.getRetailerId().isEmpty();
+
+        if (!"APPROVED".equals(request.getStatus())) {
+            // Charge before approving; a retailer that cannot pay gets neither the eSIM nor the approval
+            if (hasRetailer) {
+                try {
+                    esimSaleService.chargeApprovedRequest(request, job.getRetailerId());
+                } catch (IllegalStateException e) {
+                    release(assignment, request);
+                    returnToQueue(request, job.getId());
+                    throw e;
+                }
+            }
+
+            // Only a request this job still holds is approved, so a concurrent change is never overwritten
+            boolean approved = approve(Criteria.where("_id").is(request.getId())
+                            .and("status").is(STATUS_FULFILLING)
+                            .and("fulfillmentJobId").is(job.getId()),
+                    request, assignment, job.getAdminEmail());
+            if (!approved) {
+                EsimOrderRequest current = mongoTemplate.findById(request.getId(), EsimOrderRequest.class);
+                // A charge made by whoever approved it instead shares the request key, so it is kept
+                if (hasRetailer && (current == null || !"APPROVED".equals(current.getStatus()))) {
+                    esimSaleService.refundApprovedRequest(request, job.getRetailerId());
+                }
+                release(assignment, request);
+                throw new IllegalStateException("Request was changed while it was being fulfilled");
+            }
+        }
+        // The approval is a plain update, so no save event counts it; idempotent on a resumed job
+        revenueRollupService.statusChanged(request);
+
+        result.setStep(EsimFulfillmentJob.Step.APPROVED);
+        result.setEsimSerial(item.getSerialNumber());
+        saveResult(job.getId(), index, result);
+
+        if (hasRetailer) {
+            esimSaleService.recordApprovedRequestSale(request, assignment.poolId(), job.getRetailerId());
+        }
+
+        String activationCode = "";
+        String smDpAddress = "";
+        if (item.getActivationCode() != null && !item.getActivationCode().isEmpty()) {
+            activationCode = stockService.decryptData(item.getActivationCode());
+        }
+        if (item.getActivationUrl() != null && !item.getActivationUrl().isEmpty()) {
+            smDpAddress = stockService.decryptData(item.getActivationUrl());
+        } else if (activationCode != null && activationCode.startsWith("LPA:")) {
+            // LPA:1$SM-DP-ADDRESS$ACTIVATION-CODE
+            String[] parts = activationCode.split("\\$");
+            if (parts.length >= 2) {
+                smDpAddress = parts[1];
+            }
+        }
+        byte[] qrCodePng = item.getQrCodeImage() != null && !item.getQrCodeImage().isEmpty()
+                ? stockService.decryptQrCodePng(item.getQrCodeImage())
+                : null;
+
+        // Keyed by order, so an email queued just before a crash is not queued twice
+        result.setEmailId(emailService.sendEsimApprovalEmailWithQrImage(request.getCustomerEmail(),
+                request.getCustomerFullName(), request.getOrderNumber(), item.getSerialNumber(), qrCodePng,
+                activationCode, smDpAddress, null, orderKey(request)));
+        result.setStep(EsimFulfillmentJob.Step.EMAIL_QUEUED);
+        saveResult(job.getId(), index, result);
+    }
+
+    /**
+     * Claim an available eSIM for a single approval, with the same conditional update a job uses.
+     * Returns null if none is left.
+     */
+    public Assignment claimStock(EsimOrderRequest request) {
+        return allocate(List.of(request)).get(orderKey(request));
+    }
+
+    /**
+     * Approve a single request with the eSIM claimed for it, only while it is still PENDING.
+     * Returns false, changing nothing, if it was approved or taken by a job in the meantime.
+     */
+    public boolean approvePending(EsimOrderRequest request, Assignment assignment, String adminEmail) {
+        if (!approve(Criteria.where("_id").is(request.getId()).and("status").is("PENDING"),
+                request, assignment, adminEmail)) {
+            return false;
+        }
+        // A plain update, so no save event counts it
+        revenueRollupService.statusChanged(request);
+        return true;
+    }
+
+    // Set the request APPROVED with its eSIM if it still matches the criteria, and mirror that on the object
+    private boolean approve(Criteria holder, EsimOrderRequest request, Assignment assignment, String adminEmail) {
+        StockPool.StockItem item = assignment.item();
+        LocalDateTime now = LocalDateTime.now();
+        boolean approved = mongoTemplate.updateFirst(Query.query(holder),
+                new Update()
+                        .set("status", "APPROVED")
+                        .set("approvedDate", now)
+                        .set("approvedByAdmin", adminEmail)
+                        .set("assignedEsimSerial", item.getSerialNumber())
+                        .set("assignedEsimQrCode", item.getQrCodeImage())
+                        .set("productId", assignment.poolId()),
+                EsimOrderRequest.class).getModifiedCount() > 0;
+        if (approved) {
+            request.setStatus("APPROVED");
+            request.setApprovedDate(now);
+            request.setApprovedByAdmin(adminEmail);
+            request.setAssignedEsimSerial(item.getSerialNumber());
+            request.setAssignedEsimQrCode(item.getQrCodeImage());
+            request.setProductId(assignment.poolId());
+        }
+        return approved;
+    }
+
+    // Not started yet, or approved by an attempt that stopped before its email was queued
+    private static boolean unfinished(EsimFulfillmentJob.Result result) {
+        return result.getStep() == EsimFulfillmentJob.Step.PENDING
+                || (result.getStep() == EsimFulfillmentJob.Step.APPROVED && result.getEmailId() == null);
+    }
+
+    /**
+     * Assign an available eSIM to each request, claiming the items in one bulk write per round.
+     * Returns the assignments by order key; requests missing from it got no stock.
+     */
+    private Map<String, Assignment> allocate(List<EsimOrderRequest> requests) {
+        List<String> keys = requests.stream().map(EsimFulfillmentService::orderKey).toList();
+        // Claims made before a restart are found here too
+        Map<String, Assignment> assignments = findAssignments(keys);
+
+        for (int round = 0; round < CLAIM_ROUNDS; round++) {
+            List<EsimOrderRequest> unassigned = requests.stream()
+                    .filter(request -> !assignments.containsKey(orderKey(request)))
+                    .toList();
+            if (unassigned.isEmpty()) {
+                break;
+            }
+
+            Query poolQuery = Query.query(Criteria.where("stockType").is(StockPool.StockType.ESIM)
+                    .and("status").is(StockPool.StockStatus.ACTIVE));
+            BulkOperations claims = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StockPool.class);
+            int claimCount = 0;
+            LocalDateTime now = LocalDateTime.now();
+            outer:
+            for (StockPool pool : mongoTemplate.find(poolQuery, StockPool.class)) {
+                for (StockPool.StockItem item : pool.getItems()) {
+                    if (claimCount == unassigned.size()) {
+                        break outer;
+                    }
+                    if (item.getStatus() != StockPool.StockItem.ItemStatus.AVAILABLE
+                            || (item.getItemId() == null && item.getSerialNumber() == null)) {
+                        continue;
+                    }
+                    EsimOrderRequest request = unassigned.get(claimCount++);
+                    claims.updateOne(claimQuery(pool.getId(), item), new Update()
+                            .set("items.$.status", StockPool.StockItem.ItemStatus.ASSIGNED)
+                            .set("items.$.assignedDate", now)
+                            .set("items.$.assignedToOrderId", orderKey(request))
+                            .set("items.$.assignedToUserEmail", request.getCustomerEmail())
+                            .inc("availableQuantity", -1)
+                            .inc("usedQuantity", 1));
+                }
+            }
+            if (claimCount == 0) {
+                break;
+            }
+            claims.execute();
+            assignments.putAll(findAssignments(keys));
+        }
+        return assignments;
+    }
+
+    private Map<String, Assignment> findAssignments(List<String> keys) {
+        Map<String, Assignment> assignments = new HashMap<>();
+        if (keys.isEmpty()) {
+            return assignments;
+        }
+        Set<String> wanted = new HashSet<>(keys);
+        Query query = Query.query(Criteria.where("items").elemMatch(Criteria.where("assignedToOrderId").in(keys)
+                .and("status").is(StockPool.StockItem.ItemStatus.ASSIGNED)));
+        for (StockPool pool : mongoTemplate.find(query, StockPool.class)) {
+            for (StockPool.StockItem item : pool.getItems()) {
+                if (item.getStatus() == StockPool.StockItem.ItemStatus.ASSIGNED && item.getAssignedToOrderId() != null
+                        && wanted.contains(item.getAssignedToOrderId())) {
+                    assignments.putIfAbsent(item.getAssignedToOrderId(), new Assignment(pool.getId(), item));
+                }
+            }
+        }
+        return assignments;
+    }
+
+    /**
+     * Take the job for this instance: it must be PROCESSING and either already ours or its lease
+     * must have expired. Returns null if another instance holds it.
+     */
+    private EsimFulfillmentJob claim(String jobId) {
+        LocalDateTime now = LocalDateTime.now();
+        Query query = Query.query(Criteria.where("_id").is(jobId)
+                .and("status").is(EsimFulfillmentJob.Status.PROCESSING)
+                .orOperator(
+                        Criteria.where("owner").is(instanceId),
+                        Criteria.where("leaseUntil").is(null),
+                        Criteria.where("leaseUntil").lte(now)));
+        Update update = new Update()
+                .set("owner", instanceId)
+                .set("leaseUntil", now.plusMinutes(leaseMinutes));
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true),
+                EsimFulfillmentJob.class);
+    }
+
+    // Extend our lease; false if the job was taken over
+    private boolean renewLease(String jobId) {
+        return mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(jobId).and("owner").is(instanceId)),
+                new Update().set("leaseUntil", LocalDateTime.now().plusMinutes(leaseMinutes)),
+                EsimFulfillmentJob.class).getModifiedCount() > 0;
+    }
+
+    // Back on the queue, if this job still holds the request
+    private void returnToQueue(EsimOrderRequest request, String jobId) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(request.getId())
+                        .and("status").is(STATUS_FULFILLING)
+                        .and("fulfillmentJobId").is(jobId)),
+                new Update().set("status", "PENDING").unset("fulfillmentJobId"), EsimOrderRequest.class);
+    }
+
+    // Put a claimed item back in stock, if it is still assigned to this request
+    public void release(Assignment assignment, EsimOrderRequest request) {
+        StockPool.StockItem item = assignment.item();
+        Criteria itemCriteria = item.getItemId() != null
+                ? Criteria.where("itemId").is(item.getItemId())
+                : Criteria.where("serialNumber").is(item.getSerialNumber());
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(assignment.poolId())
+                        .and("items").elemMatch(itemCriteria.and("assignedToOrderId").is(orderKey(request))
+                                .and("status").is(StockPool.StockItem.ItemStatus.ASSIGNED))),
+                new Update()
+                        .set("items.$.status", StockPool.StockItem.ItemStatus.AVAILABLE)
+                        .unset("items.$.assignedDate")
+                        .unset("items.$.assignedToOrderId")
+                        .unset("items.$.assignedToUserEmail")
+                        .inc("availableQuantity", 1)
+                        .inc("usedQuantity", -1),
+                StockPool.class);
+    }
+
+    // Matches the item only while it is still AVAILABLE, so a lost race modifies nothing
+    private static Query claimQuery(String poolId, StockPool.StockItem item) {
+        Criteria itemCriteria = item.getItemId() != null
+                ? Criteria.where("itemId").is(item.getItemId())
+                : Criteria.where("serialNumber").is(item.getSerialNumber());
+        return Query.query(Criteria.where("_id").is(poolId)
+                .and("items").elemMatch(itemCriteria.and("status").is(StockPool.StockItem.ItemStatus.AVAILABLE)));
+    }
+
+    // Items are assigned to the order number, as in the single approval
+    private static String orderKey(EsimOrderRequest request) {
+        return request.getOrderNumber() != null ? request.getOrderNumber() : request.getId();
+    }
+
+    private void saveResult(String jobId, int index, EsimFulfillmentJob.Result result) {
+        String path = "results." + index + ".";
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(jobId)), new Update()
+                .set(path + "orderNumber", result.getOrderNumber())
+                .set(path + "step", result.getStep())
+                .set(path + "esimSerial", result.getEsimSerial())
+                .set(path + "emailId", result.getEmailId())
+                .set(path + "error", result.getError()), EsimFulfillmentJob.class);
+    }
+
+    public record Assignment(String poolId, StockPool.StockItem item) {}
+}
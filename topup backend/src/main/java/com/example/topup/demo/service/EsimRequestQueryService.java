@@ -0,0 +1,213 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EsimOrderRequest;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paged reads of eSIM order requests, newest first.
+ *
+ * Pages are keyset-paginated on (requestDate, _id) descending: the cursor is the position of the
+ * last request on the previous page, so every page is an index range scan of the page size
+ * (status_request_date_id_idx / request_date_id_idx / customer_email_request_date_idx) however
+ * deep the admin or customer scrolls.
+ *
+ * A customer's order summary (counts per status, amount spent, last order) is computed with one
+ * aggregation over that customer's requests and cached. Saving one of the customer's requests
+ * evicts it; changes made with plain updates show up within the cache TTL.
+ */
+@Service
+public class EsimRequestQueryService {
+
+    public static final int MAX_PAGE_SIZE = 200;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${app.customer-history.summary-ttl-seconds:300}")
+    private long summaryTtlSeconds;
+
+    private Cache<String, Map<String, Object>> customerSummaries;
+
+    @PostConstruct
+    public void init() {
+        customerSummaries = Caffeine.newBuilder()
+                .maximumSize(10_000)
+                .expireAfterWrite(Duration.ofSeconds(summaryTtlSeconds))
+                .build();
+    }
+
+    @EventListener
+    public void onAfterSave(AfterSaveEvent<?> event) {
+        if (event.getSource() instanceof EsimOrderRequest request && request.getCustomerEmail() != null) {
+            customerSummaries.invalidate(request.getCustomerEmail());
+        }
+    }
+
+    /**
+     * One page of requests, optionally with the given status, plus the number of requests per status.
+     */
+    public Map<String, Object> listRequests(String status, String cursor, int size) {
+        Criteria criteria = new Criteria();
+        if (status != null && !status.isEmpty()) {
+            criteria = Criteria.where("status").is(status);
+        }
+
+        Map<String, Object> result = page(criteria, cursor, size);
+
+        // Counts for the status tabs from one $group
+        TypedAggregation<EsimOrderRequest> aggregation = Aggregation.newAggregation(EsimOrderRequest.class,
+                Aggregation.group("status").count().as("count"));
+        Map<String, Long> counts = new HashMap<>();
+        long total = 0;
+        for (Document group : mongoTemplate.aggregate(aggregation, Document.class).getMappedResults()) {
+            long count = group.get("count") instanceof Number number ? number.longValue() : 0L;
+            counts.put(String.valueOf(group.get("_id")), count);
+            total += count;
+        }
+        result.put("counts", counts);
+        result.put("totalCount", status != null && !status.isEmpty() ? counts.getOrDefault(status, 0L) : total);
+        return result;
+    }
+
+    /**
+     * One page of a customer's requests, newest first, with the customer's cached order summary.
+     */
+    public Map<String, Object> customerHistory(String customerEmail, String cursor, int size) {
+        Map<String, Object> result = page(Criteria.where("customerEmail").is(customerEmail), cursor, size);
+        Map<String, Object> summary = customerSummary(customerEmail);
+        result.put("summary", summary);
+        result.put("totalCount", summary.get("totalOrders"));
+        return result;
+    }
+
+    public Map<String, Object> customerSummary(String customerEmail) {
+        return customerSummaries.get(customerEmail, this::computeCustomerSummary);
+    }
+
+    private Map<String, Object> computeCustomerSummary(String customerEmail) {
+        // Served by customer_email_request_date_idx: newest first, so $first is each status' latest order
+        TypedAggregation<EsimOrderRequest> aggregation = Aggregation.newAggregation(EsimOrderRequest.class,
+                Aggregation.match(Criteria.where("customerEmail").is(customerEmail)),
+                Aggregation.sort(Sort.by(Sort.Direction.DESC, "requestDate", "_id")),
+                Aggregation.group("status")
+                        .count().as("count")
+                        .sum("amount").as("amount")
+                        .first("orderNumber").as("lastOrderNumber")
+                        .first("requestDate").as("lastOrderDate"));
+
+        Map<String, Long> counts = new HashMap<>();
+        long totalOrders = 0;
+        double totalSpent = 0.0;
+        String lastOrderNumber = null;
+        Date lastOrderDate = null;
+        for (Document group : mongoTemplate.aggregate(aggregation, Document.class).getMappedResults()) {
+            String status = String.valueOf(group.get("_id"));
+            long count = group.get("count") instanceof Number number ? number.longValue() : 0L;
+            counts.put(status, count);
+            totalOrders += count;
+            // Spent counts approved and completed orders, as on the admin customer page
+            if (("APPROVED".equals(status) || "COMPLETED".equals(status)) && group.get("amount") instanceof Number amount) {
+                totalSpent += amount.doubleValue();
+            }
+            if (group.get("lastOrderDate") instanceof Date date && (lastOrderDate == null || date.after(lastOrderDate))) {
+                lastOrderDate = date;
+                lastOrderNumber = group.getString("lastOrderNumber");
+            }
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("totalOrders", totalOrders);
+        summary.put("statusCounts", counts);
+        summary.put("totalSpent", totalSpent);
+        summary.put("lastOrderNumber", lastOrderNumber);
+        summary.put("lastOrderDate", lastOrderDate != null
+                ? LocalDateTime.ofInstant(lastOrderDate.toInstant(), ZoneId.systemDefault())
+                : null);
+        return summary;
+    }
+
+    /**
+     * Requests matching the criteria, newest first, starting after the cursor.
+     * The result holds requests, nextCursor (null on the last page) and hasMore.
+     */
+    Map<String, Object> page(Criteria criteria, String cursor, int size) {
+        int limit = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        Query query = Query.query(cursor != null && !cursor.isEmpty()
+                ? new Criteria().andOperator(criteria, after(cursor))
+                : criteria);
+        query.with(Sort.by(Sort.Direction.DESC, "requestDate", "_id")).limit(limit + 1);
+
+        List<EsimOrderRequest> requests = new ArrayList<>(mongoTemplate.find(query, EsimOrderRequest.class));
+        boolean hasMore = requests.size() > limit;
+        if (hasMore) {
+            requests = requests.subList(0, limit);
+        }
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("requests", requests);
+        result.put("hasMore", hasMore);
+        result.put("nextCursor", hasMore ? encodeCursor(requests.get(requests.size() - 1)) : null);
+        return result;
+    }
+
+    static String encodeCursor(EsimOrderRequest last) {
+        String date = last.getRequestDate() != null ? last.getRequestDate().toString() : "";
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((date + "|" + last.getId()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Everything after the cursor position in (requestDate desc, _id desc) order; missing dates sort last
+    private static Criteria after(String cursor) {
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        int separator = decoded.indexOf('|');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        String id = decoded.substring(separator + 1);
+        if (separator == 0) {
+            return Criteria.where("requestDate").is(null).and("_id").lt(id);
+        }
+        LocalDateTime date;
+        try {
+            date = LocalDateTime.parse(decoded.substring(0, separator));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        return new Criteria().orOperator(
+                Criteria.where("requestDate").lt(date),
+                Criteria.where("requestDate").is(date).and("_id").lt(id),
+                Criteria.where("requestDate").is(null));
+    }
+}
@@ -0,0 +1,326 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EsimOrderRequest;
+import com.example.topup.demo.entity.EsimPosSale;
+import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.entity.RetailerWallet;
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.User;
+import com.example.topup.demo.repository.EsimOrderRequestRepository;
+import com.example.topup.demo.repository.EsimPosSaleRepository;
+import com.example.topup.demo.repository.RetailerOrderRepository;
+import com.example.topup.demo.util.OrderNumberGenerator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Records a point-of-sale eSIM sale: the eSIM credit or kickback debit, the RetailerOrder, the
+ * EsimOrderRequest used by the sales report, the esim_pos_sales entry and the retailer profit.
+ * Shared by the single send-QR endpoint and bulk deliveries, and by admin approvals of eSIM requests.
+ * Retailers are charged through RetailerBalanceService before anything is recorded.
+ */
+@Service
+public class EsimSaleService {
+
+    @Autowired
+    private RetailerOrderRepository retailerOrderRepository;
+
+    @Autowired
+    private EsimOrderRequestRepository esimOrderRequestRepository;
+
+    @Autowired
+    private EsimPosSaleRepository esimPosSaleRepository;
+
+    @Autowired
+    private RetailerBalanceService retailerBalanceService;
+
+    @Autowired
+    private RetailerService retailerService;
+
+    /**
+     * Charge the retailer and record the sale. Throws IllegalStateException, with nothing charged
+     * or recorded, if the eSIM credit or kickback account is not active or too low. Any other
+     * exception also means nothing was charged; once this returns, the charge and the
+     * RetailerOrder are stored and the remaining records are best effort.
+     */
+    public RetailerOrder recordPosSale(User retailer, String retailerEmail, StockPool pool, String iccid,
+                                       String customerName, String customerEmail, double price, String paymentMode) {
+        return recordPosSale(retailer, retailerEmail, pool, iccid, customerName, customerEmail, price, paymentMode,
+            OrderNumberGenerator.next("eSIM"));
+    }
+
+    /**
+     * Same, under an order number chosen by the caller, for deliveries that may be retried.
+     * A sale already recorded under it is returned as it is; the debit is keyed by the order
+     * number too, so a retry after the charge but before the order was stored does not charge again.
+     */
+    public RetailerOrder recordPosSale(User retailer, String retailerEmail, StockPool pool, String iccid,
+                                       String customerName, String customerEmail, double price, String paymentMode,
+                                       String orderNumber) {
+        Optional<RetailerOrder> recorded = retailerOrderRepository.findByOrderNumber(orderNumber);
+        if (recorded.isPresent()) {
+            System.out.println("⏭️ eSIM POS Sale already recorded: " + orderNumber);
+            return recorded.get();
+        }
+        String poolId = pool.getId();
+        RetailerWallet.PaymentMode mode = RetailerWallet.PaymentMode.fromRequest(paymentMode, true);
+        BigDecimal chargeAmount = BigDecimal.valueOf(price);
+
+        // ========== DEDUCT CREDIT BASED ON PAYMENT MODE ==========
+        if (chargeAmount.compareTo(BigDecimal.ZERO) > 0) {
+            RetailerWallet wallet = retailerBalanceService.debit(retailer.getId(), mode, chargeAmount, orderNumber,
+                "eSIM POS Sale " + orderNumber + ": " + pool.getName() + " to " + customerEmail);
+            System.out.println("✅ " + mode + " DEDUCTED for eSIM Sale: " + chargeAmount
+                + " - Available: " + wallet.getAccount(mode).getAvailable());
+        }
+
+        // Create RetailerOrder with OrderItem
+        RetailerOrder order = new RetailerOrder();
+        order.setRetailerId(retailer.getId());
+        order.setOrderNumber(orderNumber);
+
+        // Add customer details in notes field
+        order.setNotes("Customer: " + customerName + " (" + customerEmail + ")");
+
+        // Create OrderItem for the eSIM
+        RetailerOrder.OrderItem item = new RetailerOrder.OrderItem();
+        item.setProductId(poolId);
+        item.setProductName(pool.getName());
+        item.setProductType("ESIM");
+        item.setCategory("ESIM");
+        item.setQuantity(1);
+        item.setUnitPrice(BigDecimal.valueOf(price));
+        item.setRetailPrice(BigDecimal.valueOf(price));
+        item.setSerialNumbers(java.util.Arrays.asList(iccid));
+
+        order.addItem(item);
+        order.setTotalAmount(BigDecimal.valueOf(price));
+        order.setCurrency("NOK");
+        order.setStatus(RetailerOrder.OrderStatus.COMPLETED);
+        order.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
+        order.setPaymentMethod("POINT_OF_SALE");
+        order.setCreatedDate(java.time.LocalDateTime.now());
+        order.setLastModifiedDate(java.time.LocalDateTime.now());
+        order.setCreatedBy(retailerEmail);
+        order.setNotes(order.getNotes() + (mode == RetailerWallet.PaymentMode.KICKBACK
+            ? " | Kickback Bonus Updated from POS Sale" : " | eSIM Credit Updated from POS Sale"));
+
+        try {
+            retailerOrderRepository.save(order);
+        } catch (RuntimeException e) {
+            // Nothing was sold; give the retailer the amount back
+            if (chargeAmount.compareTo(BigDecimal.ZERO) > 0) {
+                retailerBalanceService.reverse(retailer.getId(), mode, chargeAmount, orderNumber,
+                    "Reversal of failed eSIM POS Sale " + orderNumber);
+            }
+            throw e;
+        }
+        System.out.println("=== RetailerOrder SAVED SUCCESSFULLY ===");
+        System.out.println("✅ RetailerOrder created with ID: " + order.getId());
+        System.out.println("📝 Order Number: " + order.getOrderNumber());
+        System.out.println("📝 Retailer ID: " + order.getRetailerId());
+        System.out.println("📝 Payment Method: " + order.getPaymentMethod());
+        System.out.println("📝 Status: " + order.getStatus());
+        System.out.println("📝 Customer: " + customerName + " (" + customerEmail + ")");
+        System.out.println("📝 ICCID: " + iccid);
+        System.out.println("📝 Amount: NOK " + price);
+
+        // Create EsimOrderRequest to store customer details for sales report
+        try {
+            EsimOrderRequest esimOrderRequest = new EsimOrderRequest();
+            esimOrderRequest.setOrderNumber(order.getOrderNumber());
+            esimOrderRequest.setCustomerFullName(customerName);
+            esimOrderRequest.setCustomerEmail(customerEmail);
+            esimOrderRequest.setProductName(pool.getName());
+            esimOrderRequest.setProductId(poolId);
+            esimOrderRequest.setAmount((double) price);
+            esimOrderRequest.setPaymentMethod("POINT_OF_SALE");
+            esimOrderRequest.setStatus("APPROVED");
+            esimOrderRequest.setAssignedEsimSerial(iccid);
+            esimOrderRequest.setApprovedByAdmin(retailerEmail);
+            esimOrderRequest.setApprovedDate(java.time.LocalDateTime.now());
+            esimOrderRequest.setRequestDate(java.time.LocalDateTime.now());
+            esimOrderRequestRepository.save(esimOrderRequest);
+            System.out.println("✅ EsimOrderRequest created for sales report with ICCID: " + iccid);
+        } catch (Exception requestEx) {
+            System.err.println("⚠️ Error saving EsimOrderRequest for sales report: " + requestEx.getMessage());
+            requestEx.printStackTrace();
+        }
+
+        // ========== SAVE TO NEW esim_pos_sales COLLECTION ==========
+        EsimPosSale savedPosSale = null;
+        try {
+            EsimPosSale posSale = new EsimPosSale(retailer, customerEmail);
+            posSale.setCustomerName(customerName);
+            posSale.setIccid(iccid);
+            posSale.setProductName(pool.getName());
+            posSale.setProductId(poolId);
+            posSale.setStockPoolId(poolId);
+            posSale.setStockPoolName(pool.getName());
+            posSale.setSalePrice(BigDecimal.valueOf(price));
+            posSale.setOrderId(order.getId());
+            posSale.setOrderReference(order.getOrderNumber());
+            posSale.setStatus(EsimPosSale.SaleStatus.COMPLETED);
+            posSale.setEmailSent(true);
+            posSale.setCreatedBy(retailerEmail);
+            posSale.setNotes((mode == RetailerWallet.PaymentMode.KICKBACK ? "Kickback deducted: " : "Credit deducted: ")
+                + chargeAmount + " NOK");
+
+            // Set cost price if available
+            if (pool.getPrice() != null && !pool.getPrice().isEmpty()) {
+                try {
+                    BigDecimal poolCostPrice = new BigDecimal(pool.getPrice());
+                    posSale.setCostPrice(poolCostPrice);
+                    posSale.setMargin(BigDecimal.valueOf(price).subtract(poolCostPrice));
+                } catch (NumberFormatException e) {
+                    posSale.setCostPrice(BigDecimal.ZERO);
+                }
+            }
+
+            // Set bundle info if available - use pool name as bundle name
+            posSale.setBundleName(pool.getName());
+            posSale.setBundleId(poolId);
+
+            // Set operator from networkProvider if available
+            if (pool.getNetworkProvider() != null) {
+                posSale.setOperator(pool.getNetworkProvider());
+            }
+
+            savedPosSale = esimPosSaleRepository.save(posSale);
+            System.out.println("✅ EsimPosSale saved to esim_pos_sales collection with ID: " + savedPosSale.getId());
+            System.out.println("   📊 Customer: " + customerName + " (" + customerEmail + ")");
+            System.out.println("   📊 ICCID: " + iccid);
+            System.out.println("   📊 Sale Price: NOK " + savedPosSale.getSalePrice());
+            System.out.println("   📊 Retailer: " + retailerEmail);
+        } catch (Exception posSaleEx) {
+            System.err.println("⚠️ Error saving to esim_pos_sales collection: " + posSaleEx.getMessage());
+            posSaleEx.printStackTrace();
+        }
+        // ========== END SAVE TO esim_pos_sales ==========
+
+        // Record profit/earnings for this sale
+        try {
+            BigDecimal saleAmount = savedPosSale != null ? savedPosSale.getSalePrice() : BigDecimal.valueOf(price);
+            // For eSIMs, cost price is typically the wholesale price
+            // Assuming pool.getPrice() is the cost price, or use a default margin
+            BigDecimal costPrice = BigDecimal.ZERO;
+            if (pool.getPrice() != null && !pool.getPrice().isEmpty()) {
+                try {
+                    costPrice = new BigDecimal(pool.getPrice());
+                } catch (NumberFormatException e) {
+                    System.err.println("⚠️ Invalid price format in pool: " + pool.getPrice());
+                    costPrice = BigDecimal.ZERO;
+                }
+            }
+
+            String bundleName = pool.getName();
+            String bundleId = poolId;
+            Double marginRate = 0.0; // Can be configured or passed from frontend
+
+            // If cost price is same as sale price, assume 0 margin (retail = wholesale)
+            if (costPrice.compareTo(BigDecimal.ZERO) > 0) {
+                marginRate = ((saleAmount.subtract(costPrice)).divide(costPrice, 4, java.math.RoundingMode.HALF_UP).multiply(BigDecimal.valueOf(100))).doubleValue();
+            }
+
+            System.out.println("📊 Recording profit - Sale: " + saleAmount + ", Cost: " + costPrice + ", Margin: " + marginRate + "%");
+            retailerService.recordProfit(retailer, saleAmount, costPrice, bundleName, bundleId, marginRate);
+            System.out.println("✅ Profit/earnings recorded in retailer_profits collection");
+        } catch (Exception profitEx) {
+            System.err.println("⚠️ Error recording profit: " + profitEx.getMessage());
+            profitEx.printStackTrace();
+        }
+
+        return order;
+    }
+
+    /**
+     * Charge the retailer that placed an approved eSIM request to its eSIM credit.
+     * Keyed by the request id, so charging the same request again has no effect.
+     * Throws IllegalStateException if the eSIM credit account is not active or too low.
+     */
+    public void chargeApprovedRequest(EsimOrderRequest request, String retailerId) {
+        BigDecimal amount = BigDecimal.valueOf(request.getAmount() != null ? request.getAmount() : 0.0);
+        if (amount.compareTo(BigDecimal.ZERO) <= 0) {
+            return;
+        }
+        RetailerWallet wallet = retailerBalanceService.debit(retailerId, RetailerWallet.PaymentMode.ESIM_CREDIT, amount,
+            approvalReference(request), "eSIM Sale: " + request.getProductName() + " to " + request.getCustomerEmail());
+        System.out.println("✅ Charged eSIM credit for retailer: " + retailerId + ", Available: "
+            + wallet.getAccount(RetailerWallet.PaymentMode.ESIM_CREDIT).getAvailable());
+    }
+
+    // Give back a charge made by chargeApprovedRequest when the approval did not go through;
+    // the request can be charged again by a later approval
+    public void refundApprovedRequest(EsimOrderRequest request, String retailerId) {
+        BigDecimal amount = BigDecimal.valueOf(request.getAmount() != null ? request.getAmount() : 0.0);
+        if (amount.compareTo(BigDecimal.ZERO) <= 0) {
+            return;
+        }
+        retailerBalanceService.reverse(retailerId, RetailerWallet.PaymentMode.ESIM_CREDIT, amount,
+            approvalReference(request), "Reversal of eSIM Sale: " + request.getOrderNumber());
+    }
+
+    /**
+     * Record an admin-approved eSIM request as a sale of the retailer that placed it, for analytics.
+     * The retailer is charged separately by chargeApprovedRequest. Recorded once per order number,
+     * so a resumed bulk approval does not record it again. Failures are logged, never thrown,
+     * so they do not undo the approval.
+     */
+    public void recordApprovedRequestSale(EsimOrderRequest request, String poolId, String retailerId) {
+        try {
+            if (request.getOrderNumber() != null && retailerOrderRepository.existsByOrderNumber(request.getOrderNumber())) {
+                System.out.println("⏭️ RetailerOrder already recorded for: " + request.getOrderNumber());
+                return;
+            }
+            System.out.println("=== Creating RetailerOrder for eSIM sale ===");
+
+            RetailerOrder retailerOrder = new RetailerOrder();
+            retailerOrder.setRetailerId(retailerId);
+            retailerOrder.setOrderNumber(request.getOrderNumber());
+            retailerOrder.setTotalAmount(BigDecimal.valueOf(request.getAmount()));
+            retailerOrder.setCurrency("NOK");
+            retailerOrder.setStatus(RetailerOrder.OrderStatus.COMPLETED);
+            retailerOrder.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
+            retailerOrder.setPaymentMethod("POINT_OF_SALE");
+            retailerOrder.setCreatedDate(LocalDateTime.now());
+            retailerOrder.setLastModifiedDate(LocalDateTime.now());
+            retailerOrder.setCreatedBy(request.getCustomerEmail());
+
+            // Create order item for eSIM
+            RetailerOrder.OrderItem orderItem = new RetailerOrder.OrderItem();
+            orderItem.setProductId(poolId);
+            orderItem.setProductName(request.getProductName());
+            orderItem.setProductType("ESIM");
+            orderItem.setCategory("esim");
+            orderItem.setQuantity(1);
+            orderItem.setUnitPrice(BigDecimal.valueOf(request.getAmount()));
+            orderItem.setRetailPrice(BigDecimal.valueOf(request.getAmount()));
+
+            List<RetailerOrder.OrderItem> items = new ArrayList<>();
+            items.add(orderItem);
+            retailerOrder.setItems(items);
+
+            // Save retailer order
+            RetailerOrder savedRetailerOrder = retailerOrderRepository.save(retailerOrder);
+            System.out.println("✅ Created RetailerOrder for analytics: " + savedRetailerOrder.getOrderNumber());
+        } catch (DuplicateKeyException e) {
+            // Recorded by a concurrent attempt between the check and the insert; order numbers are unique
+            System.out.println("⏭️ RetailerOrder already recorded for: " + request.getOrderNumber());
+        } catch (Exception e) {
+            System.err.println("❌ Failed to create RetailerOrder for eSIM sale: " + e.getMessage());
+            e.printStackTrace();
+            // Don't fail the approval, just log the error
+        }
+    }
+
+    private static String approvalReference(EsimOrderRequest request) {
+        return "esim-request:" + request.getId();
+    }
+}
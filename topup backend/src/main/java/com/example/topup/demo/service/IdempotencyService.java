@@ -0,0 +1,207 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.IdempotencyRecord;
+import com.example.topup.demo.repository.IdempotencyRecordRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Makes retried POS requests safe.
+ *
+ * The first request with a given Idempotency-Key claims the key by inserting an IN_PROGRESS
+ * record, runs the action and stores the successful response. A retry with the same key and
+ * body gets the stored response back without running the action again. Failed requests
+ * release the key so the client can retry them.
+ *
+ * The claim is a lease: if the attempt holding it dies (crash, deploy) before completing or
+ * releasing, a retry after leaseUntil takes the key over with a conditional findAndModify instead
+ * of being refused until the record expires. Only the current owner can complete or release the
+ * key, so a late original attempt cannot overwrite its successor. The lease must outlast the
+ * slowest request, or a retry could run the action while the original is still working.
+ *
+ * Stored responses can carry decrypted ePINs, so the body is encrypted with PayloadCipher and only
+ * decrypted when it is replayed.
+ */
+@Service
+public class IdempotencyService {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyService.class);
+
+    public static final String HEADER = "Idempotency-Key";
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    private static final int MAX_KEY_LENGTH = 255;
+
+    // Sorted keys so the same request body always hashes the same way
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    @Autowired
+    private IdempotencyRecordRepository idempotencyRecordRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private PayloadCipher payloadCipher;
+
+    @Value("${app.idempotency.ttl-hours:24}")
+    private long ttlHours;
+
+    @Value("${app.idempotency.lease-seconds:120}")
+    private long leaseSeconds;
+
+    /**
+     * Run the action at most once per (scope, retailer, key).
+     * Without a key the action simply runs, so existing clients are unaffected.
+     */
+    public ResponseEntity<?> execute(String scope, String retailerId, String idempotencyKey,
+                                     Object requestBody, Supplier<ResponseEntity<?>> action) {
+        if (idempotencyKey == null || idempotencyKey.isBlank()) {
+            return action.get();
+        }
+        if (idempotencyKey.length() > MAX_KEY_LENGTH) {
+            return error(HttpStatus.BAD_REQUEST, HEADER + " must be at most " + MAX_KEY_LENGTH + " characters");
+        }
+
+        String requestHash = hash(requestBody);
+        String owner = UUID.randomUUID().toString();
+        LocalDateTime now = LocalDateTime.now();
+        IdempotencyRecord record = new IdempotencyRecord(scope, retailerId, idempotencyKey, requestHash,
+                now.plusHours(ttlHours));
+        record.setOwner(owner);
+        record.setLeaseUntil(now.plusSeconds(leaseSeconds));
+
+        try {
+            idempotencyRecordRepository.insert(record);
+        } catch (DuplicateKeyException e) {
+            if (!takeOver(record.getId(), requestHash, owner)) {
+                return replay(record.getId(), requestHash);
+            }
+            logger.warn("Took over idempotency key {} from an attempt whose lease expired", record.getId());
+        }
+
+        ResponseEntity<?> response;
+        try {
+            response = action.get();
+        } catch (RuntimeException e) {
+            release(record.getId(), owner);
+            throw e;
+        }
+
+        if (response.getStatusCode().is2xxSuccessful()) {
+            complete(record.getId(), owner, response);
+        } else {
+            release(record.getId(), owner);
+        }
+        return response;
+    }
+
+    // Claim an IN_PROGRESS key for the same request whose lease has run out; records from before
+    // leases existed count as expired once they are older than one lease
+    private boolean takeOver(String recordId, String requestHash, String owner) {
+        LocalDateTime now = LocalDateTime.now();
+        Query stale = Query.query(Criteria.where("_id").is(recordId)
+                .and("requestHash").is(requestHash)
+                .and("status").is(IdempotencyRecord.Status.IN_PROGRESS)
+                .orOperator(
+                        Criteria.where("leaseUntil").lt(now),
+                        Criteria.where("leaseUntil").exists(false).and("createdDate").lt(now.minusSeconds(leaseSeconds))));
+        return mongoTemplate.findAndModify(stale, new Update()
+                        .set("owner", owner)
+                        .set("leaseUntil", now.plusSeconds(leaseSeconds)),
+                IdempotencyRecord.class) != null;
+    }
+
+    private ResponseEntity<?> replay(String recordId, String requestHash) {
+        Optional<IdempotencyRecord> existingOpt = idempotencyRecordRepository.findById(recordId);
+        if (existingOpt.isEmpty()) {
+            // Released between our insert attempt and this read; ask the client to retry
+            return error(HttpStatus.CONFLICT, "Request with this " + HEADER + " is being retried, please try again");
+        }
+
+        IdempotencyRecord existing = existingOpt.get();
+        if (!existing.getRequestHash().equals(requestHash)) {
+            return error(HttpStatus.UNPROCESSABLE_ENTITY, HEADER + " was already used for a different request");
+        }
+        if (existing.getStatus() != IdempotencyRecord.Status.COMPLETED) {
+            // Held by a live attempt; once its lease runs out a retry takes the key over
+            return error(HttpStatus.CONFLICT, "Request with this " + HEADER + " is still being processed");
+        }
+
+        logger.info("Replaying stored response for {}", recordId);
+        return ResponseEntity.status(existing.getHttpStatus())
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(REPLAYED_HEADER, "true")
+                .body(payloadCipher.decryptText(existing.getResponseBody()));
+    }
+
+    private void complete(String recordId, String owner, ResponseEntity<?> response) {
+        try {
+            long updated = mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(recordId).and("owner").is(owner)), new Update()
+                    .set("status", IdempotencyRecord.Status.COMPLETED)
+                    .set("httpStatus", response.getStatusCode().value())
+                    .set("responseBody", payloadCipher.encryptText(objectMapper.writeValueAsString(response.getBody())))
+                    .set("completedDate", LocalDateTime.now())
+                    .unset("leaseUntil"), IdempotencyRecord.class).getMatchedCount();
+            if (updated == 0) {
+                logger.warn("Idempotency key {} was taken over before this attempt completed", recordId);
+            }
+        } catch (Exception e) {
+            // The action already succeeded; keep the key claimed so a retry cannot run it twice
+            logger.error("Failed to store idempotent response for {}: {}", recordId, e.getMessage());
+        }
+    }
+
+    private void release(String recordId, String owner) {
+        try {
+            mongoTemplate.remove(Query.query(Criteria.where("_id").is(recordId).and("owner").is(owner)), IdempotencyRecord.class);
+        } catch (Exception e) {
+            logger.error("Failed to release idempotency key {}: {}", recordId, e.getMessage());
+        }
+    }
+
+    String hash(Object requestBody) {
+        byte[] content;
+        try {
+            content = objectMapper.writeValueAsBytes(requestBody);
+        } catch (Exception e) {
+            content = String.valueOf(requestBody).getBytes(StandardCharsets.UTF_8);
+        }
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private ResponseEntity<?> error(HttpStatus status, String message) {
+        Map<String, Object> error = new HashMap<>();
+        error.put("success", false);
+        error.put("message", message);
+        return ResponseEntity.status(status).body(error);
+    }
+}
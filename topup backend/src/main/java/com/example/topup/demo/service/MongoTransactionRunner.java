@@ -0,0 +1,84 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.config.MongoTransactionConfig;
+import com.mongodb.MongoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.function.Supplier;
+
+/**
+ * Runs a unit of work in one Mongo transaction and retries it on transient errors
+ * (write conflicts, primary step-down), as recommended for multi-document transactions.
+ * Without a transaction manager (transactions disabled) the work simply runs once.
+ *
+ * This is the only way into a transaction: @Transactional is not backed by a transaction
+ * manager (see MongoTransactionConfig).
+ */
+@Component
+public class MongoTransactionRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoTransactionRunner.class);
+
+    @Autowired(required = false)
+    @Qualifier(MongoTransactionConfig.TRANSACTION_TEMPLATE)
+    private TransactionTemplate template;
+
+    @Value("${app.mongo.transactions.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${app.mongo.transactions.retry-backoff-ms:25}")
+    private long retryBackoffMs;
+
+    public <T> T execute(String name, Supplier<T> work) {
+        if (template == null) {
+            return work.get();
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                T result = template.execute(status -> work.get());
+                logger.debug("Transaction {} committed in {} ms (attempt {})",
+                        name, (System.nanoTime() - start) / 1_000_000, attempt);
+                return result;
+            } catch (RuntimeException e) {
+                if (attempt >= maxAttempts || !isTransient(e)) {
+                    throw e;
+                }
+                logger.warn("Transient error in transaction {} (attempt {}/{}), retrying: {}",
+                        name, attempt, maxAttempts, e.getMessage());
+                backoff(attempt);
+            }
+        }
+    }
+
+    // Only TransientTransactionError is safe to retry from the start; the driver already
+    // retries commits with an unknown result
+    static boolean isTransient(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MongoException mongoException
+                    && mongoException.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private void backoff(int attempt) {
+        try {
+            Thread.sleep(retryBackoffMs * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying transaction", e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.topup.demo.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * AES-256-GCM encryption of stored payloads that hold secrets, such as outbox emails carrying
+ * ePINs, activation codes, QR codes and account tokens, and stored idempotent responses.
+ *
+ * The key is derived with SHA-256 from app.email.outbox.encryption-key, set through
+ * EMAIL_OUTBOX_ENCRYPTION_KEY; there is no fallback, so the application does not start without it.
+ * Every value gets a random 96-bit IV, stored in front of the ciphertext; GCM's tag makes tampered
+ * values fail to decrypt.
+ * Encrypted text carries the "enc:v1:" prefix, so values stored before encryption was introduced
+ * are still read as they are.
+ */
+@Component
+public class PayloadCipher {
+
+    private static final String TEXT_PREFIX = "enc:v1:";
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+
+    private final SecureRandom random = new SecureRandom();
+
+    @Value("${app.email.outbox.encryption-key:}")
+    private String secret;
+
+    private SecretKeySpec key;
+
+    @PostConstruct
+    public void init() {
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalStateException("EMAIL_OUTBOX_ENCRYPTION_KEY (app.email.outbox.encryption-key) must be set");
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(("email-outbox:" + secret).getBytes(StandardCharsets.UTF_8));
+            key = new SecretKeySpec(digest, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not derive payload encryption key", e);
+        }
+    }
+
+    public byte[] encrypt(byte[] plain) {
+        if (plain == null) {
+            return null;
+        }
+        try {
+            byte[] iv = new byte[IV_BYTES];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            byte[] sealed = cipher.doFinal(plain);
+            return ByteBuffer.allocate(IV_BYTES + sealed.length).put(iv).put(sealed).array();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Encryption failed", e);
+        }
+    }
+
+    public byte[] decrypt(byte[] stored) {
+        if (stored == null) {
+            return null;
+        }
+        if (stored.length < IV_BYTES) {
+            throw new IllegalArgumentException("Encrypted value is too short");
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, stored, 0, IV_BYTES));
+            return cipher.doFinal(stored, IV_BYTES, stored.length - IV_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Decryption failed", e);
+        }
+    }
+
+    public String encryptText(String plain) {
+        if (plain == null) {
+            return null;
+        }
+        return TEXT_PREFIX + Base64.getEncoder().encodeToString(encrypt(plain.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Text without the prefix was stored before encryption and is returned unchanged
+    public String decryptText(String stored) {
+        if (stored == null || !stored.startsWith(TEXT_PREFIX)) {
+            return stored;
+        }
+        byte[] plain = decrypt(Base64.getDecoder().decode(stored.substring(TEXT_PREFIX.length())));
+        return new String(plain, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.RetailerAnalyticsSnapshot;
+import com.example.topup.demo.entity.RetailerOrder;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ConvertOperators;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains RetailerAnalyticsSnapshot, the lifetime eSIM/ePIN sales figures on the retailer dashboard.
+ *
+ * A snapshot is computed with one $unwind + $group pipeline over the retailer's completed POS
+ * orders, keyed by the items' normalized product type. It is recomputed in the background after
+ * each save of one of the retailer's POS orders, and also when it is older than the configured
+ * maximum age, which covers orders changed with plain updates.
+ */
+@Service
+public class RetailerAnalyticsSnapshotService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetailerAnalyticsSnapshotService.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${app.retailer-analytics.max-age-minutes:15}")
+    private long maxAgeMinutes;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "retailer-analytics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Retailers with a recompute queued but not started yet
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @EventListener
+    public void onAfterSave(AfterSaveEvent<?> event) {
+        if (event.getSource() instanceof RetailerOrder order && order.getRetailerId() != null && isPosSale(order)) {
+            refreshAfterCommit(order.getRetailerId());
+        }
+    }
+
+    /**
+     * The retailer's snapshot; computed on the spot the first time, refreshed in the background when stale.
+     */
+    public RetailerAnalyticsSnapshot getSnapshot(String retailerId) {
+        RetailerAnalyticsSnapshot snapshot = mongoTemplate.findById(retailerId, RetailerAnalyticsSnapshot.class);
+        if (snapshot == null) {
+            return recompute(retailerId);
+        }
+        if (snapshot.getLastModifiedDate() == null
+                || snapshot.getLastModifiedDate().isBefore(LocalDateTime.now().minusMinutes(maxAgeMinutes))) {
+            schedule(retailerId);
+        }
+        return snapshot;
+    }
+
+    public void refreshAfterCommit(String retailerId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    schedule(retailerId);
+                }
+            });
+        } else {
+            schedule(retailerId);
+        }
+    }
+
+    public RetailerAnalyticsSnapshot recompute(String retailerId) {
+        Criteria posSales = Criteria.where("retailerId").is(retailerId)
+                .and("status").is(RetailerOrder.OrderStatus.COMPLETED)
+                .and("metadata." + UnifiedOrderService.LEGACY_STATUS).exists(false);
+
+        TypedAggregation<RetailerOrder> aggregation = Aggregation.newAggregation(RetailerOrder.class,
+                Aggregation.match(posSales),
+                Aggregation.unwind("items"),
+                Aggregation.group("items.normalizedType")
+                        .sum("items.quantity").as("units")
+                        .sum(ArithmeticOperators.Multiply.valueOf(ConvertOperators.valueOf("items.unitPrice").convertToDecimal())
+                                .multiplyBy("items.quantity")).as("earnings"));
+
+        RetailerAnalyticsSnapshot snapshot = new RetailerAnalyticsSnapshot(retailerId);
+        snapshot.setPosSales(mongoTemplate.count(Query.query(posSales), RetailerOrder.class));
+        for (Document group : mongoTemplate.aggregate(aggregation, Document.class).getMappedResults()) {
+            long units = group.get("units") instanceof Number number ? number.longValue() : 0L;
+            BigDecimal earnings = group.get("earnings") instanceof Decimal128 decimal ? decimal.bigDecimalValue() : BigDecimal.ZERO;
+            // Items are ePIN unless classified as eSIM, as in OrderItem.normalizeType
+            if (RetailerOrder.OrderItem.TYPE_ESIM.equals(group.get("_id"))) {
+                snapshot.setEsimUnits(snapshot.getEsimUnits() + units);
+                snapshot.setEsimEarnings(snapshot.getEsimEarnings().add(earnings));
+            } else {
+                snapshot.setEpinUnits(snapshot.getEpinUnits() + units);
+                snapshot.setEpinEarnings(snapshot.getEpinEarnings().add(earnings));
+            }
+        }
+        snapshot.setLastModifiedDate(LocalDateTime.now());
+        return mongoTemplate.save(snapshot);
+    }
+
+    private static boolean isPosSale(RetailerOrder order) {
+        return order.getMetadata() == null || !order.getMetadata().containsKey(UnifiedOrderService.LEGACY_STATUS);
+    }
+
+    private void schedule(String retailerId) {
+        // A recompute already queued for this retailer will include this sale too
+        if (!pending.add(retailerId)) {
+            return;
+        }
+        executor.execute(() -> {
+            pending.remove(retailerId);
+            try {
+                recompute(retailerId);
+            } catch (Exception e) {
+                // The next sale or the age check recomputes it; never fail the sale because of it
+                logger.error("Retailer analytics snapshot failed for retailer {}: {}", retailerId, e.getMessage());
+            }
+        });
+    }
+}
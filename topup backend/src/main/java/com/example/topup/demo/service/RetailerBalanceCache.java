@@ -0,0 +1,137 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.RetailerWallet;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.messaging.ChangeStreamRequest;
+import org.springframework.data.mongodb.core.messaging.DefaultMessageListenerContainer;
+import org.springframework.data.mongodb.core.messaging.Message;
+import org.springframework.data.mongodb.core.messaging.MessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * Bounded in-process cache of retailer wallets.
+ *
+ * RetailerBalanceService writes every debit, credit and rebuild through this cache (after the
+ * transaction commits, when there is one), so the replica that handled a sale answers the next
+ * authorization check from memory. Other replicas
+ * learn about the change from a change stream on retailer_wallets. Entries also expire after
+ * a short TTL, which bounds staleness if the change stream is unavailable (standalone Mongo).
+ */
+@Component
+public class RetailerBalanceCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetailerBalanceCache.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${app.balance-cache.max-size:10000}")
+    private long maxSize;
+
+    @Value("${app.balance-cache.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    @Value("${app.balance-cache.change-stream.enabled:true}")
+    private boolean changeStreamEnabled;
+
+    private Cache<String, RetailerWallet> cache;
+
+    private MessageListenerContainer changeStreamContainer;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .build();
+
+        if (changeStreamEnabled) {
+            startChangeStream();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (changeStreamContainer != null) {
+            changeStreamContainer.stop();
+        }
+    }
+
+    public RetailerWallet get(String retailerId) {
+        return retailerId != null ? cache.getIfPresent(retailerId) : null;
+    }
+
+    /**
+     * Store a wallet unless a newer version is already cached.
+     * Change events can arrive after this replica has already written a newer state.
+     */
+    public void put(RetailerWallet wallet) {
+        if (wallet == null || wallet.getRetailerId() == null) {
+            return;
+        }
+        cache.asMap().merge(wallet.getRetailerId(), wallet, (current, incoming) ->
+                isNewer(current.getLastModifiedDate(), incoming.getLastModifiedDate()) ? current : incoming);
+    }
+
+    public void invalidate(String retailerId) {
+        if (retailerId != null) {
+            cache.invalidate(retailerId);
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    private boolean isNewer(LocalDateTime current, LocalDateTime incoming) {
+        return current != null && incoming != null && current.isAfter(incoming);
+    }
+
+    // Cross-replica coherence: apply wallet changes made by other instances
+    private void startChangeStream() {
+        try {
+            changeStreamContainer = new DefaultMessageListenerContainer(mongoTemplate);
+
+            ChangeStreamRequest<RetailerWallet> request = ChangeStreamRequest.builder(
+                            (Message<ChangeStreamDocument<Document>, RetailerWallet> message) -> {
+                                RetailerWallet wallet = message.getBody();
+                                if (wallet != null) {
+                                    put(wallet);
+                                } else {
+                                    // Deletes only carry the _id; drop everything rather than guess
+                                    invalidateAll();
+                                }
+                            })
+                    .collection("retailer_wallets")
+                    .fullDocumentLookup(FullDocument.UPDATE_LOOKUP)
+                    .build();
+
+            changeStreamContainer.register(request, RetailerWallet.class,
+                    error -> logger.warn("Wallet change stream error, relying on TTL expiry: {}", error.getMessage()));
+            changeStreamContainer.start();
+            logger.info("Retailer balance cache listening for wallet changes");
+        } catch (Exception e) {
+            // Change streams need a replica set; fall back to TTL expiry
+            logger.warn("Could not start wallet change stream, relying on TTL expiry: {}", e.getMessage());
+            changeStreamContainer = null;
+        }
+    }
+}
@@ -0,0 +1,573 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.RetailerEsimCredit;
+import com.example.topup.demo.entity.RetailerKickbackLimit;
+import com.example.topup.demo.entity.RetailerLimit;
+import com.example.topup.demo.entity.RetailerWallet;
+import com.example.topup.demo.entity.RetailerWallet.PaymentMode;
+import com.example.topup.demo.entity.RetailerWallet.SubAccount;
+import com.example.topup.demo.repository.RetailerEsimCreditRepository;
+import com.example.topup.demo.repository.RetailerKickbackLimitRepository;
+import com.example.topup.demo.repository.RetailerLimitRepository;
+import com.example.topup.demo.repository.RetailerWalletRepository;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Balance engine for retailer credit, eSIM credit and kickback bonus.
+ *
+ * The RetailerWallet document is the only place balances change. Debits, credits and payments
+ * are $inc updates on that document, so a multi-account debit either succeeds for every
+ * sub-account or for none, and concurrent sales never overwrite each other. A debit or credit
+ * with a reference id is applied at most once: the last RECENT_REFERENCES ids are kept on the
+ * wallet and the update only matches when the id is not among them.
+ *
+ * The legacy limit documents are one-way projections: after every change the wallet's used,
+ * available and outstanding amounts are written onto them. Admins still configure limits and
+ * status on those documents; applyLimits copies only that configuration into the wallet and
+ * recomputes available from the wallet's own usage.
+ *
+ * Every wallet returned from Mongo is written through RetailerBalanceCache, so balance reads
+ * and pre-sale authorization are answered from memory.
+ */
+@Service
+public class RetailerBalanceService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetailerBalanceService.class);
+
+    // How many applied reference ids each wallet remembers for idempotent debits and credits
+    static final int RECENT_REFERENCES = 500;
+
+    @Autowired
+    private RetailerWalletRepository retailerWalletRepository;
+
+    @Autowired
+    private RetailerLimitRepository retailerLimitRepository;
+
+    @Autowired
+    private RetailerEsimCreditRepository retailerEsimCreditRepository;
+
+    @Autowired
+    private RetailerKickbackLimitRepository retailerKickbackLimitRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private RetailerBalanceCache retailerBalanceCache;
+
+    @Autowired
+    private RetailerCreditOverviewService retailerCreditOverviewService;
+
+    // Get the wallet for a retailer, creating it from the legacy limit documents on first access
+    public RetailerWallet getWallet(String retailerId) {
+        RetailerWallet cached = retailerBalanceCache.get(retailerId);
+        if (cached != null) {
+            return cached;
+        }
+        RetailerWallet wallet = retailerWalletRepository.findByRetailerId(retailerId)
+                .orElseGet(() -> createWallet(retailerId));
+        cacheWallet(wallet);
+        return wallet;
+    }
+
+    /**
+     * Pre-sale authorization check answered from the cached wallet.
+     * Only advisory: the debit itself re-checks the balance atomically in Mongo.
+     * Uses the same rule as debit: the sub-account must be ACTIVE with enough available balance,
+     * so retailers without a configured limit (NOT_SET) cannot sell on that account.
+     */
+    public boolean authorize(String retailerId, PaymentMode mode, BigDecimal amount) {
+        return getWallet(retailerId).getAccount(mode).canDebit(amount);
+    }
+
+    // Single read API for all balances of a retailer
+    public Map<String, Object> getBalances(String retailerId) {
+        return toBalanceMap(getWallet(retailerId));
+    }
+
+    public Map<String, Object> toBalanceMap(RetailerWallet wallet) {
+        Map<String, Object> balances = new HashMap<>();
+        balances.put("retailerId", wallet.getRetailerId());
+        balances.put("credit", toAccountMap(wallet.getAccount(PaymentMode.CREDIT)));
+        balances.put("esimCredit", toAccountMap(wallet.getAccount(PaymentMode.ESIM_CREDIT)));
+        balances.put("kickback", toAccountMap(wallet.getAccount(PaymentMode.KICKBACK)));
+        balances.put("lastModifiedDate", wallet.getLastModifiedDate());
+        return balances;
+    }
+
+    private Map<String, Object> toAccountMap(SubAccount account) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("limit", account.getLimit() != null ? account.getLimit().doubleValue() : 0.0);
+        data.put("used", account.getUsed() != null ? account.getUsed().doubleValue() : 0.0);
+        data.put("available", account.getAvailable() != null ? account.getAvailable().doubleValue() : 0.0);
+        data.put("outstanding", account.getOutstanding() != null ? account.getOutstanding().doubleValue() : 0.0);
+        data.put("usagePercentage", account.getUsagePercentage());
+        data.put("status", account.getStatus());
+        return data;
+    }
+
+    // Debit a single sub-account
+    public RetailerWallet debit(String retailerId, PaymentMode mode, BigDecimal amount, String referenceId, String description) {
+        Map<PaymentMode, BigDecimal> amounts = new EnumMap<>(PaymentMode.class);
+        amounts.put(mode, amount);
+        return debit(retailerId, amounts, referenceId, description);
+    }
+
+    /**
+     * Atomically debit one or more sub-accounts.
+     * The update only matches when every requested sub-account is ACTIVE and has enough
+     * available balance, otherwise nothing is changed and IllegalStateException is thrown.
+     * A repeated call with the same referenceId returns the wallet without debiting again.
+     */
+    public RetailerWallet debit(String retailerId, Map<PaymentMode, BigDecimal> amounts, String referenceId, String description) {
+        if (amounts == null || amounts.isEmpty()) {
+            throw new IllegalArgumentException("At least one debit amount is required");
+        }
+
+        // Make sure the wallet document exists before the conditional update
+        getWallet(retailerId);
+
+        String operationKey = referenceId != null ? "debit:" + referenceId : null;
+        Criteria criteria = Criteria.where("retailerId").is(retailerId);
+        Update update = new Update();
+        for (Map.Entry<PaymentMode, BigDecimal> entry : amounts.entrySet()) {
+            BigDecimal amount = entry.getValue();
+            if (amount == null || amount.compareTo(BigDecimal.ZERO) <= 0) {
+                throw new IllegalArgumentException("Debit amount must be positive for " + entry.getKey());
+            }
+            String path = "accounts." + entry.getKey().name();
+            criteria = criteria.and(path + ".status").is("ACTIVE")
+                    .and(path + ".available").gte(new Decimal128(amount));
+            update.inc(path + ".used", new Decimal128(amount));
+            update.inc(path + ".available", new Decimal128(amount.negate()));
+            if (entry.getKey() == PaymentMode.CREDIT) {
+                update.inc(path + ".outstanding", new Decimal128(amount));
+            }
+        }
+        once(criteria, update, operationKey);
+        update.set("lastModifiedDate", LocalDateTime.now());
+
+        RetailerWallet updated = mongoTemplate.findAndModify(
+                Query.query(criteria), update,
+                FindAndModifyOptions.options().returnNew(true), RetailerWallet.class);
+
+        if (updated == null) {
+            if (alreadyApplied(retailerId, operationKey)) {
+                logger.info("Debit {} for retailer {} was already applied", referenceId, retailerId);
+                return reload(retailerId);
+            }
+            // The cached copy may have been optimistic; reload before reporting
+            RetailerWallet current = reload(retailerId);
+            StringBuilder reason = new StringBuilder("Insufficient balance.");
+            for (Map.Entry<PaymentMode, BigDecimal> entry : amounts.entrySet()) {
+                SubAccount account = current.getAccount(entry.getKey());
+                reason.append(" ").append(entry.getKey()).append(": required ").append(entry.getValue())
+                      .append(", available ").append(account.getAvailable())
+                      .append(" (").append(account.getStatus()).append(")");
+            }
+            throw new IllegalStateException(reason.toString());
+        }
+
+        cacheWallet(updated);
+        logger.info("Debited wallet for retailer {}: {} (ref {})", retailerId, amounts, referenceId);
+        projectToLegacyDocuments(updated, amounts.keySet(), amounts, referenceId, description, false);
+        return updated;
+    }
+
+    /**
+     * Credit a sub-account back (refunds, cancelled sales).
+     * A repeated call with the same referenceId returns the wallet without crediting again.
+     */
+    public RetailerWallet credit(String retailerId, PaymentMode mode, BigDecimal amount, String referenceId, String description) {
+        if (amount == null || amount.compareTo(BigDecimal.ZERO) <= 0) {
+            throw new IllegalArgumentException("Credit amount must be positive");
+        }
+
+        getWallet(retailerId);
+
+        String operationKey = referenceId != null ? "credit:" + referenceId : null;
+        String path = "accounts." + mode.name();
+        Criteria criteria = Criteria.where("retailerId").is(retailerId);
+        Update update = new Update()
+                .inc(path + ".used", new Decimal128(amount.negate()))
+                .inc(path + ".available", new Decimal128(amount))
+                .set("lastModifiedDate", LocalDateTime.now());
+        if (mode == PaymentMode.CREDIT) {
+            update.inc(path + ".outstanding", new Decimal128(amount.negate()));
+        }
+        once(criteria, update, operationKey);
+
+        RetailerWallet updated = mongoTemplate.findAndModify(
+                Query.query(criteria), update,
+                FindAndModifyOptions.options().returnNew(true), RetailerWallet.class);
+
+        if (updated == null) {
+            if (alreadyApplied(retailerId, operationKey)) {
+                logger.info("Credit {} for retailer {} was already applied", referenceId, retailerId);
+                return reload(retailerId);
+            }
+            throw new IllegalStateException("Wallet not found for retailer: " + retailerId);
+        }
+        cacheWallet(updated);
+
+        Map<PaymentMode, BigDecimal> amounts = new EnumMap<>(PaymentMode.class);
+        amounts.put(mode, amount);
+        projectToLegacyDocuments(updated, amounts.keySet(), amounts, referenceId, description, true);
+        return updated;
+    }
+
+    /**
+     * Undo the debit made with the given referenceId, e.g. when the sale it paid for failed.
+     * Only applies while that debit is recorded on the wallet and removes it, so reversing twice
+     * credits once and the same referenceId can be charged again afterwards.
+     * Returns null if there was no such debit.
+     */
+    public RetailerWallet reverse(String retailerId, PaymentMode mode, BigDecimal amount, String referenceId, String description) {
+        if (amount == null || amount.compareTo(BigDecimal.ZERO) <= 0) {
+            throw new IllegalArgumentException("Reversal amount must be positive");
+        }
+        String path = "accounts." + mode.name();
+        Criteria criteria = Criteria.where("retailerId").is(retailerId).and("recentReferences").is("debit:" + referenceId);
+        Update update = new Update()
+                .inc(path + ".used", new Decimal128(amount.negate()))
+                .inc(path + ".available", new Decimal128(amount))
+                .pull("recentReferences", "debit:" + referenceId)
+                .set("lastModifiedDate", LocalDateTime.now());
+        if (mode == PaymentMode.CREDIT) {
+            update.inc(path + ".outstanding", new Decimal128(amount.negate()));
+        }
+
+        RetailerWallet updated = mongoTemplate.findAndModify(
+                Query.query(criteria), update,
+                FindAndModifyOptions.options().returnNew(true), RetailerWallet.class);
+        if (updated == null) {
+            logger.info("No debit {} to reverse for retailer {}", referenceId, retailerId);
+            return null;
+        }
+        cacheWallet(updated);
+        logger.info("Reversed debit {} of {} {} for retailer {}", referenceId, amount, mode, retailerId);
+
+        Map<PaymentMode, BigDecimal> amounts = new EnumMap<>(PaymentMode.class);
+        amounts.put(mode, amount);
+        projectToLegacyDocuments(updated, amounts.keySet(), amounts, referenceId, description, true);
+        return updated;
+    }
+
+    /**
+     * Record a payment against the CREDIT account: outstanding goes down (not below zero) and
+     * available becomes limit minus outstanding, as RetailerLimit.receivePayment did.
+     * Computed by the server from the wallet's own values in one pipeline update.
+     * nextDueDate, if given, becomes the new payment due date.
+     */
+    public RetailerWallet receivePayment(String retailerId, BigDecimal amount, LocalDateTime nextDueDate,
+                                         String processedBy, String description) {
+        if (amount == null || amount.compareTo(BigDecimal.ZERO) <= 0) {
+            throw new IllegalArgumentException("Payment amount must be positive");
+        }
+
+        getWallet(retailerId);
+
+        String path = "accounts." + PaymentMode.CREDIT.name();
+        Document outstanding = new Document("$max", List.of(new Decimal128(BigDecimal.ZERO),
+                new Document("$subtract", List.of(decimalField(path + ".outstanding"), new Decimal128(amount)))));
+        Document set = new Document(path + ".outstanding", outstanding)
+                .append(path + ".available", new Document("$subtract", List.of(decimalField(path + ".limit"), outstanding)))
+                .append("lastModifiedDate", mongoValue(LocalDateTime.now()));
+        if (nextDueDate != null) {
+            set.append(path + ".dueDate", mongoValue(nextDueDate));
+        }
+
+        RetailerWallet updated = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("retailerId").is(retailerId)), pipeline(set),
+                FindAndModifyOptions.options().returnNew(true), RetailerWallet.class);
+        if (updated == null) {
+            throw new IllegalStateException("Wallet not found for retailer: " + retailerId);
+        }
+        cacheWallet(updated);
+        logger.info("Recorded payment of {} for retailer {} by {}", amount, retailerId, processedBy);
+
+        SubAccount credit = updated.getAccount(PaymentMode.CREDIT);
+        RetailerLimit.CreditTransaction transaction = new RetailerLimit.CreditTransaction(
+                RetailerLimit.CreditTransaction.TransactionType.PAYMENT_RECEIVED, amount, credit.getAvailable(), description);
+        transaction.setProcessedBy(processedBy);
+        try {
+            Update update = new Update()
+                    .set("lastPaymentDate", LocalDateTime.now())
+                    .push("transactions", transaction);
+            if (nextDueDate != null) {
+                update.set("nextDueDate", nextDueDate);
+            }
+            mongoTemplate.updateFirst(byRetailer(retailerId), update, RetailerLimit.class);
+        } catch (Exception e) {
+            logger.error("Failed to record payment transaction for retailer {}: {}", retailerId, e.getMessage());
+        }
+        projectToLegacyDocuments(updated, EnumSet.of(PaymentMode.CREDIT), Map.of(), null, null, false);
+        return updated;
+    }
+
+    /**
+     * Copy limit, status and due date from the legacy documents into the wallet and recompute
+     * available from the wallet's own usage (limit minus outstanding for CREDIT, limit minus used
+     * otherwise). Used and outstanding are never taken from the legacy documents. The wallet's
+     * balances are then projected back onto them, replacing whatever stale amounts the admin
+     * save wrote. Called whenever an admin saves one of the legacy documents.
+     */
+    public RetailerWallet applyLimits(String retailerId) {
+        if (retailerWalletRepository.findByRetailerId(retailerId).isEmpty()) {
+            RetailerWallet created = createWallet(retailerId);
+            projectToLegacyDocuments(created, EnumSet.allOf(PaymentMode.class), Map.of(), null, null, false);
+            return created;
+        }
+
+        Document set = new Document("lastModifiedDate", mongoValue(LocalDateTime.now()));
+        for (Map.Entry<PaymentMode, SubAccount> entry : readLegacyAccounts(retailerId).entrySet()) {
+            String path = "accounts." + entry.getKey().name();
+            SubAccount configured = entry.getValue();
+            String usage = entry.getKey() == PaymentMode.CREDIT ? ".outstanding" : ".used";
+            set.append(path + ".limit", new Decimal128(configured.getLimit()))
+               .append(path + ".status", configured.getStatus())
+               .append(path + ".available", new Document("$subtract",
+                       List.of(new Decimal128(configured.getLimit()), decimalField(path + usage))));
+            if (entry.getKey() == PaymentMode.CREDIT) {
+                set.append(path + ".dueDate", mongoValue(configured.getDueDate()));
+            }
+        }
+
+        RetailerWallet updated = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("retailerId").is(retailerId)), pipeline(set),
+                FindAndModifyOptions.options().returnNew(true), RetailerWallet.class);
+        if (updated == null) {
+            throw new IllegalStateException("Wallet not found for retailer: " + retailerId);
+        }
+        cacheWallet(updated);
+        projectToLegacyDocuments(updated, EnumSet.allOf(PaymentMode.class), Map.of(), null, null, false);
+        return updated;
+    }
+
+    /**
+     * Create the wallet from the legacy limit documents the first time a retailer is seen.
+     * Every field is set on insert only, so a concurrent first access or an existing wallet
+     * is never overwritten.
+     */
+    private RetailerWallet createWallet(String retailerId) {
+        Update update = new Update()
+                .setOnInsert("retailerId", retailerId)
+                .setOnInsert("createdDate", LocalDateTime.now())
+                .setOnInsert("lastModifiedDate", LocalDateTime.now());
+        for (Map.Entry<PaymentMode, SubAccount> entry : readLegacyAccounts(retailerId).entrySet()) {
+            String path = "accounts." + entry.getKey().name();
+            SubAccount account = entry.getValue();
+            update.setOnInsert(path + ".limit", new Decimal128(account.getLimit()));
+            update.setOnInsert(path + ".used", new Decimal128(account.getUsed()));
+            update.setOnInsert(path + ".available", new Decimal128(account.getAvailable()));
+            update.setOnInsert(path + ".outstanding", new Decimal128(account.getOutstanding()));
+            update.setOnInsert(path + ".status", account.getStatus());
+            update.setOnInsert(path + ".dueDate", account.getDueDate());
+        }
+
+        RetailerWallet wallet = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("retailerId").is(retailerId)), update,
+                FindAndModifyOptions.options().upsert(true).returnNew(true), RetailerWallet.class);
+        cacheWallet(wallet);
+        return wallet;
+    }
+
+    // Sub-accounts as currently described by the legacy limit documents
+    private Map<PaymentMode, SubAccount> readLegacyAccounts(String retailerId) {
+        Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(retailerId);
+        Optional<RetailerEsimCredit> esimCreditOpt = retailerEsimCreditRepository.findByRetailer_Id(retailerId);
+        Optional<RetailerKickbackLimit> kickbackOpt = retailerKickbackLimitRepository.findByRetailerId(retailerId);
+
+        Map<PaymentMode, SubAccount> accounts = new EnumMap<>(PaymentMode.class);
+
+        accounts.put(PaymentMode.CREDIT, limitOpt
+                .map(limit -> {
+                    SubAccount account = new SubAccount(limit.getCreditLimit(), limit.getUsedCredit(), limit.getAvailableCredit(),
+                            limit.getOutstandingAmount(), limit.getStatus() != null ? limit.getStatus().name() : "ACTIVE");
+                    account.setDueDate(limit.getNextDueDate());
+                    return account;
+                })
+                .orElseGet(SubAccount::new));
+
+        if (esimCreditOpt.isPresent()) {
+            RetailerEsimCredit esimCredit = esimCreditOpt.get();
+            accounts.put(PaymentMode.ESIM_CREDIT, new SubAccount(esimCredit.getCreditLimit(), esimCredit.getUsedCredit(),
+                    esimCredit.getAvailableCredit(), esimCredit.getOutstandingAmount(),
+                    esimCredit.getStatus() != null ? esimCredit.getStatus().name() : "ACTIVE"));
+        } else if (limitOpt.isPresent() && limitOpt.get().getEsimCreditLimit() != null
+                && limitOpt.get().getEsimCreditLimit().compareTo(BigDecimal.ZERO) > 0) {
+            // Older records kept eSIM credit on retailer_limits
+            RetailerLimit limit = limitOpt.get();
+            accounts.put(PaymentMode.ESIM_CREDIT, new SubAccount(limit.getEsimCreditLimit(), limit.getEsimUsedCredit(),
+                    limit.getEsimAvailableCredit(), BigDecimal.ZERO,
+                    limit.getStatus() != null ? limit.getStatus().name() : "ACTIVE"));
+        } else {
+            accounts.put(PaymentMode.ESIM_CREDIT, new SubAccount());
+        }
+
+        accounts.put(PaymentMode.KICKBACK, kickbackOpt
+                .map(kickback -> new SubAccount(kickback.getKickbackLimit(), kickback.getUsedKickback(),
+                        kickback.getAvailableKickback(), BigDecimal.ZERO,
+                        kickback.getStatus() != null ? kickback.getStatus().name() : "ACTIVE"))
+                .orElseGet(SubAccount::new));
+        return accounts;
+    }
+
+    /**
+     * Write the wallet's balances onto the legacy documents, with a transaction entry for each
+     * amount moved. The wallet is the source of these values and nothing reads them back into it,
+     * so the absolute $set cannot lose a concurrent change. Plain updates raise no save events.
+     */
+    private void projectToLegacyDocuments(RetailerWallet wallet, Set<PaymentMode> modes,
+                                          Map<PaymentMode, BigDecimal> amounts, String referenceId,
+                                          String description, boolean isCredit) {
+        Query byRetailer = byRetailer(wallet.getRetailerId());
+
+        for (PaymentMode mode : modes) {
+            SubAccount account = wallet.getAccount(mode);
+            BigDecimal amount = amounts.get(mode);
+            try {
+                switch (mode) {
+                    case CREDIT -> {
+                        Update update = new Update()
+                                .set("usedCredit", account.getUsed())
+                                .set("availableCredit", account.getAvailable())
+                                .set("outstandingAmount", account.getOutstanding())
+                                .set("lastModifiedDate", LocalDateTime.now());
+                        if (amount != null) {
+                            RetailerLimit.CreditTransaction transaction = new RetailerLimit.CreditTransaction(
+                                    isCredit ? RetailerLimit.CreditTransaction.TransactionType.REFUND
+                                             : RetailerLimit.CreditTransaction.TransactionType.ORDER_PLACED,
+                                    amount, account.getAvailable(), description);
+                            transaction.setReferenceOrderId(referenceId);
+                            update.push("transactions", transaction);
+                        }
+                        mongoTemplate.updateFirst(byRetailer, update, RetailerLimit.class);
+                    }
+                    case ESIM_CREDIT -> {
+                        Update update = new Update()
+                                .set("usedCredit", account.getUsed())
+                                .set("availableCredit", account.getAvailable())
+                                .set("lastModifiedDate", LocalDateTime.now());
+                        if (amount != null) {
+                            RetailerEsimCredit.EsimCreditTransaction transaction = new RetailerEsimCredit.EsimCreditTransaction(
+                                    isCredit ? RetailerEsimCredit.EsimCreditTransaction.TransactionType.REFUND
+                                             : RetailerEsimCredit.EsimCreditTransaction.TransactionType.ESIM_SALE,
+                                    amount, account.getAvailable(), description);
+                            transaction.setReferenceOrderId(referenceId);
+                            update.push("transactions", transaction);
+                        }
+                        if (mongoTemplate.updateFirst(byRetailer, update, RetailerEsimCredit.class).getMatchedCount() == 0) {
+                            // Older records keep eSIM credit on retailer_limits
+                            mongoTemplate.updateFirst(byRetailer, new Update()
+                                    .set("esimUsedCredit", account.getUsed())
+                                    .set("esimAvailableCredit", account.getAvailable())
+                                    .set("lastModifiedDate", LocalDateTime.now()), RetailerLimit.class);
+                        }
+                    }
+                    case KICKBACK -> mongoTemplate.updateFirst(byRetailer, new Update()
+                            .set("usedKickback", account.getUsed())
+                            .set("availableKickback", account.getAvailable())
+                            .set("lastModifiedDate", LocalDateTime.now()), RetailerKickbackLimit.class);
+                }
+            } catch (Exception e) {
+                // The wallet is authoritative; a failed projection is rewritten on the next change
+                logger.error("Failed to project {} balance to legacy document for retailer {}: {}",
+                        mode, wallet.getRetailerId(), e.getMessage());
+            }
+        }
+
+        // The plain updates above raise no save events, so refresh the admin credit overview here
+        if (modes.contains(PaymentMode.CREDIT) || modes.contains(PaymentMode.ESIM_CREDIT)) {
+            retailerCreditOverviewService.refreshAfterCommit(wallet.getRetailerId());
+        }
+    }
+
+    // Reject the update if the operation is among the recently applied ones, and remember it
+    private static void once(Criteria criteria, Update update, String operationKey) {
+        if (operationKey != null) {
+            criteria.and("recentReferences").ne(operationKey);
+            update.push("recentReferences").slice(-RECENT_REFERENCES).each(operationKey);
+        }
+    }
+
+    private boolean alreadyApplied(String retailerId, String operationKey) {
+        return operationKey != null && mongoTemplate.exists(
+                Query.query(Criteria.where("retailerId").is(retailerId).and("recentReferences").is(operationKey)),
+                RetailerWallet.class);
+    }
+
+    private RetailerWallet reload(String retailerId) {
+        retailerBalanceCache.invalidate(retailerId);
+        return getWallet(retailerId);
+    }
+
+    private Query byRetailer(String retailerId) {
+        return Query.query(Criteria.where("retailer.$id").is(retailerRef(retailerId)));
+    }
+
+    // A Decimal128 field for use in a pipeline update, zero when missing
+    private static Document decimalField(String path) {
+        return new Document("$ifNull", List.of("$" + path, new Decimal128(BigDecimal.ZERO)));
+    }
+
+    // Raw pipeline stages are not mapped, so convert dates the way the entity mapping does
+    private Object mongoValue(Object value) {
+        return value != null ? mongoTemplate.getConverter().convertToMongoType(value) : null;
+    }
+
+    private static AggregationUpdate pipeline(Document set) {
+        return AggregationUpdate.from(List.<AggregationOperation>of(context -> new Document("$set", set)));
+    }
+
+    /**
+     * Write-through to the cache. Inside a transaction the wallet is only cached once the
+     * transaction has committed; until then the entry is dropped, so no request, not even a
+     * concurrent one, authorizes against a balance that might still roll back.
+     */
+    private void cacheWallet(RetailerWallet wallet) {
+        if (wallet == null) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            retailerBalanceCache.put(wallet);
+            return;
+        }
+        retailerBalanceCache.invalidate(wallet.getRetailerId());
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                retailerBalanceCache.put(wallet);
+            }
+        });
+    }
+
+    private Object retailerRef(String retailerId) {
+        return ObjectId.isValid(retailerId) ? new ObjectId(retailerId) : retailerId;
+    }
+}
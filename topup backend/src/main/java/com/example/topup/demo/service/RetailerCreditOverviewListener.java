@@ -0,0 +1,52 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.RetailerEsimCredit;
+import com.example.topup.demo.entity.RetailerLimit;
+import com.example.topup.demo.entity.User;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps retailer_credit_overview in step with saves of the documents it is built from.
+ * Wallet debits write the limit documents without save events; RetailerBalanceService
+ * refreshes the overview for those itself.
+ */
+@Component
+public class RetailerCreditOverviewListener extends AbstractMongoEventListener<Object> {
+
+    @Autowired
+    @Lazy
+    private RetailerCreditOverviewService retailerCreditOverviewService;
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Object> event) {
+        Object source = event.getSource();
+        User retailer = null;
+
+        if (source instanceof RetailerLimit limit) {
+            retailer = limit.getRetailer();
+        } else if (source instanceof RetailerEsimCredit esimCredit) {
+            retailer = esimCredit.getRetailer();
+        } else if (source instanceof User user) {
+            // Name or email changes, new retailers, and accounts switching type
+            retailer = user;
+        }
+
+        if (retailer != null && retailer.getId() != null) {
+            retailerCreditOverviewService.refreshAfterCommit(retailer.getId());
+        }
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<Object> event) {
+        Document query = event.getSource();
+        if (User.class.equals(event.getType()) && query != null && query.get("_id") != null) {
+            retailerCreditOverviewService.refreshAfterCommit(query.get("_id").toString());
+        }
+    }
+}
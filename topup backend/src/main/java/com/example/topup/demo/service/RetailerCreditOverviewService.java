@@ -0,0 +1,365 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.dto.RetailerCreditLimitDTO;
+import com.example.topup.demo.entity.RetailerCreditOverview;
+import com.example.topup.demo.entity.RetailerEsimCredit;
+import com.example.topup.demo.entity.RetailerLimit;
+import com.example.topup.demo.entity.User;
+import com.example.topup.demo.repository.RetailerEsimCreditRepository;
+import com.example.topup.demo.repository.RetailerLimitRepository;
+import com.example.topup.demo.repository.UserRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Maintains retailer_credit_overview, the read model behind the admin credit screen.
+ *
+ * A retailer's row is rebuilt from its User, RetailerLimit and RetailerEsimCredit whenever one of
+ * them is saved or a sale debits the wallet. Refreshes run after the business transaction commits,
+ * on a single background thread, and several changes for the same retailer are coalesced into one.
+ * rebuildAll() recreates every row and runs on startup while the collection is empty.
+ */
+@Service
+public class RetailerCreditOverviewService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetailerCreditOverviewService.class);
+
+    public static final int MAX_PAGE_SIZE = 200;
+
+    // Sort keys accepted from the admin screen, mapped to overview fields
+    private static final Map<String, String> SORT_FIELDS = Map.of(
+            "creditUsage", "creditUsagePercentage",
+            "esimUsage", "esimCreditUsagePercentage",
+            "unitUsage", "unitUsagePercentage",
+            "creditLimit", "creditLimit",
+            "outstanding", "outstandingAmount",
+            "name", "retailerName");
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private RetailerLimitRepository retailerLimitRepository;
+
+    @Autowired
+    private RetailerEsimCreditRepository retailerEsimCreditRepository;
+
+    @Autowired
+    private RetailerDirectory retailerDirectory;
+
+    @Value("${app.credit-overview.rebuild-on-startup:true}")
+    private boolean rebuildOnStartup;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "credit-overview");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Retailers with a refresh queued but not started yet
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildIfEmpty() {
+        if (rebuildOnStartup && !mongoTemplate.exists(new Query(), RetailerCreditOverview.class)) {
+            executor.execute(() -> {
+                try {
+                    rebuildAll();
+                } catch (Exception e) {
+                    logger.error("Credit overview rebuild failed: {}", e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Every retailer, highest credit usage first.
+     */
+    public List<RetailerCreditLimitDTO> findAll() {
+        Query query = new Query().with(Sort.by(Sort.Direction.DESC, "creditUsagePercentage").and(Sort.by("_id")));
+        return mongoTemplate.find(query, RetailerCreditOverview.class).stream()
+                .map(RetailerCreditOverview::toDTO)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * One page of retailers. Filters are optional; usage bounds apply to the credit usage percentage.
+     */
+    public Page<RetailerCreditLimitDTO> findPage(int page, int size, String sortBy, String direction, String status,
+                                                 String level, Double minUsage, Double maxUsage, String search) {
+        String sortField = SORT_FIELDS.get(sortBy != null && !sortBy.isBlank() ? sortBy : "creditUsage");
+        if (sortField == null) {
+            throw new IllegalArgumentException("Unsupported sort: " + sortBy + ". Use one of " + SORT_FIELDS.keySet());
+        }
+        Sort.Direction sortDirection = "asc".equalsIgnoreCase(direction) ? Sort.Direction.ASC : Sort.Direction.DESC;
+        PageRequest pageable = PageRequest.of(Math.max(page, 0), Math.max(1, Math.min(size, MAX_PAGE_SIZE)),
+                Sort.by(sortDirection, sortField).and(Sort.by("_id")));
+
+        List<Criteria> filters = new ArrayList<>();
+        if (status != null && !status.isBlank()) {
+            filters.add(Criteria.where("status").is(status.toUpperCase()));
+        }
+        if (level != null && !level.isBlank()) {
+            filters.add(Criteria.where("level").is(level.toUpperCase()));
+        }
+        if (minUsage != null || maxUsage != null) {
+            Criteria usage = Criteria.where("creditUsagePercentage");
+            if (minUsage != null) {
+                usage = usage.gte(minUsage);
+            }
+            if (maxUsage != null) {
+                usage = usage.lte(maxUsage);
+            }
+            filters.add(usage);
+        }
+        if (search != null && !search.isBlank()) {
+            Pattern pattern = Pattern.compile(Pattern.quote(search.trim()), Pattern.CASE_INSENSITIVE);
+            filters.add(new Criteria().orOperator(
+                    Criteria.where("retailerName").regex(pattern), Criteria.where("retailerEmail").regex(pattern)));
+        }
+
+        Query query = filters.isEmpty() ? new Query() : new Query(new Criteria().andOperator(filters));
+        long total = mongoTemplate.count(query, RetailerCreditOverview.class);
+        List<RetailerCreditLimitDTO> content = mongoTemplate.find(query.with(pageable), RetailerCreditOverview.class).stream()
+                .map(RetailerCreditOverview::toDTO)
+                .collect(Collectors.toList());
+        return new PageImpl<>(content, pageable, total);
+    }
+
+    /**
+     * Queue a refresh of one retailer's row, after the current transaction commits if there is one.
+     */
+    public void refreshAfterCommit(String retailerId) {
+        if (retailerId == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    schedule(retailerId);
+                }
+            });
+        } else {
+            schedule(retailerId);
+        }
+    }
+
+    public void remove(String retailerId) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(retailerId)), RetailerCreditOverview.class);
+    }
+
+    /**
+     * Rebuild one retailer's row from the source documents; removes it if the user is no longer a retailer.
+     */
+    public void refresh(String retailerId) {
+        Optional<User> retailerOpt = userRepository.findById(retailerId);
+        if (retailerOpt.isEmpty() || retailerOpt.get().getAccountType() != User.AccountType.BUSINESS) {
+            remove(retailerId);
+            return;
+        }
+        User retailer = retailerOpt.get();
+        RetailerCreditLimitDTO dto = toCreditLimitDTO(retailer,
+                retailerLimitRepository.findByRetailer(retailer),
+                retailerEsimCreditRepository.findByRetailer(retailer));
+        mongoTemplate.save(RetailerCreditOverview.from(dto));
+    }
+
+    /**
+     * Recreate every row with one query per source collection and one bulk write.
+     */
+    public int rebuildAll() {
+        List<User> retailers = userRepository.findByAccountType(User.AccountType.BUSINESS);
+        Map<String, RetailerLimit> limits = retailerDirectory.loadByRetailer(
+                RetailerLimit.class, retailers, RetailerLimit::setRetailer);
+        Map<String, RetailerEsimCredit> esimCredits = retailerDirectory.loadByRetailer(
+                RetailerEsimCredit.class, retailers, RetailerEsimCredit::setRetailer);
+
+        List<String> retailerIds = new ArrayList<>();
+        if (!retailers.isEmpty()) {
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, RetailerCreditOverview.class);
+            for (User retailer : retailers) {
+                RetailerCreditOverview overview = RetailerCreditOverview.from(toCreditLimitDTO(retailer,
+                        Optional.ofNullable(limits.get(retailer.getId())),
+                        Optional.ofNullable(esimCredits.get(retailer.getId()))));
+                bulk.replaceOne(Query.query(Criteria.where("_id").is(overview.getId())), overview,
+                        FindAndReplaceOptions.options().upsert());
+                retailerIds.add(retailer.getId());
+            }
+            bulk.execute();
+        }
+        // Drop rows of users that are no longer retailers
+        mongoTemplate.remove(Query.query(Criteria.where("_id").nin(retailerIds)), RetailerCreditOverview.class);
+
+        logger.info("Credit overview rebuilt for {} retailers", retailerIds.size());
+        return retailerIds.size();
+    }
+
+    /**
+     * Combine a retailer's credit limit and separate eSIM credit into the admin credit row.
+     */
+    public RetailerCreditLimitDTO toCreditLimitDTO(User retailer, Optional<RetailerLimit> limitOpt,
+                                                   Optional<RetailerEsimCredit> esimCreditOpt) {
+        RetailerCreditLimitDTO dto = new RetailerCreditLimitDTO();
+
+        dto.setRetailerId(retailer.getId());
+        dto.setRetailerName(retailer.getFullName());
+        dto.setRetailerEmail(retailer.getEmail());
+
+        if (limitOpt.isPresent()) {
+            RetailerLimit limit = limitOpt.get();
+            dto.setId(limit.getId());
+            dto.setCreditLimit(limit.getCreditLimit());
+            dto.setAvailableCredit(limit.getAvailableCredit());
+            dto.setUsedCredit(limit.getUsedCredit());
+            dto.setOutstandingAmount(limit.getOutstandingAmount());
+            dto.setPaymentTermsDays(limit.getPaymentTermsDays());
+            dto.setLastPaymentDate(limit.getLastPaymentDate());
+            dto.setNextDueDate(limit.getNextDueDate());
+            dto.setStatus(limit.getStatus().toString());
+
+            // Calculate credit usage percentage
+            if (limit.getCreditLimit() != null && limit.getCreditLimit().compareTo(BigDecimal.ZERO) > 0) {
+                BigDecimal usedCredit = limit.getUsedCredit() != null ? limit.getUsedCredit() : BigDecimal.ZERO;
+                double percentage = usedCredit.divide(limit.getCreditLimit(), 4, java.math.RoundingMode.HALF_UP)
+                                             .multiply(BigDecimal.valueOf(100))
+                                             .doubleValue();
+                dto.setCreditUsagePercentage(percentage);
+            } else {
+                dto.setCreditUsagePercentage(0.0);
+            }
+
+            // Set unit limit fields
+            dto.setUnitLimit(limit.getUnitLimit());
+            dto.setUsedUnits(limit.getUsedUnits());
+            dto.setAvailableUnits(limit.getAvailableUnits());
+            dto.setUnitUsagePercentage(limit.getUnitUsagePercentage());
+
+            // Determine level based on credit limit
+            dto.setLevel(determineCreditLevel(limit.getCreditLimit()));
+        } else {
+            // No limit set yet
+            dto.setCreditLimit(BigDecimal.ZERO);
+            dto.setAvailableCredit(BigDecimal.ZERO);
+            dto.setUsedCredit(BigDecimal.ZERO);
+            dto.setOutstandingAmount(BigDecimal.ZERO);
+            dto.setPaymentTermsDays(30);
+            dto.setStatus("NOT_SET");
+            dto.setCreditUsagePercentage(0.0);
+            dto.setLevel("NOT_SET");
+
+            // Default unit limit values
+            dto.setUnitLimit(0);
+            dto.setUsedUnits(0);
+            dto.setAvailableUnits(0);
+            dto.setUnitUsagePercentage(0.0);
+        }
+
+        // Set eSIM credit limit fields from SEPARATE collection
+        if (esimCreditOpt.isPresent()) {
+            RetailerEsimCredit esimCredit = esimCreditOpt.get();
+            dto.setEsimCreditLimit(esimCredit.getCreditLimit() != null ? esimCredit.getCreditLimit() : BigDecimal.ZERO);
+            dto.setEsimAvailableCredit(esimCredit.getAvailableCredit() != null ? esimCredit.getAvailableCredit() : BigDecimal.ZERO);
+            dto.setEsimUsedCredit(esimCredit.getUsedCredit() != null ? esimCredit.getUsedCredit() : BigDecimal.ZERO);
+
+            // Calculate eSIM credit usage percentage
+            if (esimCredit.getCreditLimit() != null && esimCredit.getCreditLimit().compareTo(BigDecimal.ZERO) > 0) {
+                BigDecimal esimUsed = esimCredit.getUsedCredit() != null ? esimCredit.getUsedCredit() : BigDecimal.ZERO;
+                double esimPercentage = esimUsed.divide(esimCredit.getCreditLimit(), 4, java.math.RoundingMode.HALF_UP)
+                                             .multiply(BigDecimal.valueOf(100))
+                                             .doubleValue();
+                dto.setEsimCreditUsagePercentage(esimPercentage);
+            } else {
+                dto.setEsimCreditUsagePercentage(0.0);
+            }
+        } else {
+            // Default eSIM credit limit values
+            dto.setEsimCreditLimit(BigDecimal.ZERO);
+            dto.setEsimAvailableCredit(BigDecimal.ZERO);
+            dto.setEsimUsedCredit(BigDecimal.ZERO);
+            dto.setEsimCreditUsagePercentage(0.0);
+        }
+
+        return dto;
+    }
+
+    /**
+     * Determine credit level based on credit limit
+     */
+    private String determineCreditLevel(BigDecimal creditLimit) {
+        if (creditLimit == null || creditLimit.compareTo(BigDecimal.ZERO) == 0) {
+            return "NOT_SET";
+        }
+
+        double limit = creditLimit.doubleValue();
+
+        if (limit >= 20000) {
+            return "DIAMOND";
+        } else if (limit >= 15000) {
+            return "PLATINUM";
+        } else if (limit >= 10000) {
+            return "GOLD";
+        } else if (limit >= 7500) {
+            return "SILVER";
+        } else if (limit >= 5000) {
+            return "BRONZE";
+        } else {
+            return "STARTER";
+        }
+    }
+
+    private void schedule(String retailerId) {
+        // A refresh already queued for this retailer will pick up this change too
+        if (!pending.add(retailerId)) {
+            return;
+        }
+        executor.execute(() -> {
+            pending.remove(retailerId);
+            try {
+                refresh(retailerId);
+            } catch (Exception e) {
+                // The overview is repairable with rebuildAll(); never fail the write because of it
+                logger.error("Credit overview refresh failed for retailer {}: {}", retailerId, e.getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.BusinessDetails;
+import com.example.topup.demo.entity.User;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.DBRef;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves retailer display info (name, email, company) for reports without one query per row.
+ *
+ * Lookups go through a short-TTL shared cache; misses are loaded together with a single $in
+ * query on users and one on business_details. Reports either pass all ids to getAll(), or use
+ * a Batch: request() every id while building rows, and the first get() loads them in one go.
+ */
+@Service
+public class RetailerDirectory {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${app.retailer-directory.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    @Value("${app.retailer-directory.max-size:10000}")
+    private long maxSize;
+
+    private Cache<String, RetailerInfo> cache;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .build();
+    }
+
+    // Profile edits show up immediately on this instance; other instances within the TTL
+    @EventListener
+    public void onAfterSave(AfterSaveEvent<?> event) {
+        if (event.getSource() instanceof User user && user.getId() != null) {
+            cache.invalidate(user.getId());
+        }
+    }
+
+    public RetailerInfo get(String retailerId) {
+        return retailerId != null ? getAll(List.of(retailerId)).get(retailerId) : null;
+    }
+
+    /**
+     * Display info for every id that exists; unknown ids are left out of the map.
+     */
+    public Map<String, RetailerInfo> getAll(Collection<String> retailerIds) {
+        Map<String, RetailerInfo> found = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (String id : retailerIds) {
+            if (id == null) {
+                continue;
+            }
+            RetailerInfo cached = cache.getIfPresent(id);
+            if (cached != null) {
+                found.put(id, cached);
+            } else {
+                missing.add(id);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            for (RetailerInfo info : load(missing)) {
+                cache.put(info.getId(), info);
+                found.put(info.getId(), info);
+            }
+        }
+        return found;
+    }
+
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * Load documents that reference a retailer through a @DBRef "retailer" field, for many retailers
+     * in one query, keyed by retailer id. The reference is attached from the given users instead of
+     * being resolved once per document by the mapping layer.
+     */
+    public <T> Map<String, T> loadByRetailer(Class<T> type, Collection<User> retailers, BiConsumer<T, User> attachRetailer) {
+        Map<String, User> byId = retailers.stream()
+                .filter(retailer -> retailer.getId() != null)
+                .collect(Collectors.toMap(User::getId, retailer -> retailer, (a, b) -> a));
+        Map<String, T> loaded = new HashMap<>();
+        if (byId.isEmpty()) {
+            return loaded;
+        }
+
+        Query query = Query.query(Criteria.where("retailer.$id").in(toRefIds(byId.keySet())));
+        for (Document document : mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(type))) {
+            if (!(document.remove("retailer") instanceof DBRef ref)) {
+                continue;
+            }
+            User retailer = byId.get(ref.getId().toString());
+            if (retailer == null) {
+                continue;
+            }
+            T entity = mongoTemplate.getConverter().read(type, document);
+            attachRetailer.accept(entity, retailer);
+            // One document per retailer is expected; keep the first like findByRetailer would
+            loaded.putIfAbsent(retailer.getId(), entity);
+        }
+        return loaded;
+    }
+
+    private List<RetailerInfo> load(Collection<String> retailerIds) {
+        Query query = Query.query(Criteria.where("_id").in(toRefIds(retailerIds)));
+        query.fields().include("firstName", "lastName", "email", "businessDetails");
+        List<Document> users = mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(User.class));
+
+        // Company names for all business users in one more query
+        Map<Object, Object> businessIds = new HashMap<>();
+        for (Document user : users) {
+            if (user.get("businessDetails") instanceof DBRef ref) {
+                businessIds.put(user.get("_id"), ref.getId());
+            }
+        }
+        Map<String, String> companyNames = new HashMap<>();
+        if (!businessIds.isEmpty()) {
+            Query businessQuery = Query.query(Criteria.where("_id").in(businessIds.values()));
+            businessQuery.fields().include("companyName");
+            for (Document business : mongoTemplate.find(businessQuery, Document.class,
+                    mongoTemplate.getCollectionName(BusinessDetails.class))) {
+                companyNames.put(business.get("_id").toString(), business.getString("companyName"));
+            }
+        }
+
+        List<RetailerInfo> infos = new ArrayList<>();
+        for (Document user : users) {
+            Object businessId = businessIds.get(user.get("_id"));
+            infos.add(new RetailerInfo(user.get("_id").toString(), user.getString("firstName"), user.getString("lastName"),
+                    user.getString("email"), businessId != null ? companyNames.get(businessId.toString()) : null));
+        }
+        return infos;
+    }
+
+    // User ids are stored as ObjectIds; DBRefs to users carry the same ObjectId
+    private static List<Object> toRefIds(Collection<String> ids) {
+        return ids.stream().filter(Objects::nonNull)
+                .map(id -> ObjectId.isValid(id) ? new ObjectId(id) : id)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Collects the ids a report needs and resolves them with one query on first access.
+     */
+    public final class Batch {
+
+        private final Set<String> pending = new LinkedHashSet<>();
+        private final Map<String, RetailerInfo> loaded = new HashMap<>();
+
+        public Batch request(String retailerId) {
+            if (retailerId != null && !loaded.containsKey(retailerId)) {
+                pending.add(retailerId);
+            }
+            return this;
+        }
+
+        public RetailerInfo get(String retailerId) {
+            if (retailerId == null) {
+                return null;
+            }
+            if (!loaded.containsKey(retailerId)) {
+                pending.add(retailerId);
+            }
+            if (!pending.isEmpty()) {
+                loaded.putAll(getAll(pending));
+                pending.forEach(id -> loaded.putIfAbsent(id, null));
+                pending.clear();
+            }
+            return loaded.get(retailerId);
+        }
+    }
+
+    /**
+     * What reports show about a retailer.
+     */
+    public static final class RetailerInfo {
+
+        private final String id;
+        private final String firstName;
+        private final String lastName;
+        private final String email;
+        private final String companyName;
+
+        RetailerInfo(String id, String firstName, String lastName, String email, String companyName) {
+            this.id = id;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.email = email;
+            this.companyName = companyName;
+        }
+
+        public String getId() { return id; }
+        public String getFirstName() { return firstName; }
+        public String getLastName() { return lastName; }
+        public String getEmail() { return email; }
+        public String getCompanyName() { return companyName; }
+
+        // Same format as the reports built from User entities: "first last"
+        public String getFullName() {
+            return firstName + " " + lastName;
+        }
+    }
+}
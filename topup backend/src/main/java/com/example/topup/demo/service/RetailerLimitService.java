@@ -2,6 +2,7 @@ package com.example.topup.demo.service;
 
 import com.example.topup.demo.entity.RetailerLimit;
 import com.example.topup.demo.entity.RetailerLimit.CreditTransaction;
+import com.example.topup.demo.entity.RetailerWallet;
 import com.example.topup.demo.entity.User;
 import com.example.topup.demo.repository.RetailerLimitRepository;
 import com.example.topup.demo.repository.UserRepository;
@@ -27,6 +28,9 @@ public class RetailerLimitService {
     @Autowired
     private EmailService emailService;
 
+    @Autowired
+    private RetailerBalanceService retailerBalanceService;
+
     // Create or initialize retailer limit
     @Transactional
     public RetailerLimit createRetailerLimit(String retailerId, BigDecimal creditLimit, String adminId) {
@@ -97,13 +101,16 @@ public class RetailerLimitService {
             throw new IllegalStateException("Retailer credit limit is not active");
         }
 
-        limit.useCredit(amount, orderId, description);
-        retailerLimitRepository.save(limit);
+        // Balances change only in the wallet, which projects them back onto the limit
+        RetailerWallet wallet = retailerBalanceService.debit(retailerId, RetailerWallet.PaymentMode.CREDIT,
+                amount, orderId, description);
+        BigDecimal available = wallet.getAccount(RetailerWallet.PaymentMode.CREDIT).getAvailable();
+        limit.setAvailableCredit(available);
 
         // Check if low credit alert needed
         if (limit.isSendLowCreditAlert() && 
             limit.getLowCreditThreshold() != null &&
-            limit.getAvailableCredit().compareTo(limit.getLowCreditThreshold()) <= 0) {
+            available.compareTo(limit.getLowCreditThreshold()) <= 0) {
             sendLowCreditAlert(limit);
         }
     }
@@ -114,8 +121,11 @@ public class RetailerLimitService {
         RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailerId)
                 .orElseThrow(() -> new NoSuchElementException("Retailer limit not found"));
 
-        limit.receivePayment(amount, adminId, description);
-        RetailerLimit saved = retailerLimitRepository.save(limit);
+        LocalDateTime nextDueDate = limit.getPaymentTermsDays() != null
+                ? LocalDateTime.now().plusDays(limit.getPaymentTermsDays())
+                : null;
+        retailerBalanceService.receivePayment(retailerId, amount, nextDueDate, adminId, description);
+        RetailerLimit saved = retailerLimitRepository.findByRetailer_Id(retailerId).orElse(limit);
         
         // Send payment confirmation email
         try {
@@ -123,7 +133,7 @@ public class RetailerLimitService {
             String subject = "Payment Received";
             String message = String.format(
                 "We have received your payment of $%s. Your available credit is now $%s.",
-                amount.toString(), limit.getAvailableCredit().toString()
+                amount.toString(), saved.getAvailableCredit().toString()
             );
             emailService.sendEmail(retailerEmail, subject, message);
         } catch (Exception e) {
@@ -139,8 +149,8 @@ public class RetailerLimitService {
         RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailerId)
                 .orElseThrow(() -> new NoSuchElementException("Retailer limit not found"));
 
-        limit.refundCredit(amount, orderId, adminId, description);
-        return retailerLimitRepository.save(limit);
+        retailerBalanceService.credit(retailerId, RetailerWallet.PaymentMode.CREDIT, amount, orderId, description);
+        return retailerLimitRepository.findByRetailer_Id(retailerId).orElse(limit);
     }
 
     // Update retailer limit status
@@ -7,6 +7,7 @@ import com.example.topup.demo.entity.RetailerOrder.OrderStatus;
 import com.example.topup.demo.entity.RetailerOrder.PaymentStatus;
 import com.example.topup.demo.repository.RetailerOrderRepository;
 import com.example.topup.demo.repository.ProductRepository;
+import com.example.topup.demo.util.OrderNumberGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -122,7 +123,7 @@ public class RetailerOrderService {
     private String generateUniqueOrderNumber() {
         String orderNumber;
         do {
-            orderNumber = "ORD-" + System.currentTimeMillis() + "-" + UUID.randomUUID().toString().substring(0, 6).toUpperCase();
+            orderNumber = OrderNumberGenerator.next("ORD");
         } while (orderRepository.existsByOrderNumber(orderNumber));
         
         return orderNumber;
@@ -231,12 +232,12 @@ public class RetailerOrderService {
     
     // Get orders by retailer
     public List<RetailerOrder> getOrdersByRetailer(String retailerId) {
-        return orderRepository.findByRetailerIdOrderByCreatedDateDesc(retailerId);
+        return orderRepository.findRetailerOrdersNewestFirst(retailerId);
     }
     
     // Get orders by retailer with pagination
     public Page<RetailerOrder> getOrdersByRetailer(String retailerId, Pageable pageable) {
-        return orderRepository.findByRetailerId(retailerId, pageable);
+        return orderRepository.findRetailerOrders(retailerId, pageable);
     }
     
     // Get orders by status
@@ -281,11 +282,11 @@ public class RetailerOrderService {
     public OrderStatistics getOrderStatistics(String retailerId) {
         OrderStatistics stats = new OrderStatistics();
         
-        stats.setTotalOrders(orderRepository.countByRetailerId(retailerId));
-        stats.setPendingOrders(orderRepository.countByRetailerIdAndStatus(retailerId, OrderStatus.PENDING));
-        stats.setConfirmedOrders(orderRepository.countByRetailerIdAndStatus(retailerId, OrderStatus.CONFIRMED));
-        stats.setDeliveredOrders(orderRepository.countByRetailerIdAndStatus(retailerId, OrderStatus.DELIVERED));
-        stats.setCancelledOrders(orderRepository.countByRetailerIdAndStatus(retailerId, OrderStatus.CANCELLED));
+        stats.setTotalOrders(orderRepository.countRetailerOrders(retailerId));
+        stats.setPendingOrders(orderRepository.countRetailerOrdersByStatus(retailerId, OrderStatus.PENDING));
+        stats.setConfirmedOrders(orderRepository.countRetailerOrdersByStatus(retailerId, OrderStatus.CONFIRMED));
+        stats.setDeliveredOrders(orderRepository.countRetailerOrdersByStatus(retailerId, OrderStatus.DELIVERED));
+        stats.setCancelledOrders(orderRepository.countRetailerOrdersByStatus(retailerId, OrderStatus.CANCELLED));
         
         return stats;
     }
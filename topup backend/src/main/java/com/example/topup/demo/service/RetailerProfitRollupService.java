@@ -0,0 +1,184 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.RetailerProfit;
+import com.example.topup.demo.entity.RetailerProfitEvent;
+import com.mongodb.DBRef;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Records retailer sale profit.
+ *
+ * Each sale is appended to retailer_profit_events, and its daily, monthly and yearly
+ * RetailerProfit rollups are updated with upsert + $inc in one bulk write, in the same
+ * transaction. No record is read first, so concurrent sales for a retailer cannot lose updates.
+ */
+@Service
+public class RetailerProfitRollupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetailerProfitRollupService.class);
+
+    private static final int MIGRATION_BATCH_SIZE = 500;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MongoTransactionRunner transactionRunner;
+
+    public RetailerProfitEvent record(String retailerId, BigDecimal saleAmount, BigDecimal costPrice,
+                                      String bundleName, String bundleId, Double marginRate) {
+        RetailerProfitEvent event = new RetailerProfitEvent(retailerId, saleAmount, costPrice, bundleName, bundleId, marginRate);
+        LocalDate day = event.getSaleDate();
+
+        return transactionRunner.execute("recordProfit", () -> {
+            mongoTemplate.insert(event);
+
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, RetailerProfit.class);
+            bulk.upsert(byId(RetailerProfit.dailyId(retailerId, day)), rollupUpdate(retailerId, "daily",
+                    day, day.getYear(), day.getMonthValue(), event.getSaleAmount(), event.getCostPrice(), event.getProfit(),
+                    1, marginRate, bundleName, bundleId));
+            bulk.upsert(byId(RetailerProfit.monthlyId(retailerId, day.getYear(), day.getMonthValue())), rollupUpdate(retailerId, "monthly",
+                    null, day.getYear(), day.getMonthValue(), event.getSaleAmount(), event.getCostPrice(), event.getProfit(),
+                    1, marginRate, bundleName, bundleId));
+            bulk.upsert(byId(RetailerProfit.yearlyId(retailerId, day.getYear())), rollupUpdate(retailerId, "yearly",
+                    null, day.getYear(), null, event.getSaleAmount(), event.getCostPrice(), event.getProfit(),
+                    1, marginRate, bundleName, bundleId));
+            bulk.execute();
+            return event;
+        });
+    }
+
+    /**
+     * Fold records written by the old read-modify-write code (DBRef retailer, random id, amounts
+     * possibly stored as strings) into the keyed rollups. Each batch adds and deletes in one
+     * transaction, so an interrupted run can simply be repeated.
+     */
+    public int migrateLegacyRecords() {
+        Query legacy = Query.query(Criteria.where("retailerId").exists(false)).limit(MIGRATION_BATCH_SIZE);
+        String collection = mongoTemplate.getCollectionName(RetailerProfit.class);
+        int migrated = 0;
+
+        while (true) {
+            List<Document> batch = mongoTemplate.find(legacy, Document.class, collection);
+            if (batch.isEmpty()) {
+                break;
+            }
+            int folded = transactionRunner.execute("migrateRetailerProfits", () -> foldLegacy(batch));
+            migrated += folded;
+            if (folded == 0) {
+                // Only unreadable records left; they are logged and kept for inspection
+                break;
+            }
+        }
+
+        return migrated;
+    }
+
+    private int foldLegacy(List<Document> records) {
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, RetailerProfit.class);
+        List<Object> foldedIds = new ArrayList<>();
+
+        for (Document record : records) {
+            String retailerId = record.get("retailer") instanceof DBRef ref ? ref.getId().toString() : null;
+            String period = record.getString("period");
+            Integer year = record.getInteger("year");
+            Integer month = record.getInteger("month");
+            LocalDate date = record.get("date") instanceof Date stored
+                    ? LocalDate.ofInstant(stored.toInstant(), ZoneId.systemDefault()) : null;
+
+            String id = null;
+            if (retailerId != null && "daily".equals(period) && date != null) {
+                id = RetailerProfit.dailyId(retailerId, date);
+                year = date.getYear();
+                month = date.getMonthValue();
+            } else if (retailerId != null && "monthly".equals(period) && year != null && month != null) {
+                id = RetailerProfit.monthlyId(retailerId, year, month);
+            } else if (retailerId != null && "yearly".equals(period) && year != null) {
+                id = RetailerProfit.yearlyId(retailerId, year);
+            }
+            if (id == null) {
+                logger.warn("Skipping unreadable retailer profit record {}", record.get("_id"));
+                continue;
+            }
+
+            Number salesCount = record.get("salesCount", Number.class);
+            Number marginRate = record.get("marginRate", Number.class);
+            bulk.upsert(byId(id), rollupUpdate(retailerId, period, date, year, month,
+                    toBigDecimal(record.get("revenue")), toBigDecimal(record.get("costPrice")), toBigDecimal(record.get("profit")),
+                    salesCount != null ? salesCount.intValue() : 0, marginRate != null ? marginRate.doubleValue() : null,
+                    record.getString("bundleName"), record.getString("productId")));
+            foldedIds.add(record.get("_id"));
+        }
+
+        if (!foldedIds.isEmpty()) {
+            bulk.remove(Query.query(Criteria.where("_id").in(foldedIds)));
+            bulk.execute();
+        }
+        return foldedIds.size();
+    }
+
+    private Update rollupUpdate(String retailerId, String period, LocalDate date, Integer year, Integer month,
+                                BigDecimal revenue, BigDecimal cost, BigDecimal profit, int salesCount,
+                                Double marginRate, String bundleName, String productId) {
+        LocalDateTime now = LocalDateTime.now();
+        Update update = new Update()
+                .setOnInsert("retailerId", retailerId)
+                .setOnInsert("period", period)
+                .setOnInsert("year", year)
+                .setOnInsert("bundleName", bundleName)
+                .setOnInsert("productId", productId)
+                .setOnInsert("createdAt", now)
+                .inc("revenue", new Decimal128(revenue))
+                .inc("costPrice", new Decimal128(cost))
+                .inc("profit", new Decimal128(profit))
+                .inc("salesCount", salesCount)
+                .set("updatedAt", now);
+        if (date != null) {
+            update.setOnInsert("date", date);
+        }
+        if (!"yearly".equals(period)) {
+            update.setOnInsert("month", month);
+        }
+        // Like before, the record shows the margin of its latest sale
+        if (marginRate != null) {
+            update.set("marginRate", marginRate);
+        }
+        return update;
+    }
+
+    private static Query byId(String id) {
+        return Query.query(Criteria.where("_id").is(id));
+    }
+
+    private static BigDecimal toBigDecimal(Object value) {
+        if (value instanceof Decimal128 decimal) {
+            return decimal.bigDecimalValue();
+        }
+        if (value instanceof Number || value instanceof String) {
+            try {
+                return new BigDecimal(value.toString());
+            } catch (NumberFormatException e) {
+                return BigDecimal.ZERO;
+            }
+        }
+        return BigDecimal.ZERO;
+    }
+}
@@ -4,6 +4,7 @@ import com.example.topup.demo.dto.RetailerCreditLevel;
 import com.example.topup.demo.dto.RetailerPurchaseRequest;
 import com.example.topup.demo.entity.*;
 import com.example.topup.demo.repository.*;
+import com.example.topup.demo.util.OrderNumberGenerator;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -24,7 +25,16 @@ public class RetailerPurchaseService {
     private RetailerLimitRepository retailerLimitRepository;
 
     @Autowired
-    private OrderRepository orderRepository;
+    private RetailerBalanceService retailerBalanceService;
+
+    @Autowired
+    private MongoTransactionRunner mongoTransactionRunner;
+
+    @Autowired
+    private UnifiedOrderService unifiedOrderService;
+
+    @Autowired
+    private UserRepository userRepository;
 
     @Autowired
     private EmailService emailService;
@@ -143,26 +153,27 @@ public class RetailerPurchaseService {
 
     // Get retailer's current credit status
     public Map<String, Object> getRetailerCreditStatus(String retailerId) {
-        Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(retailerId);
+        // Served from the cached wallet; CREDIT mirrors retailer_limits
+        RetailerWallet.SubAccount credit = retailerBalanceService.getWallet(retailerId)
+                .getAccount(RetailerWallet.PaymentMode.CREDIT);
         
         Map<String, Object> status = new HashMap<>();
         
-        if (limitOpt.isPresent()) {
-            RetailerLimit limit = limitOpt.get();
-            BigDecimal usagePercent = calculateUsagePercentage(limit);
+        if (!"NOT_SET".equals(credit.getStatus())) {
+            BigDecimal usagePercent = BigDecimal.valueOf(credit.getUsagePercentage());
             
-            status.put("creditLimit", limit.getCreditLimit());
-            status.put("availableCredit", limit.getAvailableCredit());
-            status.put("usedCredit", limit.getUsedCredit());
-            status.put("outstandingAmount", limit.getOutstandingAmount());
+            status.put("creditLimit", credit.getLimit());
+            status.put("availableCredit", credit.getAvailable());
+            status.put("usedCredit", credit.getUsed());
+            status.put("outstandingAmount", credit.getOutstanding());
             status.put("usagePercentage", usagePercent);
-            status.put("status", limit.getStatus());
-            status.put("nextDueDate", limit.getNextDueDate());
+            status.put("status", credit.getStatus());
+            status.put("nextDueDate", credit.getDueDate());
             status.put("needsWarning", usagePercent.compareTo(new BigDecimal("90")) >= 0);
             status.put("isBlocked", usagePercent.compareTo(new BigDecimal("100")) >= 0);
             
             // Get current level info
-            BigDecimal currentLimit = limit.getCreditLimit();
+            BigDecimal currentLimit = credit.getLimit();
             status.put("currentLevel", getLevelInfo(currentLimit));
         } else {
             status.put("creditLimit", BigDecimal.ZERO);
@@ -230,29 +241,13 @@ public class RetailerPurchaseService {
         return levelInfo;
     }
 
-    private BigDecimal calculateUsagePercentage(RetailerLimit limit) {
-        if (limit.getCreditLimit().compareTo(BigDecimal.ZERO) == 0) {
-            return BigDecimal.ZERO;
-        }
-        
-        // Calculate usage based on usedCredit only (consistent with admin dashboard)
-        return limit.getUsedCredit()
-                   .multiply(new BigDecimal("100"))
-                   .divide(limit.getCreditLimit(), 2, RoundingMode.HALF_UP);
-    }
-
-    // Direct purchase - no payment required, instant allocation
-    @Transactional
+    // Direct purchase on credit - no external payment, instant allocation
+    // The credit debit, stock and order writes commit together in one transaction
     public Map<String, Object> purchaseBundles(String retailerId, RetailerPurchaseRequest request) {
-        // Get retailer limit (for tracking only, no credit check)
-        Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(retailerId);
-        
-        if (limitOpt.isEmpty()) {
-            throw new IllegalStateException("Retailer not found. Please contact admin.");
-        }
-        
-        RetailerLimit limit = limitOpt.get();
+        return mongoTransactionRunner.execute("purchaseBundles", () -> doPurchaseBundles(retailerId, request));
+    }
 
+    private Map<String, Object> doPurchaseBundles(String retailerId, RetailerPurchaseRequest request) {
         // Try to get product from Product table first
         Optional<Product> productOpt = productRepository.findById(request.getProductId());
         Product product;
@@ -292,11 +287,18 @@ public class RetailerPurchaseService {
             isFromStockPool = true;
         }
 
-        // Calculate total amount (for tracking purposes)
+        // Calculate total amount
         BigDecimal unitPrice = product.getBasePrice();
         BigDecimal totalAmount = unitPrice.multiply(new BigDecimal(request.getQuantity()));
 
-        // Allocate PINs or eSIMs from admin stock
+        // Charge the retailer's credit before allocating stock; fails the purchase if the
+        // credit account is not active or too low, and rolls back with the transaction
+        String orderNumber = OrderNumberGenerator.next("RO");
+        RetailerWallet wallet = retailerBalanceService.debit(retailerId, RetailerWallet.PaymentMode.CREDIT, totalAmount,
+            orderNumber, String.format("Direct Purchase: %s (x%d)", product.getName(), request.getQuantity()));
+        RetailerWallet.SubAccount credit = wallet.getAccount(RetailerWallet.PaymentMode.CREDIT);
+
+        // Allocate PINs or eSIMs from admin stock (saved once below together with the quantity update)
         List<String> allocatedItems = new ArrayList<>();
         if (isFromStockPool) {
             // Allocate from StockPool
@@ -310,36 +312,10 @@ public class RetailerPurchaseService {
             }
         }
 
-        // Create order
-        Order order = new Order();
-        order.setRetailer(limit.getRetailer());
-        order.setProduct(product);
-        order.setProductName(product.getName()); // Set product name explicitly
-        order.setProductType(product.getProductType().toString()); // Set product type explicitly
-        order.setQuantity(request.getQuantity());
-        order.setAmount(totalAmount);
-        order.setStatus(Order.OrderStatus.COMPLETED);
-        order.setPaymentMethod("DIRECT"); // No payment required
-        order.setCreatedDate(LocalDateTime.now());
-        
-        // Store allocated items in order metadata
-        if (order.getMetadata() == null) {
-            order.setMetadata(new HashMap<>());
-        }
-        order.getMetadata().put("allocatedItems", String.join(",", allocatedItems));
-        order.getMetadata().put("itemCount", String.valueOf(allocatedItems.size()));
-        order.getMetadata().put("purchaseType", "DIRECT_BUY");
-        order.getMetadata().put("sourceType", isFromStockPool ? "STOCK_POOL" : "PRODUCT");
-        if (isFromStockPool) {
-            order.getMetadata().put("stockPoolId", stockPool.getId());
-        }
-        
-        Order savedOrder = orderRepository.save(order);
-
-        // ALSO CREATE RETAILER ORDER FOR INVENTORY TRACKING
+        // Create the order (single document in retailer_orders, inventory data in metadata)
         RetailerOrder retailerOrder = new RetailerOrder();
         retailerOrder.setRetailerId(retailerId);
-        retailerOrder.setOrderNumber("RO-" + System.currentTimeMillis());
+        retailerOrder.setOrderNumber(orderNumber);
         retailerOrder.setTotalAmount(totalAmount);
         retailerOrder.setCurrency("NOK");
         retailerOrder.setStatus(RetailerOrder.OrderStatus.COMPLETED);
@@ -369,14 +345,21 @@ public class RetailerPurchaseService {
             System.out.println("📌 Stored " + allocatedItems.size() + " encrypted PINs in order");
         }
         
-        // Save retailer order
-        RetailerOrder savedRetailerOrder = retailerOrderRepository.save(retailerOrder);
-        System.out.println("✅ Created RetailerOrder: " + savedRetailerOrder.getOrderNumber() + " with " + savedRetailerOrder.getItems().size() + " items");
-
-        // Update credit usage (for level tracking)
-        limit.useCredit(totalAmount, savedOrder.getId(), 
-            String.format("Direct Purchase: %s (x%d)", product.getName(), request.getQuantity()));
+        // Store allocated items in order metadata
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("allocatedItems", String.join(",", allocatedItems));
+        metadata.put("itemCount", String.valueOf(allocatedItems.size()));
+        metadata.put("purchaseType", "DIRECT_BUY");
+        metadata.put("sourceType", isFromStockPool ? "STOCK_POOL" : "PRODUCT");
+        if (isFromStockPool) {
+            metadata.put("stockPoolId", stockPool.getId());
+        }
+        retailerOrder.setMetadata(metadata);
         
+        // Save order
+        RetailerOrder savedOrder = unifiedOrderService.save(retailerOrder, Order.OrderStatus.COMPLETED);
+        System.out.println("✅ Created RetailerOrder: " + savedOrder.getOrderNumber() + " with " + savedOrder.getItems().size() + " items");
+
         // Reduce stock from admin inventory
         if (isFromStockPool) {
             // Update StockPool quantities
@@ -390,11 +373,8 @@ public class RetailerPurchaseService {
             productRepository.save(product);
         }
 
-        // Save updated limit (for level calculation)
-        RetailerLimit savedLimit = retailerLimitRepository.save(limit);
-
         // Calculate usage percentage for level display
-        BigDecimal usagePercent = calculateUsagePercentage(savedLimit);
+        BigDecimal usagePercent = BigDecimal.valueOf(credit.getUsagePercentage());
 
         // Prepare response
         Map<String, Object> response = new HashMap<>();
@@ -403,9 +383,9 @@ public class RetailerPurchaseService {
         response.put("totalAmount", totalAmount);
         response.put("itemsAllocated", allocatedItems.size());
         response.put("allocatedItems", allocatedItems);
-        response.put("remainingCredit", savedLimit.getAvailableCredit());
+        response.put("remainingCredit", credit.getAvailable());
         response.put("usagePercentage", usagePercent);
-        response.put("currentLevel", getLevelInfo(savedLimit.getCreditLimit()));
+        response.put("currentLevel", getLevelInfo(credit.getLimit()));
         response.put("message", "Purchase completed successfully! Items added to your inventory.");
 
         return response;
@@ -430,7 +410,6 @@ public class RetailerPurchaseService {
             }
         }
 
-        productRepository.save(product);
         return allocated;
     }
     
@@ -467,7 +446,6 @@ public class RetailerPurchaseService {
             }
         }
         
-        stockPoolRepository.save(stockPool);
         return allocated;
     }
 
@@ -490,7 +468,6 @@ public class RetailerPurchaseService {
             }
         }
 
-        productRepository.save(product);
         return allocated;
     }
 
@@ -639,10 +616,7 @@ public class RetailerPurchaseService {
         long startTime = System.currentTimeMillis();
         
         // Find completed orders for this retailer (exclude depleted orders)
-        List<Order> orders = orderRepository.findByRetailer_Id(retailerId).stream()
-            .filter(order -> order.getStatus() == Order.OrderStatus.COMPLETED)
-            .sorted((o1, o2) -> o2.getCreatedDate().compareTo(o1.getCreatedDate()))
-            .collect(Collectors.toList());
+        List<Order> orders = unifiedOrderService.findByRetailerAndStatus(retailerFor(retailerId), Order.OrderStatus.COMPLETED);
             
         System.out.println("⏱️ Found " + orders.size() + " orders in " + (System.currentTimeMillis() - startTime) + "ms");
 
@@ -652,12 +626,15 @@ public class RetailerPurchaseService {
         
         for (Order order : orders) {
             // Get product name safely
-            String productName = order.getProduct() != null ? order.getProduct().getName() : "Unknown Product";
+            String productName = order.getProduct() != null ? order.getProduct().getName() :
+                (order.getProductName() != null ? order.getProductName() : "Unknown Product");
             
             // Get product type safely
             String productType = "EPIN"; // Default
             if (order.getProduct() != null && order.getProduct().getProductType() != null) {
                 productType = order.getProduct().getProductType().toString();
+            } else if (order.getProductType() != null) {
+                productType = order.getProductType();
             }
             
             // Create bundle key
@@ -730,8 +707,12 @@ public class RetailerPurchaseService {
     }
 
     // Process direct sale by removing PINs from retailer inventory
-    @Transactional
     public Map<String, Object> processDirectSale(String retailerId, String bundleName, int quantity, BigDecimal unitPrice) {
+        return mongoTransactionRunner.execute("processDirectSale",
+            () -> doProcessDirectSale(retailerId, bundleName, quantity, unitPrice));
+    }
+
+    private Map<String, Object> doProcessDirectSale(String retailerId, String bundleName, int quantity, BigDecimal unitPrice) {
         System.out.println("🔍 Processing direct sale - Retailer: " + retailerId + ", Bundle: '" + bundleName + "', Quantity: " + quantity + ", Unit Price: " + unitPrice);
         System.out.println("    - Bundle name length: " + (bundleName != null ? bundleName.length() : "null"));
         System.out.println("    - Unit price type: " + unitPrice.getClass().getSimpleName());
@@ -743,7 +724,7 @@ public class RetailerPurchaseService {
         
         // Find the retailer's orders that contain the specific bundle
         // Accept all non-cancelled orders with available PINs
-        List<Order> retailerOrders = orderRepository.findByRetailer_Id(retailerId).stream()
+        List<Order> retailerOrders = unifiedOrderService.findByRetailer(retailerFor(retailerId)).stream()
             .filter(order -> order.getStatus() != Order.OrderStatus.CANCELLED && 
                            order.getStatus() != Order.OrderStatus.REFUNDED)
             .collect(Collectors.toList());
@@ -863,27 +844,17 @@ public class RetailerPurchaseService {
                 System.out.println("📦 Order " + order.getId() + " updated - " + remainingPins.size() + " PINs remaining");
             }
             
-            orderRepository.save(order);
+            unifiedOrderService.save(order);
         }
         
         // Create sale record (optional - for tracking)
-        Order saleOrder = new Order();
-        saleOrder.setRetailer(ordersToUpdate.get(0).getRetailer());
-        saleOrder.setProductName(bundleName);
-        saleOrder.setProductType("EPIN");
-        saleOrder.setQuantity(quantity);
-        saleOrder.setAmount(unitPrice.multiply(BigDecimal.valueOf(quantity)));
-        saleOrder.setStatus(Order.OrderStatus.SOLD);
-        saleOrder.setPaymentMethod("DIRECT_SALE");
-        saleOrder.setCreatedDate(LocalDateTime.now());
-        
-        if (saleOrder.getMetadata() == null) {
-            saleOrder.setMetadata(new HashMap<>());
-        }
-        saleOrder.getMetadata().put("saleType", "DIRECT_CUSTOMER");
-        saleOrder.getMetadata().put("originalOrders", ordersToUpdate.stream().map(Order::getId).collect(Collectors.joining(",")));
+        Map<String, String> saleMetadata = new HashMap<>();
+        saleMetadata.put("saleType", "DIRECT_CUSTOMER");
+        saleMetadata.put("originalOrders", ordersToUpdate.stream().map(Order::getId).collect(Collectors.joining(",")));
         
-        Order savedSaleOrder = orderRepository.save(saleOrder);
+        RetailerOrder savedSaleOrder = unifiedOrderService.save(
+            buildInventoryOrder(retailerId, bundleName, "EPIN", quantity, unitPrice, "DIRECT_SALE", saleMetadata),
+            Order.OrderStatus.SOLD);
         
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
@@ -900,8 +871,11 @@ public class RetailerPurchaseService {
     }
 
     // Create sample inventory for testing (development only)
-    @Transactional
     public Map<String, Object> createSampleInventory(String retailerId) {
+        return mongoTransactionRunner.execute("createSampleInventory", () -> doCreateSampleInventory(retailerId));
+    }
+
+    private Map<String, Object> doCreateSampleInventory(String retailerId) {
         // First clear any existing inventory
         try {
             int cleared = clearRetailerInventory(retailerId);
@@ -917,18 +891,7 @@ public class RetailerPurchaseService {
             throw new RuntimeException("Retailer limit not found");
         }
         
-        RetailerLimit limit = limitOpt.get();
-        
         // Create a sample order with PINs - matching the exact structure expected by processDirectSale
-        Order sampleOrder = new Order();
-        sampleOrder.setRetailer(limit.getRetailer());
-        sampleOrder.setProductName("Unknown Product"); // This must match the bundle name exactly
-        sampleOrder.setProductType("EPIN");
-        sampleOrder.setQuantity(10);
-        sampleOrder.setAmount(new BigDecimal("990.00")); // 10 * 99.00 = unit price of 99.00
-        sampleOrder.setStatus(Order.OrderStatus.COMPLETED);
-        sampleOrder.setPaymentMethod("SAMPLE");
-        sampleOrder.setCreatedDate(LocalDateTime.now().minusHours(1));
         
         // Add sample PINs to metadata
         List<String> samplePins = Arrays.asList(
@@ -948,9 +911,13 @@ public class RetailerPurchaseService {
         metadata.put("allocatedItems", String.join(",", samplePins));
         metadata.put("itemCount", "10");
         metadata.put("purchaseType", "SAMPLE_INVENTORY");
-        sampleOrder.setMetadata(metadata);
         
-        Order savedOrder = orderRepository.save(sampleOrder);
+        // "Unknown Product" must match the bundle name exactly; 10 * 99.00 = 990.00
+        RetailerOrder sampleOrder = buildInventoryOrder(retailerId, "Unknown Product", "EPIN", 10,
+            new BigDecimal("99.00"), "SAMPLE", metadata);
+        sampleOrder.setCreatedDate(LocalDateTime.now().minusHours(1));
+        
+        RetailerOrder savedOrder = unifiedOrderService.save(sampleOrder, Order.OrderStatus.COMPLETED);
         
         Map<String, Object> response = new HashMap<>();
         response.put("success", true);
@@ -961,18 +928,53 @@ public class RetailerPurchaseService {
         return response;
     }
 
+    // Build an inventory order in the unified retailer_orders model
+    private RetailerOrder buildInventoryOrder(String retailerId, String productName, String productType, int quantity,
+                                              BigDecimal unitPrice, String paymentMethod, Map<String, String> metadata) {
+        RetailerOrder order = new RetailerOrder();
+        order.setRetailerId(retailerId);
+        order.setOrderNumber(OrderNumberGenerator.next("RO"));
+        order.setTotalAmount(unitPrice.multiply(BigDecimal.valueOf(quantity)));
+        order.setCurrency("NOK");
+        order.setStatus(RetailerOrder.OrderStatus.COMPLETED);
+        order.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
+        order.setPaymentMethod(paymentMethod);
+        order.setCreatedDate(LocalDateTime.now());
+        order.setLastModifiedDate(LocalDateTime.now());
+        
+        // Inventory sales and sample orders only know the bundle name
+        RetailerOrder.OrderItem item = new RetailerOrder.OrderItem();
+        item.setProductId(productName);
+        item.setProductName(productName);
+        item.setProductType(productType);
+        item.setCategory("bundle");
+        item.setQuantity(quantity);
+        item.setUnitPrice(unitPrice);
+        item.setRetailPrice(unitPrice);
+        order.setItems(new ArrayList<>(List.of(item)));
+        order.setMetadata(metadata);
+        return order;
+    }
+    
+    // Retailer reference for order queries; a stub with the id is enough for DBRef matching
+    private User retailerFor(String retailerId) {
+        return userRepository.findById(retailerId).orElseGet(() -> {
+            User stub = new User();
+            stub.setId(retailerId);
+            return stub;
+        });
+    }
+
     // Clear retailer's completed inventory orders
     @Transactional
     public int clearRetailerInventory(String retailerId) {
         // Find completed orders for this retailer
-        List<Order> ordersToDelete = orderRepository.findByRetailer_Id(retailerId).stream()
-            .filter(order -> order.getStatus() == Order.OrderStatus.COMPLETED)
-            .collect(Collectors.toList());
+        List<Order> ordersToDelete = unifiedOrderService.findByRetailerAndStatus(retailerFor(retailerId), Order.OrderStatus.COMPLETED);
 
         int count = ordersToDelete.size();
         
         // Delete the orders
-        orderRepository.deleteAll(ordersToDelete);
+        unifiedOrderService.deleteAll(ordersToDelete);
         
         return count;
     }
@@ -4,10 +4,10 @@ import com.example.topup.demo.entity.Order;
 import com.example.topup.demo.entity.Product;
 import com.example.topup.demo.entity.User;
 import com.example.topup.demo.entity.RetailerProfit;
+import com.example.topup.demo.entity.RetailerAnalyticsSnapshot;
 import com.example.topup.demo.entity.RetailerOrder;
 import com.example.topup.demo.entity.RetailerLimit;
 import com.example.topup.demo.entity.Order.OrderStatus;
-import com.example.topup.demo.repository.OrderRepository;
 import com.example.topup.demo.repository.ProductRepository;
 import com.example.topup.demo.repository.UserRepository;
 import com.example.topup.demo.repository.RetailerProfitRepository;
@@ -15,6 +15,8 @@ import com.example.topup.demo.repository.RetailerOrderRepository;
 import com.example.topup.demo.repository.RetailerLimitRepository;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
@@ -27,9 +29,6 @@ import java.util.*;
 @Service
 public class RetailerService {
 
-    @Autowired
-    private OrderRepository orderRepository;
-    
     @Autowired
     private ProductRepository productRepository;
     
@@ -39,20 +38,34 @@ public class RetailerService {
     @Autowired
     private RetailerProfitRepository profitRepository;
     
+    @Autowired
+    private RetailerProfitRollupService profitRollupService;
+    
+    @Autowired
+    private RetailerAnalyticsSnapshotService analyticsSnapshotService;
+    
     @Autowired
     private RetailerOrderRepository retailerOrderRepository;
     
+    @Autowired
+    private UnifiedOrderService unifiedOrderService;
+    
     @Autowired
     private RetailerLimitRepository retailerLimitRepository;
 
     // Get all orders for a retailer
     public List<Order> getOrdersByRetailer(User retailer) {
-        return orderRepository.findByRetailerOrderByCreatedDateDesc(retailer);
+        return unifiedOrderService.findByRetailer(retailer);
+    }
+
+    // Get the newest orders for a retailer
+    public List<Order> getRecentOrders(User retailer, int limit) {
+        return unifiedOrderService.findByRetailer(retailer, PageRequest.of(0, limit)).getContent();
     }
 
     // Get orders by status for a retailer
     public List<Order> getOrdersByRetailerAndStatus(User retailer, OrderStatus status) {
-        return orderRepository.findByRetailerAndStatusOrderByCreatedDateDesc(retailer, status);
+        return unifiedOrderService.findByRetailerAndStatus(retailer, status);
     }
 
     // Get products available to retailers
@@ -86,12 +99,12 @@ public class RetailerService {
         product.setSoldQuantity(product.getSoldQuantity() + quantity);
         productRepository.save(product);
         
-        return orderRepository.save(order);
+        return unifiedOrderService.save(order);
     }
 
     // Update order status
     public Order updateOrderStatus(String orderId, OrderStatus status, User retailer) {
-        Order order = orderRepository.findById(orderId)
+        Order order = unifiedOrderService.findById(orderId)
             .orElseThrow(() -> new RuntimeException("Order not found"));
         
         // Verify the order belongs to this retailer
@@ -100,7 +113,7 @@ public class RetailerService {
         }
         
         order.setStatus(status);
-        return orderRepository.save(order);
+        return unifiedOrderService.save(order);
     }
 
     // Get analytics for a retailer
@@ -113,11 +126,11 @@ public class RetailerService {
         LocalDateTime startOfLastMonth = startOfMonth.minusMonths(1);
         
         // Total orders
-        long totalOrders = orderRepository.countByRetailer(retailer);
+        long totalOrders = unifiedOrderService.countByRetailer(retailer);
         analytics.put("totalOrders", totalOrders);
         
         // Pending orders
-        long pendingOrders = orderRepository.countByRetailerAndStatus(retailer, OrderStatus.PENDING);
+        long pendingOrders = unifiedOrderService.countByRetailerAndStatus(retailer, OrderStatus.PENDING);
         analytics.put("pendingOrders", pendingOrders);
         
         // Calculate total revenue from retailer's used credit (this is the actual lifetime revenue)
@@ -132,75 +145,31 @@ public class RetailerService {
         }
         analytics.put("totalRevenue", totalRevenue);
         
-        // Get old orders for customer sales count
-        List<Order> soldOrders = orderRepository.findByRetailerAndStatusOrderByCreatedDateDesc(
-            retailer, OrderStatus.SOLD);
-        
-        // Get POS sales from RetailerOrder (new system)
-        List<RetailerOrder> posSales = retailerOrderRepository.findByRetailerIdAndStatus(
-            retailer.getId(), RetailerOrder.OrderStatus.COMPLETED);
+        // POS sales and eSIM/ePIN figures come from the retailer's analytics snapshot
+        // Inventory orders (purchases and inventory sales) are already counted through the order view above
+        RetailerAnalyticsSnapshot snapshot = analyticsSnapshotService.getSnapshot(retailer.getId());
         
         // Add customer sales count (POS transactions from both systems)
-        long customerSales = soldOrders.size() + posSales.size();
+        long soldOrdersCount = unifiedOrderService.countByRetailerAndStatus(retailer, OrderStatus.SOLD);
+        long customerSales = soldOrdersCount + snapshot.getPosSales();
         analytics.put("customerSales", customerSales);
         
-        // Calculate eSIM and ePIN sales/earnings from RetailerOrder
-        long esimCount = posSales.stream()
-            .flatMap(order -> order.getItems().stream())
-            .filter(item -> {
-                String cat = item.getCategory() != null ? item.getCategory() : "";
-                String type = item.getProductType() != null ? item.getProductType() : "";
-                return cat.toLowerCase().contains("esim") || type.toLowerCase().contains("esim");
-            })
-            .mapToInt(RetailerOrder.OrderItem::getQuantity)
-            .sum();
-        
-        long epinCount = posSales.stream()
-            .flatMap(order -> order.getItems().stream())
-            .filter(item -> {
-                String cat = item.getCategory() != null ? item.getCategory() : "";
-                String type = item.getProductType() != null ? item.getProductType() : "";
-                return !cat.toLowerCase().contains("esim") && !type.toLowerCase().contains("esim");
-            })
-            .mapToInt(RetailerOrder.OrderItem::getQuantity)
-            .sum();
-        
-        BigDecimal esimEarnings = posSales.stream()
-            .flatMap(order -> order.getItems().stream())
-            .filter(item -> {
-                String cat = item.getCategory() != null ? item.getCategory() : "";
-                String type = item.getProductType() != null ? item.getProductType() : "";
-                return cat.toLowerCase().contains("esim") || type.toLowerCase().contains("esim");
-            })
-            .map(item -> item.getUnitPrice().multiply(BigDecimal.valueOf(item.getQuantity())))
-            .reduce(BigDecimal.ZERO, BigDecimal::add);
-        
-        BigDecimal epinEarnings = posSales.stream()
-            .flatMap(order -> order.getItems().stream())
-            .filter(item -> {
-                String cat = item.getCategory() != null ? item.getCategory() : "";
-                String type = item.getProductType() != null ? item.getProductType() : "";
-                return !cat.toLowerCase().contains("esim") && !type.toLowerCase().contains("esim");
-            })
-            .map(item -> item.getUnitPrice().multiply(BigDecimal.valueOf(item.getQuantity())))
-            .reduce(BigDecimal.ZERO, BigDecimal::add);
-        
-        analytics.put("totalEsimSold", esimCount);
-        analytics.put("totalEpinSold", epinCount);
-        analytics.put("esimEarnings", esimEarnings);
-        analytics.put("epinEarnings", epinEarnings);
+        analytics.put("totalEsimSold", snapshot.getEsimUnits());
+        analytics.put("totalEpinSold", snapshot.getEpinUnits());
+        analytics.put("esimEarnings", snapshot.getEsimEarnings());
+        analytics.put("epinEarnings", snapshot.getEpinEarnings());
         
         // Get profit from RetailerProfit records (all yearly records to calculate total)
-        List<RetailerProfit> profits = profitRepository.findByRetailer_IdAndPeriod(retailer.getId(), "yearly");
+        List<RetailerProfit> profits = profitRepository.findByRetailerIdAndPeriod(retailer.getId(), "yearly", Sort.unsorted());
         BigDecimal totalProfit = profits.stream()
             .map(RetailerProfit::getProfit)
             .reduce(BigDecimal.ZERO, BigDecimal::add);
         analytics.put("totalProfit", totalProfit);
         
         // Monthly growth calculation
-        long currentMonthOrders = orderRepository.countByRetailerAndDateRange(
+        long currentMonthOrders = unifiedOrderService.countByRetailerAndDateRange(
             retailer, startOfMonth, now);
-        long lastMonthOrders = orderRepository.countByRetailerAndDateRange(
+        long lastMonthOrders = unifiedOrderService.countByRetailerAndDateRange(
             retailer, startOfLastMonth, startOfMonth);
         
         double orderGrowth = 0.0;
@@ -223,8 +192,7 @@ public class RetailerService {
         analytics.put("monthlyGrowth", Math.round(revenueGrowth * 100.0) / 100.0);
         
         // Success rate calculation (include both COMPLETED and SOLD orders as successful)
-        long completedOrdersCount = orderRepository.countByRetailerAndStatus(retailer, OrderStatus.COMPLETED);
-        long soldOrdersCount = orderRepository.countByRetailerAndStatus(retailer, OrderStatus.SOLD);
+        long completedOrdersCount = unifiedOrderService.countByRetailerAndStatus(retailer, OrderStatus.COMPLETED);
         long successfulOrders = completedOrdersCount + soldOrdersCount;
         double successRate = totalOrders > 0 ? ((double) successfulOrders / totalOrders) * 100 : 0;
         analytics.put("successRate", Math.round(successRate * 100.0) / 100.0);
@@ -250,24 +218,17 @@ public class RetailerService {
     }
     
     private BigDecimal getCurrentMonthRevenue(User retailer, LocalDateTime start, LocalDateTime end) {
-        List<Order> completedOrders = orderRepository.findCompletedOrdersByRetailerAndDateRange(retailer, start, end);
-        List<Order> soldOrders = orderRepository.findSoldOrdersByRetailerAndDateRange(retailer, start, end);
-        
-        BigDecimal completedRevenue = completedOrders.stream()
+        // COMPLETED (purchases) and SOLD (POS sales) orders in the range
+        return unifiedOrderService.findByRetailerAndCreatedDateBetween(retailer, start, end).stream()
+            .filter(order -> order.getStatus() == OrderStatus.COMPLETED || order.getStatus() == OrderStatus.SOLD)
             .map(Order::getAmount)
             .reduce(BigDecimal.ZERO, BigDecimal::add);
-            
-        BigDecimal soldRevenue = soldOrders.stream()
-            .map(Order::getAmount)
-            .reduce(BigDecimal.ZERO, BigDecimal::add);
-            
-        return completedRevenue.add(soldRevenue);
     }
     
     private List<Map<String, Object>> getTopProducts(User retailer) {
-        List<Order> completedOrders = orderRepository.findByRetailerAndStatusOrderByCreatedDateDesc(
+        List<Order> completedOrders = unifiedOrderService.findByRetailerAndStatus(
             retailer, OrderStatus.COMPLETED);
-        List<Order> soldOrders = orderRepository.findByRetailerAndStatusOrderByCreatedDateDesc(
+        List<Order> soldOrders = unifiedOrderService.findByRetailerAndStatus(
             retailer, OrderStatus.SOLD);
         
         Map<String, Integer> productSales = new HashMap<>();
@@ -303,7 +264,7 @@ public class RetailerService {
     }
     
     private int getNewCustomersCount(User retailer, LocalDateTime start, LocalDateTime end) {
-        List<Order> orders = orderRepository.findByRetailerAndCreatedDateBetweenOrderByCreatedDateDesc(
+        List<Order> orders = unifiedOrderService.findByRetailerAndCreatedDateBetween(
             retailer, start, end);
         
         Set<String> customerEmails = new HashSet<>();
@@ -315,7 +276,7 @@ public class RetailerService {
     }
     
     private int getRepeatCustomersCount(User retailer) {
-        List<Order> allOrders = orderRepository.findByRetailerOrderByCreatedDateDesc(retailer);
+        List<Order> allOrders = unifiedOrderService.findByRetailer(retailer);
         
         Map<String, Integer> customerOrderCounts = new HashMap<>();
         for (Order order : allOrders) {
@@ -329,7 +290,7 @@ public class RetailerService {
     
     private double calculateRetentionRate(User retailer) {
         // Simple retention rate calculation based on repeat customers
-        List<Order> allOrders = orderRepository.findByRetailerOrderByCreatedDateDesc(retailer);
+        List<Order> allOrders = unifiedOrderService.findByRetailer(retailer);
         
         if (allOrders.isEmpty()) return 0.0;
         
@@ -353,8 +314,8 @@ public class RetailerService {
         LocalDateTime today = LocalDateTime.now().withHour(0).withMinute(0).withSecond(0);
         LocalDateTime yesterday = today.minusDays(1);
         
-        long todayOrders = orderRepository.countByRetailerAndDateRange(retailer, today, today.plusDays(1));
-        long yesterdayOrders = orderRepository.countByRetailerAndDateRange(retailer, yesterday, today);
+        long todayOrders = unifiedOrderService.countByRetailerAndDateRange(retailer, today, today.plusDays(1));
+        long yesterdayOrders = unifiedOrderService.countByRetailerAndDateRange(retailer, yesterday, today);
         
         if (yesterdayOrders == 0) return todayOrders > 0 ? 100.0 : 0.0;
         return ((double) (todayOrders - yesterdayOrders) / yesterdayOrders) * 100;
@@ -365,9 +326,9 @@ public class RetailerService {
             .withHour(0).withMinute(0).withSecond(0);
         LocalDateTime lastWeekStart = thisWeekStart.minusWeeks(1);
         
-        long thisWeekOrders = orderRepository.countByRetailerAndDateRange(
+        long thisWeekOrders = unifiedOrderService.countByRetailerAndDateRange(
             retailer, thisWeekStart, thisWeekStart.plusWeeks(1));
-        long lastWeekOrders = orderRepository.countByRetailerAndDateRange(
+        long lastWeekOrders = unifiedOrderService.countByRetailerAndDateRange(
             retailer, lastWeekStart, thisWeekStart);
         
         if (lastWeekOrders == 0) return thisWeekOrders > 0 ? 100.0 : 0.0;
@@ -450,15 +411,11 @@ public class RetailerService {
     
     /**
      * Record profit from a sale
-     * Creates/updates daily, monthly, and yearly profit records
+     * Appends a profit event and adds it to the daily, monthly, and yearly profit records
      */
     public void recordProfit(User retailer, BigDecimal saleAmount, BigDecimal costPrice, 
                             String bundleName, String bundleId, Double marginRate) {
         try {
-            LocalDate today = LocalDate.now();
-            int currentYear = today.getYear();
-            int currentMonth = today.getMonthValue();
-            
             BigDecimal profit = saleAmount.subtract(costPrice);
             
             // Log profit calculation details
@@ -471,17 +428,8 @@ public class RetailerService {
             System.out.println("  Margin Rate from Frontend: " + marginRate + "%");
             System.out.println("  Retailer ID: " + retailer.getId());
             
-            // Record daily profit
-            updateProfitRecord(retailer, "daily", today, currentYear, currentMonth, 
-                             saleAmount, costPrice, profit, bundleName, bundleId, marginRate);
-            
-            // Record monthly profit
-            updateProfitRecord(retailer, "monthly", null, currentYear, currentMonth,
-                             saleAmount, costPrice, profit, bundleName, bundleId, marginRate);
-            
-            // Record yearly profit
-            updateProfitRecord(retailer, "yearly", null, currentYear, null,
-                             saleAmount, costPrice, profit, bundleName, bundleId, marginRate);
+            // Append the sale and update the daily, monthly and yearly rollups in one bulk write
+            profitRollupService.record(retailer.getId(), saleAmount, costPrice, bundleName, bundleId, marginRate);
             
             System.out.println("✅ Profit recorded: " + profit + " kr for " + bundleName);
         } catch (Exception e) {
@@ -490,46 +438,6 @@ public class RetailerService {
         }
     }
     
-    /**
-     * Update or create profit record for a specific period
-     */
-    private void updateProfitRecord(User retailer, String period, LocalDate date, 
-                                   Integer year, Integer month, BigDecimal revenue, 
-                                   BigDecimal cost, BigDecimal profit, String bundleName,
-                                   String bundleId, Double marginRate) {
-        RetailerProfit profitRecord = null;
-        
-        // Find existing record
-        if ("daily".equals(period) && date != null) {
-            profitRecord = profitRepository.findByRetailer_IdAndDateAndPeriod(
-                retailer.getId(), date, period).orElse(null);
-        } else if ("monthly".equals(period) && year != null && month != null) {
-            profitRecord = profitRepository.findByRetailer_IdAndYearAndMonthAndPeriod(
-                retailer.getId(), year, month, period).orElse(null);
-        } else if ("yearly".equals(period) && year != null) {
-            profitRecord = profitRepository.findByRetailer_IdAndYearAndPeriod(
-                retailer.getId(), year, period).orElse(null);
-        }
-        
-        // Create new record if doesn't exist
-        if (profitRecord == null) {
-            profitRecord = new RetailerProfit();
-            profitRecord.setRetailer(retailer);
-            profitRecord.setPeriod(period);
-            profitRecord.setDate(date);
-            profitRecord.setYear(year);
-            profitRecord.setMonth(month);
-            profitRecord.setBundleName(bundleName);
-            profitRecord.setProductId(bundleId);
-        }
-        
-        // Add this sale's data
-        profitRecord.addSale(revenue, cost, marginRate);
-        
-        // Save to database
-        profitRepository.save(profitRecord);
-    }
-    
     /**
      * Get profit data for a retailer by time period
      */
@@ -539,8 +447,9 @@ public class RetailerService {
         try {
             List<RetailerProfit> profits;
             
-            // Fetch profits by period for this retailer
-            profits = profitRepository.findByRetailer_IdAndPeriod(retailer.getId(), period);
+            // Fetch profits by period for this retailer, oldest first
+            profits = profitRepository.findByRetailerIdAndPeriod(retailer.getId(), period,
+                Sort.by("year", "month", "date"));
             
             System.out.println("📊 Retrieved " + profits.size() + " " + period + " profit records for retailer: " + retailer.getId());
             
@@ -583,7 +492,7 @@ public class RetailerService {
         
         try {
             // Get all yearly profits to calculate total
-            List<RetailerProfit> yearlyProfits = profitRepository.findByRetailer_IdAndPeriod(retailer.getId(), "yearly");
+            List<RetailerProfit> yearlyProfits = profitRepository.findByRetailerIdAndPeriod(retailer.getId(), "yearly", Sort.unsorted());
             
             BigDecimal totalProfit = yearlyProfits.stream()
                 .map(RetailerProfit::getProfit)
@@ -599,8 +508,7 @@ public class RetailerService {
             
             // Get today's profit
             LocalDate today = LocalDate.now();
-            Optional<RetailerProfit> todayProfit = profitRepository.findByRetailer_IdAndDateAndPeriod(
-                retailer.getId(), today, "daily");
+            Optional<RetailerProfit> todayProfit = profitRepository.findById(RetailerProfit.dailyId(retailer.getId(), today));
             
             BigDecimal dailyProfit = todayProfit.map(RetailerProfit::getProfit).orElse(BigDecimal.ZERO);
             
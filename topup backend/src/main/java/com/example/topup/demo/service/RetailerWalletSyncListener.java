@@ -0,0 +1,55 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.RetailerEsimCredit;
+import com.example.topup.demo.entity.RetailerKickbackLimit;
+import com.example.topup.demo.entity.RetailerLimit;
+import com.example.topup.demo.entity.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applies limit configuration saved on the legacy limit collections to retailer_wallets.
+ * Admin screens still save RetailerLimit, RetailerEsimCredit and RetailerKickbackLimit to change
+ * limits and status; every such save copies that configuration into the wallet, and the wallet's
+ * balances are written back over the saved document. Balances never flow from these documents
+ * into the wallet.
+ */
+@Component
+public class RetailerWalletSyncListener extends AbstractMongoEventListener<Object> {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetailerWalletSyncListener.class);
+
+    @Autowired
+    @Lazy
+    private RetailerBalanceService retailerBalanceService;
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Object> event) {
+        Object source = event.getSource();
+        User retailer = null;
+
+        if (source instanceof RetailerLimit limit) {
+            retailer = limit.getRetailer();
+        } else if (source instanceof RetailerEsimCredit esimCredit) {
+            retailer = esimCredit.getRetailer();
+        } else if (source instanceof RetailerKickbackLimit kickbackLimit) {
+            retailer = kickbackLimit.getRetailer();
+        }
+
+        if (retailer == null || retailer.getId() == null) {
+            return;
+        }
+
+        try {
+            retailerBalanceService.applyLimits(retailer.getId());
+        } catch (Exception e) {
+            // Never fail the admin operation because the wallet could not be refreshed
+            logger.error("Failed to apply limits to wallet for retailer {}: {}", retailer.getId(), e.getMessage());
+        }
+    }
+}
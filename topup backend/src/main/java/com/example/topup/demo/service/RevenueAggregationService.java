@@ -0,0 +1,241 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.Order;
+import com.example.topup.demo.entity.RetailerOrder;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.BooleanOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.aggregation.ConvertOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the admin revenue figures with aggregation pipelines instead of loading orders.
+ *
+ * Each revenue source is one pipeline: an indexed $match on status, then a single $group that
+ * sums the all-time, this-month, today and last-month windows together with the order count.
+ * The four sources run in parallel, so a dashboard load costs one round trip per source
+ * regardless of how many orders exist.
+ *
+ * Amounts are summed as decimals ($toDecimal), which also covers BigDecimal amounts that the
+ * default mapping stores as strings.
+ */
+@Service
+public class RevenueAggregationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RevenueAggregationService.class);
+
+    // Statuses that count as revenue, matching the previous in-memory filters
+    private static final String ESIM_APPROVED = "APPROVED";
+    private static final String ESIM_COMPLETED = "COMPLETED";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4, new RevenueThreadFactory());
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * All dashboard revenue figures from one parallel fan-out over the revenue sources.
+     * Called from a dashboard query, the aggregations keep that query's deadline.
+     */
+    public RevenueSummary getRevenueSummary() {
+        RevenueWindows windows = RevenueWindows.at(LocalDateTime.now());
+
+        // B2C: customer orders plus inventory purchases kept in retailer_orders (legacy COMPLETED status)
+        CompletableFuture<RevenueTotals> customer = CompletableFuture.supplyAsync(DashboardAssembler.propagateDeadline(() -> aggregate(
+                "orders", Criteria.where("status").is(Order.OrderStatus.COMPLETED.name()),
+                "amount", "createdDate", windows)), executor);
+        CompletableFuture<RevenueTotals> unified = CompletableFuture.supplyAsync(DashboardAssembler.propagateDeadline(() -> aggregate(
+                "retailer_orders", Criteria.where("metadata." + UnifiedOrderService.LEGACY_STATUS).is(Order.OrderStatus.COMPLETED.name()),
+                "totalAmount", "createdDate", windows)), executor);
+        // B2B: delivered retailer orders
+        CompletableFuture<RevenueTotals> retailer = CompletableFuture.supplyAsync(DashboardAssembler.propagateDeadline(() -> aggregate(
+                "retailer_orders", Criteria.where("status").is(RetailerOrder.OrderStatus.DELIVERED.name()),
+                "totalAmount", "createdDate", windows)), executor);
+        CompletableFuture<RevenueTotals> esim = CompletableFuture.supplyAsync(DashboardAssembler.propagateDeadline(() -> aggregate(
+                "esim_order_requests", Criteria.where("status").in(ESIM_APPROVED, ESIM_COMPLETED),
+                "amount", "requestDate", windows)), executor);
+
+        CompletableFuture.allOf(customer, unified, retailer, esim).join();
+
+        RevenueTotals b2c = customer.join().plus(unified.join());
+        return new RevenueSummary(b2c, retailer.join(), esim.join());
+    }
+
+    private RevenueTotals aggregate(String collection, Criteria statusFilter, String amountField,
+                                    String dateField, RevenueWindows windows) {
+        try {
+            AggregationExpression amount = ConvertOperators.valueOf(amountField).convertToDecimal();
+
+            Aggregation aggregation = Aggregation.newAggregation(
+                    Aggregation.match(statusFilter.and(amountField).ne(null)),
+                    Aggregation.project(dateField).and(amount).as("value"),
+                    Aggregation.group()
+                            .sum("value").as("total")
+                            .sum(windowed(dateField, windows.monthStart, null)).as("month")
+                            .sum(windowed(dateField, windows.dayStart, windows.dayEnd)).as("day")
+                            .sum(windowed(dateField, windows.lastMonthStart, windows.monthStart)).as("lastMonth")
+                            .count().as("orders"));
+
+            Document result = mongoTemplate.aggregate(aggregation, collection, Document.class).getUniqueMappedResult();
+            if (result == null) {
+                return RevenueTotals.EMPTY;
+            }
+            return new RevenueTotals(toDouble(result.get("total")), toDouble(result.get("month")),
+                    toDouble(result.get("day")), toDouble(result.get("lastMonth")),
+                    ((Number) result.get("orders")).longValue());
+        } catch (Exception e) {
+            logger.error("Revenue aggregation on {} failed: {}", collection, e.getMessage());
+            return RevenueTotals.EMPTY;
+        }
+    }
+
+    // Value when the date falls in [from, to), zero otherwise; a null bound is open
+    private AggregationExpression windowed(String dateField, Date from, Date to) {
+        AggregationExpression inWindow = to == null
+                ? ComparisonOperators.valueOf(dateField).greaterThanEqualToValue(from)
+                : BooleanOperators.And.and(
+                        ComparisonOperators.valueOf(dateField).greaterThanEqualToValue(from),
+                        ComparisonOperators.valueOf(dateField).lessThanValue(to));
+        return ConditionalOperators.when(inWindow).thenValueOf("value").otherwise(0);
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof Decimal128) {
+            return ((Decimal128) value).bigDecimalValue().doubleValue();
+        }
+        return value instanceof Number ? ((Number) value).doubleValue() : 0.0;
+    }
+
+    /**
+     * Window boundaries, converted the same way Spring Data stores LocalDateTime (system zone).
+     */
+    private static final class RevenueWindows {
+        private final Date dayStart;
+        private final Date dayEnd;
+        private final Date monthStart;
+        private final Date lastMonthStart;
+
+        private RevenueWindows(Date dayStart, Date dayEnd, Date monthStart, Date lastMonthStart) {
+            this.dayStart = dayStart;
+            this.dayEnd = dayEnd;
+            this.monthStart = monthStart;
+            this.lastMonthStart = lastMonthStart;
+        }
+
+        static RevenueWindows at(LocalDateTime now) {
+            LocalDate today = now.toLocalDate();
+            LocalDate firstOfMonth = today.withDayOfMonth(1);
+            return new RevenueWindows(toDate(today.atStartOfDay()), toDate(today.plusDays(1).atStartOfDay()),
+                    toDate(firstOfMonth.atStartOfDay()), toDate(firstOfMonth.minusMonths(1).atStartOfDay()));
+        }
+
+        private static Date toDate(LocalDateTime dateTime) {
+            return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+        }
+    }
+
+    /**
+     * Revenue and order count of one source for each dashboard window.
+     */
+    public static final class RevenueTotals {
+        static final RevenueTotals EMPTY = new RevenueTotals(0, 0, 0, 0, 0);
+
+        private final double total;
+        private final double month;
+        private final double day;
+        private final double lastMonth;
+        private final long orders;
+
+        RevenueTotals(double total, double month, double day, double lastMonth, long orders) {
+            this.total = total;
+            this.month = month;
+            this.day = day;
+            this.lastMonth = lastMonth;
+            this.orders = orders;
+        }
+
+        RevenueTotals plus(RevenueTotals other) {
+            return new RevenueTotals(total + other.total, month + other.month, day + other.day,
+                    lastMonth + other.lastMonth, orders + other.orders);
+        }
+
+        public double getTotal() { return total; }
+        public double getMonth() { return month; }
+        public double getDay() { return day; }
+        public double getLastMonth() { return lastMonth; }
+        public long getOrders() { return orders; }
+    }
+
+    /**
+     * Dashboard revenue figures split by channel.
+     */
+    public static final class RevenueSummary {
+        private final RevenueTotals b2c;
+        private final RevenueTotals b2b;
+        private final RevenueTotals esim;
+        private final RevenueTotals combined;
+
+        RevenueSummary(RevenueTotals b2c, RevenueTotals b2b, RevenueTotals esim) {
+            this.b2c = b2c;
+            this.b2b = b2b;
+            this.esim = esim;
+            this.combined = b2c.plus(b2b).plus(esim);
+        }
+
+        public double getTotalRevenue() { return combined.total; }
+        public double getMonthlyRevenue() { return combined.month; }
+        public double getDailyRevenue() { return combined.day; }
+        public long getTotalOrders() { return combined.orders; }
+        public double getB2cRevenue() { return b2c.total; }
+        public double getB2bRevenue() { return b2b.total; }
+        public double getEsimRevenue() { return esim.total; }
+
+        // Month-over-month growth in percent; 100% when last month had no revenue
+        public double getRevenueGrowth() {
+            if (combined.lastMonth == 0) {
+                return combined.month > 0 ? 100.0 : 0.0;
+            }
+            return ((combined.month - combined.lastMonth) / combined.lastMonth) * 100.0;
+        }
+
+        public RevenueTotals getB2c() { return b2c; }
+        public RevenueTotals getB2b() { return b2b; }
+        public RevenueTotals getEsim() { return esim; }
+    }
+
+    private static final class RevenueThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "revenue-aggregation-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EsimOrderRequest;
+import com.example.topup.demo.entity.Order;
+import com.example.topup.demo.entity.RetailerOrder;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Feeds revenue_daily from order saves and deletes.
+ * Orders reach their revenue status in many places (purchases, POS sales, admin approvals), so the
+ * rollup hooks into every save and hands the order to RevenueRollupService.statusChanged, which counts
+ * or reverses it. Status changes made with plain updates call statusChanged themselves. A deleted
+ * order is reversed.
+ */
+@Component
+public class RevenueRollupListener extends AbstractMongoEventListener<Object> {
+
+    @Autowired
+    @Lazy
+    private RevenueRollupService revenueRollupService;
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Object> event) {
+        revenueRollupService.statusChanged(event.getSource());
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<Object> event) {
+        String source = sourceOf(event.getType());
+        if (source == null) {
+            return;
+        }
+        // Repository deletes match on _id, either one id or an $in list
+        Object id = event.getSource().get("_id");
+        Collection<?> ids = id instanceof Document filter && filter.get("$in") instanceof Collection<?> in ? in : List.of();
+        if (ids.isEmpty() && id != null && !(id instanceof Document)) {
+            ids = List.of(id);
+        }
+        for (Object orderId : ids) {
+            revenueRollupService.reverseAfterCommit(source, orderId.toString());
+        }
+    }
+
+    private String sourceOf(Class<?> type) {
+        if (type == Order.class) {
+            return RevenueRollupService.SOURCE_ORDERS;
+        } else if (type == RetailerOrder.class) {
+            return RevenueRollupService.SOURCE_RETAILER_ORDERS;
+        } else if (type == EsimOrderRequest.class) {
+            return RevenueRollupService.SOURCE_ESIM;
+        }
+        return null;
+    }
+}
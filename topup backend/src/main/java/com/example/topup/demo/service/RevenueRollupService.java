@@ -0,0 +1,370 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EsimOrderRequest;
+import com.example.topup.demo.entity.Order;
+import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.entity.RevenueDaily;
+import com.example.topup.demo.entity.RevenueRollupEntry;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Maintains the revenue_daily rollup.
+ *
+ * When an order reaches a revenue status its amount is added with $inc to the bucket for its
+ * day, channel and product. A revenue_rollup_entries document per order makes this idempotent
+ * and lets a cancellation subtract exactly what was added. Rollup writes run after the business
+ * transaction commits, on a single background thread.
+ *
+ * backfill() replays the existing orders through the same idempotent path, so it can run at any
+ * time (and on startup while the rollup is empty) without double counting.
+ */
+@Service
+public class RevenueRollupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RevenueRollupService.class);
+
+    public static final String SOURCE_ORDERS = "orders";
+    public static final String SOURCE_RETAILER_ORDERS = "retailer_orders";
+    public static final String SOURCE_ESIM = "esim_order_requests";
+
+    private static final String UNKNOWN_PRODUCT = "UNKNOWN";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MongoTransactionRunner transactionRunner;
+
+    @Value("${app.revenue-rollup.backfill-on-startup:true}")
+    private boolean backfillOnStartup;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "revenue-rollup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean backfillRunning = new AtomicBoolean(false);
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillIfEmpty() {
+        if (backfillOnStartup && !mongoTemplate.exists(new Query(), RevenueDaily.class)) {
+            executor.execute(this::backfill);
+        }
+    }
+
+    /**
+     * Bring the rollup in line with an order's current status, once its transaction has committed.
+     * An order in a revenue status is counted; in any other status its count, if any, is reversed.
+     * Every status transition goes through here, whether the order was saved or changed with an update.
+     * Revenue statuses match RevenueAggregationService.
+     */
+    public void statusChanged(Object order) {
+        if (order instanceof Order legacy) {
+            if (legacy.getStatus() == Order.OrderStatus.COMPLETED) {
+                recordAfterCommit(SOURCE_ORDERS, legacy.getId(), RevenueDaily.Channel.B2C,
+                        legacy.getProductName(), legacy.getAmount(), legacy.getCreatedDate());
+            } else {
+                reverseAfterCommit(SOURCE_ORDERS, legacy.getId());
+            }
+        } else if (order instanceof RetailerOrder retailerOrder) {
+            RevenueDaily.Channel channel = channelOf(retailerOrder);
+            if (channel != null) {
+                String product = retailerOrder.getItems() != null && !retailerOrder.getItems().isEmpty()
+                        ? retailerOrder.getItems().get(0).getProductName() : null;
+                recordAfterCommit(SOURCE_RETAILER_ORDERS, retailerOrder.getId(), channel, product,
+                        retailerOrder.getTotalAmount(), retailerOrder.getCreatedDate());
+            } else {
+                reverseAfterCommit(SOURCE_RETAILER_ORDERS, retailerOrder.getId());
+            }
+        } else if (order instanceof EsimOrderRequest request) {
+            if ("APPROVED".equals(request.getStatus()) || "COMPLETED".equals(request.getStatus())) {
+                BigDecimal amount = request.getAmount() != null ? BigDecimal.valueOf(request.getAmount()) : null;
+                recordAfterCommit(SOURCE_ESIM, request.getId(), RevenueDaily.Channel.ESIM,
+                        request.getProductName(), amount, request.getRequestDate());
+            } else {
+                reverseAfterCommit(SOURCE_ESIM, request.getId());
+            }
+        }
+    }
+
+    // Same rule as the backfill; null when the order is not counted
+    private RevenueDaily.Channel channelOf(RetailerOrder order) {
+        String legacyStatus = order.getMetadata() != null ? order.getMetadata().get(UnifiedOrderService.LEGACY_STATUS) : null;
+        if (Order.OrderStatus.COMPLETED.name().equals(legacyStatus)) {
+            // Inventory purchases were B2C orders before they moved to retailer_orders
+            return RevenueDaily.Channel.B2C;
+        }
+        return order.getStatus() == RetailerOrder.OrderStatus.DELIVERED ? RevenueDaily.Channel.B2B : null;
+    }
+
+    /**
+     * Count an order in the rollup once its transaction has committed.
+     */
+    public void recordAfterCommit(String source, String sourceId, RevenueDaily.Channel channel, String product,
+                                  BigDecimal amount, LocalDateTime orderDate) {
+        dispatch(() -> record(source, sourceId, channel, product, amount, orderDate));
+    }
+
+    /**
+     * Remove an order from the rollup once its transaction has committed. A no-op for orders never counted.
+     */
+    public void reverseAfterCommit(String source, String sourceId) {
+        dispatch(() -> reverse(source, sourceId));
+    }
+
+    /**
+     * Add the order to its daily bucket unless it has already been counted.
+     * The entry and the bucket are written in one transaction so they cannot drift apart.
+     */
+    public void record(String source, String sourceId, RevenueDaily.Channel channel, String product,
+                       BigDecimal amount, LocalDateTime orderDate) {
+        if (sourceId == null || amount == null || orderDate == null) {
+            return;
+        }
+        transactionRunner.execute("revenueRollup", () -> {
+            applyRecord(source, sourceId, channel, product, amount, orderDate);
+            return null;
+        });
+    }
+
+    public void reverse(String source, String sourceId) {
+        transactionRunner.execute("revenueRollupReverse", () -> {
+            applyReverse(source, sourceId);
+            return null;
+        });
+    }
+
+    private void applyRecord(String source, String sourceId, RevenueDaily.Channel channel, String product,
+                             BigDecimal amount, LocalDateTime orderDate) {
+        String date = orderDate.toLocalDate().toString();
+        String productKey = product != null && !product.isBlank() ? product : UNKNOWN_PRODUCT;
+        String bucketId = RevenueDaily.buildId(date, channel, productKey);
+
+        // Upsert rather than insert: a duplicate key error would abort the transaction
+        RevenueRollupEntry existing = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(RevenueRollupEntry.buildId(source, sourceId))),
+                new Update()
+                        .setOnInsert("bucketId", bucketId)
+                        .setOnInsert("amount", new Decimal128(amount))
+                        .setOnInsert("recordedDate", LocalDateTime.now()),
+                FindAndModifyOptions.options().upsert(true).returnNew(false),
+                RevenueRollupEntry.class);
+        if (existing != null) {
+            return;
+        }
+
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(bucketId)), new Update()
+                .setOnInsert("date", date)
+                .setOnInsert("channel", channel.name())
+                .setOnInsert("product", productKey)
+                .inc("revenue", new Decimal128(amount))
+                .inc("orderCount", 1)
+                .set("lastModifiedDate", LocalDateTime.now()), RevenueDaily.class);
+    }
+
+    private void applyReverse(String source, String sourceId) {
+        RevenueRollupEntry entry = mongoTemplate.findAndRemove(
+                Query.query(Criteria.where("_id").is(RevenueRollupEntry.buildId(source, sourceId))),
+                RevenueRollupEntry.class);
+        if (entry == null) {
+            return;
+        }
+        subtract(entry);
+    }
+
+    /**
+     * Move an order's entry to another source, for orders moved between collections.
+     * If the order is already counted under the new source, the old count is removed instead.
+     */
+    public void rekey(String fromSource, String toSource, String sourceId) {
+        rekey(fromSource, sourceId, toSource, sourceId);
+    }
+
+    /**
+     * Move an order's entry onto another order that now stands for the same sale.
+     */
+    public void rekey(String fromSource, String fromId, String toSource, String toId) {
+        transactionRunner.execute("revenueRollupRekey", () -> {
+            RevenueRollupEntry entry = mongoTemplate.findAndRemove(
+                    Query.query(Criteria.where("_id").is(RevenueRollupEntry.buildId(fromSource, fromId))),
+                    RevenueRollupEntry.class);
+            if (entry == null) {
+                return null;
+            }
+            RevenueRollupEntry existing = mongoTemplate.findAndModify(
+                    Query.query(Criteria.where("_id").is(RevenueRollupEntry.buildId(toSource, toId))),
+                    new Update()
+                            .setOnInsert("bucketId", entry.getBucketId())
+                            .setOnInsert("amount", new Decimal128(entry.getAmount()))
+                            .setOnInsert("recordedDate", entry.getRecordedDate()),
+                    FindAndModifyOptions.options().upsert(true).returnNew(false),
+                    RevenueRollupEntry.class);
+            if (existing != null) {
+                subtract(entry);
+            }
+            return null;
+        });
+    }
+
+    private void subtract(RevenueRollupEntry entry) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(entry.getBucketId())), new Update()
+                .inc("revenue", new Decimal128(entry.getAmount().negate()))
+                .inc("orderCount", -1)
+                .set("lastModifiedDate", LocalDateTime.now()), RevenueDaily.class);
+    }
+
+    /**
+     * Daily revenue over all channels for [from, to], with zero for days without sales.
+     */
+    public Map<LocalDate, BigDecimal> getDailyRevenue(LocalDate from, LocalDate to) {
+        Map<LocalDate, BigDecimal> daily = new LinkedHashMap<>();
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            daily.put(day, BigDecimal.ZERO);
+        }
+
+        List<RevenueDaily> buckets = mongoTemplate.find(Query.query(
+                Criteria.where("date").gte(from.toString()).lte(to.toString())), RevenueDaily.class);
+        for (RevenueDaily bucket : buckets) {
+            if (bucket.getRevenue() != null) {
+                daily.merge(LocalDate.parse(bucket.getDate()), bucket.getRevenue(), BigDecimal::add);
+            }
+        }
+        return daily;
+    }
+
+    /**
+     * Replay every completed order into the rollup. Safe to repeat; already counted orders are skipped.
+     */
+    public Map<String, Long> backfill() {
+        Map<String, Long> counted = new LinkedHashMap<>();
+        if (!backfillRunning.compareAndSet(false, true)) {
+            counted.put("skipped", 0L);
+            return counted;
+        }
+        try {
+            logger.info("Revenue rollup backfill started");
+
+            counted.put(SOURCE_ORDERS, replay(SOURCE_ORDERS,
+                    Criteria.where("status").is(Order.OrderStatus.COMPLETED.name()),
+                    document -> RevenueDaily.Channel.B2C, "amount", "createdDate"));
+            counted.put(SOURCE_RETAILER_ORDERS, replay(SOURCE_RETAILER_ORDERS, new Criteria().orOperator(
+                            Criteria.where("metadata." + UnifiedOrderService.LEGACY_STATUS).is(Order.OrderStatus.COMPLETED.name()),
+                            Criteria.where("status").is(RetailerOrder.OrderStatus.DELIVERED.name())),
+                    document -> document.get("metadata", Document.class) != null
+                            && Order.OrderStatus.COMPLETED.name().equals(document.get("metadata", Document.class).get(UnifiedOrderService.LEGACY_STATUS))
+                            ? RevenueDaily.Channel.B2C : RevenueDaily.Channel.B2B,
+                    "totalAmount", "createdDate"));
+            counted.put(SOURCE_ESIM, replay(SOURCE_ESIM,
+                    Criteria.where("status").in("APPROVED", "COMPLETED"),
+                    document -> RevenueDaily.Channel.ESIM, "amount", "requestDate"));
+
+            logger.info("Revenue rollup backfill finished: {}", counted);
+            return counted;
+        } finally {
+            backfillRunning.set(false);
+        }
+    }
+
+    // Raw documents keep the backfill from resolving the @DBRef fields of every order
+    private long replay(String collection, Criteria criteria, Function<Document, RevenueDaily.Channel> channel,
+                        String amountField, String dateField) {
+        long count = 0;
+        try (Stream<Document> documents = mongoTemplate.stream(Query.query(criteria), Document.class, collection)) {
+            for (Document document : (Iterable<Document>) documents::iterator) {
+                try {
+                    record(collection, document.get("_id").toString(), channel.apply(document), productOf(document),
+                            toBigDecimal(document.get(amountField)), toLocalDateTime(document.get(dateField)));
+                    count++;
+                } catch (Exception e) {
+                    logger.warn("Skipping {} {} in revenue backfill: {}", collection, document.get("_id"), e.getMessage());
+                }
+            }
+        }
+        return count;
+    }
+
+    private void dispatch(Runnable work) {
+        Runnable guarded = () -> {
+            try {
+                work.run();
+            } catch (Exception e) {
+                // The rollup is repairable with backfill(); never fail the order because of it
+                logger.error("Revenue rollup update failed: {}", e.getMessage());
+            }
+        };
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    executor.execute(guarded);
+                }
+            });
+        } else {
+            executor.execute(guarded);
+        }
+    }
+
+    private static String productOf(Document document) {
+        if (document.get("productName") instanceof String productName) {
+            return productName;
+        }
+        Object items = document.get("items");
+        if (items instanceof List<?> list && !list.isEmpty() && list.get(0) instanceof Document item) {
+            return item.getString("productName");
+        }
+        return null;
+    }
+
+    private static BigDecimal toBigDecimal(Object value) {
+        if (value instanceof Decimal128 decimal) {
+            return decimal.bigDecimalValue();
+        }
+        if (value instanceof Number number) {
+            return new BigDecimal(number.toString());
+        }
+        return value != null ? new BigDecimal(value.toString()) : null;
+    }
+
+    private static LocalDateTime toLocalDateTime(Object value) {
+        return value instanceof Date date ? LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault()) : null;
+    }
+}
@@ -0,0 +1,598 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.entity.StockPool;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * In-memory columnar store of sale facts for admin sales analytics.
+ *
+ * One row per item of a COMPLETED or DELIVERED retailer order. Every column is a primitive
+ * array and strings (retailer, operator, country, product) are dictionary-encoded, so a
+ * group-by or filter is a single pass over a few int arrays instead of a query over raw orders.
+ *
+ * Rows are kept current from the order write path: after a RetailerOrder save commits, that
+ * order's rows are replaced. Orders changed with plain updates are picked up by a full rebuild
+ * once the store is older than app.sales-facts.max-age-minutes.
+ */
+@Service
+public class SalesFactStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SalesFactStore.class);
+
+    public static final String UNKNOWN = "Unknown";
+
+    private static final byte TYPE_EPIN = 0;
+    private static final byte TYPE_ESIM = 1;
+    private static final int ANY = -1;
+    private static final int NONE = -2;
+
+    public enum Dimension {
+        RETAILER,
+        OPERATOR,
+        COUNTRY,
+        PRODUCT,
+        TYPE,
+        DAY
+    }
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${app.sales-facts.max-age-minutes:60}")
+    private long maxAgeMinutes;
+
+    // Dictionaries only ever grow, so codes stay valid across rebuilds
+    private final Dictionary retailers = new Dictionary();
+    private final Dictionary operators = new Dictionary();
+    private final Dictionary countries = new Dictionary();
+    private final Dictionary products = new Dictionary();
+
+    // Stock pool id -> network provider, the operator of the items sold from it
+    private final Map<String, String> operatorByProduct = new ConcurrentHashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Columns columns;
+    private volatile LocalDateTime builtAt;
+
+    // Orders changed while a rebuild is reading Mongo; re-applied on top of the rebuilt columns
+    private List<RetailerOrder> changedDuringRebuild;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sales-facts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        executor.execute(this::rebuildQuietly);
+    }
+
+    @EventListener
+    public void onAfterSave(AfterSaveEvent<?> event) {
+        if (!(event.getSource() instanceof RetailerOrder order) || order.getId() == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply(order);
+                }
+            });
+        } else {
+            apply(order);
+        }
+    }
+
+    /**
+     * Units, revenue, rows and distinct orders of the matching sales.
+     */
+    public Group total(Filter filter) {
+        Columns current = ensureLoaded();
+        lock.readLock().lock();
+        try {
+            Group total = new Group("total");
+            int[] codes = filterCodes(filter);
+            if (codes == null) {
+                return total;
+            }
+            BitSet orders = new BitSet();
+            for (int row = 0; row < current.size; row++) {
+                if (matches(current, row, filter, codes)) {
+                    total.units += current.quantity[row];
+                    total.revenueCents += current.revenueCents[row];
+                    total.rows++;
+                    orders.set(current.order[row]);
+                }
+            }
+            total.orders = orders.cardinality();
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Matching sales grouped by one dimension, largest unit count first.
+     */
+    public List<Group> groupBy(Dimension dimension, Filter filter) {
+        Columns current = ensureLoaded();
+        lock.readLock().lock();
+        try {
+            int[] codes = filterCodes(filter);
+            if (codes == null || current.size == 0) {
+                return new ArrayList<>();
+            }
+
+            int keys;
+            int base = 0;
+            switch (dimension) {
+                case RETAILER -> keys = retailers.size();
+                case OPERATOR -> keys = operators.size();
+                case COUNTRY -> keys = countries.size();
+                case PRODUCT -> keys = products.size();
+                case TYPE -> keys = 2;
+                default -> {
+                    base = current.minDay;
+                    keys = current.maxDay - current.minDay + 1;
+                }
+            }
+
+            long[] units = new long[keys];
+            long[] revenue = new long[keys];
+            long[] rows = new long[keys];
+            int[] keyColumn = switch (dimension) {
+                case RETAILER -> current.retailer;
+                case OPERATOR -> current.operator;
+                case COUNTRY -> current.country;
+                case PRODUCT -> current.product;
+                case DAY -> current.day;
+                case TYPE -> null;
+            };
+
+            for (int row = 0; row < current.size; row++) {
+                if (matches(current, row, filter, codes)) {
+                    int key = keyColumn != null ? keyColumn[row] - base : current.type[row];
+                    units[key] += current.quantity[row];
+                    revenue[key] += current.revenueCents[row];
+                    rows[key]++;
+                }
+            }
+
+            List<Group> groups = new ArrayList<>();
+            for (int key = 0; key < keys; key++) {
+                if (rows[key] == 0) {
+                    continue;
+                }
+                Group group = new Group(decode(dimension, key + base));
+                group.units = units[key];
+                group.revenueCents = revenue[key];
+                group.rows = rows[key];
+                groups.add(group);
+            }
+            groups.sort((a, b) -> Long.compare(b.units, a.units));
+            return groups;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        Columns current = ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return current.size - current.deleted.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reload every fact from retailer_orders and swap the new columns in.
+     */
+    public void rebuild() {
+        lock.writeLock().lock();
+        try {
+            changedDuringRebuild = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        long start = System.nanoTime();
+        loadOperators();
+        Columns rebuilt = new Columns();
+        Query query = Query.query(Criteria.where("status").in(
+                RetailerOrder.OrderStatus.COMPLETED.name(), RetailerOrder.OrderStatus.DELIVERED.name()));
+        query.fields().include("retailerId", "status", "createdDate", "items", "billingInfo.country");
+        try (Stream<Document> documents = mongoTemplate.stream(query, Document.class,
+                mongoTemplate.getCollectionName(RetailerOrder.class))) {
+            for (Document document : (Iterable<Document>) documents::iterator) {
+                try {
+                    append(rebuilt, mongoTemplate.getConverter().read(RetailerOrder.class, document));
+                } catch (Exception e) {
+                    logger.warn("Skipping retailer order {} in sales facts: {}", document.get("_id"), e.getMessage());
+                }
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (RetailerOrder order : changedDuringRebuild) {
+                replace(rebuilt, order);
+            }
+            changedDuringRebuild = null;
+            columns = rebuilt;
+            builtAt = LocalDateTime.now();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Sales facts loaded: {} rows in {} ms", rebuilt.size, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void apply(RetailerOrder order) {
+        // A product sold for the first time costs a Mongo lookup, which must not block the readers
+        resolveOperators(order);
+        lock.writeLock().lock();
+        try {
+            if (changedDuringRebuild != null) {
+                changedDuringRebuild.add(order);
+            }
+            if (columns != null) {
+                replace(columns, order);
+                if (columns.deleted.cardinality() > 10_000 && columns.deleted.cardinality() > columns.size / 4) {
+                    columns = columns.compact();
+                }
+            }
+        } catch (Exception e) {
+            // The next rebuild repairs the store; never fail the order because of it
+            logger.error("Failed to update sales facts for order {}: {}", order.getId(), e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Columns ensureLoaded() {
+        Columns current;
+        lock.readLock().lock();
+        try {
+            current = columns;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (current == null) {
+            // First query before the startup load finished: load on this thread
+            synchronized (this) {
+                if (columns == null) {
+                    rebuild();
+                }
+            }
+            return columns;
+        }
+        if (builtAt.isBefore(LocalDateTime.now().minusMinutes(maxAgeMinutes))) {
+            builtAt = LocalDateTime.now();
+            executor.execute(this::rebuildQuietly);
+        }
+        return current;
+    }
+
+    private void rebuildQuietly() {
+        try {
+            synchronized (this) {
+                rebuild();
+            }
+        } catch (Exception e) {
+            logger.error("Sales facts rebuild failed: {}", e.getMessage());
+        }
+    }
+
+    private void replace(Columns target, RetailerOrder order) {
+        int[] previous = target.rowsByOrder.remove(order.getId());
+        if (previous != null) {
+            for (int row : previous) {
+                target.deleted.set(row);
+            }
+        }
+        if (order.getStatus() == RetailerOrder.OrderStatus.COMPLETED || order.getStatus() == RetailerOrder.OrderStatus.DELIVERED) {
+            append(target, order);
+        }
+    }
+
+    private void append(Columns target, RetailerOrder order) {
+        if (order.getItems() == null || order.getItems().isEmpty() || order.getCreatedDate() == null) {
+            return;
+        }
+        int retailer = retailers.encode(order.getRetailerId());
+        int country = countries.encode(order.getBillingInfo() != null ? order.getBillingInfo().getCountry() : null);
+        int day = (int) order.getCreatedDate().toLocalDate().toEpochDay();
+        int orderCode = target.orderCodes.computeIfAbsent(order.getId(), id -> target.orderCodes.size());
+
+        int[] rows = new int[order.getItems().size()];
+        int count = 0;
+        for (RetailerOrder.OrderItem item : order.getItems()) {
+            if (item == null) {
+                continue;
+            }
+            int quantity = item.getQuantity() != null ? item.getQuantity() : 0;
+            BigDecimal revenue = item.getUnitPrice() != null ? item.getUnitPrice().multiply(BigDecimal.valueOf(quantity)) : BigDecimal.ZERO;
+            rows[count++] = target.add(retailer, operators.encode(operatorOf(item.getProductId())), country,
+                    products.encode(item.getProductName()), day,
+                    RetailerOrder.OrderItem.TYPE_ESIM.equals(item.getNormalizedType()) ? TYPE_ESIM : TYPE_EPIN,
+                    quantity, revenue.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue(), orderCode);
+        }
+        target.rowsByOrder.put(order.getId(), Arrays.copyOf(rows, count));
+    }
+
+    private void resolveOperators(RetailerOrder order) {
+        if (order.getItems() == null) {
+            return;
+        }
+        try {
+            for (RetailerOrder.OrderItem item : order.getItems()) {
+                if (item != null) {
+                    operatorOf(item.getProductId());
+                }
+            }
+        } catch (Exception e) {
+            // Looked up again while appending
+            logger.warn("Failed to resolve operators for order {}: {}", order.getId(), e.getMessage());
+        }
+    }
+
+    private void loadOperators() {
+        Query query = new Query();
+        query.fields().include("networkProvider");
+        for (Document pool : mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(StockPool.class))) {
+            String provider = pool.getString("networkProvider");
+            operatorByProduct.put(pool.get("_id").toString(), provider != null ? provider : "");
+        }
+    }
+
+    private String operatorOf(String productId) {
+        if (productId == null) {
+            return null;
+        }
+        // Products sold since the last rebuild; looked up once each
+        String operator = operatorByProduct.computeIfAbsent(productId, id -> {
+            Query query = Query.query(Criteria.where("_id").is(id));
+            query.fields().include("networkProvider");
+            Document pool = mongoTemplate.findOne(query, Document.class, mongoTemplate.getCollectionName(StockPool.class));
+            String provider = pool != null ? pool.getString("networkProvider") : null;
+            return provider != null ? provider : "";
+        });
+        return operator.isEmpty() ? null : operator;
+    }
+
+    // Dictionary codes for the filter values: ANY when not filtered; null when a value never occurs
+    private int[] filterCodes(Filter filter) {
+        int[] codes = {
+                code(retailers, filter.retailerId),
+                code(operators, filter.operator),
+                code(countries, filter.country),
+                code(products, filter.product),
+                filter.type == null ? ANY : RetailerOrder.OrderItem.TYPE_ESIM.equalsIgnoreCase(filter.type) ? TYPE_ESIM : TYPE_EPIN,
+                filter.from != null ? (int) filter.from.toEpochDay() : Integer.MIN_VALUE,
+                filter.to != null ? (int) filter.to.toEpochDay() : Integer.MAX_VALUE
+        };
+        for (int i = 0; i < 4; i++) {
+            if (codes[i] == NONE) {
+                return null;
+            }
+        }
+        return codes;
+    }
+
+    private static int code(Dictionary dictionary, String value) {
+        if (value == null || value.isBlank()) {
+            return ANY;
+        }
+        int code = dictionary.lookup(value);
+        return code >= 0 ? code : NONE;
+    }
+
+    private static boolean matches(Columns columns, int row, Filter filter, int[] codes) {
+        return !columns.deleted.get(row)
+                && (codes[0] == ANY || columns.retailer[row] == codes[0])
+                && (codes[1] == ANY || columns.operator[row] == codes[1])
+                && (codes[2] == ANY || columns.country[row] == codes[2])
+                && (codes[3] == ANY || columns.product[row] == codes[3])
+                && (codes[4] == ANY || columns.type[row] == codes[4])
+                && columns.day[row] >= codes[5] && columns.day[row] <= codes[6];
+    }
+
+    private String decode(Dimension dimension, int key) {
+        return switch (dimension) {
+            case RETAILER -> retailers.decode(key);
+            case OPERATOR -> operators.decode(key);
+            case COUNTRY -> countries.decode(key);
+            case PRODUCT -> products.decode(key);
+            case TYPE -> key == TYPE_ESIM ? RetailerOrder.OrderItem.TYPE_ESIM : RetailerOrder.OrderItem.TYPE_EPIN;
+            case DAY -> LocalDate.ofEpochDay(key).toString();
+        };
+    }
+
+    /**
+     * Optional filters; day bounds are inclusive.
+     */
+    public static final class Filter {
+        private String retailerId;
+        private String type;
+        private String operator;
+        private String country;
+        private String product;
+        private LocalDate from;
+        private LocalDate to;
+
+        public Filter retailerId(String retailerId) { this.retailerId = retailerId; return this; }
+        public Filter type(String type) { this.type = type; return this; }
+        public Filter operator(String operator) { this.operator = operator; return this; }
+        public Filter country(String country) { this.country = country; return this; }
+        public Filter product(String product) { this.product = product; return this; }
+        public Filter from(LocalDate from) { this.from = from; return this; }
+        public Filter to(LocalDate to) { this.to = to; return this; }
+    }
+
+    /**
+     * Aggregated figures for one group of sales.
+     */
+    public static final class Group {
+        private final String key;
+        private long units;
+        private long revenueCents;
+        private long rows;
+        private long orders;
+
+        Group(String key) {
+            this.key = key;
+        }
+
+        public String getKey() { return key; }
+        public long getUnits() { return units; }
+        public long getRows() { return rows; }
+        // Distinct orders; only counted by total()
+        public long getOrders() { return orders; }
+
+        public BigDecimal getRevenue() {
+            return BigDecimal.valueOf(revenueCents, 2);
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("key", key);
+            data.put("units", units);
+            data.put("revenue", getRevenue());
+            data.put("rows", rows);
+            return data;
+        }
+    }
+
+    // String <-> int code mapping; null and blank values share the UNKNOWN code
+    private static final class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        synchronized int encode(String value) {
+            String key = value == null || value.isBlank() ? UNKNOWN : value;
+            return codes.computeIfAbsent(key, k -> {
+                values.add(k);
+                return values.size() - 1;
+            });
+        }
+
+        synchronized int lookup(String value) {
+            Integer code = codes.get(value);
+            return code != null ? code : -1;
+        }
+
+        synchronized String decode(int code) {
+            return values.get(code);
+        }
+
+        synchronized int size() {
+            return values.size();
+        }
+    }
+
+    // One array per column; rows of replaced orders are marked deleted until the next compaction
+    private static final class Columns {
+        private int size;
+        private int[] retailer = new int[1024];
+        private int[] operator = new int[1024];
+        private int[] country = new int[1024];
+        private int[] product = new int[1024];
+        private int[] day = new int[1024];
+        private byte[] type = new byte[1024];
+        private int[] quantity = new int[1024];
+        private long[] revenueCents = new long[1024];
+        private int[] order = new int[1024];
+        private BitSet deleted = new BitSet();
+        private int minDay = Integer.MAX_VALUE;
+        private int maxDay = Integer.MIN_VALUE;
+        private final Map<String, int[]> rowsByOrder = new HashMap<>();
+        private final Map<String, Integer> orderCodes = new HashMap<>();
+
+        int add(int retailerCode, int operatorCode, int countryCode, int productCode, int epochDay,
+                byte itemType, int units, long cents, int orderCode) {
+            if (size == retailer.length) {
+                int capacity = size * 2;
+                retailer = Arrays.copyOf(retailer, capacity);
+                operator = Arrays.copyOf(operator, capacity);
+                country = Arrays.copyOf(country, capacity);
+                product = Arrays.copyOf(product, capacity);
+                day = Arrays.copyOf(day, capacity);
+                type = Arrays.copyOf(type, capacity);
+                quantity = Arrays.copyOf(quantity, capacity);
+                revenueCents = Arrays.copyOf(revenueCents, capacity);
+                order = Arrays.copyOf(order, capacity);
+            }
+            retailer[size] = retailerCode;
+            operator[size] = operatorCode;
+            country[size] = countryCode;
+            product[size] = productCode;
+            day[size] = epochDay;
+            type[size] = itemType;
+            quantity[size] = units;
+            revenueCents[size] = cents;
+            order[size] = orderCode;
+            minDay = Math.min(minDay, epochDay);
+            maxDay = Math.max(maxDay, epochDay);
+            return size++;
+        }
+
+        Columns compact() {
+            Columns compacted = new Columns();
+            for (Map.Entry<String, int[]> entry : rowsByOrder.entrySet()) {
+                int[] rows = entry.getValue();
+                int[] moved = new int[rows.length];
+                for (int i = 0; i < rows.length; i++) {
+                    int row = rows[i];
+                    moved[i] = compacted.add(retailer[row], operator[row], country[row], product[row], day[row],
+                            type[row], quantity[row], revenueCents[row], order[row]);
+                }
+                compacted.rowsByOrder.put(entry.getKey(), moved);
+            }
+            compacted.orderCodes.putAll(orderCodes);
+            return compacted;
+        }
+    }
+}
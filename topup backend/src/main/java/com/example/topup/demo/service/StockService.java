@@ -25,6 +25,10 @@ import java.util.stream.Collectors;
 @Service
 public class StockService {
 
+    // Base64 encoding of the PNG file signature
+    private static final String PNG_BASE64_PREFIX = "iVBORw0KGgo";
+    private static final byte[] PNG_BASE64_PREFIX_BYTES = PNG_BASE64_PREFIX.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+
     @Autowired
     private StockPoolRepository stockPoolRepository;
 
@@ -562,6 +566,37 @@ public class StockService {
         return item;
     }
 
+    /**
+     * Put the stock assigned to an order back to AVAILABLE, when the sale it was allocated for failed.
+     * Returns the number of items released.
+     */
+    public int releaseStockFromOrder(String productId, StockPool.StockType stockType, String orderId) {
+        Optional<StockPool> poolOpt = stockPoolRepository.findByProductIdAndStockType(productId, stockType);
+        if (!poolOpt.isPresent()) {
+            return 0;
+        }
+        
+        StockPool pool = poolOpt.get();
+        int released = 0;
+        for (StockItem item : pool.getItems()) {
+            if (item.getStatus() == StockItem.ItemStatus.ASSIGNED && orderId.equals(item.getAssignedToOrderId())) {
+                item.setStatus(StockItem.ItemStatus.AVAILABLE);
+                item.setAssignedDate(null);
+                item.setAssignedToOrderId(null);
+                item.setAssignedToUserId(null);
+                item.setAssignedToUserEmail(null);
+                released++;
+            }
+        }
+        
+        if (released > 0) {
+            pool.updateQuantities();
+            pool.setLastModifiedDate(LocalDateTime.now());
+            stockPoolRepository.save(pool);
+        }
+        return released;
+    }
+
     /**
      * Get stock usage statistics
      */
@@ -959,6 +994,41 @@ public class StockService {
         }
     }
 
+    /**
+     * Stored eSIM QR code (encrypted or plain Base64) as PNG bytes, or null if it is not a PNG.
+     * Decodes byte array to byte array, so no intermediate String is created.
+     */
+    public byte[] decryptQrCodePng(String storedQrCode) {
+        if (storedQrCode == null || storedQrCode.isEmpty()) {
+            return null;
+        }
+        try {
+            java.util.Base64.Decoder decoder = java.util.Base64.getDecoder();
+            byte[] stored = storedQrCode.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+            // Plain Base64 PNG, or Base64 PNG wrapped by encryptData
+            byte[] base64Png = storedQrCode.startsWith(PNG_BASE64_PREFIX) ? stored : decoder.decode(stored);
+            if (!startsWith(base64Png, PNG_BASE64_PREFIX_BYTES)) {
+                return null;
+            }
+            return decoder.decode(base64Png);
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ Stored QR code is not valid Base64: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Mask sensitive data for display (show only last 4 characters)
      */
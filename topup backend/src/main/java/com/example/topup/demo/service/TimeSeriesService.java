@@ -0,0 +1,219 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.CustomerEnquiry;
+import com.example.topup.demo.entity.EsimOrderRequest;
+import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.entity.User;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Service;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bucketed counts over time for trend charts.
+ *
+ * One aggregation per series: $match on the date range, $dateTrunc to the bucket start in the
+ * server's time zone (the zone LocalDateTime values are stored in), then $group and count.
+ * Empty buckets are filled with zero here. Series are cached for a time that depends on the
+ * bucket size, since only the current bucket can still change.
+ */
+@Service
+public class TimeSeriesService {
+
+    // Safety bound on the number of buckets a single request may produce
+    public static final int MAX_POINTS = 366;
+
+    public enum Interval {
+        HOUR("hour", TimeUnit.MINUTES.toNanos(1)),
+        DAY("day", TimeUnit.MINUTES.toNanos(5)),
+        WEEK("week", TimeUnit.MINUTES.toNanos(15)),
+        MONTH("month", TimeUnit.MINUTES.toNanos(15));
+
+        private final String unit;
+        private final long cacheTtlNanos;
+
+        Interval(String unit, long cacheTtlNanos) {
+            this.unit = unit;
+            this.cacheTtlNanos = cacheTtlNanos;
+        }
+
+        public LocalDateTime truncate(LocalDateTime dateTime) {
+            switch (this) {
+                case HOUR:
+                    return dateTime.truncatedTo(ChronoUnit.HOURS);
+                case DAY:
+                    return dateTime.truncatedTo(ChronoUnit.DAYS);
+                case WEEK:
+                    return dateTime.truncatedTo(ChronoUnit.DAYS).with(DayOfWeek.MONDAY);
+                default:
+                    return dateTime.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+            }
+        }
+
+        public LocalDateTime next(LocalDateTime bucketStart) {
+            switch (this) {
+                case HOUR:
+                    return bucketStart.plusHours(1);
+                case DAY:
+                    return bucketStart.plusDays(1);
+                case WEEK:
+                    return bucketStart.plusWeeks(1);
+                default:
+                    return bucketStart.plusMonths(1);
+            }
+        }
+
+        public LocalDateTime minus(LocalDateTime bucketStart, long buckets) {
+            switch (this) {
+                case HOUR:
+                    return bucketStart.minusHours(buckets);
+                case DAY:
+                    return bucketStart.minusDays(buckets);
+                case WEEK:
+                    return bucketStart.minusWeeks(buckets);
+                default:
+                    return bucketStart.minusMonths(buckets);
+            }
+        }
+    }
+
+    /**
+     * Series available to trend charts: the collection, the date field bucketed on and the documents counted.
+     */
+    public enum Metric {
+        REGISTRATIONS(User.class, "createdDate", null),
+        ORDERS(RetailerOrder.class, "createdDate", UnifiedOrderService.retailerOrdersOnly()),
+        ESIM_REQUESTS(EsimOrderRequest.class, "requestDate", null),
+        ENQUIRIES(CustomerEnquiry.class, "createdDate", null);
+
+        private final Class<?> entityClass;
+        private final String dateField;
+        private final Criteria filter;
+
+        Metric(Class<?> entityClass, String dateField, Criteria filter) {
+            this.entityClass = entityClass;
+            this.dateField = dateField;
+            this.filter = filter;
+        }
+    }
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private final Cache<String, CachedSeries> cache = Caffeine.newBuilder()
+            .maximumSize(1000)
+            .expireAfter(new Expiry<String, CachedSeries>() {
+                @Override
+                public long expireAfterCreate(String key, CachedSeries value, long currentTime) {
+                    return value.interval.cacheTtlNanos;
+                }
+
+                @Override
+                public long expireAfterUpdate(String key, CachedSeries value, long currentTime, long currentDuration) {
+                    return value.interval.cacheTtlNanos;
+                }
+
+                @Override
+                public long expireAfterRead(String key, CachedSeries value, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .build();
+
+    /**
+     * The last {@code points} buckets of a metric, ending with the current bucket.
+     */
+    public Map<LocalDateTime, Long> getTrend(Metric metric, Interval interval, int points) {
+        int bucketCount = Math.max(1, Math.min(points, MAX_POINTS));
+        LocalDateTime current = interval.truncate(LocalDateTime.now());
+        LocalDateTime from = interval.minus(current, bucketCount - 1);
+        LocalDateTime to = interval.next(current);
+
+        String key = metric.name() + "|" + interval.name() + "|" + from + "|" + to;
+        CachedSeries cached = cache.get(key, k -> new CachedSeries(interval,
+                countByInterval(metric.entityClass, metric.dateField, metric.filter, interval, from, to)));
+        return cached.series;
+    }
+
+    /**
+     * Count documents per bucket for dates in [from, to), with zero for empty buckets.
+     * Not cached; use getTrend for dashboard series.
+     */
+    public Map<LocalDateTime, Long> countByInterval(Class<?> entityClass, String dateField, Criteria filter,
+                                                    Interval interval, LocalDateTime from, LocalDateTime to) {
+        LocalDateTime start = interval.truncate(from);
+        Map<LocalDateTime, Long> series = new LinkedHashMap<>();
+        for (LocalDateTime bucket = start; bucket.isBefore(to) && series.size() < MAX_POINTS; bucket = interval.next(bucket)) {
+            series.put(bucket, 0L);
+        }
+
+        Criteria range = Criteria.where(dateField).gte(start).lt(to);
+        Criteria match = filter != null ? new Criteria().andOperator(filter, range) : range;
+
+        // Typed so the LocalDateTime bounds are converted the same way the documents were written
+        TypedAggregation<?> aggregation = Aggregation.newAggregation(entityClass,
+                Aggregation.match(match),
+                Aggregation.project().and(dateTrunc(dateField, interval)).as("bucket"),
+                Aggregation.group("bucket").count().as("count"));
+
+        List<Document> buckets = mongoTemplate.aggregate(aggregation, Document.class).getMappedResults();
+        for (Document bucket : buckets) {
+            Object id = bucket.get("_id");
+            LocalDateTime bucketStart = id instanceof Date date
+                    ? LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault())
+                    : id instanceof LocalDateTime dateTime ? dateTime : null;
+            if (bucketStart != null) {
+                series.computeIfPresent(bucketStart, (k, count) -> count + ((Number) bucket.get("count")).longValue());
+            }
+        }
+        return Collections.unmodifiableMap(series);
+    }
+
+    // $dateTrunc (MongoDB 5.0+) in the zone the application writes LocalDateTime values in
+    private AggregationExpression dateTrunc(String dateField, Interval interval) {
+        return context -> {
+            Document truncate = new Document("date", "$" + dateField)
+                    .append("unit", interval.unit)
+                    .append("timezone", serverTimeZone());
+            if (interval == Interval.WEEK) {
+                truncate.append("startOfWeek", "monday");
+            }
+            return new Document("$dateTrunc", truncate);
+        };
+    }
+
+    private static String serverTimeZone() {
+        ZoneId zone = ZoneId.systemDefault();
+        // Mongo accepts Olson names and +hh:mm offsets, not "Z"
+        return zone instanceof ZoneOffset ? (ZoneOffset.UTC.equals(zone) ? "UTC" : zone.getId()) : zone.getId();
+    }
+
+    private static final class CachedSeries {
+        private final Interval interval;
+        private final Map<LocalDateTime, Long> series;
+
+        CachedSeries(Interval interval, Map<LocalDateTime, Long> series) {
+            this.interval = interval;
+            this.series = series;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.Order;
+import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.entity.User;
+import com.example.topup.demo.repository.RetailerOrderRepository;
+import com.example.topup.demo.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Single store for retailer orders.
+ *
+ * Purchases, inventory sales and sample orders are stored once, as RetailerOrder documents in
+ * retailer_orders, with the legacy inventory fields kept in metadata (allocatedItems,
+ * legacyStatus, ...). The historical orders collection is moved here by LegacyOrderMigration, so
+ * every read is one query on retailer_orders, sorted and paged by the database.
+ *
+ * Code that still works with the old Order shape goes through the adapter methods here. Saving an
+ * Order maps every field back onto its RetailerOrder and saves it through the repository, so
+ * listeners (revenue rollup, analytics) see the change like any other order save.
+ */
+@Service
+public class UnifiedOrderService {
+
+    // Metadata key holding the Order.OrderStatus of unified orders; its presence marks an inventory order
+    public static final String LEGACY_STATUS = "legacyStatus";
+
+    // Metadata marking the inventory orders that are purchases from the shop
+    public static final String PURCHASE_TYPE = "purchaseType";
+    public static final String DIRECT_BUY = "DIRECT_BUY";
+
+    // Order fields without a RetailerOrder counterpart
+    public static final String CUSTOMER_ID = "customerId";
+
+    private static final Sort NEWEST_FIRST = Sort.by(Sort.Direction.DESC, "createdDate");
+
+    @Autowired
+    private RetailerOrderRepository retailerOrderRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    /**
+     * Matches the orders a retailer placed with the shop. Inventory purchases count; the sale records
+     * and sample orders kept alongside them in retailer_orders do not.
+     */
+    public static Criteria retailerOrdersOnly() {
+        return new Criteria().orOperator(
+                Criteria.where("metadata." + LEGACY_STATUS).exists(false),
+                Criteria.where("metadata." + PURCHASE_TYPE).is(DIRECT_BUY));
+    }
+
+    // ===== Write path =====
+
+    public RetailerOrder save(RetailerOrder order, Order.OrderStatus legacyStatus) {
+        if (order.getMetadata() == null) {
+            order.setMetadata(new HashMap<>());
+        }
+        order.getMetadata().put(LEGACY_STATUS, legacyStatus.name());
+        return retailerOrderRepository.save(order);
+    }
+
+    /**
+     * Persist a legacy-shaped order.
+     * All of its fields are applied to the stored RetailerOrder (or a new one), which is then saved in full.
+     */
+    public Order save(Order order) {
+        RetailerOrder target = order.getId() != null
+                ? retailerOrderRepository.findById(order.getId()).orElseGet(RetailerOrder::new)
+                : new RetailerOrder();
+        RetailerOrder saved = retailerOrderRepository.save(applyLegacyFields(order, target));
+        return toLegacyOrder(saved, order.getRetailer());
+    }
+
+    public void deleteAll(List<Order> orders) {
+        retailerOrderRepository.deleteAllById(orders.stream().map(Order::getId).collect(Collectors.toList()));
+    }
+
+    // ===== Legacy read adapter =====
+
+    public List<Order> findByRetailer(User retailer) {
+        return adapt(findUnified(Criteria.where("retailerId").is(retailer.getId())), retailer);
+    }
+
+    /**
+     * One page of a retailer's orders, newest first.
+     */
+    public Page<Order> findByRetailer(User retailer, Pageable pageable) {
+        Criteria criteria = Criteria.where("retailerId").is(retailer.getId());
+        Query query = unified(criteria).with(NEWEST_FIRST).skip(pageable.getOffset()).limit(pageable.getPageSize());
+        List<Order> orders = adapt(mongoTemplate.find(query, RetailerOrder.class), retailer);
+        return new PageImpl<>(orders, pageable, countUnified(criteria));
+    }
+
+    public List<Order> findByRetailerAndStatus(User retailer, Order.OrderStatus status) {
+        return adapt(findUnified(Criteria.where("retailerId").is(retailer.getId())
+                .and("metadata." + LEGACY_STATUS).is(status.name())), retailer);
+    }
+
+    public List<Order> findByRetailerAndCreatedDateBetween(User retailer, LocalDateTime start, LocalDateTime end) {
+        return adapt(findUnified(Criteria.where("retailerId").is(retailer.getId())
+                .and("createdDate").gte(start).lt(end)), retailer);
+    }
+
+    public List<Order> findByCustomerEmail(String customerEmail) {
+        return adaptWithRetailers(findUnified(Criteria.where("billingInfo.email").is(customerEmail)));
+    }
+
+    public long countByRetailer(User retailer) {
+        return countUnified(Criteria.where("retailerId").is(retailer.getId()));
+    }
+
+    public long countByRetailerAndStatus(User retailer, Order.OrderStatus status) {
+        return countUnified(Criteria.where("retailerId").is(retailer.getId())
+                .and("metadata." + LEGACY_STATUS).is(status.name()));
+    }
+
+    // Start inclusive, end exclusive
+    public long countByRetailerAndDateRange(User retailer, LocalDateTime start, LocalDateTime end) {
+        return countUnified(Criteria.where("retailerId").is(retailer.getId())
+                .and("createdDate").gte(start).lt(end));
+    }
+
+    public List<Order> findAll() {
+        return adaptWithRetailers(findUnified(new Criteria()));
+    }
+
+    public List<Order> findByCreatedDateBetween(LocalDateTime start, LocalDateTime end) {
+        return adaptWithRetailers(findUnified(Criteria.where("createdDate").gte(start).lt(end)));
+    }
+
+    public Optional<Order> findById(String orderId) {
+        return retailerOrderRepository.findById(orderId)
+                .filter(this::isInventoryOrder)
+                .map(order -> toLegacyOrder(order, userRepository.findById(order.getRetailerId()).orElse(null)));
+    }
+
+    /**
+     * Convert a unified RetailerOrder into the legacy Order shape.
+     */
+    public Order toLegacyOrder(RetailerOrder source, User retailer) {
+        Order order = new Order();
+        order.setId(source.getId());
+        order.setOrderNumber(source.getOrderNumber());
+        order.setRetailer(retailer);
+        order.setAmount(source.getTotalAmount());
+        order.setPaymentMethod(source.getPaymentMethod());
+        order.setPaymentStatus(toLegacyPaymentStatus(source.getPaymentStatus()));
+        order.setTransactionId(source.getPaymentTransactionId());
+        order.setCreatedDate(source.getCreatedDate());
+        order.setCompletedDate(source.getDeliveredDate());
+        order.setLastModifiedDate(source.getLastModifiedDate());
+        order.setNotes(source.getNotes());
+
+        if (source.getItems() != null && !source.getItems().isEmpty()) {
+            RetailerOrder.OrderItem item = source.getItems().get(0);
+            order.setProductName(item.getProductName());
+            order.setProductType(item.getProductType());
+            order.setQuantity(item.getQuantity());
+        }
+
+        if (source.getBillingInfo() != null) {
+            order.setCustomerName(source.getBillingInfo().getContactName());
+            order.setCustomerEmail(source.getBillingInfo().getEmail());
+            order.setCustomerPhone(source.getBillingInfo().getPhone());
+        }
+
+        Map<String, String> metadata = source.getMetadata() != null ? new HashMap<>(source.getMetadata()) : new HashMap<>();
+        order.setStatus(Order.OrderStatus.valueOf(metadata.getOrDefault(LEGACY_STATUS, Order.OrderStatus.COMPLETED.name())));
+        order.setMetadata(metadata);
+        return order;
+    }
+
+    /**
+     * Apply every field of a legacy-shaped order to a RetailerOrder.
+     * Fields the Order shape does not carry (shipping, item prices of an existing order, ...) are kept.
+     */
+    public RetailerOrder applyLegacyFields(Order source, RetailerOrder target) {
+        target.setId(source.getId());
+        if (source.getOrderNumber() != null) {
+            target.setOrderNumber(source.getOrderNumber());
+        }
+        if (source.getRetailer() != null) {
+            target.setRetailerId(source.getRetailer().getId());
+        }
+        target.setTotalAmount(source.getAmount());
+        target.setPaymentMethod(source.getPaymentMethod());
+        // The Order shape has fewer payment statuses; keep the stored one unless the Order changed it
+        if (target.getPaymentStatus() == null || toLegacyPaymentStatus(target.getPaymentStatus()) != source.getPaymentStatus()) {
+            target.setPaymentStatus(toRetailerPaymentStatus(source.getPaymentStatus()));
+        }
+        target.setPaymentTransactionId(source.getTransactionId());
+        target.setCreatedDate(source.getCreatedDate());
+        target.setDeliveredDate(source.getCompletedDate());
+        target.setLastModifiedDate(LocalDateTime.now());
+        target.setNotes(source.getNotes());
+
+        if (target.getItems() == null) {
+            target.setItems(new ArrayList<>());
+        }
+        if (target.getItems().isEmpty()) {
+            target.getItems().add(new RetailerOrder.OrderItem(
+                    source.getProduct() != null ? source.getProduct().getId() : null,
+                    source.getProductName(), source.getQuantity(), unitPrice(source)));
+        }
+        RetailerOrder.OrderItem item = target.getItems().get(0);
+        item.setProductName(source.getProductName());
+        item.setProductType(source.getProductType());
+        item.setQuantity(source.getQuantity());
+
+        RetailerOrder.BillingInfo billing = target.getBillingInfo() != null ? target.getBillingInfo() : new RetailerOrder.BillingInfo();
+        billing.setContactName(source.getCustomerName());
+        billing.setEmail(source.getCustomerEmail());
+        billing.setPhone(source.getCustomerPhone());
+        target.setBillingInfo(billing);
+
+        // Order metadata replaces the stored one; the legacy status is always written from the Order
+        Map<String, String> metadata = source.getMetadata() != null ? new HashMap<>(source.getMetadata()) : new HashMap<>();
+        Order.OrderStatus status = source.getStatus() != null ? source.getStatus() : Order.OrderStatus.COMPLETED;
+        metadata.put(LEGACY_STATUS, status.name());
+        if (source.getCustomer() != null) {
+            metadata.put(CUSTOMER_ID, source.getCustomer().getId());
+        }
+        target.setMetadata(metadata);
+
+        target.setStatus(toRetailerStatus(status));
+        return target;
+    }
+
+    // Sold and depleted inventory orders were completed purchases
+    private RetailerOrder.OrderStatus toRetailerStatus(Order.OrderStatus status) {
+        return switch (status) {
+            case PENDING -> RetailerOrder.OrderStatus.PENDING;
+            case CONFIRMED -> RetailerOrder.OrderStatus.CONFIRMED;
+            case PROCESSING -> RetailerOrder.OrderStatus.PROCESSING;
+            case CANCELLED -> RetailerOrder.OrderStatus.CANCELLED;
+            case REFUNDED -> RetailerOrder.OrderStatus.REFUNDED;
+            case COMPLETED, DEPLETED, SOLD -> RetailerOrder.OrderStatus.COMPLETED;
+        };
+    }
+
+    private List<RetailerOrder> findUnified(Criteria criteria) {
+        return mongoTemplate.find(unified(criteria).with(NEWEST_FIRST), RetailerOrder.class);
+    }
+
+    private long countUnified(Criteria criteria) {
+        return mongoTemplate.count(unified(criteria), RetailerOrder.class);
+    }
+
+    private Query unified(Criteria criteria) {
+        return Query.query(new Criteria().andOperator(
+                criteria, Criteria.where("metadata." + LEGACY_STATUS).exists(true)));
+    }
+
+    private List<Order> adapt(List<RetailerOrder> orders, User retailer) {
+        return orders.stream().map(order -> toLegacyOrder(order, retailer)).collect(Collectors.toList());
+    }
+
+    // Resolve all retailers in one query instead of one lookup per order
+    private List<Order> adaptWithRetailers(List<RetailerOrder> orders) {
+        List<String> retailerIds = orders.stream().map(RetailerOrder::getRetailerId).distinct().collect(Collectors.toList());
+        Map<String, User> retailers = new HashMap<>();
+        userRepository.findAllById(retailerIds).forEach(user -> retailers.put(user.getId(), user));
+        return orders.stream()
+                .map(order -> toLegacyOrder(order, retailers.get(order.getRetailerId())))
+                .collect(Collectors.toList());
+    }
+
+    private boolean isInventoryOrder(RetailerOrder order) {
+        return order.getMetadata() != null && order.getMetadata().containsKey(LEGACY_STATUS);
+    }
+
+    private BigDecimal unitPrice(Order order) {
+        if (order.getAmount() == null || order.getQuantity() == null || order.getQuantity() <= 0) {
+            return order.getAmount();
+        }
+        return order.getAmount().divide(BigDecimal.valueOf(order.getQuantity()), 2, RoundingMode.HALF_UP);
+    }
+
+    private RetailerOrder.PaymentStatus toRetailerPaymentStatus(Order.PaymentStatus status) {
+        if (status == null) {
+            return RetailerOrder.PaymentStatus.PENDING;
+        }
+        return switch (status) {
+            case PAID -> RetailerOrder.PaymentStatus.COMPLETED;
+            case FAILED -> RetailerOrder.PaymentStatus.FAILED;
+            case REFUNDED -> RetailerOrder.PaymentStatus.REFUNDED;
+            default -> RetailerOrder.PaymentStatus.PENDING;
+        };
+    }
+
+    private Order.PaymentStatus toLegacyPaymentStatus(RetailerOrder.PaymentStatus status) {
+        if (status == null) {
+            return Order.PaymentStatus.PENDING;
+        }
+        return switch (status) {
+            case COMPLETED -> Order.PaymentStatus.PAID;
+            case FAILED, CANCELLED -> Order.PaymentStatus.FAILED;
+            case REFUNDED -> Order.PaymentStatus.REFUNDED;
+            default -> Order.PaymentStatus.PENDING;
+        };
+    }
+}
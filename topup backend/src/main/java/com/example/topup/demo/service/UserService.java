@@ -33,6 +33,9 @@ public class UserService {
     @Autowired
     private PasswordEncoder passwordEncoder;
 
+    @Autowired
+    private EmailRateLimiter emailRateLimiter;
+
     /**
      * Register a new personal user
      */
@@ -57,8 +60,8 @@ public class UserService {
         // Save user
         user = userRepository.save(user);
 
-        // Send verification email
-        sendEmailVerification(user);
+        // Send verification email (not rate limited: one per registration, guarded by the unique email check)
+        createAndSendEmailVerification(user);
 
         return user;
     }
@@ -97,8 +100,8 @@ public class UserService {
         // Save user
         user = userRepository.save(user);
 
-        // Send verification email
-        sendEmailVerification(user);
+        // Send verification email (not rate limited: one per registration, guarded by the unique email check)
+        createAndSendEmailVerification(user);
 
         // Send business pending approval notification
         emailService.sendBusinessPendingEmail(user.getEmail(), user.getFirstName(), 
@@ -111,6 +114,23 @@ public class UserService {
      * Send email verification
      */
     public void sendEmailVerification(User user) {
+        emailRateLimiter.checkAndRecord(user.getEmail(), null);
+        createAndSendEmailVerification(user);
+    }
+
+    /**
+     * Resend email verification if the account exists and is not verified yet.
+     * Rate limited before the lookup, so the response does not reveal whether the email exists.
+     */
+    public void resendEmailVerification(String email, String clientIp) {
+        emailRateLimiter.checkAndRecord(email, clientIp);
+        Optional<User> userOptional = userRepository.findByEmailIgnoreCase(email);
+        if (userOptional.isPresent() && !userOptional.get().isEmailVerified()) {
+            createAndSendEmailVerification(userOptional.get());
+        }
+    }
+
+    private void createAndSendEmailVerification(User user) {
         // Invalidate any existing verification tokens
         invalidateExistingTokens(user.getEmail(), VerificationToken.TokenType.EMAIL_VERIFICATION);
 
@@ -179,6 +199,13 @@ public class UserService {
      * Send password reset email
      */
     public void sendPasswordResetEmail(String email) {
+        sendPasswordResetEmail(email, null);
+    }
+
+    public void sendPasswordResetEmail(String email, String clientIp) {
+        // Counted whether or not the account exists, to prevent email enumeration
+        emailRateLimiter.checkAndRecord(email, clientIp);
+
         Optional<User> userOptional = userRepository.findByEmailIgnoreCase(email);
         
         if (userOptional.isPresent()) {
@@ -0,0 +1,17 @@
+package com.example.topup.demo.util;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Generates order numbers that stay unique across threads and application instances.
+ * The suffix is a Mongo ObjectId (timestamp, per-process random value and counter),
+ * so numbers still sort roughly by creation time.
+ */
+public final class OrderNumberGenerator {
+
+    private OrderNumberGenerator() {}
+
+    public static String next(String prefix) {
+        return prefix + "-" + new ObjectId().toHexString().toUpperCase();
+    }
+}
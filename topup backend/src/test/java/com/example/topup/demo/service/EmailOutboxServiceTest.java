@@ -0,0 +1,250 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EmailOutboxMessage;
+import com.mongodb.client.result.UpdateResult;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class EmailOutboxServiceTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private JavaMailSender mailSender;
+
+    @Mock
+    private EmailMetrics emailMetrics;
+
+    @Mock
+    private PayloadCipher payloadCipher;
+
+    @InjectMocks
+    private EmailOutboxService emailOutboxService;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(emailOutboxService, "maxAttempts", 6);
+        ReflectionTestUtils.setField(emailOutboxService, "backoffSeconds", 30L);
+        ReflectionTestUtils.setField(emailOutboxService, "maxBackoffMinutes", 60L);
+        ReflectionTestUtils.setField(emailOutboxService, "leaseMinutes", 5L);
+        ReflectionTestUtils.setField(emailOutboxService, "batchSize", 20);
+    }
+
+    @Test
+    void enqueueStoresOnlyTheEncryptedBodyAndCountsItOnceTheTransactionCommits() {
+        EmailOutboxMessage message = new EmailOutboxMessage("ESIM_APPROVAL", "shop@example.com",
+                "customer@example.com", "Your eSIM", "<p>LPA:1$smdp$code</p>", true);
+        when(payloadCipher.encryptText("<p>LPA:1$smdp$code</p>")).thenReturn("sealed");
+        when(mongoTemplate.insert(any(EmailOutboxMessage.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            emailOutboxService.enqueue(message);
+
+            ArgumentCaptor<EmailOutboxMessage> stored = ArgumentCaptor.forClass(EmailOutboxMessage.class);
+            verify(mongoTemplate).insert(stored.capture());
+            assertThat(stored.getValue().getBody()).isEqualTo("sealed");
+            assertThat(stored.getValue().isEncrypted()).isTrue();
+            assertThat(stored.getValue().getSizeBytes()).isPositive();
+
+            // Rolled back messages are never counted or sent
+            verify(emailMetrics, never()).recordQueued(anyString());
+            assertThat(TransactionSynchronizationManager.getSynchronizations()).hasSize(1);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void drainLeasesDueMessagesAndSendsTheBatchOverOneConnection() throws Exception {
+        EmailOutboxMessage first = claimed("email-1", 1);
+        EmailOutboxMessage second = claimed("email-2", 1);
+        givenClaims(first, second);
+        when(mailSender.createMimeMessage()).thenReturn(mime(), mime());
+        when(payloadCipher.decryptText("sealed")).thenReturn("<p>Hello</p>");
+
+        drain();
+
+        ArgumentCaptor<Query> claim = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> lease = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, times(4)).findAndModify(claim.capture(), lease.capture(),
+                any(FindAndModifyOptions.class), eq(EmailOutboxMessage.class));
+        // Due PENDING messages, or SENDING ones whose worker stopped renewing them
+        assertThat((List<?>) claim.getValue().getQueryObject().get("$or")).hasSize(2);
+        Document update = lease.getValue().getUpdateObject();
+        assertThat(update.get("$set", Document.class).get("status")).isEqualTo(EmailOutboxMessage.Status.SENDING);
+        assertThat(update.get("$set", Document.class).get("lockedUntil")).isNotNull();
+        assertThat(update.get("$inc", Document.class).get("attempts")).isEqualTo(1);
+
+        verify(mailSender, times(1)).send(any(MimeMessage[].class));
+
+        ArgumentCaptor<Query> sent = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> sentUpdate = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateMulti(sent.capture(), sentUpdate.capture(), eq(EmailOutboxMessage.class));
+        assertThat(sent.getValue().getQueryObject().get("_id", Document.class).get("$in"))
+                .isEqualTo(List.of("email-1", "email-2"));
+        assertThat(sentUpdate.getValue().getUpdateObject().get("$set", Document.class).get("status"))
+                .isEqualTo(EmailOutboxMessage.Status.SENT);
+        assertThat(sentUpdate.getValue().getUpdateObject().get("$unset", Document.class))
+                .containsKeys("body", "inlineAttachments", "lockedUntil");
+    }
+
+    @Test
+    void messageRejectedInABatchIsRetriedWhileTheRestAreMarkedSent() throws Exception {
+        EmailOutboxMessage first = claimed("email-1", 1);
+        EmailOutboxMessage second = claimed("email-2", 1);
+        givenClaims(first, second);
+        MimeMessage accepted = mime();
+        MimeMessage rejected = mime();
+        when(mailSender.createMimeMessage()).thenReturn(accepted, rejected);
+        when(payloadCipher.decryptText("sealed")).thenReturn("<p>Hello</p>");
+        Map<Object, Exception> failures = Map.of(rejected, new MessagingException("550 mailbox unavailable"));
+        doThrow(new MailSendException(failures)).when(mailSender).send(any(MimeMessage[].class));
+
+        drain();
+
+        ArgumentCaptor<Query> sent = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).updateMulti(sent.capture(), any(Update.class), eq(EmailOutboxMessage.class));
+        assertThat(sent.getValue().getQueryObject().get("_id", Document.class).get("$in")).isEqualTo(List.of("email-1"));
+
+        Document retry = failedUpdate("email-2");
+        assertThat(retry.get("$set", Document.class).get("status")).isEqualTo(EmailOutboxMessage.Status.PENDING);
+        assertThat(retry.get("$set", Document.class).get("nextAttemptAt")).isNotNull();
+        assertThat(retry.get("$unset", Document.class)).doesNotContainKey("body");
+        verify(emailMetrics).recordFailure("ESIM_APPROVAL", false);
+    }
+
+    @Test
+    void messageOutOfAttemptsIsDeadLetteredWithItsPayloadKeptForRequeueing() throws Exception {
+        givenClaims(claimed("email-1", 6));
+        when(mailSender.createMimeMessage()).thenReturn(mime());
+        when(payloadCipher.decryptText("sealed")).thenReturn("<p>Hello</p>");
+        // Connecting failed, so nothing in the batch was sent
+        doThrow(new MailSendException("Connection refused")).when(mailSender).send(any(MimeMessage[].class));
+
+        drain();
+
+        Document dead = failedUpdate("email-1");
+        assertThat(dead.get("$set", Document.class).get("status")).isEqualTo(EmailOutboxMessage.Status.DEAD);
+        assertThat(dead.get("$set", Document.class).get("deadAt")).isNotNull();
+        assertThat(dead.get("$unset", Document.class)).containsKey("lockedUntil")
+                .doesNotContainKeys("body", "inlineAttachments");
+        verify(mongoTemplate, never()).updateMulti(any(Query.class), any(Update.class), eq(EmailOutboxMessage.class));
+        verify(emailMetrics).recordFailure("ESIM_APPROVAL", true);
+    }
+
+    @Test
+    void requeueGivesADeadMessageFreshAttemptsAndClearsItsExpiry() {
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(EmailOutboxMessage.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        assertThat(emailOutboxService.requeue("email-1")).isTrue();
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(query.capture(), update.capture(), eq(EmailOutboxMessage.class));
+        assertThat(query.getValue().getQueryObject().get("status")).isEqualTo(EmailOutboxMessage.Status.DEAD);
+        assertThat(query.getValue().getQueryObject().get("body", Document.class).get("$exists")).isEqualTo(true);
+        Document requeued = update.getValue().getUpdateObject();
+        assertThat(requeued.get("$set", Document.class).get("status")).isEqualTo(EmailOutboxMessage.Status.PENDING);
+        assertThat(requeued.get("$set", Document.class).get("attempts")).isEqualTo(0);
+        // Left in place, the TTL on deadAt would delete the message before it is sent
+        assertThat(requeued.get("$unset", Document.class)).containsKey("deadAt");
+    }
+
+    @Test
+    void twoHundredMessagesGoOutOverTenConnectionsInsteadOfTwoHundred() {
+        // Every send pays a simulated 20 ms for connecting, greeting and authenticating
+        doAnswer(invocation -> {
+            Thread.sleep(20);
+            return null;
+        }).when(mailSender).send(any(MimeMessage[].class));
+        EmailOutboxMessage[] claims = new EmailOutboxMessage[200];
+        for (int i = 0; i < claims.length; i++) {
+            claims[i] = claimed("email-" + i, 1);
+        }
+        givenClaims(claims[0], Arrays.copyOfRange(claims, 1, claims.length));
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> mime());
+        when(payloadCipher.decryptText("sealed")).thenReturn("<p>Hello</p>");
+
+        long start = System.nanoTime();
+        drain();
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        verify(mailSender, times(10)).send(any(MimeMessage[].class));
+        verify(mongoTemplate, times(10)).updateMulti(any(Query.class), any(Update.class), eq(EmailOutboxMessage.class));
+        // One connection per message would take at least 4 s here
+        assertThat(elapsed).isLessThan(Duration.ofSeconds(2));
+    }
+
+    private void drain() {
+        ReflectionTestUtils.invokeMethod(emailOutboxService, "drain");
+    }
+
+    // Each message is claimed once, then the outbox is empty
+    private void givenClaims(EmailOutboxMessage first, EmailOutboxMessage... rest) {
+        EmailOutboxMessage[] then = new EmailOutboxMessage[rest.length + 1];
+        System.arraycopy(rest, 0, then, 0, rest.length);
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(EmailOutboxMessage.class))).thenReturn(first, then);
+    }
+
+    private Document failedUpdate(String id) {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(query.capture(), update.capture(), eq(EmailOutboxMessage.class));
+        assertThat(query.getValue().getQueryObject().get("_id")).isEqualTo(id);
+        return update.getValue().getUpdateObject();
+    }
+
+    // A message as findAndModify returns it once a worker has leased it
+    private static EmailOutboxMessage claimed(String id, int attempts) {
+        EmailOutboxMessage message = new EmailOutboxMessage("ESIM_APPROVAL", "shop@example.com",
+                "customer@example.com", "Your eSIM", "sealed", true);
+        message.setId(id);
+        message.setEncrypted(true);
+        message.setSizeBytes(12);
+        message.setStatus(EmailOutboxMessage.Status.SENDING);
+        message.setAttempts(attempts);
+        return message;
+    }
+
+    private static MimeMessage mime() {
+        return new MimeMessage((Session) null);
+    }
+}
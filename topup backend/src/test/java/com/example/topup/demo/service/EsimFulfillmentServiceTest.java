@@ -0,0 +1,278 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EsimFulfillmentJob;
+import com.example.topup.demo.entity.EsimOrderRequest;
+import com.example.topup.demo.entity.StockPool;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class EsimFulfillmentServiceTest {
+
+    private static final String JOB_ID = "job-1";
+    private static final String REQUEST_ID = "request-1";
+    private static final String ORDER_NUMBER = "ESIM-1001";
+    private static final String RETAILER_ID = "retailer-1";
+    private static final String POOL_ID = "pool-1";
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private StockService stockService;
+
+    @Mock
+    private EmailService emailService;
+
+    @Mock
+    private EsimSaleService esimSaleService;
+
+    @Mock
+    private RevenueRollupService revenueRollupService;
+
+    @Mock
+    private BulkOperations bulkOperations;
+
+    @InjectMocks
+    private EsimFulfillmentService esimFulfillmentService;
+
+    private String instanceId;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(esimFulfillmentService, "maxBatchSize", 2);
+        ReflectionTestUtils.setField(esimFulfillmentService, "leaseMinutes", 5L);
+        instanceId = (String) ReflectionTestUtils.getField(esimFulfillmentService, "instanceId");
+    }
+
+    @Test
+    void submitRejectsEmptyAndOversizedBatches() {
+        assertThatThrownBy(() -> esimFulfillmentService.submit(List.of(), "admin@example.com", RETAILER_ID))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> esimFulfillmentService.submit(List.of("a", "b", "c"), "admin@example.com", RETAILER_ID))
+                .isInstanceOf(IllegalArgumentException.class);
+
+        verify(mongoTemplate, never()).insert(any(EsimFulfillmentJob.class));
+    }
+
+    @Test
+    void submitLeasesTheJobAndTakesOnlyPendingRequestsOffTheQueue() {
+        when(mongoTemplate.insert(any(EsimFulfillmentJob.class))).thenAnswer(invocation -> {
+            EsimFulfillmentJob job = invocation.getArgument(0);
+            job.setId(JOB_ID);
+            return job;
+        });
+
+        EsimFulfillmentJob job = esimFulfillmentService.submit(List.of(REQUEST_ID, REQUEST_ID), "admin@example.com", RETAILER_ID);
+
+        assertThat(job.getOwner()).isEqualTo(instanceId);
+        assertThat(job.getLeaseUntil()).isNotNull();
+        // Duplicate IDs are approved once
+        assertThat(job.getResults()).hasSize(1);
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateMulti(query.capture(), update.capture(), eq(EsimOrderRequest.class));
+        assertThat(query.getValue().getQueryObject().get("status")).isEqualTo("PENDING");
+        Document set = update.getValue().getUpdateObject().get("$set", Document.class);
+        assertThat(set.get("status")).isEqualTo(EsimFulfillmentService.STATUS_FULFILLING);
+        assertThat(set.get("fulfillmentJobId")).isEqualTo(JOB_ID);
+    }
+
+    @Test
+    void jobLeasedByAnotherInstanceIsLeftAlone() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(EsimFulfillmentJob.class))).thenReturn(null);
+
+        process();
+
+        ArgumentCaptor<Query> claim = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).findAndModify(claim.capture(), any(Update.class), any(FindAndModifyOptions.class),
+                eq(EsimFulfillmentJob.class));
+        Document filter = claim.getValue().getQueryObject();
+        assertThat(filter.get("_id")).isEqualTo(JOB_ID);
+        assertThat(filter.get("status")).isEqualTo(EsimFulfillmentJob.Status.PROCESSING);
+        // Ours, or a lease that has lapsed
+        assertThat((List<?>) filter.get("$or")).hasSize(3);
+        verify(mongoTemplate, never()).find(any(Query.class), eq(EsimOrderRequest.class));
+    }
+
+    @Test
+    void requestIsApprovedOnlyWhileThisJobStillHoldsIt() {
+        givenClaimedJobWithOneRequest();
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(EsimOrderRequest.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        when(emailService.sendEsimApprovalEmailWithQrImage(anyString(), any(), eq(ORDER_NUMBER), eq("SN-1"),
+                isNull(), anyString(), anyString(), isNull(), eq(ORDER_NUMBER))).thenReturn("email-1");
+
+        process();
+
+        // Every claim for the batch goes out in one bulk write
+        verify(bulkOperations).updateOne(any(Query.class), any(Update.class));
+        verify(bulkOperations).execute();
+        verify(esimSaleService).chargeApprovedRequest(any(EsimOrderRequest.class), eq(RETAILER_ID));
+
+        ArgumentCaptor<Query> approve = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).updateFirst(approve.capture(), any(Update.class), eq(EsimOrderRequest.class));
+        Document filter = approve.getValue().getQueryObject();
+        assertThat(filter.get("_id")).isEqualTo(REQUEST_ID);
+        assertThat(filter.get("status")).isEqualTo(EsimFulfillmentService.STATUS_FULFILLING);
+        assertThat(filter.get("fulfillmentJobId")).isEqualTo(JOB_ID);
+
+        ArgumentCaptor<EsimOrderRequest> approved = ArgumentCaptor.forClass(EsimOrderRequest.class);
+        verify(revenueRollupService).statusChanged(approved.capture());
+        assertThat(approved.getValue().getStatus()).isEqualTo("APPROVED");
+        verify(esimSaleService).recordApprovedRequestSale(any(EsimOrderRequest.class), eq(POOL_ID), eq(RETAILER_ID));
+        verify(esimSaleService, never()).refundApprovedRequest(any(EsimOrderRequest.class), anyString());
+        verify(mongoTemplate, never()).updateFirst(any(Query.class), any(Update.class), eq(StockPool.class));
+
+        // Completed only by the instance that owns it
+        ArgumentCaptor<Query> jobUpdates = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate, times(4)).updateFirst(jobUpdates.capture(), any(Update.class), eq(EsimFulfillmentJob.class));
+        assertThat(jobUpdates.getAllValues().get(3).getQueryObject().get("owner")).isEqualTo(instanceId);
+    }
+
+    @Test
+    void requestChangedDuringFulfillmentIsRefundedAndItsEsimReleased() {
+        givenClaimedJobWithOneRequest();
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(EsimOrderRequest.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+        EsimOrderRequest rejected = request();
+        rejected.setStatus("REJECTED");
+        when(mongoTemplate.findById(REQUEST_ID, EsimOrderRequest.class)).thenReturn(rejected);
+
+        process();
+
+        verify(esimSaleService).refundApprovedRequest(any(EsimOrderRequest.class), eq(RETAILER_ID));
+
+        ArgumentCaptor<Query> release = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> restock = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(release.capture(), restock.capture(), eq(StockPool.class));
+        Document item = release.getValue().getQueryObject().get("items", Document.class).get("$elemMatch", Document.class);
+        assertThat(item.get("assignedToOrderId")).isEqualTo(ORDER_NUMBER);
+        assertThat(item.get("status")).isEqualTo(StockPool.StockItem.ItemStatus.ASSIGNED);
+        assertThat(restock.getValue().getUpdateObject().get("$set", Document.class).get("items.$.status"))
+                .isEqualTo(StockPool.StockItem.ItemStatus.AVAILABLE);
+
+        verify(revenueRollupService, never()).statusChanged(any());
+        verify(esimSaleService, never()).recordApprovedRequestSale(any(EsimOrderRequest.class), anyString(), anyString());
+        verify(emailService, never()).sendEsimApprovalEmailWithQrImage(any(), any(), any(), any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    void requestApprovedElsewhereKeepsItsCharge() {
+        givenClaimedJobWithOneRequest();
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(EsimOrderRequest.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+        EsimOrderRequest approved = request();
+        approved.setStatus("APPROVED");
+        when(mongoTemplate.findById(REQUEST_ID, EsimOrderRequest.class)).thenReturn(approved);
+
+        process();
+
+        verify(esimSaleService, never()).refundApprovedRequest(any(EsimOrderRequest.class), anyString());
+        verify(mongoTemplate).updateFirst(any(Query.class), any(Update.class), eq(StockPool.class));
+    }
+
+    @Test
+    void requestApprovedBeforeATakeoverGetsItsSaleAndEmailWithoutBeingChargedAgain() {
+        EsimFulfillmentJob.Result result = new EsimFulfillmentJob.Result(REQUEST_ID);
+        result.setStep(EsimFulfillmentJob.Step.APPROVED);
+        EsimFulfillmentJob job = new EsimFulfillmentJob("admin@example.com", RETAILER_ID, List.of(result));
+        job.setId(JOB_ID);
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(EsimFulfillmentJob.class))).thenReturn(job);
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(EsimFulfillmentJob.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        EsimOrderRequest approved = request();
+        approved.setStatus("APPROVED");
+        when(mongoTemplate.find(any(Query.class), eq(EsimOrderRequest.class))).thenReturn(List.of(approved));
+        // Its eSIM is found again by order number
+        when(mongoTemplate.find(any(Query.class), eq(StockPool.class))).thenReturn(List.of(pool(assignedItem())));
+        when(emailService.sendEsimApprovalEmailWithQrImage(anyString(), any(), eq(ORDER_NUMBER), eq("SN-1"),
+                isNull(), anyString(), anyString(), isNull(), eq(ORDER_NUMBER))).thenReturn("email-1");
+
+        process();
+
+        verify(esimSaleService, never()).chargeApprovedRequest(any(EsimOrderRequest.class), anyString());
+        verify(mongoTemplate, never()).updateFirst(any(Query.class), any(Update.class), eq(EsimOrderRequest.class));
+        verify(mongoTemplate, never()).bulkOps(any(BulkOperations.BulkMode.class), eq(StockPool.class));
+        verify(esimSaleService).recordApprovedRequestSale(any(EsimOrderRequest.class), eq(POOL_ID), eq(RETAILER_ID));
+        assertThat(result.getStep()).isEqualTo(EsimFulfillmentJob.Step.EMAIL_QUEUED);
+        assertThat(result.getEmailId()).isEqualTo("email-1");
+    }
+
+    private void process() {
+        ReflectionTestUtils.invokeMethod(esimFulfillmentService, "process", JOB_ID);
+    }
+
+    // A job this instance has claimed, holding one FULFILLING request, with one eSIM in stock
+    private void givenClaimedJobWithOneRequest() {
+        EsimFulfillmentJob job = new EsimFulfillmentJob("admin@example.com", RETAILER_ID,
+                List.of(new EsimFulfillmentJob.Result(REQUEST_ID)));
+        job.setId(JOB_ID);
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(EsimFulfillmentJob.class))).thenReturn(job);
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(EsimFulfillmentJob.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        when(mongoTemplate.find(any(Query.class), eq(EsimOrderRequest.class))).thenReturn(List.of(request()));
+
+        StockPool.StockItem available = new StockPool.StockItem("data", "SN-1");
+        available.setItemId("item-1");
+        // No earlier claims, then the pool to claim from, then the claim that was made
+        when(mongoTemplate.find(any(Query.class), eq(StockPool.class)))
+                .thenReturn(Collections.emptyList(), List.of(pool(available)), List.of(pool(assignedItem())));
+        when(mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StockPool.class)).thenReturn(bulkOperations);
+    }
+
+    private static EsimOrderRequest request() {
+        EsimOrderRequest request = new EsimOrderRequest();
+        request.setId(REQUEST_ID);
+        request.setOrderNumber(ORDER_NUMBER);
+        request.setCustomerEmail("customer@example.com");
+        request.setStatus(EsimFulfillmentService.STATUS_FULFILLING);
+        return request;
+    }
+
+    private static StockPool.StockItem assignedItem() {
+        StockPool.StockItem assigned = new StockPool.StockItem("data", "SN-1");
+        assigned.setItemId("item-1");
+        assigned.setStatus(StockPool.StockItem.ItemStatus.ASSIGNED);
+        assigned.setAssignedToOrderId(ORDER_NUMBER);
+        return assigned;
+    }
+
+    private static StockPool pool(StockPool.StockItem item) {
+        StockPool pool = new StockPool();
+        pool.setId(POOL_ID);
+        pool.setItems(List.of(item));
+        return pool;
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.IdempotencyRecord;
+import com.example.topup.demo.repository.IdempotencyRecordRepository;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class IdempotencyServiceTest {
+
+    private static final String SCOPE = "direct-sale";
+    private static final String RETAILER_ID = "retailer-1";
+    private static final String KEY = "key-1";
+    private static final String RECORD_ID = IdempotencyRecord.buildId(SCOPE, RETAILER_ID, KEY);
+    private static final Map<String, Object> BODY = Map.of("productId", "p-1", "quantity", 1);
+
+    @Mock
+    private IdempotencyRecordRepository idempotencyRecordRepository;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private PayloadCipher payloadCipher;
+
+    @InjectMocks
+    private IdempotencyService idempotencyService;
+
+    private final AtomicInteger runs = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(idempotencyService, "ttlHours", 24L);
+        ReflectionTestUtils.setField(idempotencyService, "leaseSeconds", 120L);
+    }
+
+    @Test
+    void requestWithoutKeyJustRunsTheAction() {
+        ResponseEntity<?> response = idempotencyService.execute(SCOPE, RETAILER_ID, null, BODY, action(HttpStatus.OK));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(runs).hasValue(1);
+        verify(idempotencyRecordRepository, never()).insert(any(IdempotencyRecord.class));
+    }
+
+    @Test
+    void firstRequestClaimsTheKeyWithALeaseAndStoresTheResponseEncrypted() {
+        when(payloadCipher.encryptText("{\"success\":true}")).thenReturn("sealed");
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(IdempotencyRecord.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        ResponseEntity<?> response = idempotencyService.execute(SCOPE, RETAILER_ID, KEY, BODY, action(HttpStatus.OK));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(runs).hasValue(1);
+
+        ArgumentCaptor<IdempotencyRecord> claimed = ArgumentCaptor.forClass(IdempotencyRecord.class);
+        verify(idempotencyRecordRepository).insert(claimed.capture());
+        assertThat(claimed.getValue().getId()).isEqualTo(RECORD_ID);
+        assertThat(claimed.getValue().getOwner()).isNotBlank();
+        assertThat(claimed.getValue().getLeaseUntil()).isAfter(LocalDateTime.now());
+
+        // Only the owner of the claim may complete it
+        ArgumentCaptor<Query> completed = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(completed.capture(), update.capture(), eq(IdempotencyRecord.class));
+        assertThat(completed.getValue().getQueryObject().get("owner")).isEqualTo(claimed.getValue().getOwner());
+        Document stored = update.getValue().getUpdateObject().get("$set", Document.class);
+        assertThat(stored.get("status")).isEqualTo(IdempotencyRecord.Status.COMPLETED);
+        // The response may carry ePINs and is never stored in plain text
+        assertThat(stored.get("responseBody")).isEqualTo("sealed");
+    }
+
+    @Test
+    void failedRequestReleasesOnlyItsOwnClaim() {
+        ResponseEntity<?> response = idempotencyService.execute(SCOPE, RETAILER_ID, KEY, BODY, action(HttpStatus.BAD_REQUEST));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+
+        ArgumentCaptor<IdempotencyRecord> claimed = ArgumentCaptor.forClass(IdempotencyRecord.class);
+        verify(idempotencyRecordRepository).insert(claimed.capture());
+        ArgumentCaptor<Query> released = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).remove(released.capture(), eq(IdempotencyRecord.class));
+        assertThat(released.getValue().getQueryObject().get("_id")).isEqualTo(RECORD_ID);
+        assertThat(released.getValue().getQueryObject().get("owner")).isEqualTo(claimed.getValue().getOwner());
+    }
+
+    @Test
+    void retryOfACompletedRequestReplaysTheStoredResponse() {
+        IdempotencyRecord existing = existing(IdempotencyRecord.Status.COMPLETED);
+        existing.setHttpStatus(200);
+        existing.setResponseBody("sealed");
+        when(payloadCipher.decryptText("sealed")).thenReturn("{\"success\":true}");
+        when(idempotencyRecordRepository.insert(any(IdempotencyRecord.class))).thenThrow(new DuplicateKeyException("duplicate"));
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), eq(IdempotencyRecord.class))).thenReturn(null);
+        when(idempotencyRecordRepository.findById(RECORD_ID)).thenReturn(Optional.of(existing));
+
+        ResponseEntity<?> response = idempotencyService.execute(SCOPE, RETAILER_ID, KEY, BODY, action(HttpStatus.OK));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getHeaders().getFirst(IdempotencyService.REPLAYED_HEADER)).isEqualTo("true");
+        assertThat(response.getBody()).isEqualTo("{\"success\":true}");
+        assertThat(runs).hasValue(0);
+    }
+
+    @Test
+    void retryWhileTheFirstAttemptStillHoldsItsLeaseIsRefused() {
+        when(idempotencyRecordRepository.insert(any(IdempotencyRecord.class))).thenThrow(new DuplicateKeyException("duplicate"));
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), eq(IdempotencyRecord.class))).thenReturn(null);
+        when(idempotencyRecordRepository.findById(RECORD_ID)).thenReturn(Optional.of(existing(IdempotencyRecord.Status.IN_PROGRESS)));
+
+        ResponseEntity<?> response = idempotencyService.execute(SCOPE, RETAILER_ID, KEY, BODY, action(HttpStatus.OK));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.CONFLICT);
+        assertThat(runs).hasValue(0);
+    }
+
+    @Test
+    void retryTakesOverAKeyWhoseLeaseHasExpired() {
+        when(idempotencyRecordRepository.insert(any(IdempotencyRecord.class))).thenThrow(new DuplicateKeyException("duplicate"));
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), eq(IdempotencyRecord.class)))
+                .thenReturn(existing(IdempotencyRecord.Status.IN_PROGRESS));
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(IdempotencyRecord.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        ResponseEntity<?> response = idempotencyService.execute(SCOPE, RETAILER_ID, KEY, BODY, action(HttpStatus.OK));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(runs).hasValue(1);
+
+        ArgumentCaptor<Query> takeOver = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> lease = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).findAndModify(takeOver.capture(), lease.capture(), eq(IdempotencyRecord.class));
+        Document stale = takeOver.getValue().getQueryObject();
+        assertThat(stale.get("_id")).isEqualTo(RECORD_ID);
+        assertThat(stale.get("status")).isEqualTo(IdempotencyRecord.Status.IN_PROGRESS);
+        assertThat(stale.get("requestHash")).isNotNull();
+        assertThat(stale.get("$or")).isNotNull();
+
+        // The new owner completes the key, not the attempt that died
+        String newOwner = lease.getValue().getUpdateObject().get("$set", Document.class).getString("owner");
+        ArgumentCaptor<Query> completed = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).updateFirst(completed.capture(), any(Update.class), eq(IdempotencyRecord.class));
+        assertThat(completed.getValue().getQueryObject().get("owner")).isEqualTo(newOwner);
+    }
+
+    @Test
+    void keyReusedForADifferentRequestIsRejected() {
+        IdempotencyRecord existing = existing(IdempotencyRecord.Status.COMPLETED);
+        existing.setRequestHash("another-body");
+        when(idempotencyRecordRepository.insert(any(IdempotencyRecord.class))).thenThrow(new DuplicateKeyException("duplicate"));
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), eq(IdempotencyRecord.class))).thenReturn(null);
+        when(idempotencyRecordRepository.findById(RECORD_ID)).thenReturn(Optional.of(existing));
+
+        ResponseEntity<?> response = idempotencyService.execute(SCOPE, RETAILER_ID, KEY, BODY, action(HttpStatus.OK));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY);
+        assertThat(runs).hasValue(0);
+    }
+
+    private Supplier<ResponseEntity<?>> action(HttpStatus status) {
+        return () -> {
+            runs.incrementAndGet();
+            return ResponseEntity.status(status).body(Map.of("success", status.is2xxSuccessful()));
+        };
+    }
+
+    // A record stored by an earlier attempt with the same body
+    private IdempotencyRecord existing(IdempotencyRecord.Status status) {
+        IdempotencyRecord record = new IdempotencyRecord(SCOPE, RETAILER_ID, KEY, idempotencyService.hash(BODY),
+                LocalDateTime.now().plusHours(24));
+        record.setStatus(status);
+        return record;
+    }
+}
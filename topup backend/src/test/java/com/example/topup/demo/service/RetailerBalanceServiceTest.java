@@ -0,0 +1,226 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.RetailerLimit;
+import com.example.topup.demo.entity.RetailerWallet;
+import com.example.topup.demo.entity.RetailerWallet.PaymentMode;
+import com.example.topup.demo.entity.RetailerWallet.SubAccount;
+import com.example.topup.demo.repository.RetailerEsimCreditRepository;
+import com.example.topup.demo.repository.RetailerKickbackLimitRepository;
+import com.example.topup.demo.repository.RetailerLimitRepository;
+import com.example.topup.demo.repository.RetailerWalletRepository;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class RetailerBalanceServiceTest {
+
+    private static final String RETAILER_ID = "retailer-1";
+
+    @Mock
+    private RetailerWalletRepository retailerWalletRepository;
+
+    @Mock
+    private RetailerLimitRepository retailerLimitRepository;
+
+    @Mock
+    private RetailerEsimCreditRepository retailerEsimCreditRepository;
+
+    @Mock
+    private RetailerKickbackLimitRepository retailerKickbackLimitRepository;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private RetailerBalanceCache retailerBalanceCache;
+
+    @Mock
+    private RetailerCreditOverviewService retailerCreditOverviewService;
+
+    @InjectMocks
+    private RetailerBalanceService retailerBalanceService;
+
+    private RetailerWallet wallet;
+
+    @BeforeEach
+    void setUp() {
+        wallet = wallet("ACTIVE", "100.00");
+        // Not every operation reads the wallet first
+        lenient().when(retailerBalanceCache.get(RETAILER_ID)).thenReturn(wallet);
+    }
+
+    @Test
+    void debitMatchesOnlyAnActiveAccountWithEnoughBalanceAndRemembersTheReference() {
+        RetailerWallet updated = wallet("ACTIVE", "60.00");
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(RetailerWallet.class))).thenReturn(updated);
+
+        RetailerWallet result = retailerBalanceService.debit(RETAILER_ID, PaymentMode.CREDIT,
+                new BigDecimal("40.00"), "sale-1", "POS sale");
+
+        assertThat(result).isSameAs(updated);
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).findAndModify(query.capture(), update.capture(), any(FindAndModifyOptions.class),
+                eq(RetailerWallet.class));
+
+        Document filter = query.getValue().getQueryObject();
+        assertThat(filter.get("retailerId")).isEqualTo(RETAILER_ID);
+        assertThat(filter.get("accounts.CREDIT.status")).isEqualTo("ACTIVE");
+        assertThat(filter.get("accounts.CREDIT.available", Document.class).get("$gte"))
+                .isEqualTo(new Decimal128(new BigDecimal("40.00")));
+        assertThat(filter.get("recentReferences", Document.class).get("$ne")).isEqualTo("debit:sale-1");
+
+        Document inc = update.getValue().getUpdateObject().get("$inc", Document.class);
+        assertThat(inc.get("accounts.CREDIT.used")).isEqualTo(new Decimal128(new BigDecimal("40.00")));
+        assertThat(inc.get("accounts.CREDIT.available")).isEqualTo(new Decimal128(new BigDecimal("-40.00")));
+        assertThat(inc.get("accounts.CREDIT.outstanding")).isEqualTo(new Decimal128(new BigDecimal("40.00")));
+
+        // Outside a transaction the new balance is cached straight away and projected to the legacy document
+        verify(retailerBalanceCache).put(updated);
+        verify(mongoTemplate).updateFirst(any(Query.class), any(Update.class), eq(RetailerLimit.class));
+    }
+
+    @Test
+    void eachDebitCostsTwoMongoWritesAndNoReads() {
+        RetailerWallet updated = wallet("ACTIVE", "60.00");
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(RetailerWallet.class))).thenReturn(updated);
+
+        for (int i = 0; i < 100; i++) {
+            retailerBalanceService.debit(RETAILER_ID, PaymentMode.CREDIT, new BigDecimal("1.00"), "sale-" + i, "POS sale");
+        }
+
+        // The balance check is part of the conditional update and the wallet is read from the cache,
+        // so a debit is one findAndModify plus the projection onto retailer_limits
+        assertThat(mockingDetails(mongoTemplate).getInvocations()).hasSize(200);
+        verify(mongoTemplate, times(100)).findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(RetailerWallet.class));
+        verify(mongoTemplate, times(100)).updateFirst(any(Query.class), any(Update.class), eq(RetailerLimit.class));
+        verifyNoInteractions(retailerWalletRepository, retailerLimitRepository);
+    }
+
+    @Test
+    void debitInsideATransactionCachesTheWalletOnlyAfterCommit() {
+        RetailerWallet updated = wallet("ACTIVE", "60.00");
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(RetailerWallet.class))).thenReturn(updated);
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            retailerBalanceService.debit(RETAILER_ID, PaymentMode.CREDIT, new BigDecimal("40.00"), "sale-1", "POS sale");
+
+            verify(retailerBalanceCache).invalidate(RETAILER_ID);
+            verify(retailerBalanceCache, never()).put(updated);
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+            verify(retailerBalanceCache).put(updated);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void debitWithoutEnoughBalanceThrowsAndChangesNothing() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(RetailerWallet.class))).thenReturn(null);
+        when(mongoTemplate.exists(any(Query.class), eq(RetailerWallet.class))).thenReturn(false);
+
+        assertThatThrownBy(() -> retailerBalanceService.debit(RETAILER_ID, PaymentMode.CREDIT,
+                new BigDecimal("150.00"), "sale-2", "POS sale"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("Insufficient balance");
+
+        verify(retailerBalanceCache).invalidate(RETAILER_ID);
+        verify(mongoTemplate, never()).updateFirst(any(Query.class), any(Update.class), eq(RetailerLimit.class));
+    }
+
+    @Test
+    void repeatedDebitWithTheSameReferenceIsNotAppliedAgain() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(RetailerWallet.class))).thenReturn(null);
+        when(mongoTemplate.exists(any(Query.class), eq(RetailerWallet.class))).thenReturn(true);
+
+        RetailerWallet result = retailerBalanceService.debit(RETAILER_ID, PaymentMode.CREDIT,
+                new BigDecimal("40.00"), "sale-1", "POS sale");
+
+        assertThat(result).isSameAs(wallet);
+        verify(mongoTemplate, never()).updateFirst(any(Query.class), any(Update.class), eq(RetailerLimit.class));
+    }
+
+    @Test
+    void debitRejectsNonPositiveAmounts() {
+        assertThatThrownBy(() -> retailerBalanceService.debit(RETAILER_ID, PaymentMode.CREDIT,
+                BigDecimal.ZERO, "sale-3", "POS sale"))
+                .isInstanceOf(IllegalArgumentException.class);
+
+        verify(mongoTemplate, never()).findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(RetailerWallet.class));
+    }
+
+    @Test
+    void authorizeAgreesWithDebitOnAccountsWithoutAConfiguredLimit() {
+        wallet.putAccount(PaymentMode.CREDIT, new SubAccount(new BigDecimal("100.00"), BigDecimal.ZERO,
+                new BigDecimal("100.00"), BigDecimal.ZERO, "NOT_SET"));
+
+        assertThat(retailerBalanceService.authorize(RETAILER_ID, PaymentMode.CREDIT, new BigDecimal("10.00"))).isFalse();
+        assertThat(retailerBalanceService.authorize(RETAILER_ID, PaymentMode.ESIM_CREDIT, new BigDecimal("10.00"))).isFalse();
+    }
+
+    @Test
+    void reverseOnlyMatchesARecordedDebitAndForgetsIt() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(RetailerWallet.class))).thenReturn(null);
+
+        RetailerWallet result = retailerBalanceService.reverse(RETAILER_ID, PaymentMode.CREDIT,
+                new BigDecimal("40.00"), "sale-1", "Sale failed");
+
+        assertThat(result).isNull();
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).findAndModify(query.capture(), update.capture(), any(FindAndModifyOptions.class),
+                eq(RetailerWallet.class));
+        assertThat(query.getValue().getQueryObject().get("recentReferences")).isEqualTo("debit:sale-1");
+        assertThat(update.getValue().getUpdateObject().get("$pull", Document.class).get("recentReferences"))
+                .isEqualTo("debit:sale-1");
+        verify(mongoTemplate, never()).updateFirst(any(Query.class), any(Update.class), eq(RetailerLimit.class));
+    }
+
+    private static RetailerWallet wallet(String status, String available) {
+        RetailerWallet wallet = new RetailerWallet(RETAILER_ID);
+        BigDecimal availableAmount = new BigDecimal(available);
+        BigDecimal limit = new BigDecimal("100.00");
+        wallet.putAccount(PaymentMode.CREDIT, new SubAccount(limit, limit.subtract(availableAmount), availableAmount,
+                limit.subtract(availableAmount), status));
+        return wallet;
+    }
+}
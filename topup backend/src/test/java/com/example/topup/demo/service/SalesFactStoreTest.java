@@ -0,0 +1,223 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.entity.StockPool;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class SalesFactStoreTest {
+
+    private static final String ORDERS = "retailer_orders";
+    private static final String POOLS = "stock_pools";
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private MongoConverter converter;
+
+    @InjectMocks
+    private SalesFactStore salesFactStore;
+
+    private final Map<String, RetailerOrder> orders = new LinkedHashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(salesFactStore, "maxAgeMinutes", 60L);
+
+        RetailerOrder.OrderItem esim = item("pool-2", "Vodafone eSIM", 1, "250.50");
+        esim.setProductType("eSIM");
+        order("order-1", "retailer-1", RetailerOrder.OrderStatus.COMPLETED, LocalDate.of(2026, 10, 1), "Norway",
+                item("pool-1", "Lyca 100", 2, "100.00"), esim);
+        order("order-2", "retailer-2", RetailerOrder.OrderStatus.DELIVERED, LocalDate.of(2026, 10, 2), "Sweden",
+                item("pool-1", "Lyca 100", 3, "100.00"));
+        order("order-3", "retailer-1", RetailerOrder.OrderStatus.COMPLETED, LocalDate.of(2026, 10, 2), null,
+                item("pool-1", "Lyca 100", 1, "100.00"));
+
+        when(mongoTemplate.getCollectionName(RetailerOrder.class)).thenReturn(ORDERS);
+        when(mongoTemplate.getCollectionName(StockPool.class)).thenReturn(POOLS);
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq(POOLS))).thenReturn(List.of(
+                new Document("_id", "pool-1").append("networkProvider", "Lyca"),
+                new Document("_id", "pool-2").append("networkProvider", "Vodafone")));
+        when(mongoTemplate.stream(any(Query.class), eq(Document.class), eq(ORDERS))).thenAnswer(invocation ->
+                orders.keySet().stream().map(id -> new Document("_id", id)).toList().stream());
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+        when(converter.read(eq(RetailerOrder.class), any(Document.class))).thenAnswer(invocation ->
+                orders.get(invocation.<Document>getArgument(1).getString("_id")));
+    }
+
+    @Test
+    void totalCountsUnitsRevenueRowsAndDistinctOrders() {
+        SalesFactStore.Group total = salesFactStore.total(new SalesFactStore.Filter());
+
+        assertThat(total.getUnits()).isEqualTo(7);
+        assertThat(total.getRevenue()).isEqualByComparingTo("850.50");
+        assertThat(total.getRows()).isEqualTo(4);
+        assertThat(total.getOrders()).isEqualTo(3);
+        assertThat(salesFactStore.size()).isEqualTo(4);
+    }
+
+    @Test
+    void groupByDecodesEachDimensionLargestFirst() {
+        List<SalesFactStore.Group> operators = salesFactStore.groupBy(SalesFactStore.Dimension.OPERATOR,
+                new SalesFactStore.Filter());
+        assertThat(operators).extracting(SalesFactStore.Group::getKey).containsExactly("Lyca", "Vodafone");
+        assertThat(operators.get(0).getUnits()).isEqualTo(6);
+        assertThat(operators.get(0).getRevenue()).isEqualByComparingTo("600.00");
+
+        // Orders without a billing country are grouped under Unknown
+        assertThat(salesFactStore.groupBy(SalesFactStore.Dimension.COUNTRY, new SalesFactStore.Filter()))
+                .extracting(SalesFactStore.Group::getKey).containsExactlyInAnyOrder("Norway", "Sweden", SalesFactStore.UNKNOWN);
+        assertThat(salesFactStore.groupBy(SalesFactStore.Dimension.DAY, new SalesFactStore.Filter()))
+                .extracting(SalesFactStore.Group::getKey).containsExactly("2026-10-02", "2026-10-01");
+        assertThat(salesFactStore.groupBy(SalesFactStore.Dimension.TYPE, new SalesFactStore.Filter()))
+                .extracting(SalesFactStore.Group::getKey)
+                .containsExactly(RetailerOrder.OrderItem.TYPE_EPIN, RetailerOrder.OrderItem.TYPE_ESIM);
+    }
+
+    @Test
+    void filtersCombineAndUnknownValuesMatchNothing() {
+        assertThat(salesFactStore.total(new SalesFactStore.Filter().retailerId("retailer-1").type("esim")).getUnits())
+                .isEqualTo(1);
+        assertThat(salesFactStore.total(new SalesFactStore.Filter().from(LocalDate.of(2026, 10, 2))).getUnits())
+                .isEqualTo(4);
+        assertThat(salesFactStore.total(new SalesFactStore.Filter().to(LocalDate.of(2026, 10, 1))).getOrders())
+                .isEqualTo(1);
+
+        SalesFactStore.Group none = salesFactStore.total(new SalesFactStore.Filter().country("Denmark"));
+        assertThat(none.getUnits()).isZero();
+        assertThat(none.getRows()).isZero();
+        assertThat(salesFactStore.groupBy(SalesFactStore.Dimension.PRODUCT,
+                new SalesFactStore.Filter().retailerId("retailer-9"))).isEmpty();
+    }
+
+    @Test
+    void savedOrderReplacesItsRowsOnlyOnceTheTransactionCommits() {
+        salesFactStore.total(new SalesFactStore.Filter());
+        RetailerOrder cancelled = orders.get("order-2");
+        cancelled.setStatus(RetailerOrder.OrderStatus.CANCELLED);
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            salesFactStore.onAfterSave(new AfterSaveEvent<>(cancelled, new Document("_id", "order-2"), ORDERS));
+            assertThat(salesFactStore.total(new SalesFactStore.Filter()).getUnits()).isEqualTo(7);
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        SalesFactStore.Group total = salesFactStore.total(new SalesFactStore.Filter());
+        assertThat(total.getUnits()).isEqualTo(4);
+        assertThat(total.getOrders()).isEqualTo(2);
+        assertThat(salesFactStore.size()).isEqualTo(3);
+    }
+
+    @Test
+    void orderSavedOutsideATransactionIsAddedStraightAway() {
+        salesFactStore.total(new SalesFactStore.Filter());
+        RetailerOrder delivered = newOrder("order-4", "retailer-3", RetailerOrder.OrderStatus.DELIVERED,
+                LocalDate.of(2026, 10, 3), "Norway", item("pool-2", "Vodafone 50", 5, "50.00"));
+
+        salesFactStore.onAfterSave(new AfterSaveEvent<>(delivered, new Document("_id", "order-4"), ORDERS));
+
+        SalesFactStore.Group retailer = salesFactStore.total(new SalesFactStore.Filter().retailerId("retailer-3"));
+        assertThat(retailer.getUnits()).isEqualTo(5);
+        assertThat(retailer.getRevenue()).isEqualByComparingTo("250.00");
+        assertThat(salesFactStore.groupBy(SalesFactStore.Dimension.OPERATOR, new SalesFactStore.Filter().retailerId("retailer-3")))
+                .extracting(SalesFactStore.Group::getKey).containsExactly("Vodafone");
+    }
+
+    @Test
+    void operatorOfANewProductIsLookedUpBeforeTheWriteLockIsTaken() {
+        salesFactStore.total(new SalesFactStore.Filter());
+        ReentrantReadWriteLock lock = (ReentrantReadWriteLock) ReflectionTestUtils.getField(salesFactStore, "lock");
+        when(mongoTemplate.findOne(any(Query.class), eq(Document.class), eq(POOLS))).thenAnswer(invocation -> {
+            assertThat(lock.isWriteLocked()).isFalse();
+            return new Document("_id", "pool-3").append("networkProvider", "Telia");
+        });
+        RetailerOrder order = newOrder("order-4", "retailer-3", RetailerOrder.OrderStatus.COMPLETED,
+                LocalDate.of(2026, 10, 3), "Norway", item("pool-3", "Telia 200", 1, "200.00"));
+
+        salesFactStore.onAfterSave(new AfterSaveEvent<>(order, new Document("_id", "order-4"), ORDERS));
+
+        assertThat(salesFactStore.total(new SalesFactStore.Filter().operator("Telia")).getUnits()).isEqualTo(1);
+    }
+
+    @Test
+    void groupByOverAHundredThousandRowsTakesMillisecondsNotSeconds() {
+        for (int i = 0; i < 50_000; i++) {
+            order("bulk-" + i, "retailer-" + (i % 300), RetailerOrder.OrderStatus.COMPLETED,
+                    LocalDate.of(2026, 1, 1).plusDays(i % 365), i % 2 == 0 ? "Norway" : "Sweden",
+                    item("pool-1", "Lyca " + (i % 20), 1, "100.00"), item("pool-2", "Vodafone eSIM", 2, "250.00"));
+        }
+        // Loads the store and warms up the code paths
+        assertThat(salesFactStore.size()).isEqualTo(100_004);
+        for (SalesFactStore.Dimension dimension : SalesFactStore.Dimension.values()) {
+            salesFactStore.groupBy(dimension, new SalesFactStore.Filter());
+        }
+
+        long start = System.nanoTime();
+        for (int round = 0; round < 10; round++) {
+            for (SalesFactStore.Dimension dimension : SalesFactStore.Dimension.values()) {
+                salesFactStore.groupBy(dimension, new SalesFactStore.Filter().country("Norway"));
+            }
+        }
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        // Each group-by is one pass over the columns; the analytics endpoints run several per request
+        assertThat(elapsed).isLessThan(Duration.ofSeconds(2));
+    }
+
+    private void order(String id, String retailerId, RetailerOrder.OrderStatus status, LocalDate day, String country,
+                       RetailerOrder.OrderItem... items) {
+        orders.put(id, newOrder(id, retailerId, status, day, country, items));
+    }
+
+    private static RetailerOrder newOrder(String id, String retailerId, RetailerOrder.OrderStatus status, LocalDate day,
+                                          String country, RetailerOrder.OrderItem... items) {
+        RetailerOrder order = new RetailerOrder();
+        order.setId(id);
+        order.setRetailerId(retailerId);
+        order.setStatus(status);
+        order.setCreatedDate(day.atTime(12, 0));
+        order.setItems(new ArrayList<>(List.of(items)));
+        if (country != null) {
+            RetailerOrder.BillingInfo billingInfo = new RetailerOrder.BillingInfo();
+            billingInfo.setCountry(country);
+            order.setBillingInfo(billingInfo);
+        }
+        return order;
+    }
+
+    private static RetailerOrder.OrderItem item(String productId, String productName, int quantity, String unitPrice) {
+        return new RetailerOrder.OrderItem(productId, productName, quantity, new BigDecimal(unitPrice));
+    }
+}